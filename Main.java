@@ -1,7 +1,9 @@
 import filesys.IFileSystem;
 
 import java.util.Scanner;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 import exception.PermissaoException;
 import exception.CaminhoJaExistenteException;
@@ -51,40 +53,20 @@ public class Main {
         // A partir do momento que um usuário cria outro diretório ou arquivo, 
         // a permissão desse usuário é de leitura, escrita e execução nesse novo diretório/arquivo,
         // e sempre será rwx para o usuário root.
+        //
+        // O FileSystem cadastra os usuários do arquivo no seu RegistroUsuarios.
+        // Lista de usuários é imutável durante a execução do programa
         try {
-            Scanner userScanner = new Scanner(new java.io.File("users/users"));
-            while (userScanner.hasNextLine()) {
-                String line = userScanner.nextLine().trim();
-                if (!line.isEmpty()) {
-                    String[] parts = line.split(" ");
-                    if (parts.length == 3) {
-                        String userListed = parts[0];
-                        String dir = parts[1];
-                        String dirPermission = parts[2];
-                        
-                        /* A FAZER:
-                         * Processar a permissão de todos os usuários existentes por diretório.
-                         * Por enquanto esse código somente imprime as permissões contidas no arquivo users.
-                        */
-                        System.out.println(userListed + " " + dir + " " + dirPermission); // Somente imprime o usuário, diretório e permissão
-
-
-                    } else {
-                        System.out.println("Formato ruim no arquivo de usuários. Linha: " + line);
-                    }
-                }
-            }
-            userScanner.close();
-        } catch (FileNotFoundException e) { // Retorna se o arquivo de usuários não for encontrado
+            fileSystem = new FileSystem(Paths.get("users/users"));
+        } catch (NoSuchFileException e) { // Retorna se o arquivo de usuários não for encontrado
             System.out.println("Arquivo de usuários não encontrado");
 
+            return;
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+
             return;
         }
-        
-        // Finalmente cria o Sistema de Arquivos
-        // Lista de usuários é imutável durante a execução do programa
-        // Obs: Como passar a lista de usuários para o FileSystem?
-        fileSystem = new FileSystem(/*usuários?*/);
 
         // // DESCOMENTE O BLOCO ABAIXO PARA CRIAR O DIRETÓRIO RAIZ ANTES DE RODAR O MENU
         // // Cria o diretório raiz do sistema. Root sempre tem permissão total "rwx"
@@ -213,9 +195,16 @@ public class Main {
     public static void read() throws CaminhoNaoEncontradoException, PermissaoException {
         System.out.println("Insira o caminho do arquivo a ser lido:");
         String caminho = scanner.nextLine();
-        byte[] buffer = new byte[READ_BUFFER_SIZE]; // Exemplo de tamanho de buffer por load/leitura . O que acontece se o Buffer for menor que o conteúdo a ser lido?     
-        
-        fileSystem.read(caminho, user, buffer); // Lógica para ler arquivos maiores que o buffer deve ser implementada. 
+        byte[] buffer = new byte[READ_BUFFER_SIZE]; // Exemplo de tamanho de buffer por load/leitura.
+
+        // Arquivos maiores que o buffer são lidos em partes de READ_BUFFER_SIZE bytes.
+        long offset = 0;
+        int lidos;
+        while ((lidos = fileSystem.read(caminho, user, offset, buffer, 0, buffer.length)) > 0) {
+            System.out.print(new String(buffer, 0, lidos));
+            offset += lidos;
+        }
+        System.out.println();
     }
 
     public static void mv() throws CaminhoNaoEncontradoException, PermissaoException {
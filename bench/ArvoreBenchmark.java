@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.FileSystemImpl;
+
+// cp, rm e ls recursivos sobre uma árvore com nos nós. cp copia a árvore para
+// um destino da thread, removido depois de cada invocação; rm remove uma
+// cópia feita antes de cada invocação. ls escreve numa saída descartada.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArvoreBenchmark {
+    private static final String ARVORE = "/arvore";
+
+    @Param({ "1000", "100000" })
+    public int nos;
+
+    private FileSystemImpl fs;
+    private PrintStream saidaOriginal;
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        fs = new FileSystemImpl();
+        Montagem.arvore(fs, ARVORE, nos);
+        saidaOriginal = System.out;
+        System.setOut(Montagem.saidaNula());
+    }
+
+    @TearDown(Level.Trial)
+    public void restaurarSaida() {
+        System.setOut(saidaOriginal);
+    }
+
+    @State(Scope.Thread)
+    public static class Destino {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        final String caminho = "/copia" + THREADS.getAndIncrement();
+        FileSystemImpl fs;
+
+        @Setup(Level.Trial)
+        public void preparar(ArvoreBenchmark benchmark) {
+            fs = benchmark.fs;
+        }
+    }
+
+    // Destino que precisa existir antes da invocação (rm).
+    @State(Scope.Thread)
+    public static class Copia extends Destino {
+        @Setup(Level.Invocation)
+        public void copiar() throws Exception {
+            fs.cp(ARVORE, caminho, Montagem.ROOT, true);
+        }
+    }
+
+    // Destino que precisa estar livre antes da invocação (cp).
+    @State(Scope.Thread)
+    public static class Livre extends Destino {
+        @TearDown(Level.Invocation)
+        public void remover() throws Exception {
+            fs.rm(caminho, Montagem.ROOT, true);
+        }
+    }
+
+    @Benchmark
+    public void cpRecursivo(Livre destino) throws Exception {
+        fs.cp(ARVORE, destino.caminho, Montagem.ROOT, true);
+    }
+
+    @Benchmark
+    public void rmRecursivo(Copia copia) throws Exception {
+        fs.rm(copia.caminho, Montagem.ROOT, true);
+    }
+
+    @Benchmark
+    public void lsRecursivo() throws Exception {
+        fs.ls(ARVORE, Montagem.ROOT, true);
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.ArmazenamentoDireto;
+import filesys.FileSystemImpl;
+
+// write e read de um arquivo inteiro, de 1 B a 1 GiB, em trechos de até
+// TRECHO bytes com as operações posicionais. O conteúdo fica fora do heap
+// (ArmazenamentoDireto), então o heap só precisa do buffer de cada thread.
+// Com várias threads todas usam o mesmo arquivo: leituras correm em paralelo
+// e escritas disputam a trava do arquivo.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g", "-XX:MaxDirectMemorySize=3g" })
+@State(Scope.Benchmark)
+public class ConteudoBenchmark {
+    private static final int TRECHO = 1024 * 1024;
+    private static final String ARQUIVO = "/arquivo";
+
+    @Param({ "1", "4096", "1048576", "67108864", "1073741824" })
+    public long tamanho;
+
+    private FileSystemImpl fs;
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        fs = new FileSystemImpl(new ArmazenamentoDireto());
+        fs.touch(ARQUIVO, Montagem.ROOT);
+        escreverTudo(new byte[(int) Math.min(tamanho, TRECHO)]);
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        private byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void criar(ConteudoBenchmark benchmark) {
+            bytes = new byte[(int) Math.min(benchmark.tamanho, TRECHO)];
+        }
+    }
+
+    @Benchmark
+    public long write(Buffer buffer) throws Exception {
+        return escreverTudo(buffer.bytes);
+    }
+
+    @Benchmark
+    public long read(Buffer buffer) throws Exception {
+        long total = 0;
+        int lidos;
+        while ((lidos = fs.read(ARQUIVO, Montagem.ROOT, total, buffer.bytes, 0, buffer.bytes.length)) > 0) {
+            total += lidos;
+        }
+        return total;
+    }
+
+    private long escreverTudo(byte[] trecho) throws Exception {
+        long escritos = 0;
+        while (escritos < tamanho) {
+            fs.write(ARQUIVO, Montagem.ROOT, escritos, trecho);
+            escritos += trecho.length;
+        }
+        return escritos;
+    }
+}
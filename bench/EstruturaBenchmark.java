@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.FileSystemImpl;
+
+// mkdir e touch num diretório com largura filhos. Cada invocação cria e
+// remove o mesmo nome, de modo que a largura não muda durante a medição; cada
+// thread usa um nome próprio.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EstruturaBenchmark {
+    @Param({ "10", "1000", "100000" })
+    public int largura;
+
+    private FileSystemImpl fs;
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        fs = new FileSystemImpl();
+        fs.mkdir("/dir", Montagem.ROOT);
+        for (int i = 0; i < largura; i++) {
+            fs.touch("/dir/f" + i, Montagem.ROOT);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Nome {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final String caminho = "/dir/novo" + THREADS.getAndIncrement();
+    }
+
+    @Benchmark
+    public void mkdirERm(Nome nome) throws Exception {
+        fs.mkdir(nome.caminho, Montagem.ROOT);
+        fs.rm(nome.caminho, Montagem.ROOT, false);
+    }
+
+    @Benchmark
+    public void touchERm(Nome nome) throws Exception {
+        fs.touch(nome.caminho, Montagem.ROOT);
+        fs.rm(nome.caminho, Montagem.ROOT, false);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import filesys.FileSystemImpl;
+
+// Montagem das árvores usadas pelos benchmarks. Tudo é criado como root, que
+// não passa pelas verificações de permissão.
+final class Montagem {
+    static final String ROOT = "root";
+    // Arquivos e subdiretórios criados em cada diretório de arvore().
+    private static final int ARQUIVOS_POR_DIRETORIO = 8;
+    private static final int SUBDIRETORIOS_POR_DIRETORIO = 4;
+
+    private Montagem() {
+    }
+
+    /**
+     * Cria uma cadeia de diretórios /d/d/.../d com um arquivo vazio "f" no
+     * final.
+     *
+     * @return Caminho do arquivo
+     */
+    static String cadeia(FileSystemImpl fs, int profundidade) throws Exception {
+        StringBuilder caminho = new StringBuilder();
+        for (int i = 0; i < profundidade; i++) {
+            caminho.append("/d");
+            fs.mkdir(caminho.toString(), ROOT);
+        }
+        caminho.append("/f");
+        fs.touch(caminho.toString(), ROOT);
+        return caminho.toString();
+    }
+
+    /**
+     * Cria, em largura, uma árvore com aproximadamente nos nós abaixo de raiz:
+     * cada diretório recebe alguns arquivos com um bloco de conteúdo e alguns
+     * subdiretórios.
+     */
+    static void arvore(FileSystemImpl fs, String raiz, int nos) throws Exception {
+        byte[] conteudo = new byte[4096];
+        fs.mkdir(raiz, ROOT);
+        Deque<String> pendentes = new ArrayDeque<>();
+        pendentes.add(raiz);
+        int criados = 0;
+        while (criados < nos) {
+            String dir = pendentes.poll();
+            for (int i = 0; i < ARQUIVOS_POR_DIRETORIO && criados < nos; i++, criados++) {
+                String arquivo = dir + "/f" + i;
+                fs.touch(arquivo, ROOT);
+                fs.write(arquivo, ROOT, false, conteudo);
+            }
+            for (int i = 0; i < SUBDIRETORIOS_POR_DIRETORIO && criados < nos; i++, criados++) {
+                String sub = dir + "/d" + i;
+                fs.mkdir(sub, ROOT);
+                pendentes.add(sub);
+            }
+        }
+    }
+
+    /**
+     * @return PrintStream que descarta tudo, para medir ls sem o custo do
+     *         terminal
+     */
+    static PrintStream saidaNula() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+}
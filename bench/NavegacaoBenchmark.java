@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.FileSystemImpl;
+
+// Resolução de caminhos (navigateTo) em profundidades crescentes. navigateTo é
+// privado: a medição lê 0 bytes de um arquivo vazio no fim da cadeia, o que
+// custa a resolução do caminho e a busca do nome no pai. O caminho canônico
+// passa pelo cache de resolução; o caminho com "/./" no começo não pode ser
+// guardado e é percorrido segmento por segmento.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NavegacaoBenchmark {
+    @Param({ "1", "4", "16", "64" })
+    public int profundidade;
+
+    private FileSystemImpl fs;
+    private String canonico;
+    private String naoCanonico;
+    private final byte[] buffer = new byte[0];
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        fs = new FileSystemImpl();
+        canonico = Montagem.cadeia(fs, profundidade);
+        naoCanonico = "/." + canonico;
+    }
+
+    @Benchmark
+    public int caminhoCanonico() throws Exception {
+        return fs.read(canonico, Montagem.ROOT, 0, buffer, 0, 0);
+    }
+
+    @Benchmark
+    public int caminhoNaoCanonico() throws Exception {
+        return fs.read(naoCanonico, Montagem.ROOT, 0, buffer, 0, 0);
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.FileSystemImpl;
+
+// Verificações de permissão e chmod. Cada leitura de 0 bytes do mesmo
+// arquivo, a PROFUNDIDADE diretórios da raiz, passa por um caminho diferente
+// de temPermissao: root, dono, entrada na ACL do arquivo (chmod) e regra do
+// arquivo de usuários herdada pelo caminho (cache de permissões).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PermissaoBenchmark {
+    private static final int PROFUNDIDADE = 8;
+    private static final String DONO = "maria";
+    private static final String COM_ACL = "joao";
+    private static final String POR_REGRA = "carla";
+
+    private FileSystemImpl fs;
+    private String arquivo;
+    private final byte[] buffer = new byte[0];
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        Path usuarios = Files.createTempFile("usuarios", "");
+        try {
+            Files.write(usuarios, (DONO + " /** rwx\n" + COM_ACL + " /** ---\n" + POR_REGRA + " /** r--\n")
+                    .getBytes());
+            fs = new FileSystemImpl();
+            fs.carregarUsuarios(usuarios);
+        } finally {
+            Files.delete(usuarios);
+        }
+        String dir = Montagem.cadeia(fs, PROFUNDIDADE);
+        arquivo = dir.substring(0, dir.length() - 2) + "/dado";
+        fs.touch(arquivo, DONO);
+        fs.chmod(arquivo, DONO, COM_ACL, "r--");
+    }
+
+    @Benchmark
+    public int leituraComoRoot() throws Exception {
+        return fs.read(arquivo, Montagem.ROOT, 0, buffer, 0, 0);
+    }
+
+    @Benchmark
+    public int leituraComoDono() throws Exception {
+        return fs.read(arquivo, DONO, 0, buffer, 0, 0);
+    }
+
+    @Benchmark
+    public int leituraPorEntradaNaAcl() throws Exception {
+        return fs.read(arquivo, COM_ACL, 0, buffer, 0, 0);
+    }
+
+    @Benchmark
+    public int leituraPorRegraHerdada() throws Exception {
+        return fs.read(arquivo, POR_REGRA, 0, buffer, 0, 0);
+    }
+
+    @Benchmark
+    public void chmod() throws Exception {
+        fs.chmod(arquivo, DONO, COM_ACL, "r--");
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import filesys.FileSystem;
+
+// Custo das métricas do proxy FileSystem: a mesma leitura de 0 bytes com e
+// sem ativarMetricas(). A diferença é o custo por chamada, quase todo nas duas
+// leituras do relógio.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyBenchmark {
+    @Param({ "false", "true" })
+    public boolean metricas;
+
+    private FileSystem fs;
+    private final byte[] buffer = new byte[0];
+
+    @Setup(Level.Trial)
+    public void montar() throws Exception {
+        fs = new FileSystem();
+        fs.touch("/f", Montagem.ROOT);
+        if (metricas) {
+            fs.ativarMetricas();
+        }
+    }
+
+    @Benchmark
+    public int read() throws Exception {
+        return fs.read("/f", Montagem.ROOT, 0, buffer, 0, 0);
+    }
+}
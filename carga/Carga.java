@@ -0,0 +1,133 @@
+package carga;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import filesys.Chamada;
+import filesys.FileSystem;
+
+// Linha de comando dos testes de carga:
+//   gerar <prefixo> [chave=valor ...]
+//     grava <prefixo>.preparacao e <prefixo>.trace com o GeradorCarga
+//   reproduzir <trace> [chave=valor ...]
+//     reproduz o trace num FileSystem novo e imprime o Relatorio
+// As chaves aceitas por cada comando estão em USO.
+public final class Carga {
+    private static final String USO = String.join(System.lineSeparator(),
+            "Uso:",
+            "  gerar <prefixo> [semente=1] [raiz=/carga] [usuario=root] [forma=balanceada|larga|profunda]",
+            "        [largura=8] [profundidade=3] [arquivos=1000] [operacoes=100000] [leitura=0.9]",
+            "        [zipf=0.99] [tamanho-arquivo=65536] [tamanho-operacao=4096] [taxa=0]",
+            "  reproduzir <trace> [preparacao=arquivo] [usuarios=arquivo] [threads=1] [velocidade=0]",
+            "    velocidade 0 reproduz o mais rápido possível; 1 respeita os tempos do trace");
+    private static final Set<String> CHAVES_GERAR = Set.of("semente", "raiz", "usuario", "forma", "largura",
+            "profundidade", "arquivos", "operacoes", "leitura", "zipf", "tamanho-arquivo", "tamanho-operacao",
+            "taxa");
+    private static final Set<String> CHAVES_REPRODUZIR = Set.of("preparacao", "usuarios", "threads",
+            "velocidade");
+
+    private Carga() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println(USO);
+            return;
+        }
+        try {
+            switch (args[0]) {
+                case "gerar":
+                    gerar(Paths.get(args[1]), opcoes(args, CHAVES_GERAR));
+                    break;
+                case "reproduzir":
+                    reproduzir(Paths.get(args[1]), opcoes(args, CHAVES_REPRODUZIR));
+                    break;
+                default:
+                    System.out.println(USO);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USO);
+        } catch (IOException e) {
+            System.out.println("Erro de leitura ou gravação: " + e.getMessage());
+        }
+    }
+
+    private static void gerar(Path prefixo, Map<String, String> opcoes) throws IOException {
+        int largura = inteiro(opcoes, "largura", 8);
+        int profundidade = inteiro(opcoes, "profundidade", 3);
+        GeradorCarga gerador = new GeradorCarga(Long.parseLong(opcoes.getOrDefault("semente", "1")))
+                .raiz(opcoes.getOrDefault("raiz", "/carga"))
+                .usuario(opcoes.getOrDefault("usuario", "root"))
+                .forma(GeradorCarga.Forma.valueOf(opcoes.getOrDefault("forma", "balanceada")
+                        .toUpperCase(Locale.ROOT)), largura, profundidade)
+                .arquivos(inteiro(opcoes, "arquivos", 1000))
+                .operacoes(inteiro(opcoes, "operacoes", 100_000))
+                .fracaoLeitura(decimal(opcoes, "leitura", 0.9))
+                .expoenteZipf(decimal(opcoes, "zipf", 0.99))
+                .tamanhos(inteiro(opcoes, "tamanho-arquivo", 64 * 1024), inteiro(opcoes, "tamanho-operacao", 4096))
+                .taxa(decimal(opcoes, "taxa", 0));
+        Path preparacao = prefixo.resolveSibling(prefixo.getFileName() + ".preparacao");
+        Path trace = prefixo.resolveSibling(prefixo.getFileName() + ".trace");
+        Trace.gravar(preparacao, gerador.gerarPreparacao());
+        Trace.gravar(trace, gerador.gerarOperacoes());
+        System.out.println("Gerados " + preparacao + " e " + trace);
+    }
+
+    private static void reproduzir(Path arquivo, Map<String, String> opcoes) throws Exception {
+        List<Chamada> chamadas = Trace.ler(arquivo);
+        FileSystem fs = opcoes.containsKey("usuarios")
+                ? new FileSystem(Paths.get(opcoes.get("usuarios")))
+                : new FileSystem();
+        int threads = inteiro(opcoes, "threads", 1);
+        double velocidade = decimal(opcoes, "velocidade", 0);
+
+        // ls imprime a listagem; a saída é descartada durante a reprodução.
+        PrintStream saida = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Relatorio relatorio;
+        try {
+            if (opcoes.containsKey("preparacao")) {
+                List<Chamada> chamadasPreparacao = Trace.ler(Paths.get(opcoes.get("preparacao")));
+                Relatorio preparacao = new Reprodutor(fs, 1, 0).reproduzir(chamadasPreparacao);
+                if (preparacao.getFalhas() > 0) {
+                    saida.println("Aviso: " + preparacao.getFalhas() + " chamadas da preparação falharam");
+                }
+            }
+            relatorio = new Reprodutor(fs, threads, velocidade).reproduzir(chamadas);
+        } finally {
+            System.setOut(saida);
+        }
+        relatorio.imprimir(saida);
+    }
+
+    private static Map<String, String> opcoes(String[] args, Set<String> chaves) {
+        Map<String, String> opcoes = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int igual = args[i].indexOf('=');
+            if (igual <= 0 || !chaves.contains(args[i].substring(0, igual))) {
+                throw new IllegalArgumentException("Opção desconhecida: " + args[i]);
+            }
+            opcoes.put(args[i].substring(0, igual), args[i].substring(igual + 1));
+        }
+        return opcoes;
+    }
+
+    private static int inteiro(Map<String, String> opcoes, String chave, int padrao) {
+        String valor = opcoes.get(chave);
+        return valor == null ? padrao : Integer.parseInt(valor);
+    }
+
+    private static double decimal(Map<String, String> opcoes, String chave, double padrao) {
+        String valor = opcoes.get(chave);
+        return valor == null ? padrao : Double.parseDouble(valor);
+    }
+}
@@ -0,0 +1,253 @@
+package carga;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import filesys.Chamada;
+
+// Gera traces sintéticos de leituras e escritas posicionais sobre uma árvore
+// de arquivos. A popularidade dos arquivos segue uma distribuição de Zipf:
+// o k-ésimo arquivo mais popular é escolhido com probabilidade proporcional a
+// 1/k^expoente (0 é uniforme; perto de 1, poucos arquivos recebem a maior
+// parte dos acessos). A ordem de popularidade é embaralhada, para que os
+// arquivos populares não fiquem todos no mesmo diretório.
+// O resultado são dois traces: gerarPreparacao() cria a árvore e o conteúdo
+// inicial dos arquivos e deve ser reproduzido primeiro, com uma thread;
+// gerarOperacoes() é a carga medida. O mesmo gerador com a mesma semente
+// gera sempre os mesmos traces.
+public final class GeradorCarga {
+    // Forma da árvore onde ficam os arquivos, abaixo da raiz da carga.
+    public enum Forma {
+        // Todos os arquivos diretamente na raiz.
+        LARGA,
+        // Uma cadeia de profundidade diretórios, com os arquivos no último.
+        PROFUNDA,
+        // Cada diretório com largura subdiretórios até profundidade níveis,
+        // com os arquivos distribuídos entre as folhas.
+        BALANCEADA
+    }
+
+    private final long semente;
+    private String raiz = "/carga";
+    private String usuario = "root";
+    private Forma forma = Forma.BALANCEADA;
+    private int largura = 8;
+    private int profundidade = 3;
+    private int arquivos = 1000;
+    private int operacoes = 100_000;
+    private double fracaoLeitura = 0.9;
+    private double expoenteZipf = 0.99;
+    private int tamanhoArquivo = 64 * 1024;
+    private int tamanhoOperacao = 4096;
+    private double taxa;
+
+    public GeradorCarga(long semente) {
+        this.semente = semente;
+    }
+
+    /**
+     * @param raiz Diretório, ainda inexistente, onde a árvore é criada
+     */
+    public GeradorCarga raiz(String raiz) {
+        this.raiz = raiz;
+        return this;
+    }
+
+    /**
+     * @param usuario Usuário de todas as chamadas
+     */
+    public GeradorCarga usuario(String usuario) {
+        this.usuario = usuario;
+        return this;
+    }
+
+    /**
+     * @param largura      Subdiretórios por diretório (só BALANCEADA)
+     * @param profundidade Níveis de diretórios abaixo da raiz (não usado por
+     *                     LARGA)
+     */
+    public GeradorCarga forma(Forma forma, int largura, int profundidade) {
+        if (largura <= 0 || profundidade < 0) {
+            throw new IllegalArgumentException("Largura deve ser positiva e profundidade não negativa");
+        }
+        this.forma = forma;
+        this.largura = largura;
+        this.profundidade = profundidade;
+        return this;
+    }
+
+    public GeradorCarga arquivos(int arquivos) {
+        if (arquivos <= 0) {
+            throw new IllegalArgumentException("Quantidade de arquivos deve ser positiva");
+        }
+        this.arquivos = arquivos;
+        return this;
+    }
+
+    public GeradorCarga operacoes(int operacoes) {
+        if (operacoes < 0) {
+            throw new IllegalArgumentException("Quantidade de operações não pode ser negativa");
+        }
+        this.operacoes = operacoes;
+        return this;
+    }
+
+    /**
+     * @param fracaoLeitura Fração das operações que são leituras; o resto são
+     *                      escritas
+     */
+    public GeradorCarga fracaoLeitura(double fracaoLeitura) {
+        if (fracaoLeitura < 0 || fracaoLeitura > 1) {
+            throw new IllegalArgumentException("Fração de leitura fora de [0, 1]: " + fracaoLeitura);
+        }
+        this.fracaoLeitura = fracaoLeitura;
+        return this;
+    }
+
+    public GeradorCarga expoenteZipf(double expoenteZipf) {
+        if (expoenteZipf < 0) {
+            throw new IllegalArgumentException("Expoente de Zipf não pode ser negativo");
+        }
+        this.expoenteZipf = expoenteZipf;
+        return this;
+    }
+
+    /**
+     * @param tamanhoArquivo  Tamanho inicial de cada arquivo
+     * @param tamanhoOperacao Bytes de cada leitura ou escrita, em posições
+     *                        alinhadas a esse tamanho dentro do tamanho
+     *                        inicial do arquivo
+     */
+    public GeradorCarga tamanhos(int tamanhoArquivo, int tamanhoOperacao) {
+        if (tamanhoArquivo < 0 || tamanhoOperacao <= 0) {
+            throw new IllegalArgumentException("Tamanhos inválidos");
+        }
+        this.tamanhoArquivo = tamanhoArquivo;
+        this.tamanhoOperacao = tamanhoOperacao;
+        return this;
+    }
+
+    /**
+     * @param taxa Operações por segundo, com chegadas de Poisson; 0 deixa
+     *             todas as operações com início 0, para serem reproduzidas o
+     *             mais rápido possível
+     */
+    public GeradorCarga taxa(double taxa) {
+        if (taxa < 0) {
+            throw new IllegalArgumentException("Taxa não pode ser negativa");
+        }
+        this.taxa = taxa;
+        return this;
+    }
+
+    /**
+     * @return mkdir dos diretórios, touch dos arquivos e um write com o
+     *         conteúdo inicial de cada um, todos com início 0
+     */
+    public List<Chamada> gerarPreparacao() {
+        List<Chamada> chamadas = new ArrayList<>();
+        chamadas.add(chamada(Chamada.Tipo.MKDIR, raiz, false, 0, 0, 0));
+        List<String> diretorios = criarDiretorios(chamadas);
+        for (int i = 0; i < arquivos; i++) {
+            String arquivo = caminhoArquivo(diretorios, i);
+            chamadas.add(chamada(Chamada.Tipo.TOUCH, arquivo, false, 0, 0, 0));
+            if (tamanhoArquivo > 0) {
+                chamadas.add(chamada(Chamada.Tipo.WRITE, arquivo, false, 0, tamanhoArquivo, 0));
+            }
+        }
+        return chamadas;
+    }
+
+    /**
+     * @return operacoes leituras e escritas posicionais sobre os arquivos
+     *         criados pela preparação
+     */
+    public List<Chamada> gerarOperacoes() {
+        List<String> diretorios = criarDiretorios(new ArrayList<>());
+        SplittableRandom aleatorio = new SplittableRandom(semente);
+        int[] popularidade = permutacao(aleatorio);
+        double[] distribuicao = distribuicaoZipf();
+        long posicoes = Math.max(1, tamanhoArquivo / tamanhoOperacao);
+
+        List<Chamada> chamadas = new ArrayList<>(operacoes);
+        double inicio = 0;
+        for (int i = 0; i < operacoes; i++) {
+            int posicao = Arrays.binarySearch(distribuicao, aleatorio.nextDouble());
+            int rank = Math.min(posicao < 0 ? -posicao - 1 : posicao, arquivos - 1);
+            String arquivo = caminhoArquivo(diretorios, popularidade[rank]);
+            long offset = aleatorio.nextLong(posicoes) * tamanhoOperacao;
+            Chamada.Tipo tipo = aleatorio.nextDouble() < fracaoLeitura
+                    ? Chamada.Tipo.READ_POSICIONAL
+                    : Chamada.Tipo.WRITE_POSICIONAL;
+            if (taxa > 0) {
+                inicio += -Math.log(1 - aleatorio.nextDouble()) / taxa * 1e9;
+            }
+            chamadas.add(chamada(tipo, arquivo, false, offset, tamanhoOperacao, (long) inicio));
+        }
+        return chamadas;
+    }
+
+    // Caminhos dos diretórios onde ficam os arquivos, registrando o mkdir de
+    // cada diretório criado em chamadas, pais antes dos filhos.
+    private List<String> criarDiretorios(List<Chamada> chamadas) {
+        List<String> nivel = new ArrayList<>();
+        nivel.add(raiz);
+        if (forma == Forma.LARGA) {
+            return nivel;
+        }
+        int filhos = forma == Forma.PROFUNDA ? 1 : largura;
+        for (int n = 0; n < profundidade; n++) {
+            List<String> proximo = new ArrayList<>(nivel.size() * filhos);
+            for (String diretorio : nivel) {
+                for (int f = 0; f < filhos; f++) {
+                    String filho = diretorio + "/d" + f;
+                    chamadas.add(chamada(Chamada.Tipo.MKDIR, filho, false, 0, 0, 0));
+                    proximo.add(filho);
+                }
+            }
+            nivel = proximo;
+        }
+        return nivel;
+    }
+
+    private static String caminhoArquivo(List<String> diretorios, int arquivo) {
+        return diretorios.get(arquivo % diretorios.size()) + "/f" + arquivo;
+    }
+
+    // popularidade[k] é o arquivo de rank k.
+    private int[] permutacao(SplittableRandom aleatorio) {
+        int[] popularidade = new int[arquivos];
+        for (int i = 0; i < arquivos; i++) {
+            popularidade[i] = i;
+        }
+        for (int i = arquivos - 1; i > 0; i--) {
+            int j = aleatorio.nextInt(i + 1);
+            int troca = popularidade[i];
+            popularidade[i] = popularidade[j];
+            popularidade[j] = troca;
+        }
+        return popularidade;
+    }
+
+    // Distribuição acumulada: distribuicao[k] é a probabilidade de escolher
+    // um arquivo de rank até k.
+    private double[] distribuicaoZipf() {
+        double[] distribuicao = new double[arquivos];
+        double soma = 0;
+        for (int k = 0; k < arquivos; k++) {
+            soma += 1 / Math.pow(k + 1, expoenteZipf);
+            distribuicao[k] = soma;
+        }
+        for (int k = 0; k < arquivos; k++) {
+            distribuicao[k] /= soma;
+        }
+        return distribuicao;
+    }
+
+    private Chamada chamada(Chamada.Tipo tipo, String caminho, boolean flag, long offset, int tamanho,
+            long inicio) {
+        return new Chamada(tipo, usuario, caminho, null, null, flag, offset, tamanho, inicio, 0, true);
+    }
+}
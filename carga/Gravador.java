@@ -0,0 +1,159 @@
+package carga;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import filesys.Chamada;
+import filesys.ObservadorChamadas;
+
+// Grava as chamadas feitas através de um FileSystem num arquivo de trace:
+//   try (Gravador gravador = new Gravador(arquivo)) {
+//       fs.setObservador(gravador);
+//       ... carga real ...
+//       fs.setObservador(null);
+//   }
+// As chamadas passam por uma fila limitada e uma thread as grava no arquivo
+// conforme chegam, então a memória não cresce com a duração da gravação. Se a
+// fila estiver cheia (o disco não acompanha a carga), a chamada é descartada
+// e contada em getDescartadas(), sem atrasar quem a fez. Com várias threads,
+// as chamadas são gravadas na ordem de conclusão; Trace.ler as ordena pelo
+// início.
+public final class Gravador implements ObservadorChamadas, Closeable {
+    public static final int CAPACIDADE_PADRAO = 64 * 1024;
+    private static final int LOTE = 1024;
+    private static final long ESPERA_MILLIS = 100;
+
+    private final BlockingQueue<Chamada> fila;
+    private final Trace.Escritor saida;
+    private final Thread escritor;
+    private final AtomicLong descartadas = new AtomicLong();
+    private volatile long gravadas;
+    private volatile boolean fechado;
+    private volatile IOException falha;
+
+    /**
+     * @param arquivo Arquivo do trace, substituído se existir
+     */
+    public Gravador(Path arquivo) throws IOException {
+        this(arquivo, CAPACIDADE_PADRAO);
+    }
+
+    /**
+     * @param arquivo    Arquivo do trace, substituído se existir
+     * @param capacidade Chamadas que podem esperar pela gravação antes de
+     *                   começarem a ser descartadas
+     */
+    public Gravador(Path arquivo, int capacidade) throws IOException {
+        if (capacidade <= 0) {
+            throw new IllegalArgumentException("Capacidade deve ser positiva");
+        }
+        this.fila = new ArrayBlockingQueue<>(capacidade);
+        // Inícios contados a partir de agora: chamadas de threads diferentes
+        // chegam fora de ordem, então a primeira gravada pode não ser a
+        // primeira a começar.
+        this.saida = new Trace.Escritor(arquivo, System.nanoTime());
+        this.escritor = new Thread(this::gravar, "gravador-trace");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    @Override
+    public void chamadaConcluida(Chamada chamada) {
+        if (fechado || falha != null || !fila.offer(chamada)) {
+            descartadas.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Chamadas já gravadas no arquivo (ainda podem estar no buffer
+     *         até close())
+     */
+    public long getGravadas() {
+        return gravadas;
+    }
+
+    /**
+     * @return Chamadas descartadas por fila cheia, por falha de gravação ou
+     *         por terem terminado depois de close()
+     */
+    public long getDescartadas() {
+        return descartadas.get();
+    }
+
+    /**
+     * Grava as chamadas que ainda estão na fila e fecha o arquivo. Chamadas
+     * concluídas depois disso são descartadas.
+     *
+     * @throws IOException Se alguma gravação tiver falhado
+     */
+    @Override
+    public void close() throws IOException {
+        if (fechado) {
+            return;
+        }
+        fechado = true;
+        boolean interrompida = false;
+        while (true) {
+            try {
+                escritor.join();
+                break;
+            } catch (InterruptedException e) {
+                interrompida = true;
+            }
+        }
+        if (interrompida) {
+            Thread.currentThread().interrupt();
+        }
+        // Chegaram entre a última verificação do escritor e o fim dele.
+        descartadas.addAndGet(fila.size());
+        fila.clear();
+        try {
+            saida.close();
+        } catch (IOException e) {
+            if (falha == null) {
+                falha = e;
+            }
+        }
+        if (falha != null) {
+            throw falha;
+        }
+    }
+
+    private void gravar() {
+        List<Chamada> lote = new ArrayList<>(LOTE);
+        try {
+            while (true) {
+                Chamada primeira = fila.poll(ESPERA_MILLIS, TimeUnit.MILLISECONDS);
+                if (primeira == null) {
+                    if (fechado) {
+                        return;
+                    }
+                    // Fila vazia: o que já chegou fica visível no arquivo.
+                    saida.flush();
+                    continue;
+                }
+                lote.add(primeira);
+                fila.drainTo(lote, LOTE - 1);
+                for (Chamada chamada : lote) {
+                    saida.escrever(chamada);
+                }
+                gravadas += lote.size();
+                lote.clear();
+            }
+        } catch (IOException e) {
+            falha = e;
+            descartadas.addAndGet(lote.size() + fila.size());
+            fila.clear();
+        } catch (InterruptedException e) {
+            // Não é interrompida: close() espera a fila esvaziar.
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package carga;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+import filesys.Chamada;
+import filesys.Histograma;
+
+// Resultado de uma reprodução: latências e falhas por tipo de operação e o
+// tempo total, de onde sai a vazão. Cada thread do Reprodutor preenche o seu
+// relatório, e os relatórios são somados no final.
+public final class Relatorio {
+    private static final Chamada.Tipo[] TIPOS = Chamada.Tipo.values();
+    private static final double[] PERCENTIS = { 50, 99, 99.9 };
+
+    private final Histograma[] latencias = new Histograma[TIPOS.length];
+    private final long[] falhas = new long[TIPOS.length];
+    private long duracaoNanos;
+
+    Relatorio() {
+        for (int i = 0; i < TIPOS.length; i++) {
+            latencias[i] = new Histograma();
+        }
+    }
+
+    void registrar(Chamada.Tipo tipo, long latenciaNanos, boolean sucesso) {
+        latencias[tipo.ordinal()].registrar(latenciaNanos);
+        if (!sucesso) {
+            falhas[tipo.ordinal()]++;
+        }
+    }
+
+    void juntar(Relatorio outro) {
+        for (int i = 0; i < TIPOS.length; i++) {
+            latencias[i].juntar(outro.latencias[i]);
+            falhas[i] += outro.falhas[i];
+        }
+    }
+
+    void setDuracaoNanos(long duracaoNanos) {
+        this.duracaoNanos = duracaoNanos;
+    }
+
+    /**
+     * @return Latências das chamadas do tipo, em nanossegundos
+     */
+    public Histograma getLatencias(Chamada.Tipo tipo) {
+        return latencias[tipo.ordinal()];
+    }
+
+    public long getFalhas(Chamada.Tipo tipo) {
+        return falhas[tipo.ordinal()];
+    }
+
+    public long getChamadas() {
+        long total = 0;
+        for (Histograma latencia : latencias) {
+            total += latencia.getContagem();
+        }
+        return total;
+    }
+
+    public long getFalhas() {
+        long total = 0;
+        for (long f : falhas) {
+            total += f;
+        }
+        return total;
+    }
+
+    public long getDuracaoNanos() {
+        return duracaoNanos;
+    }
+
+    /**
+     * @return Chamadas do tipo por segundo, sobre a duração da reprodução
+     */
+    public double getVazao(Chamada.Tipo tipo) {
+        return vazao(getLatencias(tipo).getContagem());
+    }
+
+    public double getVazao() {
+        return vazao(getChamadas());
+    }
+
+    /**
+     * Imprime uma linha por tipo de operação reproduzido, com chamadas,
+     * falhas, vazão e latências em microssegundos, e uma linha de total.
+     */
+    public void imprimir(PrintStream saida) {
+        saida.printf(Locale.ROOT, "%-17s %10s %8s %12s %10s %10s %10s %10s%n", "operação", "chamadas", "falhas",
+                "ops/s", "p50 µs", "p99 µs", "p999 µs", "máx µs");
+        Histograma total = new Histograma();
+        for (Chamada.Tipo tipo : TIPOS) {
+            Histograma latencia = getLatencias(tipo);
+            if (latencia.getContagem() > 0) {
+                imprimirLinha(saida, tipo.name(), latencia, getFalhas(tipo));
+                total.juntar(latencia);
+            }
+        }
+        imprimirLinha(saida, "total", total, getFalhas());
+        saida.printf(Locale.ROOT, "duração: %.3f s%n", duracaoNanos / 1e9);
+    }
+
+    private void imprimirLinha(PrintStream saida, String nome, Histograma latencia, long falhasLinha) {
+        saida.printf(Locale.ROOT, "%-17s %10d %8d %12.1f", nome, latencia.getContagem(), falhasLinha,
+                vazao(latencia.getContagem()));
+        for (double percentil : PERCENTIS) {
+            saida.printf(Locale.ROOT, " %10.1f", latencia.getPercentil(percentil) / 1e3);
+        }
+        saida.printf(Locale.ROOT, " %10.1f%n", latencia.getMaximo() / 1e3);
+    }
+
+    private double vazao(long chamadas) {
+        return duracaoNanos == 0 ? 0 : chamadas * 1e9 / duracaoNanos;
+    }
+}
@@ -0,0 +1,169 @@
+package carga;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import filesys.Chamada;
+import filesys.IFileSystem;
+
+// Reproduz um trace contra qualquer IFileSystem com threads threads. As
+// threads pegam as chamadas na ordem do trace; com mais de uma thread,
+// chamadas vizinhas podem ser executadas fora de ordem, então um trace cujas
+// chamadas dependem umas das outras (mkdir antes do touch dentro dele) só é
+// reproduzido fielmente com uma thread. O trace do GeradorCarga separa a
+// preparação da árvore, que deve ser reproduzida antes, com uma thread.
+// Com velocidade > 0, cada chamada espera o seu início no trace dividido pela
+// velocidade (2 reproduz duas vezes mais rápido), e a latência conta a partir
+// desse horário: se a reprodução atrasar, o atraso entra na latência, como
+// entraria para um cliente real. Com velocidade <= 0 as chamadas são feitas o
+// mais rápido possível e a latência é só a da chamada.
+// Buffers são preenchidos com zeros; o conteúdo lido é descartado. Falhas
+// (exceções) são contadas por tipo e não interrompem a reprodução.
+public final class Reprodutor {
+    private final IFileSystem alvo;
+    private final int threads;
+    private final double velocidade;
+
+    public Reprodutor(IFileSystem alvo, int threads, double velocidade) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Quantidade de threads deve ser positiva");
+        }
+        this.alvo = alvo;
+        this.threads = threads;
+        this.velocidade = velocidade;
+    }
+
+    /**
+     * Reproduz as chamadas e espera todas terminarem.
+     *
+     * @param chamadas Chamadas em ordem de início
+     * @return Latências, falhas e vazão por tipo de operação
+     * @throws InterruptedException Se a thread for interrompida enquanto
+     *                              espera a reprodução
+     */
+    public Relatorio reproduzir(List<Chamada> chamadas) throws InterruptedException {
+        Relatorio relatorio = new Relatorio();
+        if (chamadas.isEmpty()) {
+            return relatorio;
+        }
+        AtomicInteger proxima = new AtomicInteger();
+        long origem = chamadas.get(0).getInicioNanos();
+        long base = System.nanoTime();
+        Executor[] executores = new Executor[threads];
+        for (int i = 0; i < threads; i++) {
+            executores[i] = new Executor(chamadas, proxima, origem, base);
+            executores[i].thread.start();
+        }
+        for (Executor executor : executores) {
+            executor.thread.join();
+            relatorio.juntar(executor.relatorio);
+        }
+        relatorio.setDuracaoNanos(System.nanoTime() - base);
+        return relatorio;
+    }
+
+    private final class Executor implements Runnable {
+        private final List<Chamada> chamadas;
+        private final AtomicInteger proxima;
+        private final long origem;
+        private final long base;
+        private final Relatorio relatorio = new Relatorio();
+        private final Thread thread;
+        private byte[] escrita = new byte[0];
+        private byte[] leitura = new byte[0];
+
+        Executor(List<Chamada> chamadas, AtomicInteger proxima, long origem, long base) {
+            this.chamadas = chamadas;
+            this.proxima = proxima;
+            this.origem = origem;
+            this.base = base;
+            this.thread = new Thread(this, "reprodutor");
+        }
+
+        @Override
+        public void run() {
+            int indice;
+            while ((indice = proxima.getAndIncrement()) < chamadas.size()) {
+                Chamada chamada = chamadas.get(indice);
+                long inicio = velocidade > 0 ? esperar(chamada) : System.nanoTime();
+                boolean sucesso = true;
+                try {
+                    executar(chamada);
+                } catch (Exception e) {
+                    sucesso = false;
+                }
+                relatorio.registrar(chamada.getTipo(), System.nanoTime() - inicio, sucesso);
+            }
+        }
+
+        // Espera o horário da chamada na reprodução e o devolve.
+        private long esperar(Chamada chamada) {
+            long horario = base + (long) ((chamada.getInicioNanos() - origem) / velocidade);
+            long espera;
+            while ((espera = horario - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(espera);
+            }
+            return horario;
+        }
+
+        private void executar(Chamada chamada) throws Exception {
+            String usuario = chamada.getUsuario();
+            String caminho = chamada.getCaminho();
+            switch (chamada.getTipo()) {
+                case CHMOD:
+                    alvo.chmod(caminho, usuario, chamada.getArgumento(), chamada.getPermissao());
+                    break;
+                case MKDIR:
+                    alvo.mkdir(caminho, usuario);
+                    break;
+                case RM:
+                    alvo.rm(caminho, usuario, chamada.getFlag());
+                    break;
+                case TOUCH:
+                    alvo.touch(caminho, usuario);
+                    break;
+                case WRITE:
+                    alvo.write(caminho, usuario, chamada.getFlag(), escrita(chamada.getTamanho()));
+                    break;
+                case WRITE_POSICIONAL:
+                    alvo.write(caminho, usuario, chamada.getOffset(), escrita(chamada.getTamanho()));
+                    break;
+                case READ:
+                    alvo.read(caminho, usuario, leitura(chamada.getTamanho()));
+                    break;
+                case READ_POSICIONAL:
+                    int tamanho = chamada.getTamanho();
+                    alvo.read(caminho, usuario, chamada.getOffset(), leitura(tamanho), 0, tamanho);
+                    break;
+                case MV:
+                    alvo.mv(caminho, chamada.getArgumento(), usuario);
+                    break;
+                case LS:
+                    alvo.ls(caminho, usuario, chamada.getFlag());
+                    break;
+                case CP:
+                    alvo.cp(caminho, chamada.getArgumento(), usuario, chamada.getFlag());
+                    break;
+            }
+        }
+
+        // write e read inteiro usam o buffer todo, então o tamanho tem que
+        // ser exato; cada buffer é reaproveitado enquanto o tamanho se repete.
+        // As leituras têm o seu próprio buffer para que o de escrita continue
+        // só com zeros.
+        private byte[] escrita(int tamanho) {
+            if (escrita.length != tamanho) {
+                escrita = new byte[tamanho];
+            }
+            return escrita;
+        }
+
+        private byte[] leitura(int tamanho) {
+            if (leitura.length != tamanho) {
+                leitura = new byte[tamanho];
+            }
+            return leitura;
+        }
+    }
+}
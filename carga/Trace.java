@@ -0,0 +1,222 @@
+package carga;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import filesys.Chamada;
+
+// Arquivo de trace: uma chamada por linha, com os campos de Chamada separados
+// por tabulação:
+//   inicio duracao tipo usuario caminho argumento permissao flag offset tamanho sucesso
+// inicio e duracao em nanossegundos, inicio contado a partir de uma origem (a
+// primeira chamada, ou o momento em que o Gravador começou); campos ausentes
+// são "-"; flag e sucesso são 0 ou 1. Nos campos de texto, '\' escapa
+// tabulação (\t), quebra de linha (\n e \r), a própria barra (\\) e um "-"
+// que não indica campo ausente (\-). Linhas em branco e linhas começando com
+// '#' são ignoradas. As linhas podem estar fora da ordem de início (o
+// Gravador grava na ordem de conclusão); ler() as devolve ordenadas.
+public final class Trace {
+    private static final String CABECALHO =
+            "# inicio\tduracao\ttipo\tusuario\tcaminho\targumento\tpermissao\tflag\toffset\ttamanho\tsucesso";
+    private static final String AUSENTE = "-";
+    private static final int CAMPOS = 11;
+
+    private Trace() {
+    }
+
+    /**
+     * Grava chamadas num arquivo de trace, deslocando os inícios para que a
+     * primeira chamada comece em 0.
+     *
+     * @param arquivo  Arquivo do trace
+     * @param chamadas Chamadas em ordem de início
+     * @throws IOException Se a gravação falhar
+     */
+    public static void gravar(Path arquivo, List<Chamada> chamadas) throws IOException {
+        long origem = chamadas.isEmpty() ? 0 : chamadas.get(0).getInicioNanos();
+        try (Escritor saida = new Escritor(arquivo, origem)) {
+            for (Chamada chamada : chamadas) {
+                saida.escrever(chamada);
+            }
+        }
+    }
+
+    /**
+     * Lê um arquivo de trace.
+     *
+     * @param arquivo Arquivo do trace
+     * @return As chamadas, em ordem de início; chamadas com o mesmo início
+     *         ficam na ordem do arquivo
+     * @throws IOException Se o arquivo não puder ser lido ou tiver uma linha
+     *                     mal formada
+     */
+    public static List<Chamada> ler(Path arquivo) throws IOException {
+        List<Chamada> chamadas = new ArrayList<>();
+        try (BufferedReader entrada = Files.newBufferedReader(arquivo, StandardCharsets.UTF_8)) {
+            String linha;
+            int numero = 0;
+            while ((linha = entrada.readLine()) != null) {
+                numero++;
+                if (linha.isBlank() || linha.startsWith("#")) {
+                    continue;
+                }
+                String[] campos = linha.split("\t", -1);
+                if (campos.length != CAMPOS) {
+                    throw formatoRuim(numero, linha);
+                }
+                try {
+                    chamadas.add(new Chamada(Chamada.Tipo.valueOf(campos[2]), valor(campos[3]), valor(campos[4]),
+                            valor(campos[5]), valor(campos[6]), booleano(campos[7]), Long.parseLong(campos[8]),
+                            Integer.parseInt(campos[9]), Long.parseLong(campos[0]), Long.parseLong(campos[1]),
+                            booleano(campos[10])));
+                } catch (IllegalArgumentException e) {
+                    throw formatoRuim(numero, linha);
+                }
+            }
+        }
+        chamadas.sort(Comparator.comparingLong(Chamada::getInicioNanos));
+        return chamadas;
+    }
+
+    // Grava chamadas uma a uma, na ordem em que chegam, sem guardá-las.
+    // Não é seguro para várias threads.
+    static final class Escritor implements Closeable {
+        private final BufferedWriter saida;
+        private final long origem;
+        private final StringBuilder linha = new StringBuilder();
+
+        /**
+         * @param arquivo Arquivo do trace, substituído se existir
+         * @param origem  Instante, em System.nanoTime(), gravado como início 0
+         */
+        Escritor(Path arquivo, long origem) throws IOException {
+            this.saida = Files.newBufferedWriter(arquivo, StandardCharsets.UTF_8);
+            this.origem = origem;
+            saida.write(CABECALHO);
+            saida.newLine();
+        }
+
+        void escrever(Chamada chamada) throws IOException {
+            linha.setLength(0);
+            linha.append(chamada.getInicioNanos() - origem).append('\t')
+                    .append(chamada.getDuracaoNanos()).append('\t')
+                    .append(chamada.getTipo()).append('\t');
+            texto(linha, chamada.getUsuario());
+            linha.append('\t');
+            texto(linha, chamada.getCaminho());
+            linha.append('\t');
+            texto(linha, chamada.getArgumento());
+            linha.append('\t');
+            texto(linha, chamada.getPermissao());
+            linha.append('\t')
+                    .append(chamada.getFlag() ? 1 : 0).append('\t')
+                    .append(chamada.getOffset()).append('\t')
+                    .append(chamada.getTamanho()).append('\t')
+                    .append(chamada.isSucesso() ? 1 : 0);
+            saida.append(linha);
+            saida.newLine();
+        }
+
+        void flush() throws IOException {
+            saida.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            saida.close();
+        }
+    }
+
+    private static void texto(StringBuilder linha, String valor) {
+        if (valor == null) {
+            linha.append(AUSENTE);
+            return;
+        }
+        if (valor.equals(AUSENTE)) {
+            linha.append('\\').append(AUSENTE);
+            return;
+        }
+        for (int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            switch (c) {
+                case '\t':
+                    linha.append("\\t");
+                    break;
+                case '\n':
+                    linha.append("\\n");
+                    break;
+                case '\r':
+                    linha.append("\\r");
+                    break;
+                case '\\':
+                    linha.append("\\\\");
+                    break;
+                default:
+                    linha.append(c);
+            }
+        }
+    }
+
+    private static String valor(String campo) {
+        if (AUSENTE.equals(campo)) {
+            return null;
+        }
+        if (campo.indexOf('\\') < 0) {
+            return campo;
+        }
+        StringBuilder valor = new StringBuilder(campo.length());
+        for (int i = 0; i < campo.length(); i++) {
+            char c = campo.charAt(i);
+            if (c != '\\') {
+                valor.append(c);
+                continue;
+            }
+            if (++i == campo.length()) {
+                throw new IllegalArgumentException(campo);
+            }
+            switch (campo.charAt(i)) {
+                case 't':
+                    valor.append('\t');
+                    break;
+                case 'n':
+                    valor.append('\n');
+                    break;
+                case 'r':
+                    valor.append('\r');
+                    break;
+                case '\\':
+                    valor.append('\\');
+                    break;
+                case '-':
+                    valor.append('-');
+                    break;
+                default:
+                    throw new IllegalArgumentException(campo);
+            }
+        }
+        return valor.toString();
+    }
+
+    private static boolean booleano(String campo) {
+        switch (campo) {
+            case "0":
+                return false;
+            case "1":
+                return true;
+            default:
+                throw new IllegalArgumentException(campo);
+        }
+    }
+
+    private static IOException formatoRuim(int numero, String linha) {
+        return new IOException("Formato ruim no trace. Linha " + numero + ": " + linha);
+    }
+}
@@ -0,0 +1,9 @@
+package exception;
+
+// Não é verificada para não mudar as assinaturas de IFileSystem: é lançada
+// pelas escritas antes de alterarem o arquivo, que fica como estava.
+public class EspacoInsuficienteException extends RuntimeException {
+    public EspacoInsuficienteException(String message) {
+        super(message);
+    }
+}
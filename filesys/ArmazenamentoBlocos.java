@@ -0,0 +1,34 @@
+package filesys;
+
+import java.nio.ByteBuffer;
+
+// Onde o conteúdo dos blocos de um DispositivoBlocos é efetivamente guardado.
+// O dispositivo cuida da alocação; o armazenamento só copia bytes de e para os
+// blocos, identificados pelo índice.
+public interface ArmazenamentoBlocos {
+    // Garante espaço para os blocos de índice 0 até totalBlocos - 1.
+    // Chamado pelo dispositivo com o seu lock; leituras e escritas concorrentes
+    // em blocos já existentes devem continuar válidas.
+    void garantirCapacidade(int totalBlocos);
+
+    void zerar(int bloco);
+
+    void ler(int bloco, int posicao, byte[] destino, int offset, int tamanho);
+
+    void escrever(int bloco, int posicao, byte[] origem, int offset, int tamanho);
+
+    // Como os anteriores, com um ByteBuffer (com array ou direto) no lugar do
+    // array, a partir do índice informado; a posição do buffer não muda.
+    void ler(int bloco, int posicao, ByteBuffer destino, int indice, int tamanho);
+
+    void escrever(int bloco, int posicao, ByteBuffer origem, int indice, int tamanho);
+
+    void copiar(int origem, int destino);
+
+    // Maior quantidade de blocos que garantirCapacidade aceita. O dispositivo
+    // não cresce além dela e recusa antes de alterar qualquer arquivo as
+    // escritas que não caberiam (EspacoInsuficienteException).
+    default int getCapacidadeMaxima() {
+        return Integer.MAX_VALUE;
+    }
+}
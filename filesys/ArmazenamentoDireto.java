@@ -0,0 +1,96 @@
+package filesys;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Guarda os blocos fora do heap, em fatias de ByteBuffer diretos. Assim o
+// conteúdo dos arquivos não é percorrido pelo coletor de lixo; no heap ficam
+// apenas os metadados e os índices dos blocos.
+public final class ArmazenamentoDireto implements ArmazenamentoBlocos {
+    private static final int TAMANHO_BLOCO = DispositivoBlocos.TAMANHO_BLOCO;
+    public static final int BLOCOS_POR_FATIA_PADRAO = 16 * 1024;
+
+    private final int blocosPorFatia;
+    private final byte[] zeros = new byte[TAMANHO_BLOCO];
+    private volatile ByteBuffer[] fatias = new ByteBuffer[0];
+
+    public ArmazenamentoDireto() {
+        this(BLOCOS_POR_FATIA_PADRAO);
+    }
+
+    /**
+     * @param blocosPorFatia Quantidade de blocos em cada ByteBuffer direto
+     *                       (no máximo Integer.MAX_VALUE / TAMANHO_BLOCO)
+     */
+    public ArmazenamentoDireto(int blocosPorFatia) {
+        if (blocosPorFatia <= 0 || blocosPorFatia > Integer.MAX_VALUE / TAMANHO_BLOCO) {
+            throw new IllegalArgumentException("Quantidade de blocos por fatia inválida: " + blocosPorFatia);
+        }
+        this.blocosPorFatia = blocosPorFatia;
+    }
+
+    /**
+     * Começa com fatias já preenchidas, por exemplo mapeadas de um snapshot.
+     *
+     * @param blocosPorFatia Quantidade de blocos em cada fatia
+     * @param fatias         Fatias iniciais, cada uma com capacidade para
+     *                       blocosPorFatia blocos
+     */
+    ArmazenamentoDireto(int blocosPorFatia, ByteBuffer[] fatias) {
+        this(blocosPorFatia);
+        for (ByteBuffer fatia : fatias) {
+            if (fatia.capacity() != blocosPorFatia * TAMANHO_BLOCO) {
+                throw new IllegalArgumentException("Fatia com capacidade inválida: " + fatia.capacity());
+            }
+        }
+        this.fatias = fatias.clone();
+    }
+
+    @Override
+    public void garantirCapacidade(int totalBlocos) {
+        int necessarias = (totalBlocos + blocosPorFatia - 1) / blocosPorFatia;
+        if (necessarias <= fatias.length) {
+            return;
+        }
+        ByteBuffer[] novas = Arrays.copyOf(fatias, necessarias);
+        for (int i = fatias.length; i < necessarias; i++) {
+            novas[i] = ByteBuffer.allocateDirect(blocosPorFatia * TAMANHO_BLOCO);
+        }
+        fatias = novas;
+    }
+
+    @Override
+    public void zerar(int bloco) {
+        fatias[bloco / blocosPorFatia].put(posicao(bloco), zeros, 0, TAMANHO_BLOCO);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, byte[] destino, int offset, int tamanho) {
+        fatias[bloco / blocosPorFatia].get(posicao(bloco) + posicao, destino, offset, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, byte[] origem, int offset, int tamanho) {
+        fatias[bloco / blocosPorFatia].put(posicao(bloco) + posicao, origem, offset, tamanho);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, ByteBuffer destino, int indice, int tamanho) {
+        destino.put(indice, fatias[bloco / blocosPorFatia], posicao(bloco) + posicao, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, ByteBuffer origem, int indice, int tamanho) {
+        fatias[bloco / blocosPorFatia].put(posicao(bloco) + posicao, origem, indice, tamanho);
+    }
+
+    @Override
+    public void copiar(int origem, int destino) {
+        fatias[destino / blocosPorFatia].put(posicao(destino),
+                fatias[origem / blocosPorFatia], posicao(origem), TAMANHO_BLOCO);
+    }
+
+    private int posicao(int bloco) {
+        return (bloco % blocosPorFatia) * TAMANHO_BLOCO;
+    }
+}
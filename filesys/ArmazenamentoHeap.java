@@ -0,0 +1,63 @@
+package filesys;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Guarda os blocos em arrays de bytes no heap, em fatias de tamanho fixo.
+public final class ArmazenamentoHeap implements ArmazenamentoBlocos {
+    private static final int TAMANHO_BLOCO = DispositivoBlocos.TAMANHO_BLOCO;
+    private static final int BLOCOS_POR_FATIA = 256;
+
+    // Substituído por uma cópia maior ao crescer; leitores sempre enxergam um
+    // array completo.
+    private volatile byte[][] fatias = new byte[0][];
+
+    @Override
+    public void garantirCapacidade(int totalBlocos) {
+        int necessarias = (totalBlocos + BLOCOS_POR_FATIA - 1) / BLOCOS_POR_FATIA;
+        if (necessarias <= fatias.length) {
+            return;
+        }
+        byte[][] novas = Arrays.copyOf(fatias, necessarias);
+        for (int i = fatias.length; i < necessarias; i++) {
+            novas[i] = new byte[BLOCOS_POR_FATIA * TAMANHO_BLOCO];
+        }
+        fatias = novas;
+    }
+
+    @Override
+    public void zerar(int bloco) {
+        int inicio = posicao(bloco);
+        Arrays.fill(fatias[bloco / BLOCOS_POR_FATIA], inicio, inicio + TAMANHO_BLOCO, (byte) 0);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, byte[] destino, int offset, int tamanho) {
+        System.arraycopy(fatias[bloco / BLOCOS_POR_FATIA], posicao(bloco) + posicao, destino, offset, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, byte[] origem, int offset, int tamanho) {
+        System.arraycopy(origem, offset, fatias[bloco / BLOCOS_POR_FATIA], posicao(bloco) + posicao, tamanho);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, ByteBuffer destino, int indice, int tamanho) {
+        destino.put(indice, fatias[bloco / BLOCOS_POR_FATIA], posicao(bloco) + posicao, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, ByteBuffer origem, int indice, int tamanho) {
+        origem.get(indice, fatias[bloco / BLOCOS_POR_FATIA], posicao(bloco) + posicao, tamanho);
+    }
+
+    @Override
+    public void copiar(int origem, int destino) {
+        System.arraycopy(fatias[origem / BLOCOS_POR_FATIA], posicao(origem),
+                fatias[destino / BLOCOS_POR_FATIA], posicao(destino), TAMANHO_BLOCO);
+    }
+
+    private static int posicao(int bloco) {
+        return (bloco % BLOCOS_POR_FATIA) * TAMANHO_BLOCO;
+    }
+}
@@ -0,0 +1,144 @@
+package filesys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+// Guarda os blocos num arquivo de imagem pré-alocado, acessado por regiões
+// MappedByteBuffer: o conteúdo dos arquivos fica no cache de páginas do
+// sistema operacional e pode ser muito maior que o heap. ler e escrever copiam
+// direto entre o array do chamador e a página mapeada.
+// A imagem é só área de trabalho para o conteúdo dos blocos: o bloco i fica na
+// posição i * TAMANHO_BLOCO e nada mais é gravado nela. Quais blocos estão em
+// uso e a que arquivos pertencem fica apenas na memória do DispositivoBlocos;
+// a árvore persiste pelo Journal e pelos snapshots, e por isso criar() sempre
+// descarta o conteúdo anterior em vez de reabrir a imagem.
+// A capacidade é fixa: o dispositivo pode crescer até ela, e não além (ver
+// getCapacidadeMaxima).
+public final class ArmazenamentoImagem implements ArmazenamentoBlocos, Closeable {
+    private static final int TAMANHO_BLOCO = DispositivoBlocos.TAMANHO_BLOCO;
+    private static final int BLOCOS_POR_REGIAO = 16 * 1024;
+
+    private final RandomAccessFile imagem;
+    private final int capacidade;
+    private final MappedByteBuffer[] regioes;
+    private final byte[] zeros = new byte[TAMANHO_BLOCO];
+
+    private ArmazenamentoImagem(RandomAccessFile imagem, int capacidade) throws IOException {
+        this.imagem = imagem;
+        this.capacidade = capacidade;
+        imagem.setLength((long) capacidade * TAMANHO_BLOCO);
+
+        FileChannel canal = imagem.getChannel();
+        this.regioes = new MappedByteBuffer[(capacidade + BLOCOS_POR_REGIAO - 1) / BLOCOS_POR_REGIAO];
+        for (int i = 0; i < regioes.length; i++) {
+            int blocos = Math.min(BLOCOS_POR_REGIAO, capacidade - i * BLOCOS_POR_REGIAO);
+            regioes[i] = canal.map(FileChannel.MapMode.READ_WRITE,
+                    (long) i * BLOCOS_POR_REGIAO * TAMANHO_BLOCO, (long) blocos * TAMANHO_BLOCO);
+        }
+    }
+
+    /**
+     * Cria (ou recria, descartando o conteúdo) uma imagem. O arquivo recebe o
+     * tamanho final na criação; em sistemas de arquivos com suporte a arquivos
+     * esparsos, blocos nunca escritos não ocupam disco.
+     *
+     * @param arquivo    Arquivo da imagem
+     * @param capacidade Quantidade de blocos de dados, arredondada para um
+     *                   múltiplo do crescimento do DispositivoBlocos
+     * @return O armazenamento, pronto para um DispositivoBlocos
+     * @throws IOException Se o arquivo não puder ser criado ou mapeado
+     */
+    public static ArmazenamentoImagem criar(Path arquivo, int capacidade) throws IOException {
+        if (capacidade <= 0) {
+            throw new IllegalArgumentException("Capacidade da imagem deve ser positiva: " + capacidade);
+        }
+        int crescimento = DispositivoBlocos.BLOCOS_POR_CRESCIMENTO;
+        int arredondada = (capacidade + crescimento - 1) / crescimento * crescimento;
+        RandomAccessFile imagem = new RandomAccessFile(arquivo.toFile(), "rw");
+        try {
+            imagem.setLength(0);
+            return new ArmazenamentoImagem(imagem, arredondada);
+        } catch (IOException | RuntimeException e) {
+            imagem.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void garantirCapacidade(int totalBlocos) {
+        // O dispositivo não passa de getCapacidadeMaxima(); chegar aqui é erro
+        // de programação, não falta de espaço.
+        if (totalBlocos > capacidade) {
+            throw new IllegalStateException("Capacidade da imagem excedida: " + totalBlocos + " blocos pedidos, "
+                    + "capacidade " + capacidade);
+        }
+    }
+
+    @Override
+    public int getCapacidadeMaxima() {
+        return capacidade;
+    }
+
+    @Override
+    public void zerar(int bloco) {
+        regioes[bloco / BLOCOS_POR_REGIAO].put(posicao(bloco), zeros, 0, TAMANHO_BLOCO);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, byte[] destino, int offset, int tamanho) {
+        regioes[bloco / BLOCOS_POR_REGIAO].get(posicao(bloco) + posicao, destino, offset, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, byte[] origem, int offset, int tamanho) {
+        regioes[bloco / BLOCOS_POR_REGIAO].put(posicao(bloco) + posicao, origem, offset, tamanho);
+    }
+
+    @Override
+    public void ler(int bloco, int posicao, ByteBuffer destino, int indice, int tamanho) {
+        destino.put(indice, regioes[bloco / BLOCOS_POR_REGIAO], posicao(bloco) + posicao, tamanho);
+    }
+
+    @Override
+    public void escrever(int bloco, int posicao, ByteBuffer origem, int indice, int tamanho) {
+        regioes[bloco / BLOCOS_POR_REGIAO].put(posicao(bloco) + posicao, origem, indice, tamanho);
+    }
+
+    @Override
+    public void copiar(int origem, int destino) {
+        regioes[destino / BLOCOS_POR_REGIAO].put(posicao(destino),
+                regioes[origem / BLOCOS_POR_REGIAO], posicao(origem), TAMANHO_BLOCO);
+    }
+
+    public int getCapacidade() {
+        return capacidade;
+    }
+
+    /**
+     * Grava no arquivo as páginas alteradas da imagem.
+     */
+    public void forcar() {
+        for (MappedByteBuffer regiao : regioes) {
+            regiao.force();
+        }
+    }
+
+    /**
+     * Grava as páginas alteradas e fecha o arquivo. Os mapeamentos continuam
+     * válidos até serem coletados, mas a imagem não deve mais ser usada.
+     */
+    @Override
+    public void close() throws IOException {
+        forcar();
+        imagem.close();
+    }
+
+    private static int posicao(int bloco) {
+        return (bloco % BLOCOS_POR_REGIAO) * TAMANHO_BLOCO;
+    }
+}
@@ -1,83 +1,508 @@
 package filesys;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
-import exception.PermissaoException;
+import exception.EspacoInsuficienteException;
 
-public class Arquivo {
-    private Metadata metadata;
-    private static final int BLOCK_SIZE = 4096;
-    private List<Bloco> blocos = new ArrayList<>();
+public class Arquivo implements No {
+    static final int BLOCK_SIZE = 4096;
+    // O índice de bloco é um int: o último byte possível fica no bloco
+    // Integer.MAX_VALUE (8 TiB).
+    static final long TAMANHO_MAXIMO = ((long) Integer.MAX_VALUE + 1) * BLOCK_SIZE;
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    // Protege os blocos e o tamanho. Escritas em arquivos diferentes não
+    // disputam travas, nem mesmo no mesmo diretório; quem retira o arquivo do
+    // diretório (rm, mv) também precisa dela.
+    private final StampedLock trava = new StampedLock();
+    // Nome, dono, tamanho e permissões ficam na tabela de inodes.
+    private final TabelaInodes tabela;
+    private final int inode;
+    private final DispositivoBlocos dispositivo;
+    // O byte n do arquivo fica no bloco n / BLOCK_SIZE, posição n % BLOCK_SIZE.
+    // Índices sem bloco são buracos (arquivo esparso): são lidos como zeros,
+    // não ocupam memória e só recebem um bloco quando alguém escreve neles. Os
+    // bytes de um bloco além do tamanho do arquivo são sempre zero.
+    // Blocos podem ser compartilhados com cópias deste arquivo; toda alteração
+    // passa por DispositivoBlocos.paraEscrita.
+    private TabelaBlocos blocos = new TabelaBlocos();
+    // Época da última vez que o arquivo foi movido (ver CachePermissoes).
+    private volatile long epoca;
 
     
-    public Arquivo(String nomeArquivo, String usuario) {
-        this.metadata = new Metadata(nomeArquivo, usuario);
+    public Arquivo(String nomeArquivo, String usuario, DispositivoBlocos dispositivo) {
+        this(TabelaInodes.paraUmNo(), nomeArquivo, usuario, dispositivo);
+    }
+
+    public Arquivo(TabelaInodes tabela, String nomeArquivo, String usuario, DispositivoBlocos dispositivo) {
+        this.tabela = tabela;
+        this.inode = tabela.alocar(nomeArquivo, usuario);
+        this.dispositivo = dispositivo;
+    }
+
+    /**
+     * Escreve o buffer no arquivo. Sem anexar, o conteúdo anterior é descartado e
+     * seus blocos devolvidos ao dispositivo; anexando, o último bloco parcial é
+     * completado antes de novos blocos serem alocados.
+     *
+     * @param buffer Dados a serem escritos
+     * @param append Se true, anexa ao final do arquivo
+     * @throws IllegalArgumentException    Se o arquivo passar de TAMANHO_MAXIMO
+     * @throws EspacoInsuficienteException Se faltar espaço no dispositivo; o
+     *                                     arquivo não é alterado
+     */
+    public void write(byte[] buffer, boolean append) {
+        long posicao = append ? tabela.getTamanho(inode) : 0;
+        verificarLimite(posicao, buffer.length);
+        reservarEscrita(posicao, buffer.length, !append);
+        try {
+            if (!append) {
+                liberarBlocos();
+            }
+            gravar(posicao, buffer, 0, buffer.length);
+        } finally {
+            dispositivo.devolverReserva();
+        }
+    }
+
+    /**
+     * Escreve bytes a partir de uma posição do arquivo. Somente os blocos que
+     * contêm o trecho são alterados; buracos atingidos recebem um bloco novo e
+     * o tamanho do arquivo passa a ser o maior entre o atual e o fim do trecho.
+     *
+     * @param posicao Posição do arquivo onde a escrita começa
+     * @param origem  Array de origem
+     * @param offset  Posição inicial na origem
+     * @param tamanho Quantidade de bytes
+     * @throws IllegalArgumentException    Se o trecho passar de TAMANHO_MAXIMO
+     * @throws EspacoInsuficienteException Se faltar espaço no dispositivo; o
+     *                                     arquivo não é alterado
+     */
+    public void escrever(long posicao, byte[] origem, int offset, int tamanho) {
+        verificarLimite(posicao, tamanho);
+        reservarEscrita(posicao, tamanho, false);
+        try {
+            gravar(posicao, origem, offset, tamanho);
+        } finally {
+            dispositivo.devolverReserva();
+        }
+    }
+
+    // Como escrever(long, byte[], int, int), com o limite verificado e os
+    // blocos já reservados.
+    private void gravar(long posicao, byte[] origem, int offset, int tamanho) {
+        if (tamanho == 0) {
+            return;
+        }
+        long fim = posicao + tamanho;
+
+        int indice = (int) (posicao / BLOCK_SIZE);
+        int dentroDoBloco = (int) (posicao % BLOCK_SIZE);
+        int escritos = 0;
+        while (escritos < tamanho) {
+            int chunkSize = Math.min(BLOCK_SIZE - dentroDoBloco, tamanho - escritos);
+            Bloco bloco = blocos.get(indice);
+            if (chunkSize == BLOCK_SIZE && dispositivo.isDeduplicacao()) {
+                // Bloco substituído por inteiro: grava (ou reaproveita) antes de
+                // soltar o antigo, que pode ter o mesmo conteúdo.
+                int novo = dispositivo.gravarDeduplicado(origem, offset + escritos);
+                if (bloco != null) {
+                    dispositivo.liberar(bloco.getIndice());
+                }
+                blocos.set(indice, new Bloco(novo));
+                escritos += chunkSize;
+                indice++;
+                continue;
+            }
+            bloco = blocoParaEscrita(indice);
+            dispositivo.escrever(bloco.getIndice(), dentroDoBloco, origem, offset + escritos, chunkSize);
+            escritos += chunkSize;
+            indice++;
+            dentroDoBloco = 0;
+        }
+
+        if (fim > tabela.getTamanho(inode)) {
+            tabela.setTamanho(inode, fim);
+        }
+    }
+
+    /**
+     * Escreve os bytes restantes de cada buffer, em sequência, a partir de uma
+     * posição do arquivo (escrita vetorial). Cada trecho copiado vai direto do
+     * buffer para o bloco que o contém, sem passar por um array intermediário:
+     * um bloco que recebe bytes de vários buffers é preparado para escrita uma
+     * única vez, e um buffer que cobre vários blocos é copiado bloco a bloco.
+     * As posições dos buffers avançam até o limite e o tamanho do arquivo é
+     * atualizado uma única vez, no final.
+     *
+     * @param posicao Posição do arquivo onde a escrita começa
+     * @param origens Buffers de origem, com array ou diretos
+     * @return Quantidade de bytes escritos
+     * @throws IllegalArgumentException    Se o trecho passar de TAMANHO_MAXIMO
+     * @throws EspacoInsuficienteException Se faltar espaço no dispositivo; o
+     *                                     arquivo e os buffers não são
+     *                                     alterados
+     */
+    public long escrever(long posicao, ByteBuffer[] origens) {
+        return escrever(posicao, origens, false);
+    }
+
+    /**
+     * Substitui o conteúdo do arquivo pelos bytes restantes de cada buffer,
+     * como write sem anexar: os blocos anteriores são devolvidos ao
+     * dispositivo e o tamanho do arquivo só é alterado uma vez, para o total
+     * escrito.
+     *
+     * @param origens Buffers de origem, com array ou diretos
+     * @return Quantidade de bytes escritos
+     * @see #escrever(long, ByteBuffer[])
+     */
+    public long substituir(ByteBuffer[] origens) {
+        return escrever(0, origens, true);
     }
 
-    public void write(byte[] buffer, boolean append) throws PermissaoException {
-        if (metadata.getPermissions().values().stream().noneMatch(p -> p.contains("w"))) {
-            throw new PermissaoException("User " + metadata.getOwner() + " doesn't have permission to write!");
+    // Com substituir, os blocos anteriores são soltos e o tamanho passa a ser
+    // o fim da escrita mesmo que o anterior fosse maior.
+    private long escrever(long posicao, ByteBuffer[] origens, boolean substituir) {
+        long total = 0;
+        for (ByteBuffer origem : origens) {
+            total += origem.remaining();
         }
+        verificarLimite(posicao, total);
+        reservarEscrita(posicao, total, substituir);
+        try {
+            if (substituir) {
+                descartarBlocos();
+            }
+            return gravar(posicao, origens, total, substituir);
+        } finally {
+            dispositivo.devolverReserva();
+        }
+    }
 
-        if (!append) {
-            blocos.clear();
+    private long gravar(long posicao, ByteBuffer[] origens, long total, boolean substituir) {
+        if (total == 0) {
+            if (substituir) {
+                tabela.setTamanho(inode, posicao);
+            }
+            return 0;
         }
+        long fim = posicao + total;
 
-        int offset = 0;
-        while (offset < buffer.length) {
-            int remaining = buffer.length - offset;
-            int chunkSize = Math.min(BLOCK_SIZE, remaining);
-            byte[] chunk = new byte[chunkSize];
-            System.arraycopy(buffer, offset, chunk, 0, chunkSize);
-            blocos.add(new Bloco(chunk));
-            offset += chunkSize;
+        int indice = (int) (posicao / BLOCK_SIZE);
+        int dentroDoBloco = (int) (posicao % BLOCK_SIZE);
+        Bloco bloco = null;
+        for (ByteBuffer origem : origens) {
+            while (origem.hasRemaining()) {
+                int chunkSize = Math.min(BLOCK_SIZE - dentroDoBloco, origem.remaining());
+                if (chunkSize == BLOCK_SIZE && origem.hasArray() && dispositivo.isDeduplicacao()) {
+                    // Mesmo caso de escrever(long, byte[], int, int). Buffers
+                    // diretos e blocos divididos entre buffers são escritos
+                    // no lugar, como escritas parciais.
+                    Bloco antigo = blocos.get(indice);
+                    int novo = dispositivo.gravarDeduplicado(origem.array(),
+                            origem.arrayOffset() + origem.position());
+                    if (antigo != null) {
+                        dispositivo.liberar(antigo.getIndice());
+                    }
+                    blocos.set(indice, new Bloco(novo));
+                } else {
+                    if (bloco == null) {
+                        bloco = blocoParaEscrita(indice);
+                    }
+                    dispositivo.escrever(bloco.getIndice(), dentroDoBloco, origem, origem.position(), chunkSize);
+                }
+                origem.position(origem.position() + chunkSize);
+                dentroDoBloco += chunkSize;
+                if (dentroDoBloco == BLOCK_SIZE) {
+                    bloco = null;
+                    indice++;
+                    dentroDoBloco = 0;
+                }
+            }
         }
+
+        if (substituir || fim > tabela.getTamanho(inode)) {
+            tabela.setTamanho(inode, fim);
+        }
+        return total;
     }
 
-    public byte[] read() {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        for (Bloco block : blocos) {
-            output.writeBytes(block.getDados());
+    /**
+     * Copia até tamanho bytes a partir de uma posição do arquivo. O bloco
+     * inicial é obtido por aritmética e só os bytes pedidos são copiados.
+     *
+     * @param posicao Posição do arquivo onde a leitura começa
+     * @param destino Array de destino
+     * @param offset  Posição inicial no destino
+     * @param tamanho Quantidade máxima de bytes
+     * @return Quantidade de bytes copiados; 0 no final do arquivo
+     */
+    public int ler(long posicao, byte[] destino, int offset, int tamanho) {
+        long restante = tabela.getTamanho(inode) - posicao;
+        if (restante <= 0) {
+            return 0;
         }
-        return output.toByteArray();
+        int total = (int) Math.min(tamanho, restante);
+        int indice = (int) (posicao / BLOCK_SIZE);
+        int dentroDoBloco = (int) (posicao % BLOCK_SIZE);
+        int copiados = 0;
+        while (copiados < total) {
+            int chunkSize = Math.min(BLOCK_SIZE - dentroDoBloco, total - copiados);
+            Bloco bloco = blocos.get(indice);
+            if (bloco == null) {
+                Arrays.fill(destino, offset + copiados, offset + copiados + chunkSize, (byte) 0);
+            } else {
+                dispositivo.ler(bloco.getIndice(), dentroDoBloco, destino, offset + copiados, chunkSize);
+            }
+            copiados += chunkSize;
+            indice++;
+            dentroDoBloco = 0;
+        }
+        return total;
     }
 
+    /**
+     * Lê a partir de uma posição do arquivo preenchendo cada buffer, em
+     * sequência, até o seu limite (leitura vetorial). Cada trecho é copiado
+     * direto do bloco para o buffer; buracos são lidos como zeros. Para no
+     * final do arquivo, e as posições dos buffers avançam o que foi lido.
+     *
+     * @param posicao  Posição do arquivo onde a leitura começa
+     * @param destinos Buffers de destino, com array ou diretos
+     * @return Quantidade de bytes lidos; 0 no final do arquivo
+     */
+    public long ler(long posicao, ByteBuffer[] destinos) {
+        long restante = tabela.getTamanho(inode) - posicao;
+        if (restante <= 0) {
+            return 0;
+        }
+        int indice = (int) (posicao / BLOCK_SIZE);
+        int dentroDoBloco = (int) (posicao % BLOCK_SIZE);
+        long lidos = 0;
+        for (ByteBuffer destino : destinos) {
+            while (destino.hasRemaining() && lidos < restante) {
+                int chunkSize = (int) Math.min(Math.min(BLOCK_SIZE - dentroDoBloco, destino.remaining()),
+                        restante - lidos);
+                Bloco bloco = blocos.get(indice);
+                if (bloco == null) {
+                    destino.put(destino.position(), ZEROS, 0, chunkSize);
+                } else {
+                    dispositivo.ler(bloco.getIndice(), dentroDoBloco, destino, destino.position(), chunkSize);
+                }
+                destino.position(destino.position() + chunkSize);
+                lidos += chunkSize;
+                dentroDoBloco += chunkSize;
+                if (dentroDoBloco == BLOCK_SIZE) {
+                    indice++;
+                    dentroDoBloco = 0;
+                }
+            }
+        }
+        return lidos;
+    }
+
+    /**
+     * Substitui o conteúdo deste arquivo pelo conteúdo de outro, compartilhando
+     * os blocos: só os metadados são copiados, e cada bloco é duplicado apenas
+     * quando um dos arquivos escrever nele.
+     *
+     * @param origem Arquivo de origem
+     */
+    public void copiarConteudo(Arquivo origem) {
+        liberarBlocos();
+        origem.blocos.paraCada((indice, bloco) -> {
+            dispositivo.reter(bloco.getIndice());
+            blocos.set(indice, bloco);
+        });
+        tabela.setTamanho(inode, origem.tabela.getTamanho(origem.inode));
+    }
+
+    /**
+     * Reduz o arquivo a tamanho bytes; não faz nada se ele já for menor. Os
+     * blocos inteiramente além do novo final são liberados e o resto do
+     * último bloco é zerado, para que os bytes além do tamanho continuem zero.
+     *
+     * @param tamanho Novo tamanho do arquivo
+     * @throws EspacoInsuficienteException Se o último bloco for compartilhado
+     *                                     e não houver espaço para a cópia; o
+     *                                     arquivo não é alterado
+     */
+    public void truncar(long tamanho) {
+        if (tamanho >= tabela.getTamanho(inode)) {
+            return;
+        }
+        if (tamanho == 0) {
+            liberarBlocos();
+            return;
+        }
+        int manter = (int) ((tamanho - 1) / BLOCK_SIZE) + 1;
+        int dentroDoBloco = (int) (tamanho % BLOCK_SIZE);
+        Bloco ultimo = blocos.get(manter - 1);
+        boolean zerar = dentroDoBloco != 0 && ultimo != null;
+        if (zerar && dispositivo.isLimitado() && dispositivo.getReferencias(ultimo.getIndice()) > 1) {
+            dispositivo.reservarEspaco(1, 0);
+        }
+        try {
+            blocos.cortar(manter, (indice, bloco) -> dispositivo.liberar(bloco.getIndice()));
+            if (zerar) {
+                int exclusivo = dispositivo.paraEscrita(ultimo.getIndice());
+                if (exclusivo != ultimo.getIndice()) {
+                    ultimo = new Bloco(exclusivo);
+                    blocos.set(manter - 1, ultimo);
+                }
+                dispositivo.escrever(ultimo.getIndice(), dentroDoBloco, ZEROS, 0, BLOCK_SIZE - dentroDoBloco);
+            }
+        } finally {
+            dispositivo.devolverReserva();
+        }
+        tabela.setTamanho(inode, tamanho);
+    }
+
+    /**
+     * @throws IllegalArgumentException Se o trecho começar antes do início ou
+     *                                  terminar além de TAMANHO_MAXIMO
+     */
+    static void verificarLimite(long posicao, long tamanho) {
+        if (posicao < 0 || posicao > TAMANHO_MAXIMO - tamanho) {
+            throw new IllegalArgumentException("Escrita além do tamanho máximo de arquivo (" + TAMANHO_MAXIMO
+                    + " bytes): " + posicao + "+" + tamanho);
+        }
+    }
+
+    // Reserva os blocos que uma escrita em [posicao, posicao + tamanho) pode
+    // alocar: um para cada buraco ou bloco compartilhado atingido e, com
+    // deduplicação, para cada bloco substituído por inteiro, que é gravado
+    // antes de o antigo ser solto. Com substituir, todos os blocos atuais são
+    // soltos antes, e os que só este arquivo usa contam como livres. Quem
+    // chama devolve a sobra com DispositivoBlocos.devolverReserva.
+    private void reservarEscrita(long posicao, long tamanho, boolean substituir) {
+        if (tamanho == 0 || !dispositivo.isLimitado()) {
+            return;
+        }
+        long fim = posicao + tamanho;
+        int primeiro = (int) (posicao / BLOCK_SIZE);
+        int ultimo = (int) ((fim - 1) / BLOCK_SIZE);
+        if (substituir) {
+            int[] exclusivos = new int[1];
+            blocos.paraCada((indice, bloco) -> {
+                if (dispositivo.getReferencias(bloco.getIndice()) == 1) {
+                    exclusivos[0]++;
+                }
+            });
+            dispositivo.reservarEspaco((long) ultimo - primeiro + 1, exclusivos[0]);
+            return;
+        }
+        boolean deduplicacao = dispositivo.isDeduplicacao();
+        long necessarios = 0;
+        for (int indice = primeiro; indice <= ultimo; indice++) {
+            Bloco bloco = blocos.get(indice);
+            boolean inteiro = (long) indice * BLOCK_SIZE >= posicao && (long) (indice + 1) * BLOCK_SIZE <= fim;
+            if (bloco == null || (deduplicacao && inteiro) || dispositivo.getReferencias(bloco.getIndice()) > 1) {
+                necessarios++;
+            }
+        }
+        dispositivo.reservarEspaco(necessarios, 0);
+    }
+
+    // Bloco da posição indice pronto para ser alterado: um bloco novo no
+    // lugar de um buraco ou uma cópia exclusiva de um bloco compartilhado.
+    private Bloco blocoParaEscrita(int indice) {
+        Bloco bloco = blocos.get(indice);
+        if (bloco == null) {
+            bloco = new Bloco(dispositivo.alocar());
+            blocos.set(indice, bloco);
+        } else {
+            int exclusivo = dispositivo.paraEscrita(bloco.getIndice());
+            if (exclusivo != bloco.getIndice()) {
+                bloco = new Bloco(exclusivo);
+                blocos.set(indice, bloco);
+            }
+        }
+        return bloco;
+    }
+
+    /**
+     * Libera a referência deste arquivo a cada um dos seus blocos e zera o
+     * tamanho do arquivo. Blocos sem outras referências voltam ao dispositivo.
+     */
+    public void liberarBlocos() {
+        descartarBlocos();
+        tabela.setTamanho(inode, 0);
+    }
+
+    // Como liberarBlocos, sem alterar o tamanho: quem chama o define depois.
+    private void descartarBlocos() {
+        blocos.cortar(0, (indice, bloco) -> dispositivo.liberar(bloco.getIndice()));
+    }
+
+    /**
+     * Devolve o inode à tabela. Só é chamado depois de o arquivo sair da
+     * árvore, com a sua trava de escrita.
+     */
+    void liberarInode() {
+        tabela.liberar(inode);
+    }
+
+    int getInode() {
+        return inode;
+    }
+
+    StampedLock getTrava() {
+        return trava;
+    }
+
+    long getEpoca() {
+        return epoca;
+    }
+
+    void setEpoca(long epoca) {
+        this.epoca = epoca;
+    }
+
+    @Override
     public Metadata getMetadata() {
-        return metadata;
+        return new Metadata(tabela, inode);
     }
 
+    /**
+     * Copia nome, dono, tamanho e permissões de outros metadados para o
+     * inode deste arquivo.
+     */
     public void setMetadata(Metadata metadata) {
-        this.metadata = metadata;
+        tabela.setNome(inode, metadata.getName());
+        tabela.setDono(inode, metadata.getOwner());
+        tabela.setTamanho(inode, metadata.getSize());
+        getMetadata().setPermissions(metadata.getPermissions());
     }
 
     public static int getBlockSize() {
         return BLOCK_SIZE;
     }
 
-    public List<Bloco> getBlocos() {
+    /**
+     * @return Os blocos do arquivo; a tabela não deve ser alterada
+     */
+    TabelaBlocos getBlocos() {
         return blocos;
     }
 
-    public void setBlocos(List<Bloco> blocos) {
+    /**
+     * Adota blocos cujas referências já foram contadas no dispositivo, como na
+     * restauração de um snapshot.
+     *
+     * @param blocos  Blocos do arquivo
+     * @param tamanho Tamanho do arquivo
+     */
+    void restaurar(TabelaBlocos blocos, long tamanho) {
         this.blocos = blocos;
+        tabela.setTamanho(inode, tamanho);
     }
 
-    public void addBloco(Bloco bloco) {
-        this.blocos.add(bloco);
-        this.metadata.setSize(this.metadata.getSize() + bloco.getSize());
-    }
-
-    public void removeBloco(Bloco bloco) {
-        this.blocos.remove(bloco);
-        this.metadata.setSize(this.metadata.getSize() - bloco.getSize());
-    }
-
-    public void clearBloco() {
-        this.blocos.clear();
-        this.metadata.setSize(0);
+    public DispositivoBlocos getDispositivo() {
+        return dispositivo;
     }
 
-
 }
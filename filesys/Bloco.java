@@ -1,30 +1,16 @@
 package filesys;
 
+// Referência a um bloco de tamanho fixo de um DispositivoBlocos.
+// Os dados ficam no dispositivo; o bloco guarda apenas o seu índice.
 public class Bloco {
-    private byte[] dados;
+    private final int indice;
 
-    public Bloco(byte[] dados) {
-        this.dados = dados;
+    public Bloco(int indice) {
+        this.indice = indice;
     }
 
-    public Bloco(int size) {
-        this.dados = new byte[size];
-    }
-    
-    public Bloco() {
-        this.dados = new byte[0];
-    }
-
-    public byte[] getDados() {
-        return dados;
-    }
-
-    public void setDados(byte[] dados) {
-        this.dados = dados;
-    }
-
-    public int getSize() {
-        return dados.length;
+    public int getIndice() {
+        return indice;
     }
 
 }
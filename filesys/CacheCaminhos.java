@@ -0,0 +1,252 @@
+package filesys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache limitado caminho -> Diretorio usado por FileSystemImpl.navigateTo.
+// A própria tabela hash (endereçamento aberto) serve de anel para a política
+// CLOCK: cada acerto marca a entrada como referenciada e o ponteiro de despejo
+// só remove entradas que não foram usadas desde a última volta.
+// Somente resoluções bem-sucedidas são guardadas, então criar diretórios não
+// invalida nada; remover ou mover um diretório invalida toda a sua subárvore.
+// Cada invalidação avança a geração do cache, e put descarta resoluções feitas
+// antes dela, que podem estar desatualizadas.
+// get não trava nada: as entradas são imutáveis (exceto a marca do CLOCK) e
+// publicadas numa AtomicReferenceArray, e os contadores são LongAdder. Só put,
+// invalidar e limpar usam o monitor. Uma busca que cruza com uma remoção pode
+// não achar uma entrada que estava lá, o que é só uma falha a mais; uma
+// entrada invalidada durante a busca pode ser devolvida, e por isso quem usa o
+// resultado o valida com a versão da estrutura (ver FileSystemImpl.travarAlvo).
+// A marca de referenciada é escrita sem sincronização: perder uma marca só
+// faz a entrada ser despejada uma volta antes.
+public final class CacheCaminhos {
+    public static final int CAPACIDADE_PADRAO = 4096;
+
+    private final int capacidade;
+    private final AtomicReferenceArray<Entrada> tabela;
+    private final LongAdder acertos = new LongAdder();
+    private final LongAdder falhas = new LongAdder();
+    private volatile long geracao;
+    private int tamanho;
+    private int ponteiro;
+
+    private static final class Entrada {
+        private final String chave;
+        private final int hash;
+        private final Diretorio dir;
+        private boolean referenciada;
+
+        private Entrada(String chave, int hash, Diretorio dir, boolean referenciada) {
+            this.chave = chave;
+            this.hash = hash;
+            this.dir = dir;
+            this.referenciada = referenciada;
+        }
+    }
+
+    public CacheCaminhos(int capacidade) {
+        if (capacidade <= 0) {
+            throw new IllegalArgumentException("Capacidade do cache deve ser positiva");
+        }
+        this.capacidade = capacidade;
+        // Mantém o fator de carga da tabela em no máximo 50%.
+        int tamanhoTabela = Integer.highestOneBit(capacidade * 2 - 1) << 1;
+        this.tabela = new AtomicReferenceArray<>(tamanhoTabela);
+    }
+
+    /**
+     * Busca o diretório resolvido para um caminho, contabilizando acerto ou
+     * falha.
+     *
+     * @param caminho Caminho a ser resolvido
+     * @return O diretório em cache ou null
+     */
+    public Diretorio get(String caminho) {
+        return get(caminho, 0, caminho.length());
+    }
+
+    /**
+     * Busca o diretório resolvido para o trecho caminho[inicio, fim) sem criar
+     * a String do trecho.
+     *
+     * @param caminho Texto que contém o caminho
+     * @param inicio  Índice inicial (inclusivo)
+     * @param fim     Índice final (exclusivo)
+     * @return O diretório em cache ou null
+     */
+    public Diretorio get(String caminho, int inicio, int fim) {
+        int mascara = tabela.length() - 1;
+        int hash = hash(caminho, inicio, fim);
+        int tamanhoChave = fim - inicio;
+        Entrada entrada;
+        for (int i = hash & mascara; (entrada = tabela.get(i)) != null; i = (i + 1) & mascara) {
+            if (entrada.hash == hash && entrada.chave.length() == tamanhoChave
+                    && entrada.chave.regionMatches(0, caminho, inicio, tamanhoChave)) {
+                acertos.increment();
+                // Só escreve se preciso, para não sujar a linha de cache a
+                // cada acerto.
+                if (!entrada.referenciada) {
+                    entrada.referenciada = true;
+                }
+                return entrada.dir;
+            }
+        }
+        falhas.increment();
+        return null;
+    }
+
+    /**
+     * Guarda a resolução de um caminho, despejando uma entrada antiga se o
+     * cache estiver cheio.
+     *
+     * @param caminho Caminho resolvido
+     * @param dir     Diretório correspondente
+     */
+    public synchronized void put(String caminho, Diretorio dir) {
+        put(caminho, dir, geracao);
+    }
+
+    /**
+     * Guarda a resolução de um caminho somente se nenhuma invalidação ocorreu
+     * desde que a resolução começou.
+     *
+     * @param caminho Caminho resolvido
+     * @param dir     Diretório correspondente
+     * @param geracao Valor de getGeracao() lido antes de resolver o caminho
+     */
+    public synchronized void put(String caminho, Diretorio dir, long geracao) {
+        if (geracao != this.geracao) {
+            return;
+        }
+        int hash = hash(caminho, 0, caminho.length());
+        int i = localizar(caminho, hash);
+        if (tabela.get(i) != null) {
+            tabela.set(i, new Entrada(caminho, hash, dir, true));
+            return;
+        }
+
+        if (tamanho == capacidade) {
+            despejar();
+            i = localizar(caminho, hash);
+        }
+
+        tabela.set(i, new Entrada(caminho, hash, dir, false));
+        tamanho++;
+    }
+
+    /**
+     * Remove todas as entradas que resolvem para o diretório informado ou para
+     * qualquer diretório dentro dele. Deve ser chamado depois de a subárvore
+     * ser removida ou movida, para que uma resolução que leu a nova geração já
+     * encontre a árvore alterada.
+     *
+     * @param dir Raiz da subárvore removida ou movida
+     */
+    public synchronized void invalidar(Diretorio dir) {
+        geracao++;
+        List<String> removidas = new ArrayList<>();
+        for (int i = 0; i < tabela.length(); i++) {
+            Entrada entrada = tabela.get(i);
+            if (entrada != null && entrada.dir.estaDentroDe(dir)) {
+                removidas.add(entrada.chave);
+            }
+        }
+        for (String chave : removidas) {
+            remover(localizar(chave, hash(chave, 0, chave.length())));
+        }
+    }
+
+    public synchronized void limpar() {
+        geracao++;
+        for (int i = 0; i < tabela.length(); i++) {
+            tabela.set(i, null);
+        }
+        tamanho = 0;
+    }
+
+    public long getGeracao() {
+        return geracao;
+    }
+
+    public long getAcertos() {
+        return acertos.sum();
+    }
+
+    public long getFalhas() {
+        return falhas.sum();
+    }
+
+    public synchronized int getTamanho() {
+        return tamanho;
+    }
+
+    public int getCapacidade() {
+        return capacidade;
+    }
+
+    private void despejar() {
+        int mascara = tabela.length() - 1;
+        while (true) {
+            ponteiro = (ponteiro + 1) & mascara;
+            Entrada entrada = tabela.get(ponteiro);
+            if (entrada == null) {
+                continue;
+            }
+            if (entrada.referenciada) {
+                entrada.referenciada = false;
+                continue;
+            }
+            remover(ponteiro);
+            return;
+        }
+    }
+
+    private int localizar(String caminho, int hash) {
+        int mascara = tabela.length() - 1;
+        int i = hash & mascara;
+        Entrada entrada;
+        while ((entrada = tabela.get(i)) != null) {
+            if (entrada.hash == hash && entrada.chave.equals(caminho)) {
+                return i;
+            }
+            i = (i + 1) & mascara;
+        }
+        return i;
+    }
+
+    // Fecha o buraco deixado pela remoção trazendo para trás as entradas
+    // seguintes. Cada entrada é escrita na nova posição antes de sair da
+    // antiga, então uma busca concorrente no máximo deixa de achá-la.
+    private void remover(int livre) {
+        int mascara = tabela.length() - 1;
+        tabela.set(livre, null);
+        tamanho--;
+        int j = livre;
+        while (true) {
+            j = (j + 1) & mascara;
+            Entrada entrada = tabela.get(j);
+            if (entrada == null) {
+                return;
+            }
+            int ideal = entrada.hash & mascara;
+            boolean podeMover = livre <= j
+                    ? (ideal <= livre || ideal > j)
+                    : (ideal <= livre && ideal > j);
+            if (podeMover) {
+                tabela.set(livre, entrada);
+                tabela.set(j, null);
+                livre = j;
+            }
+        }
+    }
+
+    private static int hash(String caminho, int inicio, int fim) {
+        int h = 0;
+        for (int i = inicio; i < fim; i++) {
+            h = 31 * h + caminho.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
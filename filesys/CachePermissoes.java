@@ -0,0 +1,133 @@
+package filesys;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache da permissão herdada (RegrasPermissao.resolver) por (uid, nó), usado
+// por FileSystemImpl.temPermissao quando o usuário não tem entrada própria na
+// ACL do nó. A entrada própria é sempre consultada antes, então chmod nunca
+// deixa uma entrada do cache desatualizada; o que muda a permissão herdada é
+// mudar o caminho de um nó (mv) ou as regras.
+// Cada entrada guarda a época lida antes do cálculo. Mover um nó dá a ele uma
+// época nova, maior que a de todas as entradas calculadas até então: a
+// entrada vale enquanto nem o nó nem os seus ancestrais tiverem época maior
+// que a dela, então um mv invalida só a subárvore movida. Novas regras valem
+// para todos os caminhos e avançam a época mínima de todas as entradas.
+// Tabela de mapeamento direto: cada posição guarda uma entrada imutável que
+// é trocada inteira, então get não trava. A entrada guarda o próprio nó, e
+// não só o inode, para que um inode reaproveitado não encontre a permissão do
+// nó anterior.
+public final class CachePermissoes {
+    public static final int CAPACIDADE_PADRAO = 4096;
+    static final int AUSENTE = -1;
+
+    private final Entrada[] entradas;
+    // Fonte das épocas; a atual é a das entradas calculadas agora.
+    private final AtomicLong epocas = new AtomicLong();
+    // Entradas de época menor foram calculadas antes das regras atuais.
+    private volatile long epocaRegras;
+    private final LongAdder acertos = new LongAdder();
+    private final LongAdder falhas = new LongAdder();
+
+    public CachePermissoes(int capacidade) {
+        if (capacidade <= 0) {
+            throw new IllegalArgumentException("Capacidade do cache deve ser positiva");
+        }
+        this.entradas = new Entrada[Integer.highestOneBit(capacidade * 2 - 1)];
+    }
+
+    /**
+     * @param uid   Id do usuário
+     * @param no    Arquivo ou diretório
+     * @param inode Inode do nó
+     * @param dir   O próprio nó, se for um diretório, ou o diretório do
+     *              arquivo
+     * @return Bits rwx herdados, ou AUSENTE se não houver entrada válida
+     */
+    int get(int uid, No no, int inode, Diretorio dir) {
+        Entrada entrada = entradas[posicao(uid, inode)];
+        if (entrada != null && entrada.no == no && entrada.uid == uid && valida(entrada.epoca, no, dir)) {
+            acertos.increment();
+            return entrada.bits;
+        }
+        falhas.increment();
+        return AUSENTE;
+    }
+
+    /**
+     * Guarda a permissão herdada calculada para o nó. Se o nó, um ancestral
+     * ou as regras mudaram depois de epoca, a entrada já nasce inválida.
+     *
+     * @param epoca Valor de getEpoca() lido antes de calcular bits
+     */
+    void put(int uid, No no, int inode, int bits, long epoca) {
+        entradas[posicao(uid, inode)] = new Entrada(no, uid, bits, epoca);
+    }
+
+    /**
+     * Invalida as entradas do nó movido e de tudo dentro dele. Deve ser
+     * chamado depois de a mudança ficar visível, para que quem calculou antes
+     * não guarde uma entrada válida.
+     *
+     * @param movido Arquivo ou diretório que mudou de caminho
+     */
+    void invalidar(No movido) {
+        long epoca = epocas.incrementAndGet();
+        if (movido instanceof Diretorio) {
+            ((Diretorio) movido).setEpoca(epoca);
+        } else {
+            ((Arquivo) movido).setEpoca(epoca);
+        }
+    }
+
+    /**
+     * Invalida todas as entradas, para quando as regras mudam. Deve ser
+     * chamado depois de a mudança ficar visível.
+     */
+    public void invalidar() {
+        epocaRegras = epocas.incrementAndGet();
+    }
+
+    public long getEpoca() {
+        return epocas.get();
+    }
+
+    public long getAcertos() {
+        return acertos.sum();
+    }
+
+    public long getFalhas() {
+        return falhas.sum();
+    }
+
+    private boolean valida(long epoca, No no, Diretorio dir) {
+        if (epoca < epocaRegras || (no instanceof Arquivo && ((Arquivo) no).getEpoca() > epoca)) {
+            return false;
+        }
+        for (Diretorio d = dir; d != null; d = d.getPai()) {
+            if (d.getEpoca() > epoca) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int posicao(int uid, int inode) {
+        int hash = inode * 0x9E3779B9 + uid;
+        return (hash ^ (hash >>> 16)) & (entradas.length - 1);
+    }
+
+    private static final class Entrada {
+        private final No no;
+        private final int uid;
+        private final int bits;
+        private final long epoca;
+
+        private Entrada(No no, int uid, int bits, long epoca) {
+            this.no = no;
+            this.uid = uid;
+            this.bits = bits;
+            this.epoca = epoca;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package filesys;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+
+import exception.CaminhoNaoEncontradoException;
+import exception.EspacoInsuficienteException;
+import exception.PermissaoException;
+
+// Canal sobre um arquivo de um FileSystemImpl (ver openChannel). Só guarda o
+// caminho, o usuário e a posição: cada read, write, size e truncate é uma
+// operação do sistema de arquivos, e as exceções dele viram as de NIO
+// (NoSuchFileException, AccessDeniedException). ByteBuffers com array são
+// lidos e escritos direto no array; os outros passam por um trecho de um
+// bloco, alocado no primeiro uso.
+// Com o journal ativo, write registra a escrita mas não espera o fsync, como
+// num FileChannel: force() e close() esperam até que tudo o que o canal
+// escreveu esteja no disco. Assim uma cópia longa espera o group commit uma
+// vez, no final, e não uma vez por trecho.
+public final class CanalArquivo implements SeekableByteChannel {
+    private final FileSystemImpl fileSystem;
+    private final String caminho;
+    private final String usuario;
+    private final boolean escrita;
+    private final boolean anexar;
+    private long posicao;
+    private boolean aberto = true;
+    private byte[] trecho;
+    // Posição do journal que cobre as escritas deste canal ainda não
+    // aguardadas; 0 se não há nenhuma.
+    private long registroPendente;
+
+    CanalArquivo(FileSystemImpl fileSystem, String caminho, String usuario, boolean escrita, boolean anexar) {
+        this.fileSystem = fileSystem;
+        this.caminho = caminho;
+        this.usuario = usuario;
+        this.escrita = escrita;
+        this.anexar = anexar;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer destino) throws IOException {
+        verificarAberto();
+        if (!destino.hasRemaining()) {
+            return 0;
+        }
+        int lidos;
+        try {
+            if (destino.hasArray()) {
+                lidos = fileSystem.read(caminho, usuario, posicao, destino.array(),
+                        destino.arrayOffset() + destino.position(), destino.remaining());
+                destino.position(destino.position() + lidos);
+            } else {
+                byte[] bytes = trecho();
+                lidos = fileSystem.read(caminho, usuario, posicao, bytes, 0, Math.min(bytes.length,
+                        destino.remaining()));
+                destino.put(bytes, 0, lidos);
+            }
+        } catch (CaminhoNaoEncontradoException | PermissaoException e) {
+            throw traduzir(e);
+        }
+        if (lidos == 0) {
+            return -1;
+        }
+        posicao += lidos;
+        return lidos;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer origem) throws IOException {
+        verificarAberto();
+        if (!escrita) {
+            throw new NonWritableChannelException();
+        }
+        int total = origem.remaining();
+        if (total == 0) {
+            return 0;
+        }
+        try {
+            if (origem.hasArray()) {
+                posicao = fileSystem.escrever(caminho, usuario, posicao, anexar, origem.array(),
+                        origem.arrayOffset() + origem.position(), total);
+                origem.position(origem.limit());
+            } else {
+                byte[] bytes = trecho();
+                while (origem.hasRemaining()) {
+                    int tamanho = Math.min(bytes.length, origem.remaining());
+                    origem.get(bytes, 0, tamanho);
+                    posicao = fileSystem.escrever(caminho, usuario, posicao, anexar, bytes, 0, tamanho);
+                }
+            }
+        } catch (CaminhoNaoEncontradoException | PermissaoException e) {
+            throw traduzir(e);
+        } catch (IllegalArgumentException | EspacoInsuficienteException e) {
+            // Arquivo.verificarLimite: a escrita passaria do tamanho máximo;
+            // ou o dispositivo está cheio.
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            registroPendente = fileSystem.posicaoJournal();
+        }
+        return total;
+    }
+
+    /**
+     * Espera até que as escritas feitas por este canal estejam no journal em
+     * disco. Sem journal, não faz nada.
+     */
+    public synchronized void force() throws IOException {
+        verificarAberto();
+        aguardarEscritas();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        verificarAberto();
+        return posicao;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long novaPosicao) throws IOException {
+        verificarAberto();
+        if (novaPosicao < 0) {
+            throw new IllegalArgumentException("Posição não pode ser negativa: " + novaPosicao);
+        }
+        posicao = novaPosicao;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        verificarAberto();
+        try {
+            return fileSystem.tamanho(caminho, usuario);
+        } catch (CaminhoNaoEncontradoException | PermissaoException e) {
+            throw traduzir(e);
+        }
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(long tamanho) throws IOException {
+        verificarAberto();
+        if (!escrita) {
+            throw new NonWritableChannelException();
+        }
+        try {
+            fileSystem.truncar(caminho, usuario, tamanho);
+        } catch (CaminhoNaoEncontradoException | PermissaoException e) {
+            throw traduzir(e);
+        } catch (EspacoInsuficienteException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        posicao = Math.min(posicao, tamanho);
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return aberto;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!aberto) {
+            return;
+        }
+        aberto = false;
+        trecho = null;
+        aguardarEscritas();
+    }
+
+    /**
+     * @return Stream de escrita sobre o canal; flush() chama force() e
+     *         close() fecha o canal
+     */
+    OutputStream paraOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                CanalArquivo.this.write(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void flush() throws IOException {
+                force();
+            }
+
+            @Override
+            public void close() throws IOException {
+                CanalArquivo.this.close();
+            }
+        };
+    }
+
+    private void aguardarEscritas() throws IOException {
+        if (registroPendente == 0) {
+            return;
+        }
+        try {
+            fileSystem.aguardarJournal(registroPendente);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        registroPendente = 0;
+    }
+
+    private void verificarAberto() throws ClosedChannelException {
+        if (!aberto) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private byte[] trecho() {
+        if (trecho == null) {
+            trecho = new byte[Arquivo.BLOCK_SIZE];
+        }
+        return trecho;
+    }
+
+    private IOException traduzir(Exception e) {
+        IOException traduzida = e instanceof PermissaoException
+                ? new AccessDeniedException(caminho, null, e.getMessage())
+                : new NoSuchFileException(caminho, null, e.getMessage());
+        traduzida.initCause(e);
+        return traduzida;
+    }
+}
@@ -0,0 +1,111 @@
+package filesys;
+
+// Uma chamada a IFileSystem, como é vista pelo proxy FileSystem e gravada num
+// trace: operação, usuário, caminhos, tamanhos e tempo. O conteúdo dos
+// buffers não é guardado, só o seu tamanho. Os campos que uma operação não
+// usa ficam null, false ou 0:
+// - argumento: destino de mv e cp, usuário alvo de chmod
+// - permissao: permissão de chmod
+// - flag: recursivo de rm, ls e cp, anexar de write
+// - offset: posição das operações posicionais
+// - tamanho: bytes escritos, ou pedidos na leitura
+// inicioNanos é um valor de System.nanoTime(): só a diferença entre chamadas
+// tem significado.
+public final class Chamada {
+    public enum Tipo {
+        CHMOD,
+        MKDIR,
+        RM,
+        TOUCH,
+        WRITE,
+        WRITE_POSICIONAL,
+        READ,
+        READ_POSICIONAL,
+        MV,
+        LS,
+        CP;
+
+        /**
+         * @return true se a operação não altera o sistema de arquivos
+         */
+        public boolean isLeitura() {
+            return this == READ || this == READ_POSICIONAL || this == LS;
+        }
+    }
+
+    private final Tipo tipo;
+    private final String usuario;
+    private final String caminho;
+    private final String argumento;
+    private final String permissao;
+    private final boolean flag;
+    private final long offset;
+    private final int tamanho;
+    private final long inicioNanos;
+    private final long duracaoNanos;
+    private final boolean sucesso;
+
+    public Chamada(Tipo tipo, String usuario, String caminho, String argumento, String permissao, boolean flag,
+            long offset, int tamanho, long inicioNanos, long duracaoNanos, boolean sucesso) {
+        this.tipo = tipo;
+        this.usuario = usuario;
+        this.caminho = caminho;
+        this.argumento = argumento;
+        this.permissao = permissao;
+        this.flag = flag;
+        this.offset = offset;
+        this.tamanho = tamanho;
+        this.inicioNanos = inicioNanos;
+        this.duracaoNanos = duracaoNanos;
+        this.sucesso = sucesso;
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    public String getUsuario() {
+        return usuario;
+    }
+
+    public String getCaminho() {
+        return caminho;
+    }
+
+    public String getArgumento() {
+        return argumento;
+    }
+
+    public String getPermissao() {
+        return permissao;
+    }
+
+    public boolean getFlag() {
+        return flag;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getTamanho() {
+        return tamanho;
+    }
+
+    public long getInicioNanos() {
+        return inicioNanos;
+    }
+
+    public long getDuracaoNanos() {
+        return duracaoNanos;
+    }
+
+    public boolean isSucesso() {
+        return sucesso;
+    }
+
+    @Override
+    public String toString() {
+        return tipo + " " + caminho + (argumento == null ? "" : " " + argumento) + " (" + usuario + ")";
+    }
+}
@@ -0,0 +1,126 @@
+package filesys;
+
+// Percorre os segmentos de um caminho por índice sobre a String original, sem
+// criar Strings intermediárias. Barras repetidas e barras finais são ignoradas
+// e os segmentos "." e ".." são identificados para que quem percorre o caminho
+// faça a normalização na mesma passada.
+final class CursorCaminho {
+    private final String caminho;
+    private final int limite;
+    private int inicio;
+    private int fim;
+
+    CursorCaminho(String caminho, int inicio, int limite) {
+        this.caminho = caminho;
+        this.limite = limite;
+        this.inicio = inicio;
+        this.fim = inicio;
+    }
+
+    /**
+     * Avança para o próximo segmento não vazio.
+     *
+     * @return false quando não há mais segmentos
+     */
+    boolean proximo() {
+        int i = fim;
+        while (i < limite && caminho.charAt(i) == '/') {
+            i++;
+        }
+        if (i == limite) {
+            inicio = limite;
+            fim = limite;
+            return false;
+        }
+        int j = i;
+        while (j < limite && caminho.charAt(j) != '/') {
+            j++;
+        }
+        inicio = i;
+        fim = j;
+        return true;
+    }
+
+    int inicio() {
+        return inicio;
+    }
+
+    int fim() {
+        return fim;
+    }
+
+    /** Segmento atual é "." */
+    boolean ehAtual() {
+        return ehAtual(caminho, inicio, fim);
+    }
+
+    /** Segmento atual é ".." */
+    boolean ehPai() {
+        return ehPai(caminho, inicio, fim);
+    }
+
+    /**
+     * Cria a String do segmento atual. Só deve ser usado quando o nome precisa
+     * ser guardado (criação de nós) ou em mensagens de erro.
+     */
+    String segmento() {
+        return caminho.substring(inicio, fim);
+    }
+
+    static boolean ehAtual(String caminho, int inicio, int fim) {
+        return fim - inicio == 1 && caminho.charAt(inicio) == '.';
+    }
+
+    static boolean ehPai(String caminho, int inicio, int fim) {
+        return fim - inicio == 2 && caminho.charAt(inicio) == '.' && caminho.charAt(inicio + 1) == '.';
+    }
+
+    /**
+     * @return Índice logo após o último segmento, ignorando barras finais
+     */
+    static int fimUltimoSegmento(String caminho) {
+        int fim = caminho.length();
+        while (fim > 0 && caminho.charAt(fim - 1) == '/') {
+            fim--;
+        }
+        return fim;
+    }
+
+    /**
+     * @return Índice do início do segmento que termina em fim
+     */
+    static int inicioSegmento(String caminho, int fim) {
+        int inicio = fim;
+        while (inicio > 0 && caminho.charAt(inicio - 1) != '/') {
+            inicio--;
+        }
+        return inicio;
+    }
+
+    /**
+     * Verifica se o trecho já está na forma canônica "/a/b": absoluto, sem
+     * barras repetidas ou finais e sem segmentos "." ou "..". Somente caminhos
+     * canônicos são usados como chave no cache de resolução.
+     */
+    static boolean ehCanonico(String caminho, int inicio, int fim) {
+        if (fim <= inicio || caminho.charAt(inicio) != '/') {
+            return false;
+        }
+        if (fim - inicio == 1) {
+            return true;
+        }
+        if (caminho.charAt(fim - 1) == '/') {
+            return false;
+        }
+        int inicioSegmento = inicio + 1;
+        for (int i = inicio + 1; i <= fim; i++) {
+            if (i == fim || caminho.charAt(i) == '/') {
+                if (i == inicioSegmento || ehAtual(caminho, inicioSegmento, i) || ehPai(caminho, inicioSegmento, i)) {
+                    return false;
+                }
+                inicioSegmento = i + 1;
+            }
+        }
+        return true;
+    }
+}
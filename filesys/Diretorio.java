@@ -2,48 +2,274 @@ package filesys;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
-public class Diretorio {
-    private Metadata metadata;
-    private List<Diretorio> subDiretorios = new ArrayList<>();
-    private List<Arquivo> arquivos = new ArrayList<>();
+public class Diretorio implements No {
+    private static final AtomicLong PROXIMO_ID = new AtomicLong();
+
+    // Identifica o diretório na ordem de travamento (ver FileSystemImpl).
+    private final long id = PROXIMO_ID.incrementAndGet();
+    // Protege o índice de filhos e os metadados dos filhos; o conteúdo de cada
+    // arquivo tem a trava do próprio Arquivo.
+    private final StampedLock trava = new StampedLock();
+    // Nome, dono e permissões ficam na tabela de inodes.
+    private final TabelaInodes tabela;
+    private final int inode;
+    // Índice único nome -> nó para arquivos e subdiretórios: busca, inserção e
+    // remoção em O(1), listagem na ordem de inserção.
+    private final IndiceNomes<No> filhos = new IndiceNomes<>();
+    // Diretório que contém este; null para a raiz e para diretórios removidos.
+    // Volátil porque é lido durante a navegação sem a trava do pai.
+    private volatile Diretorio pai;
+    // Época da última vez que o diretório foi movido (ver CachePermissoes).
+    private volatile long epoca;
 
     public Diretorio(Metadata metadata, List<Diretorio> subDiretorios, List<Arquivo> arquivos) {
-        this.metadata = metadata;
-        this.subDiretorios = subDiretorios;
-        this.arquivos = arquivos;
+        this.tabela = metadata.getTabela();
+        this.inode = metadata.getInode();
+        subDiretorios.forEach(this::addSubDiretorio);
+        arquivos.forEach(this::addFile);
     }
 
     public Diretorio(Metadata metadata, List<Diretorio> subDiretorios) {
-        this.metadata = metadata;
-        this.subDiretorios = subDiretorios;
+        this.tabela = metadata.getTabela();
+        this.inode = metadata.getInode();
+        subDiretorios.forEach(this::addSubDiretorio);
     }
 
     public Diretorio(String owner, String name) {
-        this.metadata = new Metadata(name, owner);
-        this.metadata.getPermissions().put(owner, "rwx");
-        this.subDiretorios = new ArrayList<>();
-        this.arquivos = new ArrayList<>();
+        this(TabelaInodes.paraUmNo(), owner, name);
+    }
+
+    public Diretorio(TabelaInodes tabela, String owner, String name) {
+        this.tabela = tabela;
+        this.inode = tabela.alocar(name, owner);
     }
 
+    @Override
     public Metadata getMetadata() {
-        return metadata;
+        return new Metadata(tabela, inode);
+    }
+
+    /**
+     * Devolve o inode à tabela. Só é chamado depois de o diretório sair da
+     * árvore, com a sua trava de escrita.
+     */
+    void liberarInode() {
+        tabela.liberar(inode);
+    }
+
+    int getInode() {
+        return inode;
     }
 
     public List<Diretorio> getSubDiretorios() {
+        List<Diretorio> subDiretorios = new ArrayList<>();
+        for (No filho : filhos) {
+            if (filho instanceof Diretorio) {
+                subDiretorios.add((Diretorio) filho);
+            }
+        }
         return subDiretorios;
     }
 
     public List<Arquivo> getArquivos() {
+        List<Arquivo> arquivos = new ArrayList<>();
+        for (No filho : filhos) {
+            if (filho instanceof Arquivo) {
+                arquivos.add((Arquivo) filho);
+            }
+        }
         return arquivos;
     }
 
+    public Diretorio getPai() {
+        return pai;
+    }
+
+    StampedLock getTrava() {
+        return trava;
+    }
+
+    long getEpoca() {
+        return epoca;
+    }
+
+    void setEpoca(long epoca) {
+        this.epoca = epoca;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return Quantidade de ancestrais até a raiz; 0 para a raiz
+     */
+    int getProfundidade() {
+        int profundidade = 0;
+        for (Diretorio d = pai; d != null; d = d.pai) {
+            profundidade++;
+        }
+        return profundidade;
+    }
+
+    /**
+     * Verifica se este diretório é o ancestral informado ou está dentro dele.
+     *
+     * @param ancestral Diretório candidato a ancestral
+     * @return true se este diretório pertence à subárvore de ancestral
+     */
+    public boolean estaDentroDe(Diretorio ancestral) {
+        for (Diretorio d = this; d != null; d = d.pai) {
+            if (d == ancestral) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterable<No> getFilhos() {
+        return filhos;
+    }
+
+    public No getFilho(String nome) {
+        return filhos.get(nome);
+    }
+
+    /**
+     * Busca o filho cujo nome é o trecho texto[inicio, fim), sem criar a
+     * String do nome.
+     */
+    public No getFilho(String texto, int inicio, int fim) {
+        return filhos.get(texto, inicio, fim);
+    }
+
+    public Arquivo getArquivo(String nome) {
+        No filho = filhos.get(nome);
+        return filho instanceof Arquivo ? (Arquivo) filho : null;
+    }
+
+    public Diretorio getSubDiretorio(String nome) {
+        No filho = filhos.get(nome);
+        return filho instanceof Diretorio ? (Diretorio) filho : null;
+    }
+
+    public Diretorio getSubDiretorio(String texto, int inicio, int fim) {
+        No filho = filhos.get(texto, inicio, fim);
+        return filho instanceof Diretorio ? (Diretorio) filho : null;
+    }
+
+    /**
+     * Busca um subdiretório sem travar: a busca é feita dentro de uma leitura
+     * otimista e só é repetida com a trava de leitura se um escritor alterou o
+     * diretório no meio dela. A busca no índice sempre termina, mesmo lendo
+     * uma tabela em alteração.
+     */
+    public Diretorio consultarSubDiretorio(String texto, int inicio, int fim) {
+        No filho = consultarFilho(texto, inicio, fim);
+        return filho instanceof Diretorio ? (Diretorio) filho : null;
+    }
+
+    /**
+     * Busca um filho com o mesmo esquema otimista de consultarSubDiretorio.
+     */
+    public No consultarFilho(String texto, int inicio, int fim) {
+        long carimbo = trava.tryOptimisticRead();
+        if (carimbo != 0) {
+            No filho = filhos.get(texto, inicio, fim);
+            if (trava.validate(carimbo)) {
+                return filho;
+            }
+        }
+        carimbo = trava.readLock();
+        try {
+            return filhos.get(texto, inicio, fim);
+        } finally {
+            trava.unlockRead(carimbo);
+        }
+    }
+
+    /**
+     * Confere sem bloquear se o nome texto[inicio, fim) aponta para o nó.
+     *
+     * @return false se não aponta ou se um escritor está alterando o diretório
+     */
+    boolean tentarConfirmarFilho(String texto, int inicio, int fim, No no) {
+        long carimbo = trava.tryOptimisticRead();
+        return carimbo != 0 && filhos.get(texto, inicio, fim) == no && trava.validate(carimbo);
+    }
+
+    /**
+     * Copia os filhos em ordem de listagem, com o mesmo esquema otimista de
+     * consultarSubDiretorio. A lista encadeada do índice só aponta para
+     * entradas mais novas, então percorrê-la durante uma alteração também
+     * termina.
+     *
+     * @return Uma cópia consistente dos filhos
+     */
+    public List<No> listarFilhos() {
+        return listarFilhos(null);
+    }
+
+    /**
+     * Copia os filhos e, na mesma leitura, os seus nomes. Sem trava, o nome
+     * precisa ser lido junto: o inode de um filho removido logo depois pode ser
+     * reaproveitado por outro nó.
+     *
+     * @param nomes Recebe o nome de cada filho, na mesma ordem; pode ser null
+     * @return Uma cópia consistente dos filhos
+     */
+    public List<No> listarFilhos(List<String> nomes) {
+        long carimbo = trava.tryOptimisticRead();
+        if (carimbo != 0) {
+            List<No> copia = copiarFilhos(nomes);
+            if (trava.validate(carimbo)) {
+                return copia;
+            }
+            if (nomes != null) {
+                nomes.clear();
+            }
+        }
+        carimbo = trava.readLock();
+        try {
+            return copiarFilhos(nomes);
+        } finally {
+            trava.unlockRead(carimbo);
+        }
+    }
+
+    private List<No> copiarFilhos(List<String> nomes) {
+        List<No> copia = new ArrayList<>(filhos.size());
+        for (No filho : filhos) {
+            copia.add(filho);
+            if (nomes != null) {
+                nomes.add(filho.getMetadata().getName());
+            }
+        }
+        return copia;
+    }
+
+    public boolean isVazio() {
+        return filhos.isEmpty();
+    }
+
     public void addSubDiretorio(Diretorio dir) {
-        subDiretorios.add(dir);
+        filhos.put(dir.getMetadata().getName(), dir);
+        dir.pai = this;
     }
 
     public void addFile(Arquivo file) {
-        arquivos.add(file);
+        filhos.put(file.getMetadata().getName(), file);
+    }
+
+    public No removeFilho(String nome) {
+        No removido = filhos.remove(nome);
+        if (removido instanceof Diretorio) {
+            ((Diretorio) removido).pai = null;
+        }
+        return removido;
     }
 
 }
@@ -0,0 +1,476 @@
+package filesys;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import exception.EspacoInsuficienteException;
+
+// Dispositivo de blocos: um conjunto pré-alocado de blocos de Arquivo.BLOCK_SIZE
+// bytes cujo conteúdo fica num ArmazenamentoBlocos (no heap ou fora dele).
+// Os blocos livres ficam numa pilha (alocação e liberação em O(1)) e um mapa de
+// bits registra quais estão em uso, o que permite detectar liberações duplas.
+// Quando não há blocos livres o dispositivo cresce BLOCOS_POR_CRESCIMENTO
+// blocos por vez; blocos liberados são reaproveitados em vez de devolvidos ao
+// coletor de lixo.
+// Cada bloco tem um contador de referências para que arquivos copiados possam
+// compartilhá-lo (cópia na escrita): o bloco só volta à lista de livres quando
+// a última referência é liberada, e quem vai alterar um bloco compartilhado
+// recebe antes uma cópia exclusiva (ver paraEscrita).
+// No modo de deduplicação, blocos gravados inteiros são indexados por um hash
+// do conteúdo e blocos idênticos são guardados uma única vez (ver
+// gravarDeduplicado). Um bloco sai do índice quando é liberado ou quando vai
+// ser alterado no lugar.
+// Se o armazenamento tiver capacidade máxima, cada alteração reserva antes de
+// começar os blocos que pode alocar (reservarEspaco) e falha sem mudar nada
+// quando eles não cabem, em vez de parar no meio.
+public final class DispositivoBlocos {
+    public static final int TAMANHO_BLOCO = Arquivo.BLOCK_SIZE;
+    static final int BLOCOS_POR_CRESCIMENTO = 256;
+    public static final int BLOCOS_INICIAIS_PADRAO = BLOCOS_POR_CRESCIMENTO;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final ArmazenamentoBlocos armazenamento;
+    private final boolean deduplicacao;
+    // hash do conteúdo -> bloco; hashes[bloco] e indexados permitem retirar o
+    // bloco do índice sem recalcular o hash.
+    private final Map<Long, Integer> indiceConteudo = new HashMap<>();
+    private long[] hashes = new long[0];
+    private long[] indexados = new long[0];
+    private final byte[] comparacao = new byte[TAMANHO_BLOCO];
+    private long referenciasTotais;
+    private long[] emUso = new long[0];
+    private int[] referencias = new int[0];
+    private int[] livres = new int[0];
+    private int quantidadeLivres;
+    private int totalBlocos;
+    private final int capacidadeMaxima;
+    private final boolean limitado;
+    // Blocos reservados e ainda não alocados, no total e, em reservaDaThread,
+    // os da alteração em andamento em cada thread.
+    private long reservados;
+    private final ThreadLocal<long[]> reservaDaThread = ThreadLocal.withInitial(() -> new long[1]);
+
+    public DispositivoBlocos() {
+        this(BLOCOS_INICIAIS_PADRAO);
+    }
+
+    /**
+     * @param blocosIniciais Quantidade de blocos pré-alocados
+     */
+    public DispositivoBlocos(int blocosIniciais) {
+        this(new ArmazenamentoHeap(), blocosIniciais);
+    }
+
+    /**
+     * @param armazenamento  Onde o conteúdo dos blocos é guardado
+     * @param blocosIniciais Quantidade de blocos pré-alocados
+     */
+    public DispositivoBlocos(ArmazenamentoBlocos armazenamento, int blocosIniciais) {
+        this(armazenamento, blocosIniciais, false);
+    }
+
+    /**
+     * @param armazenamento  Onde o conteúdo dos blocos é guardado
+     * @param blocosIniciais Quantidade de blocos pré-alocados
+     * @param deduplicacao   Se true, blocos inteiros com conteúdo idêntico são
+     *                       guardados uma única vez
+     */
+    public DispositivoBlocos(ArmazenamentoBlocos armazenamento, int blocosIniciais, boolean deduplicacao) {
+        this.armazenamento = armazenamento;
+        this.deduplicacao = deduplicacao;
+        this.capacidadeMaxima = armazenamento.getCapacidadeMaxima();
+        this.limitado = capacidadeMaxima != Integer.MAX_VALUE;
+        if (blocosIniciais < 0) {
+            throw new IllegalArgumentException("Quantidade de blocos não pode ser negativa");
+        }
+        if (blocosIniciais > capacidadeMaxima) {
+            throw new IllegalArgumentException("Mais blocos iniciais que a capacidade do armazenamento: "
+                    + blocosIniciais + " > " + capacidadeMaxima);
+        }
+        int crescimentos = Math.max(1, (blocosIniciais + BLOCOS_POR_CRESCIMENTO - 1) / BLOCOS_POR_CRESCIMENTO);
+        for (int i = 0; i < crescimentos; i++) {
+            crescer();
+        }
+    }
+
+    /**
+     * Recria um dispositivo cujos primeiros blocos já estão em uso, como na
+     * restauração de um snapshot. Os demais blocos começam livres.
+     *
+     * @param armazenamento Armazenamento que já contém os blocos em uso
+     * @param referencias   Referências de cada bloco em uso: o bloco i tem
+     *                      referencias[i], que deve ser positivo
+     * @param deduplicacao  Se true, blocos gravados daqui em diante são
+     *                      deduplicados; os blocos recebidos não são indexados
+     */
+    DispositivoBlocos(ArmazenamentoBlocos armazenamento, int[] referencias, boolean deduplicacao) {
+        this.armazenamento = armazenamento;
+        this.deduplicacao = deduplicacao;
+        this.capacidadeMaxima = armazenamento.getCapacidadeMaxima();
+        this.limitado = capacidadeMaxima != Integer.MAX_VALUE;
+        if (referencias.length > capacidadeMaxima) {
+            throw new IllegalArgumentException("Mais blocos em uso que a capacidade do armazenamento: "
+                    + referencias.length + " > " + capacidadeMaxima);
+        }
+        int crescimentos = Math.max(1, (referencias.length + BLOCOS_POR_CRESCIMENTO - 1) / BLOCOS_POR_CRESCIMENTO);
+        for (int i = 0; i < crescimentos; i++) {
+            crescer();
+        }
+        quantidadeLivres = 0;
+        for (int bloco = totalBlocos - 1; bloco >= referencias.length; bloco--) {
+            livres[quantidadeLivres++] = bloco;
+        }
+        for (int bloco = 0; bloco < referencias.length; bloco++) {
+            if (referencias[bloco] <= 0) {
+                throw new IllegalArgumentException("Bloco em uso sem referências: " + bloco);
+            }
+            emUso[bloco >>> 6] |= 1L << bloco;
+            this.referencias[bloco] = referencias[bloco];
+            referenciasTotais += referencias[bloco];
+        }
+    }
+
+    /**
+     * Reserva um bloco zerado, com uma referência.
+     *
+     * @return Índice do bloco reservado
+     */
+    public synchronized int alocar() {
+        int bloco = reservar();
+        armazenamento.zerar(bloco);
+        return bloco;
+    }
+
+    /**
+     * Reserva blocos para uma alteração antes que ela mude qualquer coisa. As
+     * alocações seguintes da mesma thread consomem a reserva, e
+     * devolverReserva libera o que sobrar; as demais threads só alocam o que
+     * não estiver reservado. Sem capacidade máxima no armazenamento, não faz
+     * nada.
+     *
+     * @param blocos    Blocos que a alteração pode alocar, no máximo
+     * @param liberados Blocos que a alteração devolve antes de alocar e que
+     *                  podem ser contados para ela
+     * @throws EspacoInsuficienteException Se os blocos não couberem na
+     *                                     capacidade do armazenamento
+     */
+    public synchronized void reservarEspaco(long blocos, int liberados) {
+        if (!limitado || blocos == 0) {
+            return;
+        }
+        if (blocos > disponiveis() + liberados) {
+            throw new EspacoInsuficienteException("Sem espaço no dispositivo: " + blocos
+                    + " blocos necessários, " + Math.max(0, disponiveis() + liberados) + " disponíveis");
+        }
+        reservados += blocos;
+        reservaDaThread.get()[0] += blocos;
+    }
+
+    /**
+     * Libera a parte ainda não alocada da reserva feita por esta thread.
+     */
+    public void devolverReserva() {
+        if (!limitado) {
+            return;
+        }
+        long[] daThread = reservaDaThread.get();
+        if (daThread[0] == 0) {
+            return;
+        }
+        synchronized (this) {
+            reservados -= daThread[0];
+        }
+        daThread[0] = 0;
+    }
+
+    /**
+     * Acrescenta uma referência a um bloco em uso, que passa a ser compartilhado.
+     *
+     * @param bloco Índice do bloco
+     * @throws IllegalStateException Se o bloco não estiver em uso
+     */
+    public synchronized void reter(int bloco) {
+        verificarEmUso(bloco);
+        referencias[bloco]++;
+        referenciasTotais++;
+    }
+
+    /**
+     * Remove uma referência de um bloco. Quando não restam referências o bloco
+     * volta ao conjunto de blocos livres.
+     *
+     * @param bloco Índice do bloco
+     * @throws IllegalStateException Se o bloco não estiver em uso
+     */
+    public synchronized void liberar(int bloco) {
+        verificarEmUso(bloco);
+        referenciasTotais--;
+        if (--referencias[bloco] > 0) {
+            return;
+        }
+        desindexar(bloco);
+        emUso[bloco >>> 6] &= ~(1L << bloco);
+        livres[quantidadeLivres++] = bloco;
+    }
+
+    /**
+     * Prepara um bloco para ser alterado. Se só houver uma referência o próprio
+     * bloco é devolvido; se ele for compartilhado, o chamador recebe uma cópia
+     * exclusiva e deixa de referenciar o original.
+     *
+     * @param bloco Índice do bloco que será alterado
+     * @return Índice do bloco onde a alteração deve ser feita
+     */
+    public synchronized int paraEscrita(int bloco) {
+        verificarEmUso(bloco);
+        if (referencias[bloco] == 1) {
+            desindexar(bloco);
+            return bloco;
+        }
+        int copia = reservar();
+        armazenamento.copiar(bloco, copia);
+        referencias[bloco]--;
+        referenciasTotais--;
+        return copia;
+    }
+
+    /**
+     * Grava um bloco inteiro. Com deduplicação, se já existir um bloco com o
+     * mesmo conteúdo ele ganha mais uma referência e nada é copiado; senão um
+     * bloco novo é gravado e indexado. Sem deduplicação sempre grava um bloco
+     * novo.
+     *
+     * @param origem Array com os TAMANHO_BLOCO bytes do bloco
+     * @param offset Posição inicial na origem
+     * @return Índice do bloco com o conteúdo, com uma referência para o chamador
+     */
+    public int gravarDeduplicado(byte[] origem, int offset) {
+        if (!deduplicacao) {
+            int bloco = alocar();
+            armazenamento.escrever(bloco, 0, origem, offset, TAMANHO_BLOCO);
+            return bloco;
+        }
+
+        long hash = hash(origem, offset);
+        synchronized (this) {
+            Integer existente = indiceConteudo.get(hash);
+            if (existente != null) {
+                armazenamento.ler(existente, 0, comparacao, 0, TAMANHO_BLOCO);
+                if (Arrays.equals(comparacao, 0, TAMANHO_BLOCO, origem, offset, offset + TAMANHO_BLOCO)) {
+                    referencias[existente]++;
+                    referenciasTotais++;
+                    return existente;
+                }
+            }
+
+            int bloco = reservar();
+            armazenamento.escrever(bloco, 0, origem, offset, TAMANHO_BLOCO);
+            if (existente == null) {
+                indiceConteudo.put(hash, bloco);
+                hashes[bloco] = hash;
+                indexados[bloco >>> 6] |= 1L << bloco;
+            }
+            return bloco;
+        }
+    }
+
+    /**
+     * @return Se o armazenamento tem capacidade máxima, e as alterações
+     *         precisam reservar os blocos que vão alocar
+     */
+    public boolean isLimitado() {
+        return limitado;
+    }
+
+    public boolean isDeduplicacao() {
+        return deduplicacao;
+    }
+
+    /**
+     * @return Referências a blocos (tamanho lógico em blocos) dividido pelos
+     *         blocos efetivamente ocupados; 1.0 quando nada é compartilhado
+     */
+    public synchronized double getRazaoDeduplicacao() {
+        int ocupados = totalBlocos - quantidadeLivres;
+        return ocupados == 0 ? 1.0 : (double) referenciasTotais / ocupados;
+    }
+
+    /**
+     * @return Bytes que seriam ocupados se nenhum bloco fosse compartilhado,
+     *         menos os bytes efetivamente ocupados
+     */
+    public synchronized long getBytesEconomizados() {
+        return (referenciasTotais - (totalBlocos - quantidadeLivres)) * TAMANHO_BLOCO;
+    }
+
+    public synchronized int getReferencias(int bloco) {
+        return bloco >= 0 && bloco < totalBlocos ? referencias[bloco] : 0;
+    }
+
+    /**
+     * Copia bytes de um bloco para o destino.
+     *
+     * @param bloco   Índice do bloco
+     * @param posicao Posição inicial dentro do bloco
+     * @param destino Array de destino
+     * @param offset  Posição inicial no destino
+     * @param tamanho Quantidade de bytes
+     */
+    public void ler(int bloco, int posicao, byte[] destino, int offset, int tamanho) {
+        verificarIntervalo(posicao, tamanho);
+        armazenamento.ler(bloco, posicao, destino, offset, tamanho);
+    }
+
+    /**
+     * Copia bytes da origem para dentro de um bloco.
+     *
+     * @param bloco   Índice do bloco
+     * @param posicao Posição inicial dentro do bloco
+     * @param origem  Array de origem
+     * @param offset  Posição inicial na origem
+     * @param tamanho Quantidade de bytes
+     */
+    public void escrever(int bloco, int posicao, byte[] origem, int offset, int tamanho) {
+        verificarIntervalo(posicao, tamanho);
+        armazenamento.escrever(bloco, posicao, origem, offset, tamanho);
+    }
+
+    /**
+     * Como ler(int, int, byte[], int, int), para um ByteBuffer com array ou
+     * direto. A posição do destino não muda.
+     *
+     * @param indice Posição inicial no destino
+     */
+    public void ler(int bloco, int posicao, ByteBuffer destino, int indice, int tamanho) {
+        verificarIntervalo(posicao, tamanho);
+        armazenamento.ler(bloco, posicao, destino, indice, tamanho);
+    }
+
+    /**
+     * Como escrever(int, int, byte[], int, int), para um ByteBuffer com array
+     * ou direto. A posição da origem não muda.
+     *
+     * @param indice Posição inicial na origem
+     */
+    public void escrever(int bloco, int posicao, ByteBuffer origem, int indice, int tamanho) {
+        verificarIntervalo(posicao, tamanho);
+        armazenamento.escrever(bloco, posicao, origem, indice, tamanho);
+    }
+
+    /**
+     * Copia o conteúdo inteiro de um bloco para outro.
+     */
+    public void copiar(int origem, int destino) {
+        armazenamento.copiar(origem, destino);
+    }
+
+    public ArmazenamentoBlocos getArmazenamento() {
+        return armazenamento;
+    }
+
+    public synchronized int getBlocosTotais() {
+        return totalBlocos;
+    }
+
+    public synchronized int getBlocosLivres() {
+        return quantidadeLivres;
+    }
+
+    public synchronized int getBlocosEmUso() {
+        return totalBlocos - quantidadeLivres;
+    }
+
+    private int reservar() {
+        if (limitado) {
+            long[] daThread = reservaDaThread.get();
+            if (daThread[0] > 0) {
+                daThread[0]--;
+                reservados--;
+            } else if (disponiveis() < 1) {
+                throw new EspacoInsuficienteException("Sem espaço no dispositivo: capacidade de "
+                        + capacidadeMaxima + " blocos");
+            }
+        }
+        if (quantidadeLivres == 0) {
+            crescer();
+        }
+        int bloco = livres[--quantidadeLivres];
+        emUso[bloco >>> 6] |= 1L << bloco;
+        referencias[bloco] = 1;
+        referenciasTotais++;
+        return bloco;
+    }
+
+    // Blocos livres mais o que falta para a capacidade máxima, menos os
+    // reservados; negativo enquanto uma reserva conta com blocos que ainda
+    // vão ser liberados.
+    private long disponiveis() {
+        return quantidadeLivres + (long) capacidadeMaxima - totalBlocos - reservados;
+    }
+
+    private void desindexar(int bloco) {
+        if (!deduplicacao || (indexados[bloco >>> 6] & (1L << bloco)) == 0) {
+            return;
+        }
+        indexados[bloco >>> 6] &= ~(1L << bloco);
+        indiceConteudo.remove(hashes[bloco], bloco);
+    }
+
+    /**
+     * Hash de 64 bits do conteúdo de um bloco, lido de 8 em 8 bytes.
+     */
+    private static long hash(byte[] origem, int offset) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < TAMANHO_BLOCO; i += Long.BYTES) {
+            long k = (long) LONGS.get(origem, offset + i) * 0xC2B2AE3D27D4EB4FL;
+            k = Long.rotateLeft(k, 31) * 0x9E3779B97F4A7C15L;
+            h = Long.rotateLeft(h ^ k, 27) * 5 + 0x52DCE729;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void crescer() {
+        if (totalBlocos == capacidadeMaxima) {
+            throw new EspacoInsuficienteException("Sem espaço no dispositivo: capacidade de "
+                    + capacidadeMaxima + " blocos");
+        }
+        int primeiro = totalBlocos;
+        int novoTotal = (int) Math.min((long) totalBlocos + BLOCOS_POR_CRESCIMENTO, capacidadeMaxima);
+
+        armazenamento.garantirCapacidade(novoTotal);
+        emUso = Arrays.copyOf(emUso, (novoTotal + 63) >>> 6);
+        livres = Arrays.copyOf(livres, novoTotal);
+        referencias = Arrays.copyOf(referencias, novoTotal);
+        if (deduplicacao) {
+            hashes = Arrays.copyOf(hashes, novoTotal);
+            indexados = Arrays.copyOf(indexados, (novoTotal + 63) >>> 6);
+        }
+
+        // Empilha em ordem decrescente para que os blocos de índice menor sejam
+        // entregues primeiro.
+        for (int bloco = novoTotal - 1; bloco >= primeiro; bloco--) {
+            livres[quantidadeLivres++] = bloco;
+        }
+        totalBlocos = novoTotal;
+    }
+
+    private void verificarEmUso(int bloco) {
+        if (bloco < 0 || bloco >= totalBlocos || (emUso[bloco >>> 6] & (1L << bloco)) == 0) {
+            throw new IllegalStateException("Bloco não está em uso: " + bloco);
+        }
+    }
+
+    private static void verificarIntervalo(int posicao, int tamanho) {
+        if (posicao < 0 || tamanho < 0 || posicao + tamanho > TAMANHO_BLOCO) {
+            throw new IndexOutOfBoundsException("Intervalo fora do bloco: " + posicao + "+" + tamanho);
+        }
+    }
+}
@@ -4,64 +4,276 @@ import exception.CaminhoJaExistenteException;
 import exception.CaminhoNaoEncontradoException;
 import exception.PermissaoException;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 // Essa classe deve servir apenas como proxy para o FileSystemImpl
+// Com um ObservadorChamadas (setObservador), cada chamada também é entregue a
+// ele com o seu tempo, por exemplo para gravar um trace (carga.Gravador), e
+// com ativarMetricas() cada chamada entra nas métricas (MetricasFileSystem).
 final public class FileSystem implements IFileSystem {
 
+    private static final long SEM_MEDICAO = Long.MIN_VALUE;
+
     private final IFileSystem fileSystemImpl;
+    private volatile ObservadorChamadas observador;
+    private volatile MetricasFileSystem metricas;
 
     public FileSystem() {
         fileSystemImpl = new FileSystemImpl();
     }
 
+    public FileSystem(ArmazenamentoBlocos armazenamento) {
+        fileSystemImpl = new FileSystemImpl(armazenamento);
+    }
+
+    public FileSystem(ArmazenamentoBlocos armazenamento, boolean deduplicar) {
+        fileSystemImpl = new FileSystemImpl(armazenamento, deduplicar);
+    }
+
+    /**
+     * @param usuarios Arquivo de usuários no formato de users/users
+     */
+    public FileSystem(Path usuarios) throws IOException {
+        FileSystemImpl impl = new FileSystemImpl();
+        impl.carregarUsuarios(usuarios);
+        fileSystemImpl = impl;
+    }
+
+    public FileSystem(Path journal, long intervaloMillis) throws IOException {
+        FileSystemImpl impl = new FileSystemImpl();
+        impl.ativarJournal(journal, intervaloMillis);
+        fileSystemImpl = impl;
+    }
+
+    /**
+     * Passa a entregar cada chamada feita através deste proxy ao observador,
+     * com o seu tempo e resultado.
+     *
+     * @param observador Observador das chamadas ou null para não observar
+     */
+    public void setObservador(ObservadorChamadas observador) {
+        this.observador = observador;
+    }
+
+    /**
+     * Passa a registrar cada chamada feita através deste proxy nas métricas.
+     * Chamar de novo devolve as mesmas métricas.
+     *
+     * @return As métricas deste proxy
+     */
+    public synchronized MetricasFileSystem ativarMetricas() {
+        if (metricas == null) {
+            metricas = new MetricasFileSystem();
+        }
+        return metricas;
+    }
+
+    /**
+     * @return As métricas ativadas por ativarMetricas() ou null
+     */
+    public MetricasFileSystem getMetricas() {
+        return metricas;
+    }
+
     @Override
     public void chmod(String caminho, String usuario, String usuarioAlvo, String permissao)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.chmod(caminho, usuario, usuarioAlvo, permissao);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.chmod(caminho, usuario, usuarioAlvo, permissao);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.CHMOD, usuario, caminho, usuarioAlvo, permissao, false, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void mkdir(String caminho, String usuario) throws CaminhoJaExistenteException, PermissaoException {
-        fileSystemImpl.mkdir(caminho, usuario);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.mkdir(caminho, usuario);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.MKDIR, usuario, caminho, null, null, false, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void rm(String caminho, String usuario, boolean recursivo)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.rm(caminho, usuario, recursivo);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.rm(caminho, usuario, recursivo);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.RM, usuario, caminho, null, null, recursivo, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void touch(String caminho, String usuario) throws CaminhoJaExistenteException, PermissaoException {
-        fileSystemImpl.touch(caminho, usuario);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.touch(caminho, usuario);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.TOUCH, usuario, caminho, null, null, false, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void write(String caminho, String usuario, boolean anexar, byte[] buffer)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.write(caminho, usuario, anexar, buffer);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.write(caminho, usuario, anexar, buffer);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.WRITE, usuario, caminho, null, null, anexar, 0, tamanho(buffer), tamanho(buffer),
+                    inicio, falha);
+        }
+    }
+
+    @Override
+    public void write(String caminho, String usuario, long offset, byte[] buffer)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.write(caminho, usuario, offset, buffer);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.WRITE_POSICIONAL, usuario, caminho, null, null, false, offset, tamanho(buffer),
+                    tamanho(buffer), inicio, falha);
+        }
     }
 
+    // Este read não informa quantos bytes leu; para que as métricas contem só
+    // os bytes do arquivo, e não o tamanho do buffer, ele é feito pelo read
+    // posicional a partir do início, que é o que FileSystemImpl.read faz.
     @Override
     public void read(String caminho, String usuario, byte[] buffer)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.read(caminho, usuario, buffer);
+        long inicio = inicio();
+        int lidos = 0;
+        Throwable falha = null;
+        try {
+            lidos = fileSystemImpl.read(caminho, usuario, 0, buffer, 0, tamanho(buffer));
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.READ, usuario, caminho, null, null, false, 0, tamanho(buffer), lidos, inicio,
+                    falha);
+        }
+    }
+
+    @Override
+    public int read(String caminho, String usuario, long offset, byte[] buffer, int bufOff, int len)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        long inicio = inicio();
+        int lidos = 0;
+        Throwable falha = null;
+        try {
+            lidos = fileSystemImpl.read(caminho, usuario, offset, buffer, bufOff, len);
+            return lidos;
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.READ_POSICIONAL, usuario, caminho, null, null, false, offset, len, lidos, inicio,
+                    falha);
+        }
     }
 
     @Override
     public void mv(String caminhoAntigo, String caminhoNovo, String usuario)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.mv(caminhoAntigo, caminhoNovo, usuario);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.mv(caminhoAntigo, caminhoNovo, usuario);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.MV, usuario, caminhoAntigo, caminhoNovo, null, false, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void ls(String caminho, String usuario, boolean recursivo)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.ls(caminho, usuario, recursivo);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.ls(caminho, usuario, recursivo);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.LS, usuario, caminho, null, null, recursivo, 0, 0, 0, inicio, falha);
+        }
     }
 
     @Override
     public void cp(String caminhoOrigem, String caminhoDestino, String usuario, boolean recursivo)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        fileSystemImpl.cp(caminhoOrigem, caminhoDestino, usuario, recursivo);
+        long inicio = inicio();
+        Throwable falha = null;
+        try {
+            fileSystemImpl.cp(caminhoOrigem, caminhoDestino, usuario, recursivo);
+        } catch (Throwable e) {
+            falha = e;
+            throw e;
+        } finally {
+            notificar(Chamada.Tipo.CP, usuario, caminhoOrigem, caminhoDestino, null, recursivo, 0, 0, 0, inicio, falha);
+        }
+    }
+
+    private void notificar(Chamada.Tipo tipo, String usuario, String caminho, String argumento, String permissao,
+            boolean flag, long offset, int tamanho, long bytes, long inicio, Throwable falha) {
+        ObservadorChamadas atual = observador;
+        MetricasFileSystem atuais = metricas;
+        if (inicio == SEM_MEDICAO || (atual == null && atuais == null)) {
+            return;
+        }
+        long duracao = System.nanoTime() - inicio;
+        if (atuais != null) {
+            atuais.registrar(tipo, duracao, bytes, falha);
+        }
+        if (atual != null) {
+            atual.chamadaConcluida(new Chamada(tipo, usuario, caminho, argumento, permissao, flag, offset, tamanho,
+                    inicio, duracao, falha == null));
+        }
+    }
+
+    // Sem observador nem métricas, não lê o relógio. Uma chamada que começou
+    // assim não é registrada, mesmo que a observação comece antes de ela
+    // terminar.
+    private long inicio() {
+        return observador == null && metricas == null ? SEM_MEDICAO : System.nanoTime();
+    }
+
+    private static int tamanho(byte[] buffer) {
+        return buffer == null ? 0 : buffer.length;
     }
-}
\ No newline at end of file
+}
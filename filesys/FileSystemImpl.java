@@ -1,10 +1,24 @@
 package filesys;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import exception.CaminhoJaExistenteException;
 import exception.CaminhoNaoEncontradoException;
+import exception.EspacoInsuficienteException;
 import exception.PermissaoException;
 
 // Implemente nesta classe o seu código do FileSystem.
@@ -13,12 +27,104 @@ import exception.PermissaoException;
 // e atributos & métodos privados podem ser adicionados
 public final class FileSystemImpl implements IFileSystem {
     private static final String ROOT_USER = "root";
+    // Buffer dos streams de openInputStream e openOutputStream: cada trecho
+    // escrito é um registro no journal, então trechos maiores fazem menos
+    // registros.
+    private static final int TAMANHO_BUFFER_STREAM = 16 * Arquivo.BLOCK_SIZE;
     private Diretorio root;
-    private List<String> users = new ArrayList<>();
+    // Usuários cadastrados, com seus ids densos na tabela de inodes. Cada
+    // operação resolve o id uma vez; as verificações de permissão comparam
+    // ids e bits, sem montar textos.
+    private final RegistroUsuarios users;
+    private final int uidRoot;
+    // Regras por caminho do arquivo de usuários, herdadas por nós sem entrada
+    // própria na ACL.
+    private final RegrasPermissao regras = new RegrasPermissao();
+    // Permissão herdada por (uid, nó); mv e novas regras a invalidam.
+    private final CachePermissoes cachePermissoes = new CachePermissoes(CachePermissoes.CAPACIDADE_PADRAO);
+    private final CacheCaminhos cacheCaminhos;
+    private final DispositivoBlocos dispositivo;
+    // Metadados de todos os nós; Diretorio e Arquivo guardam só o inode.
+    private final TabelaInodes inodes;
+    // Concorrência: cada Diretorio tem uma StampedLock que protege seus filhos
+    // (índice e metadados) e cada Arquivo uma que protege seu conteúdo. A
+    // navegação desce a partir da raiz com leituras otimistas, sem travar nada.
+    // Operações de estrutura travam somente o diretório pai do alvo; read e
+    // write travam somente o arquivo, e quem retira um arquivo do diretório
+    // trava o pai e depois o arquivo. read e ls começam sem travas e só as
+    // usam se um escritor interferir. Só quem muda a estrutura (mv e rm de
+    // diretório) e cp de diretório, que trava uma subárvore inteira, usam o
+    // lado de escrita de estrutura. As demais alterações (mkdir, touch, chmod,
+    // rm, mv e cp de arquivo, write, truncar) usam o lado de leitura, pego
+    // antes de qualquer nó, do caminho resolvido até o registro no journal:
+    // assim nenhum diretório muda de lugar entre a resolução e o registro, e
+    // reproduzir o journal encontra cada caminho onde ele estava. Quem trava
+    // dois diretórios o faz de cima para baixo (ancestral primeiro, depois
+    // profundidade e id), portanto nenhuma espera forma ciclo.
+    private final ReentrantReadWriteLock estrutura = new ReentrantReadWriteLock();
+    // Seqlock da estrutura de diretórios: ímpar enquanto um diretório está
+    // sendo movido ou removido. Quem resolveu um caminho confere, depois de
+    // travar o diretório, se a versão mudou; se mudou, resolve de novo.
+    private volatile long versaoEstrutura;
+    // Cada alteração é registrada sob as mesmas travas que a aplicam, então a
+    // ordem do journal respeita a ordem entre operações conflitantes; a
+    // operação só retorna depois do fsync que cobre o seu registro.
+    private volatile Journal journal;
+    // Posição do journal já incluída no snapshot de onde este sistema de
+    // arquivos foi restaurado; ativarJournal só reproduz o que vem depois.
+    private long inicioJournal;
 
     public FileSystemImpl() {
-        this.root = new Diretorio(ROOT_USER, "/");
-        this.users.add(ROOT_USER);
+        this(CacheCaminhos.CAPACIDADE_PADRAO);
+    }
+
+    /**
+     * @param capacidadeCache Número máximo de caminhos mantidos no cache de
+     *                        resolução de diretórios
+     */
+    public FileSystemImpl(int capacidadeCache) {
+        this(capacidadeCache, new DispositivoBlocos());
+    }
+
+    /**
+     * @param armazenamento Onde o conteúdo dos arquivos é guardado, por exemplo
+     *                      {@link ArmazenamentoDireto} para mantê-lo fora do heap
+     */
+    public FileSystemImpl(ArmazenamentoBlocos armazenamento) {
+        this(armazenamento, false);
+    }
+
+    /**
+     * @param armazenamento Onde o conteúdo dos arquivos é guardado
+     * @param deduplicar    Se true, blocos inteiros com conteúdo idêntico são
+     *                      guardados uma única vez
+     */
+    public FileSystemImpl(ArmazenamentoBlocos armazenamento, boolean deduplicar) {
+        this(CacheCaminhos.CAPACIDADE_PADRAO,
+                new DispositivoBlocos(armazenamento, DispositivoBlocos.BLOCOS_INICIAIS_PADRAO, deduplicar));
+    }
+
+    /**
+     * @param capacidadeCache Número máximo de caminhos mantidos no cache de
+     *                        resolução de diretórios
+     * @param dispositivo     Dispositivo de onde os blocos dos arquivos são
+     *                        alocados
+     */
+    public FileSystemImpl(int capacidadeCache, DispositivoBlocos dispositivo) {
+        this(capacidadeCache, dispositivo, new TabelaInodes(), null);
+    }
+
+    /**
+     * @param raiz Raiz já montada com nós de inodes, ou null para criar uma
+     *             raiz vazia
+     */
+    private FileSystemImpl(int capacidadeCache, DispositivoBlocos dispositivo, TabelaInodes inodes, Diretorio raiz) {
+        this.inodes = inodes;
+        this.root = raiz != null ? raiz : new Diretorio(inodes, ROOT_USER, "/");
+        this.users = new RegistroUsuarios(inodes);
+        this.uidRoot = users.cadastrar(ROOT_USER).getUid();
+        this.cacheCaminhos = new CacheCaminhos(capacidadeCache);
+        this.dispositivo = dispositivo;
     }
 
     /**
@@ -39,41 +145,39 @@ public final class FileSystemImpl implements IFileSystem {
             throw new IllegalArgumentException("Caminho e usuário não podem ser nulos ou vazios");
         }
 
-        if (!users.contains(usuario)) {
-            throw new PermissaoException("Usuário não existe: " + usuario);
-        }
-
-        if (caminho.equals("/")) {
-            return;
-        }
+        int uid = verificarUsuario(usuario);
 
+        long registro = 0;
         try {
-            String[] pathParts = splitPath(caminho);
-            String parentPath = pathParts[0];
-            String nome = pathParts[1];
-
-            if (nome.isEmpty()) {
-                throw new IllegalArgumentException("Nome do diretório não pode ser vazio");
-            }
-
-            Diretorio parent = navigateTo(parentPath);
+            Alvo alvo = travarAlvo(caminho, true);
+            try {
+                if (alvo.ehRaiz()) {
+                    return;
+                }
 
-            if (encontrarSubdiretorio(parent, nome) != null) {
-                throw new CaminhoJaExistenteException("Diretório já existe: " + nome);
-            }
+                Diretorio parent = alvo.pai;
+                No existente = alvo.filho();
 
-            if (encontrarArquivo(parent, nome) != null) {
-                throw new CaminhoJaExistenteException("Já existe um arquivo com este nome: " + nome);
-            }
+                if (existente instanceof Diretorio) {
+                    throw new CaminhoJaExistenteException("Diretório já existe: " + alvo.nome());
+                }
 
-            verificarPermissaoEscrita(usuario, parent);
+                if (existente instanceof Arquivo) {
+                    throw new CaminhoJaExistenteException("Já existe um arquivo com este nome: " + alvo.nome());
+                }
 
-            Diretorio newDirectory = new Diretorio(usuario, nome);
-            parent.addSubDiretorio(newDirectory);
+                verificarPermissaoEscrita(uid, parent);
 
+                Diretorio newDirectory = new Diretorio(inodes, usuario, alvo.nome());
+                parent.addSubDiretorio(newDirectory);
+                registro = registrar(Operacao.MKDIR, false, 0, null, usuario, caminho);
+            } finally {
+                alvo.destravar();
+            }
         } catch (CaminhoNaoEncontradoException e) {
             throw new PermissaoException("Caminho não encontrado: " + caminho);
         }
+        aguardarJournal(registro);
     }
 
     /**
@@ -93,66 +197,70 @@ public final class FileSystemImpl implements IFileSystem {
 
         validarParametros(caminho, usuario, usuarioAlvo, permissao);
 
-        verificarUsuario(usuario);
-        verificarUsuario(usuarioAlvo);
-
-        String[] pathParts = splitPath(caminho);
-        String parentPath = pathParts[0];
-        String itemName = pathParts[1];
-
-        // Se o caminho for a raiz
-        if (caminho.equals("/")) {
-            if (!usuario.equals(ROOT_USER)) {
-                throw new PermissaoException("Somente root pode alterar permissões da raiz.");
-            }
+        int uid = verificarUsuario(usuario);
+        int uidAlvo = verificarUsuario(usuarioAlvo);
 
-            // Validar permissões
-            for (char c : permissao.toCharArray()) {
-                if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
-                    throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+        long registro = 0;
+        Alvo alvo = travarAlvo(caminho, true);
+        try {
+            // Se o caminho for a raiz
+            if (alvo.ehRaiz()) {
+                if (uid != uidRoot) {
+                    throw new PermissaoException("Somente root pode alterar permissões da raiz.");
                 }
-            }
-
-            // Configurar permissões para a raiz
-            root.getMetadata().getPermissions().put(usuarioAlvo, permissao.replace("-", ""));
-            return;
-        }
 
-        Diretorio parent = navigateTo(parentPath);
+                // Validar permissões
+                for (char c : permissao.toCharArray()) {
+                    if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
+                        throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+                    }
+                }
 
-        Arquivo arquivo = encontrarArquivo(parent, itemName);
-        if (arquivo != null) {
-            if (!usuario.equals(ROOT_USER) && !usuario.equals(arquivo.getMetadata().getOwner())) {
-                throw new PermissaoException("Somente root ou dono pode alterar permissões.");
+                // Configurar permissões para a raiz
+                inodes.setPermissoes(root.getInode(), uidAlvo, TabelaInodes.bits(permissao));
+                registro = registrar(Operacao.CHMOD, false, 0, null, usuario, caminho, usuarioAlvo, permissao);
+                return;
             }
 
-            for (char c : permissao.toCharArray()) {
-                if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
-                    throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+            Arquivo arquivo = alvo.arquivo();
+            if (arquivo != null) {
+                if (uid != uidRoot && uid != inodes.getIdDono(arquivo.getInode())) {
+                    throw new PermissaoException("Somente root ou dono pode alterar permissões.");
                 }
-            }
 
-            arquivo.getMetadata().getPermissions().put(usuarioAlvo, permissao.replace("-", ""));
-            return;
-        }
+                for (char c : permissao.toCharArray()) {
+                    if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
+                        throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+                    }
+                }
 
-        Diretorio dir = encontrarSubdiretorio(parent, itemName);
-        if (dir != null) {
-            if (!usuario.equals(ROOT_USER) && !usuario.equals(dir.getMetadata().getOwner())) {
-                throw new PermissaoException("Somente root ou dono pode alterar permissões.");
+                inodes.setPermissoes(arquivo.getInode(), uidAlvo, TabelaInodes.bits(permissao));
+                registro = registrar(Operacao.CHMOD, false, 0, null, usuario, caminho, usuarioAlvo, permissao);
+                return;
             }
 
-            for (char c : permissao.toCharArray()) {
-                if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
-                    throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+            Diretorio dir = alvo.subDiretorio();
+            if (dir != null) {
+                if (uid != uidRoot && uid != inodes.getIdDono(dir.getInode())) {
+                    throw new PermissaoException("Somente root ou dono pode alterar permissões.");
                 }
+
+                for (char c : permissao.toCharArray()) {
+                    if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
+                        throw new IllegalArgumentException("Permissão inválida: " + c + ". Use apenas r, w, x ou -");
+                    }
+                }
+
+                inodes.setPermissoes(dir.getInode(), uidAlvo, TabelaInodes.bits(permissao));
+                registro = registrar(Operacao.CHMOD, false, 0, null, usuario, caminho, usuarioAlvo, permissao);
+                return;
             }
 
-            dir.getMetadata().getPermissions().put(usuarioAlvo, permissao.replace("-", ""));
-            return;
+            throw new CaminhoNaoEncontradoException("Item não encontrado: " + caminho);
+        } finally {
+            alvo.destravar();
+            aguardarJournal(registro);
         }
-
-        throw new CaminhoNaoEncontradoException("Item não encontrado: " + caminho);
     }
 
     /**
@@ -171,50 +279,41 @@ public final class FileSystemImpl implements IFileSystem {
 
         validarParametros(caminho, usuario);
 
-        verificarUsuario(usuario);
-
-        if (caminho.equals("/")) {
-            throw new PermissaoException("Não é permitido remover o diretório raiz.");
-        }
-
-        String[] pathParts = splitPath(caminho);
-        String parentPath = pathParts[0];
-        String nome = pathParts[1];
-
-        Diretorio parent = navigateTo(parentPath);
+        int uid = verificarUsuario(usuario);
 
-        verificarPermissaoEscrita(usuario, parent);
-
-        Arquivo arquivo = encontrarArquivo(parent, nome);
-        if (arquivo != null) {
-            if (!usuario.equals(ROOT_USER) &&
-                    !usuario.equals(arquivo.getMetadata().getOwner()) &&
-                    !temPermissao(usuario, arquivo.getMetadata(), 'w')) {
-                throw new PermissaoException("Sem permissão para remover o arquivo: " + nome);
+        // Arquivos são removidos travando só o pai. Diretórios mudam a estrutura
+        // e são removidos de novo sob o lado de escrita da trava de estrutura,
+        // que não pode ser pego com o de leitura de travarAlvo.
+        No removido = null;
+        long registro = 0;
+        Alvo alvo = travarAlvo(caminho, true);
+        try {
+            if (alvo.subDiretorio() == null) {
+                removido = removerFilho(alvo, uid, recursivo);
+                registro = registrar(Operacao.RM, recursivo, 0, null, usuario, caminho);
             }
-
-            parent.getArquivos().remove(arquivo);
-            return;
+        } finally {
+            alvo.destravar();
         }
 
-        Diretorio subDir = encontrarSubdiretorio(parent, nome);
-        if (subDir != null) {
-            if (!usuario.equals(ROOT_USER) &&
-                    !usuario.equals(subDir.getMetadata().getOwner()) &&
-                    !temPermissao(usuario, subDir.getMetadata(), 'w')) {
-                throw new PermissaoException("Sem permissão para remover o diretório: " + nome);
-            }
-
-            if (!recursivo && (!subDir.getArquivos().isEmpty() || !subDir.getSubDiretorios().isEmpty())) {
-                throw new PermissaoException("Diretório não está vazio. Use rm recursivo.");
+        if (removido == null) {
+            estrutura.writeLock().lock();
+            try {
+                alvo = resolverAlvo(caminho);
+                alvo.travar(true);
+                try {
+                    removido = removerFilho(alvo, uid, recursivo);
+                    registro = registrar(Operacao.RM, recursivo, 0, null, usuario, caminho);
+                } finally {
+                    alvo.destravar();
+                }
+            } finally {
+                estrutura.writeLock().unlock();
             }
-
-            parent.getSubDiretorios().remove(subDir);
-            return;
         }
 
-        throw new CaminhoNaoEncontradoException("Item não encontrado: " + nome);
-
+        liberarBlocos(removido);
+        aguardarJournal(registro);
     }
 
     /**
@@ -230,31 +329,39 @@ public final class FileSystemImpl implements IFileSystem {
     public void touch(String caminho, String usuario) throws CaminhoJaExistenteException, PermissaoException {
         validarParametros(caminho, usuario);
 
-        verificarUsuario(usuario);
-
-        String[] pathParts = splitPath(caminho);
-        String parentPath = pathParts[0];
-        String fileName = pathParts[1];
+        int uid = verificarUsuario(usuario);
 
+        long registro = 0;
         try {
-            Diretorio parent = navigateTo(parentPath);
+            Alvo alvo = travarAlvo(caminho, true);
+            try {
+                if (alvo.ehRaiz()) {
+                    throw new CaminhoJaExistenteException("Já existe um diretório com este nome: /");
+                }
 
-            if (encontrarArquivo(parent, fileName) != null) {
-                throw new CaminhoJaExistenteException("Arquivo já existe: " + fileName);
-            }
+                Diretorio parent = alvo.pai;
+                No existente = alvo.filho();
 
-            if (encontrarSubdiretorio(parent, fileName) != null) {
-                throw new CaminhoJaExistenteException("Já existe um diretório com este nome: " + fileName);
-            }
+                if (existente instanceof Arquivo) {
+                    throw new CaminhoJaExistenteException("Arquivo já existe: " + alvo.nome());
+                }
 
-            verificarPermissaoEscrita(usuario, parent);
+                if (existente instanceof Diretorio) {
+                    throw new CaminhoJaExistenteException("Já existe um diretório com este nome: " + alvo.nome());
+                }
 
-            Arquivo novo = new Arquivo(fileName, usuario);
-            parent.addFile(novo);
+                verificarPermissaoEscrita(uid, parent);
 
+                Arquivo novo = new Arquivo(inodes, alvo.nome(), usuario, dispositivo);
+                parent.addFile(novo);
+                registro = registrar(Operacao.TOUCH, false, 0, null, usuario, caminho);
+            } finally {
+                alvo.destravar();
+            }
         } catch (CaminhoNaoEncontradoException e) {
-            throw new PermissaoException("Caminho não encontrado: " + parentPath);
+            throw new PermissaoException("Caminho não encontrado: " + caminho);
         }
+        aguardarJournal(registro);
 
     }
 
@@ -269,38 +376,58 @@ public final class FileSystemImpl implements IFileSystem {
      * @throws CaminhoNaoEncontradoException Se o arquivo não existir
      * @throws PermissaoException            Se o usuário não tiver permissão para
      *                                       escrever
+     * @throws EspacoInsuficienteException   Se faltar espaço no dispositivo; o
+     *                                       arquivo não é alterado
      */
     @Override
     public void write(String caminho, String usuario, boolean anexar, byte[] buffer)
             throws CaminhoNaoEncontradoException, PermissaoException {
         validarParametros(caminho, usuario, buffer);
+        verificarRegistro(buffer.length, usuario, caminho);
 
-        verificarUsuario(usuario);
-
-        String[] pathParts = splitPath(caminho);
-        String parentPath = pathParts[0];
-        String fileName = pathParts[1];
-
-        Diretorio dir = navigateTo(parentPath);
-        Arquivo arquivo = encontrarArquivo(dir, fileName);
-
-        if (arquivo == null) {
-            throw new CaminhoNaoEncontradoException("Arquivo não encontrado: " + fileName);
+        long registro;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            alvo.arquivoAberto.write(buffer, anexar);
+            registro = registrar(Operacao.WRITE, anexar, 0, buffer, usuario, caminho);
+        } finally {
+            alvo.destravar();
         }
+        aguardarJournal(registro);
+    }
 
-        if (!usuario.equals(ROOT_USER) &&
-                !usuario.equals(arquivo.getMetadata().getOwner()) &&
-                !temPermissao(usuario, arquivo.getMetadata(), 'w')) {
-            throw new PermissaoException("Sem permissão de escrita no arquivo: " + fileName);
-        }
+    /**
+     * Escreve dados a partir de uma posição do arquivo, alterando somente os
+     * blocos atingidos. Escrever além do final deixa um buraco que é lido como
+     * zeros e não ocupa blocos.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está escrevendo
+     * @param offset  Posição do arquivo onde a escrita começa
+     * @param buffer  Dados a serem escritos
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       escrever
+     * @throws EspacoInsuficienteException   Se faltar espaço no dispositivo; o
+     *                                       arquivo não é alterado
+     */
+    @Override
+    public void write(String caminho, String usuario, long offset, byte[] buffer)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario, buffer);
+        validarIntervalo(offset, buffer, 0, buffer.length);
+        Arquivo.verificarLimite(offset, buffer.length);
+        verificarRegistro(buffer.length, usuario, caminho);
 
-        if (!anexar) {
-            arquivo.getBlocos().clear();
-            arquivo.getMetadata().setSize(0);
+        long registro;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            alvo.arquivoAberto.escrever(offset, buffer, 0, buffer.length);
+            registro = registrar(Operacao.WRITE_POSICIONAL, false, offset, buffer, usuario, caminho);
+        } finally {
+            alvo.destravar();
         }
-
-        Bloco bloco = new Bloco(buffer);
-        arquivo.addBloco(bloco);
+        aguardarJournal(registro);
     }
 
     /**
@@ -318,92 +445,439 @@ public final class FileSystemImpl implements IFileSystem {
             throws CaminhoNaoEncontradoException, PermissaoException {
         validarParametros(caminho, usuario, buffer);
 
-        verificarUsuario(usuario);
-
-        String[] pathParts = splitPath(caminho);
-        String parentPath = pathParts[0];
-        String fileName = pathParts[1];
+        read(caminho, usuario, 0, buffer, 0, buffer.length);
+    }
 
-        Diretorio dir = navigateTo(parentPath);
-        Arquivo arquivo = encontrarArquivo(dir, fileName);
+    /**
+     * Lê parte de um arquivo a partir de uma posição, copiando os bytes
+     * diretamente dos blocos para o buffer do chamador.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está lendo
+     * @param offset  Posição do arquivo onde a leitura começa
+     * @param buffer  Buffer onde os dados serão armazenados
+     * @param bufOff  Posição do buffer onde o primeiro byte será copiado
+     * @param len     Quantidade máxima de bytes a serem lidos
+     * @return Quantidade de bytes lidos; 0 se offset estiver no final do arquivo
+     *         ou além dele
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       ler
+     */
+    @Override
+    public int read(String caminho, String usuario, long offset, byte[] buffer, int bufOff, int len)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario, buffer);
+        validarIntervalo(offset, buffer, bufOff, len);
 
-        if (arquivo == null) {
-            throw new CaminhoNaoEncontradoException("Arquivo não encontrado: " + fileName);
+        int lidos = lerOtimista(caminho, usuario, offset, buffer, bufOff, len);
+        if (lidos >= 0) {
+            return lidos;
         }
 
-        if (!usuario.equals(ROOT_USER) &&
-                !usuario.equals(arquivo.getMetadata().getOwner()) &&
-                !temPermissao(usuario, arquivo.getMetadata(), 'r')) {
-            throw new PermissaoException("Sem permissão de leitura no arquivo: " + fileName);
+        Alvo alvo = abrirArquivo(caminho, usuario, false);
+        try {
+            return alvo.arquivoAberto.ler(offset, buffer, bufOff, len);
+        } finally {
+            alvo.destravar();
         }
+    }
 
-        byte[] data = arquivo.read();
-        System.arraycopy(data, 0, buffer, 0, Math.min(data.length, buffer.length));
+    /**
+     * Escreve os bytes restantes de vários buffers como uma única escrita
+     * (gather): cada trecho vai direto do buffer para o bloco que o contém,
+     * sem montar um array com o conteúdo inteiro. Como no write, sem anexar o
+     * conteúdo anterior é descartado. A escrita vai para o journal como um
+     * único registro e o tamanho do arquivo muda uma única vez.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está escrevendo
+     * @param anexar  Se true, anexa os dados ao final do arquivo; se false,
+     *                sobrescreve
+     * @param buffers Buffers com os dados, com array ou diretos; as posições
+     *                avançam até o limite
+     * @return Quantidade de bytes escritos
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       escrever
+     * @throws EspacoInsuficienteException   Se faltar espaço no dispositivo; o
+     *                                       arquivo não é alterado
+     */
+    public long writev(String caminho, String usuario, boolean anexar, ByteBuffer... buffers)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario, buffers);
+        validarParametros((Object[]) buffers);
+        verificarRegistro(restantes(buffers), usuario, caminho);
 
+        long registro;
+        long escritos;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            Arquivo arquivo = alvo.arquivoAberto;
+            ByteBuffer[] registrados = duplicarParaJournal(buffers);
+            escritos = anexar
+                    ? arquivo.escrever(inodes.getTamanho(arquivo.getInode()), buffers)
+                    : arquivo.substituir(buffers);
+            registro = registrarVetorial(Operacao.WRITE, anexar, 0, registrados, usuario, caminho);
+        } finally {
+            alvo.destravar();
+        }
+        aguardarJournal(registro);
+        return escritos;
     }
 
     /**
-     * Move um arquivo ou diretório para outro local.
+     * Escreve os bytes restantes de vários buffers, em sequência, a partir de
+     * uma posição do arquivo. Como write(caminho, usuario, offset, buffer)
+     * com a concatenação dos buffers, mas sem montá-la.
      * 
-     * @param caminhoAntigo Caminho original
-     * @param caminhoNovo   Novo caminho
-     * @param usuario       Usuário que está realizando a operação
-     * @throws CaminhoNaoEncontradoException Se o caminho original não existir
-     * @throws PermissaoException            Se o usuário não tiver permissão
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está escrevendo
+     * @param offset  Posição do arquivo onde a escrita começa
+     * @param buffers Buffers com os dados, com array ou diretos; as posições
+     *                avançam até o limite
+     * @return Quantidade de bytes escritos
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       escrever
+     * @throws EspacoInsuficienteException   Se faltar espaço no dispositivo; o
+     *                                       arquivo não é alterado
      */
-    @Override
-    public void mv(String caminhoAntigo, String caminhoNovo, String usuario)
+    public long writev(String caminho, String usuario, long offset, ByteBuffer... buffers)
             throws CaminhoNaoEncontradoException, PermissaoException {
-        validarParametros(caminhoAntigo, caminhoNovo, usuario);
+        validarParametros(caminho, usuario, buffers);
+        validarParametros((Object[]) buffers);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Posição não pode ser negativa: " + offset);
+        }
+        verificarRegistro(restantes(buffers), usuario, caminho);
+
+        long registro;
+        long escritos;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            ByteBuffer[] registrados = duplicarParaJournal(buffers);
+            escritos = alvo.arquivoAberto.escrever(offset, buffers);
+            registro = registrarVetorial(Operacao.WRITE_POSICIONAL, false, offset, registrados, usuario, caminho);
+        } finally {
+            alvo.destravar();
+        }
+        aguardarJournal(registro);
+        return escritos;
+    }
 
-        verificarUsuario(usuario);
+    /**
+     * Lê a partir de uma posição do arquivo preenchendo vários buffers em
+     * sequência (scatter), cada um até o seu limite, copiando direto dos
+     * blocos para os buffers.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está lendo
+     * @param offset  Posição do arquivo onde a leitura começa
+     * @param buffers Buffers de destino, com array ou diretos; as posições
+     *                avançam o que foi lido
+     * @return Quantidade de bytes lidos; 0 se offset estiver no final do arquivo
+     *         ou além dele
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       ler
+     */
+    public long readv(String caminho, String usuario, long offset, ByteBuffer... buffers)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario, buffers);
+        validarParametros((Object[]) buffers);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Posição não pode ser negativa: " + offset);
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+        }
 
-        if (caminhoAntigo.equals("/")) {
-            throw new PermissaoException("Não é permitido mover o diretório raiz.");
+        Alvo alvo = abrirArquivo(caminho, usuario, false);
+        try {
+            return alvo.arquivoAberto.ler(offset, buffers);
+        } finally {
+            alvo.destravar();
         }
+    }
+
+    /**
+     * Abre um arquivo para leitura em sequência, sem precisar saber o seu
+     * tamanho antes. Leituras de TAMANHO_BUFFER_STREAM bytes ou mais copiam
+     * direto dos blocos para o array do chamador; leituras menores passam pelo
+     * buffer do stream, desse mesmo tamanho. A memória usada não depende do
+     * tamanho do arquivo. O stream lê através de openChannel(caminho, usuario,
+     * false).
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está lendo
+     * @return Stream posicionado no início do arquivo
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       ler
+     */
+    public InputStream openInputStream(String caminho, String usuario)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        return new BufferedInputStream(Channels.newInputStream(openChannel(caminho, usuario, false)),
+                TAMANHO_BUFFER_STREAM);
+    }
 
-        String[] sourcePathParts = splitPath(caminhoAntigo);
-        String sourceParentPath = sourcePathParts[0];
-        String sourceName = sourcePathParts[1];
+    /**
+     * Abre um arquivo para escrita em sequência, sem precisar do conteúdo
+     * inteiro em memória. Como no write, sem anexar o arquivo é esvaziado ao
+     * abrir; anexando, cada trecho vai para o final do arquivo no momento em
+     * que é escrito. Escritas pequenas se acumulam num buffer de
+     * TAMANHO_BUFFER_STREAM bytes, que é escrito quando enche, em flush() e em
+     * close(). Com o journal ativo, só flush() e close() esperam o fsync.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está escrevendo
+     * @param anexar  Se true, anexa ao final do arquivo
+     * @return Stream de escrita no arquivo
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       escrever
+     */
+    public OutputStream openOutputStream(String caminho, String usuario, boolean anexar)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        CanalArquivo canal = abrirCanal(caminho, usuario, true, anexar);
+        if (!anexar) {
+            truncar(caminho, usuario, 0);
+        }
+        return new BufferedOutputStream(canal.paraOutputStream(), TAMANHO_BUFFER_STREAM);
+    }
 
-        String[] destPathParts = splitPath(caminhoNovo);
-        String destParentPath = destPathParts[0];
-        String destName = destPathParts[1];
+    /**
+     * Abre um canal posicionável sobre um arquivo. Cada operação do canal é
+     * uma operação do sistema de arquivos sobre o caminho: resolve o caminho,
+     * verifica a permissão e trava só o arquivo, como read e write
+     * posicionais, e escritas e truncate vão para o journal. Por isso o canal
+     * segue o caminho e não o arquivo aberto: se o arquivo for movido ou
+     * removido, a próxima operação lança NoSuchFileException, e se a permissão
+     * for retirada, AccessDeniedException; uma escrita que passaria de
+     * Arquivo.TAMANHO_MAXIMO ou que não cabe no dispositivo lança
+     * IOException. Como num FileChannel, write não espera o fsync do journal:
+     * force() e close() esperam.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está acessando
+     * @param escrita Se true, exige permissão de escrita e permite write e
+     *                truncate; senão, exige permissão de leitura
+     * @return Canal posicionado no início do arquivo
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver a permissão
+     */
+    public CanalArquivo openChannel(String caminho, String usuario, boolean escrita)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        return abrirCanal(caminho, usuario, escrita, false);
+    }
 
-        Diretorio sourceParent = navigateTo(sourceParentPath);
-        Diretorio destParent = navigateTo(destParentPath);
+    private CanalArquivo abrirCanal(String caminho, String usuario, boolean escrita, boolean anexar)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario);
+        abrirArquivo(caminho, usuario, escrita).destravar();
+        return new CanalArquivo(this, caminho, usuario, escrita, anexar);
+    }
 
-        verificarPermissaoEscrita(usuario, sourceParent);
-        verificarPermissaoEscrita(usuario, destParent);
+    /**
+     * Escreve um trecho de um buffer, para CanalArquivo. A escrita vai para o
+     * journal, mas não espera o fsync: o canal espera em force() e close()
+     * pela posição de posicaoJournal().
+     * 
+     * @param posicao Posição do arquivo onde a escrita começa; ignorada ao
+     *                anexar
+     * @param anexar  Se true, escreve no final do arquivo
+     * @return Posição do arquivo logo após o trecho escrito
+     */
+    long escrever(String caminho, String usuario, long posicao, boolean anexar, byte[] buffer, int bufOff, int len)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario, buffer);
+        validarIntervalo(anexar ? 0 : posicao, buffer, bufOff, len);
+        if (!anexar) {
+            Arquivo.verificarLimite(posicao, len);
+        }
+        verificarRegistro(len, usuario, caminho);
 
-        Arquivo arquivoExistente = encontrarArquivo(destParent, destName);
-        if (arquivoExistente != null) {
-            destParent.getArquivos().remove(arquivoExistente);
+        long inicio;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            Arquivo arquivo = alvo.arquivoAberto;
+            inicio = anexar ? inodes.getTamanho(arquivo.getInode()) : posicao;
+            arquivo.escrever(inicio, buffer, bufOff, len);
+            if (anexar) {
+                registrar(Operacao.WRITE, true, 0, buffer, bufOff, len, usuario, caminho);
+            } else {
+                registrar(Operacao.WRITE_POSICIONAL, false, posicao, buffer, bufOff, len, usuario, caminho);
+            }
+        } finally {
+            alvo.destravar();
         }
+        return inicio + len;
+    }
 
-        Diretorio dirExistente = encontrarSubdiretorio(destParent, destName);
-        if (dirExistente != null) {
-            destParent.getSubDiretorios().remove(dirExistente);
+    /**
+     * @return Tamanho do arquivo, para CanalArquivo
+     */
+    long tamanho(String caminho, String usuario) throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario);
+        Alvo alvo = abrirArquivo(caminho, usuario, false);
+        try {
+            return inodes.getTamanho(alvo.arquivoAberto.getInode());
+        } finally {
+            alvo.destravar();
         }
+    }
 
-        Arquivo arquivo = encontrarArquivo(sourceParent, sourceName);
-        if (arquivo != null) {
-            sourceParent.getArquivos().remove(arquivo);
-            arquivo.getMetadata().setName(destName);
-            destParent.addFile(arquivo);
-            return;
+    /**
+     * Reduz um arquivo a um tamanho; não faz nada se ele já for menor. Exige
+     * permissão de escrita.
+     * 
+     * @param tamanho Novo tamanho do arquivo
+     */
+    void truncar(String caminho, String usuario, long tamanho)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminho, usuario);
+        if (tamanho < 0) {
+            throw new IllegalArgumentException("Tamanho não pode ser negativo: " + tamanho);
         }
 
-        Diretorio subDir = encontrarSubdiretorio(sourceParent, sourceName);
-        if (subDir != null) {
-            sourceParent.getSubDiretorios().remove(subDir);
-            subDir.getMetadata().setName(destName);
-            destParent.addSubDiretorio(subDir);
-            return;
+        long registro;
+        Alvo alvo = abrirArquivo(caminho, usuario, true);
+        try {
+            alvo.arquivoAberto.truncar(tamanho);
+            registro = registrar(Operacao.TRUNCATE, false, tamanho, null, usuario, caminho);
+        } finally {
+            alvo.destravar();
         }
+        aguardarJournal(registro);
+    }
+
+    /**
+     * Move um arquivo ou diretório para outro local.
+     * 
+     * @param caminhoAntigo Caminho original
+     * @param caminhoNovo   Novo caminho
+     * @param usuario       Usuário que está realizando a operação
+     * @throws CaminhoNaoEncontradoException Se o caminho original não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão
+     */
+    @Override
+    public void mv(String caminhoAntigo, String caminhoNovo, String usuario)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        validarParametros(caminhoAntigo, caminhoNovo, usuario);
+
+        int uid = verificarUsuario(usuario);
+
+        // Mover arquivos muda só os dois pais, travados de cima para baixo sob o
+        // lado de leitura da trava de estrutura. Se a origem ou o item
+        // substituído for um diretório, a estrutura muda: o mv recomeça sob o
+        // lado de escrita, que não pode ser pego com o de leitura.
+        No substituido = null;
+        long registro = 0;
+        boolean exclusiva = false;
+        while (true) {
+            Lock trava = exclusiva ? estrutura.writeLock() : estrutura.readLock();
+            trava.lock();
+            try {
+                Alvo alvoOrigem = resolverAlvo(caminhoAntigo);
+                if (alvoOrigem.ehRaiz()) {
+                    throw new PermissaoException("Não é permitido mover o diretório raiz.");
+                }
+
+                Alvo alvoDestino = resolverAlvo(caminhoNovo);
+                if (alvoDestino.ehRaiz()) {
+                    throw new PermissaoException("Não é permitido substituir o diretório raiz.");
+                }
 
-        throw new CaminhoNaoEncontradoException("Item não encontrado no caminho: " + caminhoAntigo);
+                travarEmOrdem(alvoOrigem, alvoDestino);
+                try {
+                    Diretorio sourceParent = alvoOrigem.pai;
+                    Diretorio destParent = alvoDestino.pai;
+
+                    verificarPermissaoEscrita(uid, sourceParent);
+                    verificarPermissaoEscrita(uid, destParent);
+
+                    No origem = alvoOrigem.filho();
+                    if (origem == null) {
+                        throw new CaminhoNaoEncontradoException("Item não encontrado no caminho: " + caminhoAntigo);
+                    }
+
+                    No existente = alvoDestino.filho();
+                    if (existente == origem) {
+                        return;
+                    }
+
+                    boolean mudaEstrutura = origem instanceof Diretorio || existente instanceof Diretorio;
+                    if (mudaEstrutura && !exclusiva) {
+                        exclusiva = true;
+                        continue;
+                    }
+
+                    if (origem instanceof Diretorio && destParent.estaDentroDe((Diretorio) origem)) {
+                        throw new PermissaoException("Não é permitido mover um diretório para dentro dele mesmo: "
+                                + caminhoNovo);
+                    }
+
+                    String sourceName = origem.getMetadata().getName();
+                    String destName = alvoDestino.nome();
+
+                    if (mudaEstrutura) {
+                        iniciarMudancaEstrutura();
+                    }
+                    try {
+                        // Arquivos retirados do lugar são travados para que quem
+                        // já os encontrou pelo caminho antigo perceba a mudança.
+                        long carimboOrigem = travarSeArquivo(origem);
+                        long carimboExistente = travarSeArquivo(existente);
+                        try {
+                            // O índice é chaveado pelo nome: remove antes de
+                            // renomear e reinsere depois.
+                            destParent.removeFilho(destName);
+                            sourceParent.removeFilho(sourceName);
+                            origem.getMetadata().setName(destName);
+                            if (origem instanceof Arquivo) {
+                                destParent.addFile((Arquivo) origem);
+                            } else {
+                                destParent.addSubDiretorio((Diretorio) origem);
+                            }
+                        } finally {
+                            destravarSeArquivo(existente, carimboExistente);
+                            destravarSeArquivo(origem, carimboOrigem);
+                        }
+                        // Depois da mudança: quem ler a nova geração do cache
+                        // já resolve os caminhos na árvore alterada.
+                        if (existente instanceof Diretorio) {
+                            cacheCaminhos.invalidar((Diretorio) existente);
+                        }
+                        if (origem instanceof Diretorio) {
+                            cacheCaminhos.invalidar((Diretorio) origem);
+                        }
+                        // O caminho da origem mudou, e com ele as regras que ela
+                        // e o que está dentro dela herdam.
+                        cachePermissoes.invalidar(origem);
+                        registro = registrar(Operacao.MV, false, 0, null, usuario, caminhoAntigo, caminhoNovo);
+                    } finally {
+                        if (mudaEstrutura) {
+                            concluirMudancaEstrutura();
+                        }
+                    }
+                    substituido = existente;
+                } finally {
+                    alvoDestino.destravar();
+                    alvoOrigem.destravar();
+                }
+            } finally {
+                trava.unlock();
+            }
+            break;
+        }
 
+        if (substituido != null) {
+            liberarBlocos(substituido);
+        }
+        aguardarJournal(registro);
     }
 
     /**
@@ -421,17 +895,30 @@ public final class FileSystemImpl implements IFileSystem {
             throws CaminhoNaoEncontradoException, PermissaoException {
         validarParametros(caminho, usuario);
 
-        verificarUsuario(usuario);
-
-        Diretorio dir = navigateTo(caminho);
+        int uid = verificarUsuario(usuario);
+
+        // A listagem é montada com cópias dos filhos e só é impressa depois de
+        // confirmar que nenhum diretório foi movido ou removido no meio.
+        // A permissão também é conferida antes dessa confirmação, enquanto o
+        // inode do diretório ainda é dele.
+        StringBuilder saida;
+        boolean permitido;
+        while (true) {
+            long versao = aguardarEstrutura();
+            Diretorio dir = navigateTo(caminho, 0, caminho.length());
+            saida = new StringBuilder();
+            listarConteudo(dir, dir.getMetadata().getName(), caminho, recursivo, 0, saida);
+            permitido = temPermissao(uid, dir, TabelaInodes.LEITURA);
+            if (versaoEstrutura == versao) {
+                break;
+            }
+        }
 
-        if (!usuario.equals(ROOT_USER) &&
-                !usuario.equals(dir.getMetadata().getOwner()) &&
-                !temPermissao(usuario, dir.getMetadata(), 'r')) {
+        if (!permitido) {
             throw new PermissaoException("Sem permissão de leitura no diretório: " + caminho);
         }
 
-        listarConteudo(dir, caminho, recursivo, 0);
+        System.out.print(saida);
     }
 
     /**
@@ -449,131 +936,529 @@ public final class FileSystemImpl implements IFileSystem {
             throws CaminhoNaoEncontradoException, PermissaoException {
         validarParametros(caminhoOrigem, caminhoDestino, usuario);
 
-        verificarUsuario(usuario);
-
-        String[] sourcePathParts = splitPath(caminhoOrigem);
-        String sourceParentPath = sourcePathParts[0];
-        String sourceName = sourcePathParts[1];
+        int uid = verificarUsuario(usuario);
 
-        String[] destPathParts = splitPath(caminhoDestino);
-        String destParentPath = destPathParts[0];
-        String destName = destPathParts[1];
-
-        Diretorio sourceParent = navigateTo(sourceParentPath);
-        Diretorio destParent = navigateTo(destParentPath);
-
-        if (!usuario.equals(ROOT_USER) && !temPermissao(usuario, sourceParent, 'r')) {
-            throw new PermissaoException("Sem permissão para ler do caminho: " + sourceParentPath);
-        }
-
-        if (!usuario.equals(ROOT_USER) && !temPermissao(usuario, destParent, 'w')) {
-            throw new PermissaoException("Sem permissão para escrever no caminho: " + destParentPath);
+        // Copiar um arquivo trava só os dois pais, de cima para baixo, sob o
+        // lado de leitura da trava de estrutura. Copiar um diretório trava a
+        // subárvore de origem inteira além do pai de destino, e dois conjuntos
+        // assim não têm uma ordem comum: a cópia recomeça sob o lado de escrita.
+        long registro = 0;
+        boolean exclusiva = false;
+        try {
+            while (true) {
+                Lock trava = exclusiva ? estrutura.writeLock() : estrutura.readLock();
+                trava.lock();
+                try {
+                    Alvo alvoOrigem = resolverAlvo(caminhoOrigem);
+                    Alvo alvoDestino = resolverAlvo(caminhoDestino);
+                    if (alvoOrigem.ehRaiz() || alvoDestino.ehRaiz()) {
+                        throw new PermissaoException("Não é permitido copiar de ou para o diretório raiz.");
+                    }
+
+                    travarEmOrdem(alvoOrigem, alvoDestino);
+                    try {
+                        Diretorio sourceParent = alvoOrigem.pai;
+                        Diretorio destParent = alvoDestino.pai;
+
+                        if (!temPermissao(uid, sourceParent, TabelaInodes.LEITURA)) {
+                            throw new PermissaoException("Sem permissão para ler do caminho: " + caminhoOrigem);
+                        }
+
+                        if (!temPermissao(uid, destParent, TabelaInodes.ESCRITA)) {
+                            throw new PermissaoException("Sem permissão para escrever no caminho: " + caminhoDestino);
+                        }
+
+                        verificarDestinoLivre(alvoDestino);
+
+                        String destName = alvoDestino.nome();
+                        Arquivo arquivo = alvoOrigem.arquivo();
+                        if (arquivo != null) {
+                            long carimbo = arquivo.getTrava().readLock();
+                            try {
+                                destParent.addFile(copiarArquivo(arquivo, destName, usuario));
+                            } finally {
+                                arquivo.getTrava().unlockRead(carimbo);
+                            }
+                            registro = registrar(Operacao.CP, recursivo, 0, null, usuario, caminhoOrigem,
+                                    caminhoDestino);
+                            return;
+                        }
+
+                        Diretorio subDir = alvoOrigem.subDiretorio();
+                        if (subDir == null) {
+                            throw new CaminhoNaoEncontradoException(
+                                    "Item não encontrado no caminho: " + caminhoOrigem);
+                        }
+                        if (!recursivo) {
+                            throw new PermissaoException("Cópia de diretório requer o modo recursivo.");
+                        }
+                        if (!exclusiva) {
+                            exclusiva = true;
+                            continue;
+                        }
+
+                        // A subárvore de origem fica travada para leitura durante
+                        // toda a cópia, que assim corresponde a um único instante
+                        // e é reproduzida igual pelo journal. A cópia é montada
+                        // antes de ser ligada ao destino, que pode estar dentro
+                        // da origem.
+                        List<StampedLock> travas = new ArrayList<>();
+                        List<Long> carimbos = new ArrayList<>();
+                        try {
+                            travarSubarvore(subDir, destParent, travas, carimbos);
+                            destParent.addSubDiretorio(copyDiretorio(subDir, destName, usuario));
+                            registro = registrar(Operacao.CP, recursivo, 0, null, usuario, caminhoOrigem,
+                                    caminhoDestino);
+                        } finally {
+                            for (int i = travas.size() - 1; i >= 0; i--) {
+                                travas.get(i).unlock(carimbos.get(i));
+                            }
+                        }
+                        return;
+                    } finally {
+                        alvoDestino.destravar();
+                        alvoOrigem.destravar();
+                    }
+                } finally {
+                    trava.unlock();
+                }
+            }
+        } finally {
+            aguardarJournal(registro);
         }
+    }
 
-        if (encontrarArquivo(destParent, destName) != null) {
-            throw new PermissaoException("Já existe um arquivo com este nome no destino: " + destName);
+    /**
+     * Adiciona um novo usuário ao sistema.
+     * 
+     * @param user Nome do usuário a ser adicionado
+     * @throws UnsupportedOperationException Se o usuário já existir
+     */
+    public void addUser(String user) {
+        if (users.cadastrar(user) == null) {
+            throw new UnsupportedOperationException("Usuário já existe: " + user);
         }
+        aguardarJournal(registrar(Operacao.ADD_USER, false, 0, null, user));
+    }
 
-        if (encontrarSubdiretorio(destParent, destName) != null) {
-            throw new PermissaoException("Já existe um diretório com este nome no destino: " + destName);
+    /**
+     * Cadastra de uma vez os usuários de um arquivo no formato de users/users
+     * e aplica as suas regras: "maria /** rw-" dá rw- a maria em todo nó
+     * abaixo da raiz que não tenha uma entrada própria para ela (ver chmod).
+     * Usuários que aparecem em mais de uma linha, ou que já existem, são
+     * cadastrados uma vez só.
+     * 
+     * @param arquivo Arquivo de usuários
+     * @return Quantidade de usuários novos
+     * @throws IOException Se o arquivo não puder ser lido ou estiver fora do
+     *                     formato
+     */
+    public int carregarUsuarios(Path arquivo) throws IOException {
+        List<RegistroUsuarios.Linha> linhas = RegistroUsuarios.ler(arquivo);
+        for (RegistroUsuarios.Linha linha : linhas) {
+            if (!RegrasPermissao.padraoValido(linha.getCaminho())) {
+                throw new IOException("Padrão de caminho não suportado no arquivo de usuários: "
+                        + linha.getCaminho());
+            }
+        }
+        long registro = 0;
+        int novos = 0;
+        for (RegistroUsuarios.Linha linha : linhas) {
+            Usuario usuario = users.cadastrar(linha.getUsuario());
+            if (usuario != null) {
+                registrar(Operacao.ADD_USER, false, 0, null, linha.getUsuario());
+                novos++;
+            } else {
+                usuario = users.buscar(linha.getUsuario());
+            }
+            adicionarRegra(usuario, linha.getCaminho(), linha.getPermissao());
+            registro = registrar(Operacao.REGRA, false, 0, null, linha.getUsuario(), linha.getCaminho(),
+                    linha.getPermissao());
         }
+        aguardarJournal(registro);
+        return novos;
+    }
 
-        Arquivo arquivo = encontrarArquivo(sourceParent, sourceName);
-        if (arquivo != null) {
-            Arquivo novoArquivo = new Arquivo(destName, usuario);
-            novoArquivo.setBlocos(new ArrayList(arquivo.getBlocos()));
-            destParent.addFile(novoArquivo);
-            return;
+    private void adicionarRegra(Usuario usuario, String padrao, String permissao) {
+        regras.adicionar(usuario, padrao, permissao);
+        cachePermissoes.invalidar();
+    }
+
+    /**
+     * @return Os usuários cadastrados
+     */
+    public RegistroUsuarios getUsuarios() {
+        return users;
+    }
+
+    /**
+     * Reproduz as operações já gravadas no journal e passa a registrar nele
+     * cada operação que altera o sistema de arquivos. Deve ser chamado antes
+     * de o sistema de arquivos começar a ser usado.
+     * 
+     * @param arquivo         Arquivo do journal; criado se não existir
+     * @param intervaloMillis Intervalo entre fsyncs do journal
+     * @throws IOException Se o journal não puder ser lido ou aberto
+     */
+    public void ativarJournal(Path arquivo, long intervaloMillis) throws IOException {
+        if (journal != null) {
+            throw new IllegalStateException("Journal já está ativo");
         }
+        journal = Journal.abrir(arquivo, inicioJournal, intervaloMillis, this::reproduzir);
+    }
 
-        Diretorio subDir = encontrarSubdiretorio(sourceParent, sourceName);
-        if (subDir != null) {
-            if (!recursivo) {
-                throw new PermissaoException("Cópia de diretório requer o modo recursivo.");
-            }
-            Diretorio novoDiretorio = copyDiretorio(subDir, destName, usuario);
-            destParent.addSubDiretorio(novoDiretorio);
-            return;
+    /**
+     * Grava o que falta do journal e o fecha. Operações seguintes não são
+     * mais registradas.
+     * 
+     * @throws IOException Se a gravação falhar
+     */
+    public void fecharJournal() throws IOException {
+        Journal atual = journal;
+        if (atual != null) {
+            journal = null;
+            atual.close();
         }
+    }
 
-        throw new CaminhoNaoEncontradoException("Item não encontrado no caminho: " + caminhoOrigem);
+    /**
+     * @return O journal ativo ou null
+     */
+    public Journal getJournal() {
+        return journal;
+    }
 
+    /**
+     * Grava um snapshot do sistema de arquivos. A árvore é capturada na hora,
+     * com as alterações bloqueadas só enquanto os metadados e as referências
+     * a blocos são copiados; a codificação e o conteúdo dos blocos são
+     * gravados depois, numa thread própria, enquanto o sistema continua em
+     * uso.
+     * 
+     * @param arquivo Arquivo do snapshot; substituído quando a gravação termina
+     * @return Concluído quando o snapshot estiver no disco
+     */
+    public CompletableFuture<Void> gravarSnapshot(Path arquivo) {
+        Snapshot.Captura captura;
+        // Toda alteração da árvore segura um dos lados da trava de estrutura
+        // do começo até o registro no journal, então o lado de escrita
+        // congela a árvore sem travar nó por nó, e o tamanho do journal
+        // corresponde à captura.
+        estrutura.writeLock().lock();
+        try {
+            Journal atual = journal;
+            captura = Snapshot.capturar(root, users.getNomes(), regras.getRegras(), dispositivo, atual,
+                    atual == null ? inicioJournal : atual.getTamanho());
+        } finally {
+            estrutura.writeLock().unlock();
+        }
+
+        CompletableFuture<Void> concluido = new CompletableFuture<>();
+        Thread gravador = new Thread(() -> {
+            try {
+                Snapshot.gravar(captura, arquivo);
+                concluido.complete(null);
+            } catch (IOException | RuntimeException e) {
+                concluido.completeExceptionally(e);
+            }
+        }, "snapshot");
+        gravador.setDaemon(true);
+        gravador.start();
+        return concluido;
     }
 
     /**
-     * Adiciona um novo usuário ao sistema.
+     * Restaura um sistema de arquivos de um snapshot. O conteúdo dos arquivos
+     * continua no snapshot, mapeado em memória, e só é lido quando acessado.
+     * Para recuperar as operações feitas depois do snapshot, chame
+     * ativarJournal com o mesmo journal: só os registros posteriores ao
+     * snapshot são reproduzidos.
      * 
-     * @param user Nome do usuário a ser adicionado
-     * @throws UnsupportedOperationException Se o usuário já existir
+     * @param arquivo Arquivo gravado por gravarSnapshot
+     * @return O sistema de arquivos restaurado
+     * @throws IOException Se o snapshot for inválido ou não puder ser lido
      */
-    public void addUser(String user) {
-        if (users.contains(user)) {
-            throw new UnsupportedOperationException("Usuário já existe: " + user);
+    public static FileSystemImpl restaurarSnapshot(Path arquivo) throws IOException {
+        TabelaInodes inodes = new TabelaInodes();
+        Snapshot.Restaurado restaurado = Snapshot.restaurar(arquivo, inodes);
+        FileSystemImpl fileSystem = new FileSystemImpl(CacheCaminhos.CAPACIDADE_PADRAO, restaurado.getDispositivo(),
+                inodes, restaurado.getRaiz());
+        for (String usuario : restaurado.getUsuarios()) {
+            fileSystem.users.cadastrar(usuario);
+        }
+        for (RegrasPermissao.Regra regra : restaurado.getRegras()) {
+            fileSystem.adicionarRegra(fileSystem.users.buscar(regra.getUsuario()), regra.getPadrao(),
+                    regra.getPermissao());
         }
-        users.add(user);
+        fileSystem.inicioJournal = restaurado.getPosicaoJournal();
+        return fileSystem;
+    }
+
+    /**
+     * Retorna o dispositivo de blocos onde o conteúdo dos arquivos é guardado.
+     *
+     * @return O dispositivo usado por este sistema de arquivos
+     */
+    public DispositivoBlocos getDispositivo() {
+        return dispositivo;
+    }
+
+    /**
+     * @return Tabela com os metadados de todos os nós
+     */
+    public TabelaInodes getInodes() {
+        return inodes;
+    }
+
+    /**
+     * Retorna o cache de resolução de caminhos, com os contadores de acertos e
+     * falhas.
+     *
+     * @return O cache usado por este sistema de arquivos
+     */
+    public CacheCaminhos getCacheCaminhos() {
+        return cacheCaminhos;
     }
 
     /**
-     * Navega até um diretório especificado pelo caminho.
+     * @return O cache de permissões herdadas, com os contadores de acertos e
+     *         falhas
+     */
+    public CachePermissoes getCachePermissoes() {
+        return cachePermissoes;
+    }
+
+    /**
+     * Navega até o diretório indicado pelo trecho caminho[inicio, fim),
+     * normalizando "//", barras finais, "." e ".." durante o percurso.
+     * Caminhos já canônicos são consultados e guardados no cache de resolução.
+     * Cada filho é buscado com uma leitura otimista; quem usa o resultado deve
+     * validá-lo com versaoEstrutura (ver travarAlvo).
      * 
-     * @param path Caminho do diretório
+     * @param caminho Texto que contém o caminho do diretório
+     * @param inicio  Índice inicial do trecho (inclusivo)
+     * @param fim     Índice final do trecho (exclusivo)
      * @return O diretório encontrado
      * @throws CaminhoNaoEncontradoException Se o diretório não existir
      */
-    private Diretorio navigateTo(String path) throws CaminhoNaoEncontradoException {
-
-        if (path.equals("/"))
-            return root;
+    private Diretorio navigateTo(String caminho, int inicio, int fim) throws CaminhoNaoEncontradoException {
+        boolean canonico = CursorCaminho.ehCanonico(caminho, inicio, fim);
+        long geracao = 0;
+        if (canonico) {
+            if (fim - inicio == 1) {
+                return root;
+            }
+            Diretorio emCache = cacheCaminhos.get(caminho, inicio, fim);
+            if (emCache != null) {
+                return emCache;
+            }
+            geracao = cacheCaminhos.getGeracao();
+        }
 
-        String[] parts = path.split("/");
         Diretorio current = root;
-
-        for (String part : parts) {
-            if (part.isEmpty())
+        CursorCaminho cursor = new CursorCaminho(caminho, inicio, fim);
+        while (cursor.proximo()) {
+            if (cursor.ehAtual()) {
                 continue;
-
-            boolean found = false;
-            for (Diretorio sub : current.getSubDiretorios()) {
-                if (sub.getMetadata().getName().equals(part)) {
-                    current = sub;
-                    found = true;
-                    break;
+            }
+            if (cursor.ehPai()) {
+                if (current.getPai() != null) {
+                    current = current.getPai();
                 }
+                continue;
             }
 
-            if (!found) {
-                throw new CaminhoNaoEncontradoException("Diretório não encontrado: " + part);
+            Diretorio sub = current.consultarSubDiretorio(caminho, cursor.inicio(), cursor.fim());
+            if (sub == null) {
+                throw new CaminhoNaoEncontradoException("Diretório não encontrado: " + cursor.segmento());
             }
+            current = sub;
         }
 
+        if (canonico) {
+            cacheCaminhos.put(caminho.substring(inicio, fim), current, geracao);
+        }
         return current;
     }
 
     /**
-     * Lista o conteúdo de um diretório.
+     * Resolve o diretório pai e o nome do item indicado pelo caminho, sem
+     * dividir o caminho em Strings. Quando o último segmento é "." ou "..",
+     * o item é o próprio diretório resultante.
+     * 
+     * @param caminho Caminho completo
+     * @return O pai e o trecho com o nome do item
+     * @throws CaminhoNaoEncontradoException Se algum diretório intermediário não
+     *                                       existir
+     */
+    private Alvo resolverAlvo(String caminho) throws CaminhoNaoEncontradoException {
+        int fimNome = CursorCaminho.fimUltimoSegmento(caminho);
+        int inicioNome = CursorCaminho.inicioSegmento(caminho, fimNome);
+
+        if (fimNome > inicioNome
+                && !CursorCaminho.ehAtual(caminho, inicioNome, fimNome)
+                && !CursorCaminho.ehPai(caminho, inicioNome, fimNome)) {
+            // Mantém a barra da raiz em "/nome".
+            int fimPai = inicioNome > 1 ? inicioNome - 1 : inicioNome;
+            return new Alvo(navigateTo(caminho, 0, fimPai), caminho, inicioNome, fimNome);
+        }
+
+        Diretorio dir = navigateTo(caminho, 0, caminho.length());
+        if (dir == root) {
+            return new Alvo(null, caminho, 0, 0);
+        }
+        String nome = dir.getMetadata().getName();
+        return new Alvo(dir.getPai(), nome, 0, nome.length());
+    }
+
+    /**
+     * Pega o lado de leitura da trava de estrutura, resolve o caminho e trava o
+     * diretório pai do item, repetindo a resolução se algum diretório foi
+     * movido ou removido enquanto ela acontecia. A raiz não tem pai e é
+     * devolvida travando só a estrutura.
+     * 
+     * @param caminho Caminho completo
+     * @param escrita Se true, trava para escrita; senão, para leitura
+     * @return O alvo travado; o chamador deve chamar destravar()
+     * @throws CaminhoNaoEncontradoException Se algum diretório intermediário não
+     *                                       existir
+     */
+    private Alvo travarAlvo(String caminho, boolean escrita) throws CaminhoNaoEncontradoException {
+        Lock leitura = estrutura.readLock();
+        leitura.lock();
+        try {
+            while (true) {
+                long versao = aguardarEstrutura();
+                Alvo alvo = resolverAlvo(caminho);
+                if (!alvo.ehRaiz()) {
+                    alvo.travar(escrita);
+                    if (versaoEstrutura != versao) {
+                        alvo.destravar();
+                        continue;
+                    }
+                }
+                alvo.estrutura = leitura;
+                leitura = null;
+                return alvo;
+            }
+        } finally {
+            if (leitura != null) {
+                leitura.unlock();
+            }
+        }
+    }
+
+    /**
+     * Trava para escrita os pais de dois alvos, de cima para baixo: um
+     * ancestral antes do descendente e, entre diretórios não relacionados, o
+     * menos profundo (ou de menor id) primeiro. Se os pais forem o mesmo
+     * diretório, só o primeiro alvo fica com a trava. Exige um dos lados da
+     * trava de estrutura: com qualquer um deles nenhum diretório muda de
+     * lugar durante a comparação.
+     */
+    private void travarEmOrdem(Alvo a, Alvo b) {
+        if (a.pai == b.pai) {
+            a.travar(true);
+        } else if (vemAntes(a.pai, b.pai)) {
+            a.travar(true);
+            b.travar(true);
+        } else {
+            b.travar(true);
+            a.travar(true);
+        }
+    }
+
+    private static boolean vemAntes(Diretorio a, Diretorio b) {
+        if (b.estaDentroDe(a)) {
+            return true;
+        }
+        if (a.estaDentroDe(b)) {
+            return false;
+        }
+        int profundidadeA = a.getProfundidade();
+        int profundidadeB = b.getProfundidade();
+        if (profundidadeA != profundidadeB) {
+            return profundidadeA < profundidadeB;
+        }
+        return a.getId() < b.getId();
+    }
+
+    /**
+     * @return A versão atual da estrutura, esperando terminar uma mudança em
+     *         andamento
+     */
+    private long aguardarEstrutura() {
+        long versao;
+        while (((versao = versaoEstrutura) & 1) != 0) {
+            Thread.onSpinWait();
+        }
+        return versao;
+    }
+
+    // Delimitam uma mudança de estrutura; exigem a trava de estrutura, o que
+    // torna seguro o incremento não atômico.
+    private void iniciarMudancaEstrutura() {
+        assert estrutura.isWriteLockedByCurrentThread();
+        versaoEstrutura++;
+    }
+
+    private void concluirMudancaEstrutura() {
+        versaoEstrutura++;
+    }
+
+    /**
+     * @throws PermissaoException Se já existir um item com o nome do alvo
+     */
+    private void verificarDestinoLivre(Alvo alvoDestino) throws PermissaoException {
+        No existente = alvoDestino.filho();
+        if (existente instanceof Arquivo) {
+            throw new PermissaoException("Já existe um arquivo com este nome no destino: " + alvoDestino.nome());
+        }
+
+        if (existente instanceof Diretorio) {
+            throw new PermissaoException("Já existe um diretório com este nome no destino: " + alvoDestino.nome());
+        }
+    }
+
+    /**
+     * Lista o conteúdo de um diretório a partir de uma cópia consistente dos
+     * seus filhos, sem travá-lo.
      * 
      * @param dir       Diretório a ser listado
+     * @param nome      Nome do diretório
      * @param caminho   Caminho do diretório
      * @param recursivo Se true, lista recursivamente os subdiretórios
      * @param nivel     Nível de indentação para a saída
+     * @param saida     Onde as linhas da listagem são acrescentadas
      */
-    private void listarConteudo(Diretorio dir, String caminho, boolean recursivo, int nivel) {
+    private void listarConteudo(Diretorio dir, String nome, String caminho, boolean recursivo, int nivel,
+            StringBuilder saida) {
         String indent = "  ".repeat(nivel);
-        System.out.println(indent + "[DIR] " + dir.getMetadata().getName());
-
-        for (Arquivo arquivo : dir.getArquivos()) {
-            System.out.println(indent + "  [FILE] " + arquivo.getMetadata().getName());
+        String fimLinha = System.lineSeparator();
+        saida.append(indent).append("[DIR] ").append(nome).append(fimLinha);
+
+        List<String> nomes = new ArrayList<>();
+        List<No> filhos = dir.listarFilhos(nomes);
+        for (int i = 0; i < filhos.size(); i++) {
+            if (filhos.get(i) instanceof Arquivo) {
+                saida.append(indent).append("  [FILE] ").append(nomes.get(i)).append(fimLinha);
+            }
         }
 
         if (recursivo) {
-            for (Diretorio sub : dir.getSubDiretorios()) {
-                listarConteudo(sub, caminho + "/" + sub.getMetadata().getName(), true, nivel + 1);
+            for (int i = 0; i < filhos.size(); i++) {
+                if (filhos.get(i) instanceof Diretorio) {
+                    String nomeSub = nomes.get(i);
+                    listarConteudo((Diretorio) filhos.get(i), nomeSub, caminho + "/" + nomeSub, true, nivel + 1,
+                            saida);
+                }
             }
         }
     }
 
     /**
-     * Copia um diretório recursivamente.
+     * Copia um diretório recursivamente. A subárvore de origem deve estar
+     * travada pelo chamador (ver travarSubarvore).
      * 
      * @param source  Diretório de origem
      * @param newName Novo nome para o diretório
@@ -581,12 +1466,10 @@ public final class FileSystemImpl implements IFileSystem {
      * @return O novo diretório copiado
      */
     private Diretorio copyDiretorio(Diretorio source, String newName, String usuario) {
-        Diretorio novoDiretorio = new Diretorio(usuario, newName);
+        Diretorio novoDiretorio = new Diretorio(inodes, usuario, newName);
 
         for (Arquivo arquivo : source.getArquivos()) {
-            Arquivo novoArquivo = new Arquivo(arquivo.getMetadata().getName(), usuario);
-            novoArquivo.setBlocos(new ArrayList<>(arquivo.getBlocos()));
-            novoDiretorio.addFile(novoArquivo);
+            novoDiretorio.addFile(copiarArquivo(arquivo, arquivo.getMetadata().getName(), usuario));
         }
 
         for (Diretorio subDir : source.getSubDiretorios()) {
@@ -598,135 +1481,493 @@ public final class FileSystemImpl implements IFileSystem {
     }
 
     /**
-     * Verifica se um usuário existe.
+     * Retira do pai o item indicado pelo alvo, que deve estar travado para
+     * escrita. Remover um diretório exige a trava de estrutura.
      * 
-     * @param usuario Nome do usuário
-     * @throws PermissaoException Se o usuário não existir
+     * @param alvo      Pai e nome do item
+     * @param uid       Id do usuário que está realizando a operação
+     * @param recursivo Se true, permite remover diretórios não vazios
+     * @return O item removido, cujos blocos ainda não foram liberados
+     * @throws CaminhoNaoEncontradoException Se o item não existir
+     * @throws PermissaoException            Se o usuário não tiver permissão para
+     *                                       remover
      */
-    private void verificarUsuario(String usuario) throws PermissaoException {
-        if (!users.contains(usuario)) {
-            throw new PermissaoException("Usuário não existe: " + usuario);
+    private No removerFilho(Alvo alvo, int uid, boolean recursivo)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        if (alvo.ehRaiz()) {
+            throw new PermissaoException("Não é permitido remover o diretório raiz.");
+        }
+
+        Diretorio parent = alvo.pai;
+
+        verificarPermissaoEscrita(uid, parent);
+
+        Arquivo arquivo = alvo.arquivo();
+        if (arquivo != null) {
+            String nome = arquivo.getMetadata().getName();
+            if (!temPermissao(uid, arquivo, parent, TabelaInodes.ESCRITA)) {
+                throw new PermissaoException("Sem permissão para remover o arquivo: " + nome);
+            }
+
+            long carimbo = arquivo.getTrava().writeLock();
+            try {
+                parent.removeFilho(nome);
+            } finally {
+                arquivo.getTrava().unlockWrite(carimbo);
+            }
+            return arquivo;
+        }
+
+        Diretorio subDir = alvo.subDiretorio();
+        if (subDir != null) {
+            String nome = subDir.getMetadata().getName();
+            if (!temPermissao(uid, subDir, TabelaInodes.ESCRITA)) {
+                throw new PermissaoException("Sem permissão para remover o diretório: " + nome);
+            }
+
+            // Trava o próprio diretório para que nada seja criado nele entre a
+            // verificação de vazio e a remoção.
+            long carimbo = subDir.getTrava().writeLock();
+            try {
+                if (!recursivo && !subDir.isVazio()) {
+                    throw new PermissaoException("Diretório não está vazio. Use rm recursivo.");
+                }
+
+                iniciarMudancaEstrutura();
+                try {
+                    parent.removeFilho(nome);
+                    cacheCaminhos.invalidar(subDir);
+                } finally {
+                    concluirMudancaEstrutura();
+                }
+            } finally {
+                subDir.getTrava().unlockWrite(carimbo);
+            }
+            return subDir;
         }
+
+        throw new CaminhoNaoEncontradoException("Item não encontrado: " + alvo.nome());
     }
 
     /**
-     * Valida os parâmetros para evitar NullPointerException.
+     * Cria uma cópia de um arquivo que compartilha seus blocos. A origem deve
+     * estar travada pelo chamador.
      * 
-     * @param params Parâmetros a serem validados
-     * @throws IllegalArgumentException Se algum parâmetro for nulo
+     * @param origem  Arquivo copiado
+     * @param nome    Nome da cópia
+     * @param usuario Dono da cópia
+     * @return A cópia, ainda fora de qualquer diretório
      */
-    private void validarParametros(Object... params) {
-        for (int i = 0; i < params.length; i++) {
-            if (params[i] == null) {
-                throw new IllegalArgumentException("Parâmetro " + (i + 1) + " não pode ser nulo");
+    private Arquivo copiarArquivo(Arquivo origem, String nome, String usuario) {
+        Arquivo copia = new Arquivo(inodes, nome, usuario, dispositivo);
+        copia.copiarConteudo(origem);
+        return copia;
+    }
+
+    /**
+     * Trava para leitura, de cima para baixo, todos os diretórios e arquivos
+     * de uma subárvore. Só é chamado sob o lado de escrita da trava de
+     * estrutura, por isso pode tomar muitas travas sem risco de ciclo.
+     * 
+     * @param dir        Raiz da subárvore
+     * @param jaTravado  Diretório que o chamador já travou para escrita e que
+     *                   deve ser pulado, ou null
+     * @param travas     Recebe as travas tomadas, na ordem
+     * @param carimbos   Recebe os carimbos correspondentes
+     */
+    private void travarSubarvore(Diretorio dir, Diretorio jaTravado, List<StampedLock> travas, List<Long> carimbos) {
+        if (dir != jaTravado) {
+            travas.add(dir.getTrava());
+            carimbos.add(dir.getTrava().readLock());
+        }
+        for (No filho : dir.getFilhos()) {
+            if (filho instanceof Arquivo) {
+                StampedLock trava = ((Arquivo) filho).getTrava();
+                travas.add(trava);
+                carimbos.add(trava.readLock());
             }
-            if (params[i] instanceof String && ((String) params[i]).trim().isEmpty()) {
-                throw new IllegalArgumentException("Parâmetro " + (i + 1) + " não pode ser vazio");
+        }
+        for (Diretorio sub : dir.getSubDiretorios()) {
+            travarSubarvore(sub, jaTravado, travas, carimbos);
+        }
+    }
+
+    private long registrar(Operacao operacao, boolean flag, long numero, byte[] dados, String... textos) {
+        Journal atual = journal;
+        return atual == null ? 0 : atual.registrar(operacao, flag, numero, dados, textos);
+    }
+
+    private long registrar(Operacao operacao, boolean flag, long numero, byte[] dados, int offset, int tamanho,
+            String... textos) {
+        Journal atual = journal;
+        return atual == null ? 0 : atual.registrar(operacao, flag, numero, dados, offset, tamanho, textos);
+    }
+
+    private long registrarVetorial(Operacao operacao, boolean flag, long numero, ByteBuffer[] dados,
+            String... textos) {
+        Journal atual = journal;
+        return atual == null || dados == null ? 0 : atual.registrarVetorial(operacao, flag, numero, dados, textos);
+    }
+
+    // Recusa, antes de a operação ser aplicada, dados que não caberiam num
+    // registro do journal.
+    private void verificarRegistro(long dados, String... textos) {
+        if (journal != null) {
+            Journal.verificarTamanho(dados, textos);
+        }
+    }
+
+    private static long restantes(ByteBuffer[] buffers) {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        return total;
+    }
+
+    // Cópias das posições dos buffers de um writev, tiradas antes da escrita
+    // avançá-las, para o journal ler os mesmos bytes depois; null sem journal.
+    private ByteBuffer[] duplicarParaJournal(ByteBuffer[] buffers) {
+        if (journal == null) {
+            return null;
+        }
+        ByteBuffer[] copias = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            copias[i] = buffers[i].duplicate();
+        }
+        return copias;
+    }
+
+    /**
+     * @return Posição do journal logo após o último registro feito, ou 0 sem
+     *         journal; aguardá-la cobre todas as operações já concluídas
+     */
+    long posicaoJournal() {
+        Journal atual = journal;
+        return atual == null ? 0 : atual.getTamanho();
+    }
+
+    void aguardarJournal(long registro) {
+        Journal atual = journal;
+        if (registro != 0 && atual != null) {
+            atual.aguardar(registro);
+        }
+    }
+
+    /**
+     * Aplica um registro do journal chamando a mesma operação com os mesmos
+     * argumentos. Só operações que tiveram sucesso são registradas, então
+     * reproduzi-las em ordem também tem sucesso.
+     * 
+     * @param registro Registro lido do journal
+     * @throws IllegalStateException Se a operação falhar
+     */
+    private void reproduzir(Journal.Registro registro) {
+        try {
+            switch (registro.getOperacao()) {
+                case MKDIR:
+                    mkdir(registro.getTexto(1), registro.getTexto(0));
+                    break;
+                case TOUCH:
+                    touch(registro.getTexto(1), registro.getTexto(0));
+                    break;
+                case WRITE:
+                    write(registro.getTexto(1), registro.getTexto(0), registro.getFlag(), registro.getDados());
+                    break;
+                case WRITE_POSICIONAL:
+                    write(registro.getTexto(1), registro.getTexto(0), registro.getNumero(), registro.getDados());
+                    break;
+                case RM:
+                    rm(registro.getTexto(1), registro.getTexto(0), registro.getFlag());
+                    break;
+                case MV:
+                    mv(registro.getTexto(1), registro.getTexto(2), registro.getTexto(0));
+                    break;
+                case CP:
+                    cp(registro.getTexto(1), registro.getTexto(2), registro.getTexto(0), registro.getFlag());
+                    break;
+                case CHMOD:
+                    chmod(registro.getTexto(1), registro.getTexto(0), registro.getTexto(2), registro.getTexto(3));
+                    break;
+                case ADD_USER:
+                    users.cadastrar(registro.getTexto(0));
+                    break;
+                case REGRA:
+                    adicionarRegra(users.buscar(registro.getTexto(0)), registro.getTexto(1), registro.getTexto(2));
+                    break;
+                case TRUNCATE:
+                    truncar(registro.getTexto(1), registro.getTexto(0), registro.getNumero());
+                    break;
+                default:
+                    throw new IllegalStateException("Operação sem reprodução: " + registro.getOperacao());
             }
+        } catch (CaminhoJaExistenteException | CaminhoNaoEncontradoException | PermissaoException e) {
+            throw new IllegalStateException("Registro do journal não pôde ser reproduzido: "
+                    + registro.getOperacao(), e);
+        }
+    }
+
+    private static long travarSeArquivo(No no) {
+        return no instanceof Arquivo ? ((Arquivo) no).getTrava().writeLock() : 0;
+    }
+
+    private static void destravarSeArquivo(No no, long carimbo) {
+        if (carimbo != 0) {
+            ((Arquivo) no).getTrava().unlockWrite(carimbo);
         }
     }
 
     /**
-     * Divide um caminho em diretório pai e nome do item.
+     * Devolve ao dispositivo os blocos de um arquivo ou de todos os arquivos de
+     * uma subárvore que deixou de fazer parte do sistema de arquivos, e à
+     * tabela os inodes de todos os seus nós.
      * 
-     * @param caminho Caminho completo
-     * @return Array com [diretório pai, nome do item]
+     * @param no Arquivo ou diretório removido
      */
-    private String[] splitPath(String caminho) {
-        if (caminho == null || caminho.isEmpty()) {
-            return new String[] { "/", "" };
+    private void liberarBlocos(No no) {
+        if (no instanceof Arquivo) {
+            // Invalida também as leituras otimistas em andamento.
+            Arquivo arquivo = (Arquivo) no;
+            long carimbo = arquivo.getTrava().writeLock();
+            try {
+                arquivo.liberarBlocos();
+                arquivo.liberarInode();
+            } finally {
+                arquivo.getTrava().unlockWrite(carimbo);
+            }
+            return;
+        }
+        // Operações que travaram o diretório antes da remoção terminam antes.
+        Diretorio dir = (Diretorio) no;
+        long carimbo = dir.getTrava().writeLock();
+        try {
+            for (No filho : dir.getFilhos()) {
+                liberarBlocos(filho);
+            }
+            dir.liberarInode();
+        } finally {
+            dir.getTrava().unlockWrite(carimbo);
+        }
+    }
+
+    /**
+     * Tenta ler um arquivo sem travar nada: o caminho é resolvido e o arquivo
+     * lido dentro de uma leitura otimista da sua trava, validada no final
+     * junto com a versão da estrutura. Bytes copiados para o buffer por uma
+     * tentativa inválida são sobrescritos pela leitura com trava.
+     * 
+     * @return Quantidade de bytes lidos ou -1 se a leitura precisa ser refeita
+     *         com a trava: escritor concorrente, ou arquivo inexistente ou sem
+     *         permissão, casos em que a leitura com trava lança o erro
+     */
+    private int lerOtimista(String caminho, String usuario, long offset, byte[] buffer, int bufOff, int len) {
+        long versao = versaoEstrutura;
+        Usuario leitor = users.buscar(usuario);
+        if ((versao & 1) != 0 || leitor == null) {
+            return -1;
+        }
+        int uid = leitor.getUid();
+        try {
+            Alvo alvo = resolverAlvo(caminho);
+            if (alvo.ehRaiz()) {
+                return -1;
+            }
+            No filho = alvo.pai.consultarFilho(alvo.texto, alvo.inicio, alvo.fim);
+            if (!(filho instanceof Arquivo)) {
+                return -1;
+            }
+            Arquivo arquivo = (Arquivo) filho;
+            StampedLock trava = arquivo.getTrava();
+            long carimbo = trava.tryOptimisticRead();
+            if (carimbo == 0 || !alvo.pai.tentarConfirmarFilho(alvo.texto, alvo.inicio, alvo.fim, arquivo)
+                    || !temPermissao(uid, arquivo, alvo.pai, TabelaInodes.LEITURA)) {
+                return -1;
+            }
+            int lidos = arquivo.ler(offset, buffer, bufOff, len);
+            return trava.validate(carimbo) && versaoEstrutura == versao ? lidos : -1;
+        } catch (CaminhoNaoEncontradoException | RuntimeException e) {
+            // Um escritor concorrente pode deixar a tabela de blocos
+            // momentaneamente inconsistente; a leitura com trava decide.
+            return -1;
         }
+    }
+
+    /**
+     * Localiza um arquivo, trava somente o arquivo e verifica se o usuário
+     * pode lê-lo ou escrever nele. Depois de travar, confere que o nome ainda
+     * aponta para ele: rm e mv precisam da trava do arquivo para retirá-lo do
+     * diretório, então enquanto ela estiver com o chamador isso não muda. Para
+     * escrita, pega antes o lado de leitura da trava de estrutura, como
+     * travarAlvo.
+     * 
+     * @param caminho Caminho do arquivo
+     * @param usuario Usuário que está lendo ou escrevendo
+     * @param escrita Se true, trava para escrita e exige permissão 'w'; senão,
+     *                trava para leitura e exige 'r'
+     * @return O alvo com o arquivo travado em arquivoAberto; o chamador deve
+     *         destravá-lo
+     * @throws CaminhoNaoEncontradoException Se o arquivo não existir
+     * @throws PermissaoException            Se o usuário não tiver a permissão
+     */
+    private Alvo abrirArquivo(String caminho, String usuario, boolean escrita)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        int uid = verificarUsuario(usuario);
 
-        int lastSlashIndex = caminho.lastIndexOf('/');
-        if (lastSlashIndex == -1) {
-            return new String[] { "/", caminho };
+        Lock leitura = escrita ? estrutura.readLock() : null;
+        if (leitura != null) {
+            leitura.lock();
+        }
+        Alvo alvo = null;
+        try {
+            alvo = abrirArquivo(caminho, uid, escrita, leitura);
+            return alvo;
+        } finally {
+            if (alvo == null && leitura != null) {
+                leitura.unlock();
+            }
         }
+    }
 
-        String parentPath = caminho.substring(0, lastSlashIndex);
-        String name = caminho.substring(lastSlashIndex + 1);
+    private Alvo abrirArquivo(String caminho, int uid, boolean escrita, Lock leitura)
+            throws CaminhoNaoEncontradoException, PermissaoException {
+        while (true) {
+            long versao = aguardarEstrutura();
+            Alvo alvo = resolverAlvo(caminho);
+            No filho = alvo.ehRaiz() ? null : alvo.pai.consultarFilho(alvo.texto, alvo.inicio, alvo.fim);
+            if (!(filho instanceof Arquivo)) {
+                if (versaoEstrutura != versao) {
+                    continue;
+                }
+                throw new CaminhoNaoEncontradoException("Arquivo não encontrado: " + alvo.nome());
+            }
 
-        if (parentPath.isEmpty()) {
-            parentPath = "/";
+            Arquivo arquivo = (Arquivo) filho;
+            alvo.travarArquivo(arquivo, escrita);
+            if (versaoEstrutura != versao
+                    || !alvo.pai.tentarConfirmarFilho(alvo.texto, alvo.inicio, alvo.fim, arquivo)) {
+                // Não espera pelo pai com o arquivo travado: rm e mv travam na
+                // ordem inversa.
+                alvo.destravar();
+                continue;
+            }
+
+            if (!temPermissao(uid, arquivo, alvo.pai, escrita ? TabelaInodes.ESCRITA : TabelaInodes.LEITURA)) {
+                alvo.destravar();
+                throw new PermissaoException("Sem permissão de " + (escrita ? "escrita" : "leitura")
+                        + " no arquivo: " + arquivo.getMetadata().getName());
+            }
+            alvo.estrutura = leitura;
+            return alvo;
         }
+    }
 
-        return new String[] { parentPath, name };
+    /**
+     * Valida a posição do arquivo e o trecho do buffer de uma operação
+     * posicional.
+     * 
+     * @throws IllegalArgumentException  Se offset for negativo
+     * @throws IndexOutOfBoundsException Se o trecho estiver fora do buffer
+     */
+    private void validarIntervalo(long offset, byte[] buffer, int bufOff, int len) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Posição não pode ser negativa: " + offset);
+        }
+        if (bufOff < 0 || len < 0 || bufOff > buffer.length - len) {
+            throw new IndexOutOfBoundsException("Trecho fora do buffer: " + bufOff + "+" + len);
+        }
     }
 
     /**
-     * Encontra um arquivo em um diretório pelo nome.
+     * Verifica se um usuário existe.
      * 
-     * @param dir      Diretório onde procurar
-     * @param fileName Nome do arquivo
-     * @return O arquivo encontrado ou null se não existir
+     * @param usuario Nome do usuário
+     * @return Id do usuário na tabela de inodes
+     * @throws PermissaoException Se o usuário não existir
      */
-    private Arquivo encontrarArquivo(Diretorio dir, String fileName) {
-        for (Arquivo arquivo : dir.getArquivos()) {
-            if (arquivo.getMetadata().getName().equals(fileName)) {
-                return arquivo;
-            }
+    private int verificarUsuario(String usuario) throws PermissaoException {
+        Usuario encontrado = users.buscar(usuario);
+        if (encontrado == null) {
+            throw new PermissaoException("Usuário não existe: " + usuario);
         }
-        return null;
+        return encontrado.getUid();
     }
 
     /**
-     * Encontra um subdiretório em um diretório pelo nome.
+     * Valida os parâmetros para evitar NullPointerException.
      * 
-     * @param dir     Diretório onde procurar
-     * @param dirName Nome do subdiretório
-     * @return O subdiretório encontrado ou null se não existir
+     * @param params Parâmetros a serem validados
+     * @throws IllegalArgumentException Se algum parâmetro for nulo
      */
-    private Diretorio encontrarSubdiretorio(Diretorio dir, String dirName) {
-        for (Diretorio subDir : dir.getSubDiretorios()) {
-            if (subDir.getMetadata().getName().equals(dirName)) {
-                return subDir;
+    private void validarParametros(Object... params) {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) {
+                throw new IllegalArgumentException("Parâmetro " + (i + 1) + " não pode ser nulo");
+            }
+            if (params[i] instanceof String && ((String) params[i]).trim().isEmpty()) {
+                throw new IllegalArgumentException("Parâmetro " + (i + 1) + " não pode ser vazio");
             }
         }
-        return null;
     }
 
     /**
-     * Verifica se o usuário tem a permissão especificada em um diretório.
+     * Verifica se o usuário tem a permissão especificada num diretório.
      * 
-     * @param usuario   Nome do usuário
-     * @param diretorio Diretório a ser verificado
-     * @param permissao Caractere de permissão ('r', 'w' ou 'x')
+     * @param uid  Id do usuário
+     * @param dir  Diretório a ser verificado
+     * @param bits Bits exigidos (TabelaInodes.LEITURA, ESCRITA ou EXECUCAO)
      * @return true se o usuário tem a permissão, false caso contrário
      */
-    private boolean temPermissao(String usuario, Diretorio diretorio, char permissao) {
-        return temPermissao(usuario, diretorio.getMetadata(), permissao);
+    private boolean temPermissao(int uid, Diretorio dir, int bits) {
+        return temPermissao(uid, dir.getInode(), bits, dir, null);
     }
 
     /**
-     * Verifica se o usuário tem a permissão especificada.
+     * Verifica se o usuário tem a permissão especificada num arquivo.
      * 
-     * @param usuario   Nome do usuário
-     * @param metadata  Metadados do arquivo ou diretório
-     * @param permissao Caractere de permissão ('r', 'w' ou 'x')
+     * @param uid     Id do usuário
+     * @param arquivo Arquivo a ser verificado
+     * @param pai     Diretório do arquivo
+     * @param bits    Bits exigidos
      * @return true se o usuário tem a permissão, false caso contrário
      */
-    private boolean temPermissao(String usuario, Metadata metadata, char permissao) {
-        if (usuario.equals(ROOT_USER)) {
-            return true;
-        }
+    private boolean temPermissao(int uid, Arquivo arquivo, Diretorio pai, int bits) {
+        return temPermissao(uid, arquivo.getInode(), bits, pai, arquivo);
+    }
 
-        if (usuario.equals(metadata.getOwner())) {
+    /**
+     * Root e o dono podem tudo. Os demais usam a sua entrada na ACL do inode,
+     * se houver; senão, a regra do arquivo de usuários que vale para o
+     * caminho do nó, guardada no cache de permissões.
+     * 
+     * @param arquivo Arquivo verificado, ou null se o nó for dir
+     */
+    private boolean temPermissao(int uid, int inode, int bits, Diretorio dir, Arquivo arquivo) {
+        if (uid == uidRoot) {
             return true;
         }
-
-        String perms = metadata.getPermissions().getOrDefault(usuario, "");
-        return perms.contains(String.valueOf(permissao));
+        int concedidas = inodes.getEntrada(inode, uid);
+        if (concedidas == TabelaInodes.SEM_ENTRADA) {
+            No no = arquivo != null ? arquivo : dir;
+            concedidas = cachePermissoes.get(uid, no, inode, dir);
+            if (concedidas == CachePermissoes.AUSENTE) {
+                long epoca = cachePermissoes.getEpoca();
+                concedidas = regras.resolver(uid, dir, arquivo == null ? null : inodes.getNome(inode));
+                cachePermissoes.put(uid, no, inode, concedidas, epoca);
+            }
+        }
+        return (concedidas & bits) == bits;
     }
 
     /**
      * Verifica se o usuário tem permissão para escrever no diretório.
      * 
-     * @param usuario Nome do usuário
-     * @param dir     Diretório a ser verificado
+     * @param uid Id do usuário
+     * @param dir Diretório a ser verificado
      * @throws PermissaoException Se o usuário não tiver permissão de escrita
      */
-    private void verificarPermissaoEscrita(String usuario, Diretorio dir) throws PermissaoException {
-        if (!temPermissao(usuario, dir.getMetadata(), 'w')) {
-            throw new PermissaoException("Usuário " + usuario + " não tem permissão de escrita em " +
+    private void verificarPermissaoEscrita(int uid, Diretorio dir) throws PermissaoException {
+        if (!temPermissao(uid, dir, TabelaInodes.ESCRITA)) {
+            throw new PermissaoException("Usuário " + inodes.nomeUsuario(uid) + " não tem permissão de escrita em " +
                     dir.getMetadata().getName());
         }
     }
@@ -734,14 +1975,83 @@ public final class FileSystemImpl implements IFileSystem {
     /**
      * Verifica se o usuário tem permissão para ler o diretório.
      * 
-     * @param usuario Nome do usuário
-     * @param dir     Diretório a ser verificado
+     * @param uid Id do usuário
+     * @param dir Diretório a ser verificado
      * @throws PermissaoException Se o usuário não tiver permissão de leitura
      */
-    private void verificarPermissaoLeitura(String usuario, Diretorio dir) throws PermissaoException {
-        if (!temPermissao(usuario, dir.getMetadata(), 'r')) {
-            throw new PermissaoException("Usuário " + usuario + " não tem permissão de leitura em " +
+    private void verificarPermissaoLeitura(int uid, Diretorio dir) throws PermissaoException {
+        if (!temPermissao(uid, dir, TabelaInodes.LEITURA)) {
+            throw new PermissaoException("Usuário " + inodes.nomeUsuario(uid) + " não tem permissão de leitura em " +
                     dir.getMetadata().getName());
         }
     }
+
+    // Resultado da resolução de um caminho: o diretório pai e o trecho de texto
+    // com o nome do item. pai é null quando o caminho indica a raiz.
+    // carimbo guarda a trava do pai, ou de arquivoAberto, enquanto ela estiver
+    // com o alvo; estrutura, o lado de leitura da trava de estrutura, quando
+    // travarAlvo ou abrirArquivo o pegou.
+    private static final class Alvo {
+        private final Diretorio pai;
+        private final String texto;
+        private final int inicio;
+        private final int fim;
+        private Arquivo arquivoAberto;
+        private long carimbo;
+        private Lock estrutura;
+
+        private Alvo(Diretorio pai, String texto, int inicio, int fim) {
+            this.pai = pai;
+            this.texto = texto;
+            this.inicio = inicio;
+            this.fim = fim;
+        }
+
+        private boolean ehRaiz() {
+            return pai == null;
+        }
+
+        private void travar(boolean escrita) {
+            carimbo = escrita ? pai.getTrava().writeLock() : pai.getTrava().readLock();
+        }
+
+        private void travarArquivo(Arquivo arquivo, boolean escrita) {
+            arquivoAberto = arquivo;
+            carimbo = escrita ? arquivo.getTrava().writeLock() : arquivo.getTrava().readLock();
+        }
+
+        private void destravar() {
+            if (carimbo != 0) {
+                if (arquivoAberto != null) {
+                    arquivoAberto.getTrava().unlock(carimbo);
+                    arquivoAberto = null;
+                } else {
+                    pai.getTrava().unlock(carimbo);
+                }
+                carimbo = 0;
+            }
+            if (estrutura != null) {
+                estrutura.unlock();
+                estrutura = null;
+            }
+        }
+
+        private No filho() {
+            return pai == null ? null : pai.getFilho(texto, inicio, fim);
+        }
+
+        private Arquivo arquivo() {
+            No filho = filho();
+            return filho instanceof Arquivo ? (Arquivo) filho : null;
+        }
+
+        private Diretorio subDiretorio() {
+            No filho = filho();
+            return filho instanceof Diretorio ? (Diretorio) filho : null;
+        }
+
+        private String nome() {
+            return texto.substring(inicio, fim);
+        }
+    }
 }
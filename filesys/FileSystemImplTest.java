@@ -2,13 +2,49 @@ package filesys;
 
 import static org.junit.Assert.*;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import exception.CaminhoJaExistenteException;
 import exception.CaminhoNaoEncontradoException;
+import exception.EspacoInsuficienteException;
 import exception.PermissaoException;
 
+import carga.Gravador;
+import carga.GeradorCarga;
+import carga.Relatorio;
+import carga.Reprodutor;
+import carga.Trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class FileSystemImplTest {
 
@@ -16,6 +52,9 @@ public class FileSystemImplTest {
     private static final String TEST_USER = "testuser";
     private static final String OTHER_USER = "otheruser";
 
+    @Rule
+    public TemporaryFolder pastaTemporaria = new TemporaryFolder();
+
     private IFileSystem fileSystem;
 
     @Before
@@ -611,6 +650,1846 @@ public class FileSystemImplTest {
 
 
 
+    @Test
+    public void testDiretorioComMuitosItens() throws Exception {
+        fileSystem.mkdir("/grande", ROOT_USER);
+        for (int i = 0; i < 5000; i++) {
+            fileSystem.touch("/grande/f" + i, ROOT_USER);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            fileSystem.rm("/grande/f" + i, ROOT_USER, false);
+        }
+
+        for (int i = 1; i < 5000; i += 2) {
+            fileSystem.read("/grande/f" + i, ROOT_USER, new byte[0]);
+        }
+        try {
+            fileSystem.read("/grande/f4000", ROOT_USER, new byte[0]);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+    }
+
+    @Test
+    public void testListagemMantemOrdemDeInsercao() throws Exception {
+        DispositivoBlocos dispositivo = new DispositivoBlocos();
+        Diretorio dir = new Diretorio(ROOT_USER, "dir");
+        dir.addFile(new Arquivo("c", ROOT_USER, dispositivo));
+        dir.addSubDiretorio(new Diretorio(ROOT_USER, "a"));
+        dir.addFile(new Arquivo("b", ROOT_USER, dispositivo));
+        dir.removeFilho("c");
+        dir.addFile(new Arquivo("c", ROOT_USER, dispositivo));
+
+        StringBuilder nomes = new StringBuilder();
+        for (No filho : dir.getFilhos()) {
+            nomes.append(filho.getMetadata().getName());
+        }
+        assertEquals("abc", nomes.toString());
+        assertNotNull(dir.getSubDiretorio("a"));
+        assertNull(dir.getArquivo("a"));
+    }
+
+    @Test
+    public void testNosAvulsosTemTabelaPropria() {
+        // Nós criados sem um FileSystemImpl não deixam metadados numa tabela
+        // global: cada um tem a sua, coletada junto com ele.
+        Diretorio dir = new Diretorio(ROOT_USER, "dir");
+        Arquivo arquivo = new Arquivo("a", ROOT_USER, new DispositivoBlocos());
+        Metadata metadata = new Metadata("m", "outro", 10);
+        assertNotSame(dir.getMetadata().getTabela(), arquivo.getMetadata().getTabela());
+        assertNotSame(arquivo.getMetadata().getTabela(), metadata.getTabela());
+        assertEquals(1, arquivo.getMetadata().getTabela().getInodesEmUso());
+        assertEquals("m", metadata.getName());
+        assertEquals("outro", metadata.getOwner());
+        assertEquals(10, metadata.getSize());
+
+        arquivo.write(new byte[5000], false);
+        assertEquals(5000, arquivo.getMetadata().getSize());
+        assertEquals("dir", dir.getMetadata().getName());
+    }
+
+    @Test
+    public void testMvParaOMesmoCaminho() throws Exception {
+        fileSystem.touch("/arquivo", ROOT_USER);
+        fileSystem.write("/arquivo", ROOT_USER, false, "dados".getBytes());
+
+        fileSystem.mv("/arquivo", "/arquivo", ROOT_USER);
+
+        byte[] buffer = new byte[5];
+        fileSystem.read("/arquivo", ROOT_USER, buffer);
+        assertArrayEquals("dados".getBytes(), buffer);
+    }
+
+    @Test
+    public void testCacheCaminhosContabilizaAcertos() throws Exception {
+        fileSystem.mkdir("/a", ROOT_USER);
+        fileSystem.mkdir("/a/b", ROOT_USER);
+        fileSystem.mkdir("/a/b/c", ROOT_USER);
+
+        CacheCaminhos cache = ((FileSystemImpl) fileSystem).getCacheCaminhos();
+        long acertosAntes = cache.getAcertos();
+        for (int i = 0; i < 10; i++) {
+            fileSystem.touch("/a/b/c/f" + i, ROOT_USER);
+        }
+        assertTrue(cache.getAcertos() - acertosAntes >= 9);
+    }
+
+    @Test
+    public void testCacheCaminhosInvalidadoPorMvERm() throws Exception {
+        fileSystem.mkdir("/a", ROOT_USER);
+        fileSystem.mkdir("/a/b", ROOT_USER);
+        fileSystem.touch("/a/b/f", ROOT_USER);
+        fileSystem.read("/a/b/f", ROOT_USER, new byte[0]);
+
+        fileSystem.mv("/a", "/z", ROOT_USER);
+        fileSystem.read("/z/b/f", ROOT_USER, new byte[0]);
+        try {
+            fileSystem.read("/a/b/f", ROOT_USER, new byte[0]);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+
+        fileSystem.rm("/z", ROOT_USER, true);
+        fileSystem.mkdir("/z", ROOT_USER);
+        try {
+            fileSystem.read("/z/b/f", ROOT_USER, new byte[0]);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+    }
+
+    @Test
+    public void testCacheCaminhosConcorrenteComMv() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.mkdir("/a", ROOT_USER);
+        fs.mkdir("/a/b", ROOT_USER);
+        fs.touch("/a/b/f", ROOT_USER);
+        fs.write("/a/b/f", ROOT_USER, false, "A".getBytes());
+        fs.mkdir("/x", ROOT_USER);
+        fs.mkdir("/x/b", ROOT_USER);
+        fs.touch("/x/b/f", ROOT_USER);
+        fs.write("/x/b/f", ROOT_USER, false, "X".getBytes());
+
+        int leitores = 3;
+        int trocas = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(leitores + 1);
+        try {
+            AtomicBoolean trocando = new AtomicBoolean(true);
+            List<Future<Void>> leituras = new ArrayList<>();
+            for (int t = 0; t < leitores; t++) {
+                leituras.add(executor.submit(() -> {
+                    byte[] buffer = new byte[1];
+                    while (trocando.get()) {
+                        for (String caminho : new String[] { "/a/b/f", "/x/b/f" }) {
+                            try {
+                                fs.read(caminho, ROOT_USER, 0, buffer, 0, 1);
+                            } catch (CaminhoNaoEncontradoException e) {
+                                // no meio de uma troca
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            // Troca /a e /x de lugar enquanto os leitores consultam o cache
+            // sem travas; uma entrada que sobrevivesse a uma troca apareceria
+            // abaixo.
+            for (int i = 0; i < trocas; i++) {
+                fs.mv("/a", "/t", ROOT_USER);
+                fs.mv("/x", "/a", ROOT_USER);
+                fs.mv("/t", "/x", ROOT_USER);
+            }
+            trocando.set(false);
+            for (Future<Void> leitura : leituras) {
+                leitura.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Número par de trocas: cada arquivo voltou ao lugar.
+        byte[] buffer = new byte[1];
+        fs.read("/a/b/f", ROOT_USER, buffer);
+        assertEquals('A', buffer[0]);
+        fs.read("/x/b/f", ROOT_USER, buffer);
+        assertEquals('X', buffer[0]);
+        assertTrue(fs.getCacheCaminhos().getAcertos() > 0);
+    }
+
+    @Test
+    public void testCacheCaminhosDespejaQuandoCheio() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl(4);
+        for (int i = 0; i < 16; i++) {
+            fs.mkdir("/d" + i, ROOT_USER);
+            fs.touch("/d" + i + "/f", ROOT_USER);
+        }
+        for (int i = 0; i < 16; i++) {
+            fs.read("/d" + i + "/f", ROOT_USER, new byte[0]);
+        }
+        assertEquals(4, fs.getCacheCaminhos().getTamanho());
+    }
+
+    @Test
+    public void testCaminhosNaoNormalizados() throws Exception {
+        fileSystem.mkdir("/a", ROOT_USER);
+        fileSystem.mkdir("//a//b/", ROOT_USER);
+        fileSystem.touch("/a/./b/../b/f", ROOT_USER);
+        fileSystem.write("/a/b/f", ROOT_USER, false, "x".getBytes());
+
+        byte[] buffer = new byte[1];
+        fileSystem.read("/a/b/../../a/b//f", ROOT_USER, buffer);
+        assertArrayEquals("x".getBytes(), buffer);
+
+        fileSystem.rm("/a/b/..", ROOT_USER, true);
+        try {
+            fileSystem.ls("/a", ROOT_USER, false);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+    }
+
+    @Test
+    public void testCursorCaminhoIgnoraBarrasRepetidas() {
+        CursorCaminho cursor = new CursorCaminho("//a/./bc//", 0, 10);
+        StringBuilder segmentos = new StringBuilder();
+        while (cursor.proximo()) {
+            segmentos.append('[').append(cursor.segmento()).append(']');
+        }
+        assertEquals("[a][.][bc]", segmentos.toString());
+        assertTrue(CursorCaminho.ehCanonico("/a/bc", 0, 5));
+        assertFalse(CursorCaminho.ehCanonico("/a/./bc", 0, 7));
+        assertFalse(CursorCaminho.ehCanonico("/a/", 0, 3));
+    }
+
+    @Test
+    public void testWriteUsaBlocosDeTamanhoFixo() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.touch("/grande", ROOT_USER);
+
+        byte[] dados = new byte[Arquivo.getBlockSize() * 2 + 100];
+        for (int i = 0; i < dados.length; i++) {
+            dados[i] = (byte) i;
+        }
+        fs.write("/grande", ROOT_USER, false, Arrays.copyOf(dados, 10));
+        fs.write("/grande", ROOT_USER, true, Arrays.copyOfRange(dados, 10, dados.length));
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+
+        byte[] buffer = new byte[dados.length];
+        fs.read("/grande", ROOT_USER, buffer);
+        assertArrayEquals(dados, buffer);
+
+        fs.write("/grande", ROOT_USER, false, new byte[5]);
+        assertEquals(1, fs.getDispositivo().getBlocosEmUso());
+    }
+
+    @Test
+    public void testRmDevolveBlocosAoDispositivo() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.mkdir("/dir", ROOT_USER);
+        fs.touch("/dir/a", ROOT_USER);
+        fs.write("/dir/a", ROOT_USER, false, new byte[10000]);
+        fs.cp("/dir/a", "/b", ROOT_USER, false);
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+
+        fs.rm("/dir", ROOT_USER, true);
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+
+        byte[] buffer = new byte[10000];
+        fs.read("/b", ROOT_USER, buffer);
+        assertArrayEquals(new byte[10000], buffer);
+    }
+
+    @Test
+    public void testCpCompartilhaBlocosAteAEscrita() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.mkdir("/origem", ROOT_USER);
+        fs.touch("/origem/a", ROOT_USER);
+        byte[] dados = new byte[Arquivo.getBlockSize() * 3];
+        Arrays.fill(dados, (byte) 'a');
+        fs.write("/origem/a", ROOT_USER, false, dados);
+
+        fs.cp("/origem", "/copia", ROOT_USER, true);
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+
+        fs.write("/copia/a", ROOT_USER, 1L, "b".getBytes());
+        assertEquals(4, fs.getDispositivo().getBlocosEmUso());
+
+        byte[] buffer = new byte[dados.length];
+        fs.read("/origem/a", ROOT_USER, buffer);
+        assertArrayEquals(dados, buffer);
+        fs.read("/copia/a", ROOT_USER, buffer);
+        assertEquals('b', buffer[1]);
+
+        fs.rm("/origem", ROOT_USER, true);
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+        fs.write("/copia/a", ROOT_USER, false, new byte[0]);
+        assertEquals(0, fs.getDispositivo().getBlocosEmUso());
+    }
+
+    @Test
+    public void testDeduplicacaoDeBlocosIdenticos() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl(new ArmazenamentoHeap(), true);
+        int tamanhoBloco = Arquivo.getBlockSize();
+        byte[] dados = new byte[tamanhoBloco * 4];
+        Arrays.fill(dados, 0, tamanhoBloco * 2, (byte) 7);
+
+        fs.touch("/a", ROOT_USER);
+        fs.touch("/b", ROOT_USER);
+        fs.write("/a", ROOT_USER, false, dados);
+        fs.write("/b", ROOT_USER, false, dados);
+
+        DispositivoBlocos dispositivo = fs.getDispositivo();
+        assertEquals(2, dispositivo.getBlocosEmUso());
+        assertEquals(4.0, dispositivo.getRazaoDeduplicacao(), 0.0001);
+        assertEquals(6L * tamanhoBloco, dispositivo.getBytesEconomizados());
+
+        fs.write("/a", ROOT_USER, 1L, "x".getBytes());
+        byte[] buffer = new byte[dados.length];
+        fs.read("/b", ROOT_USER, buffer);
+        assertArrayEquals(dados, buffer);
+        fs.read("/a", ROOT_USER, buffer);
+        assertEquals('x', buffer[1]);
+        assertEquals(3, dispositivo.getBlocosEmUso());
+
+        fs.write("/b", ROOT_USER, true, Arrays.copyOf(dados, tamanhoBloco));
+        fs.rm("/a", ROOT_USER, false);
+        fs.rm("/b", ROOT_USER, false);
+        assertEquals(0, dispositivo.getBlocosEmUso());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDispositivoDetectaLiberacaoDupla() {
+        DispositivoBlocos dispositivo = new DispositivoBlocos(1);
+        int bloco = dispositivo.alocar();
+        dispositivo.liberar(bloco);
+        dispositivo.liberar(bloco);
+    }
+
+    @Test
+    public void testArmazenamentoForaDoHeap() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl(new ArmazenamentoDireto(64));
+        fs.touch("/arquivo", ROOT_USER);
+
+        byte[] dados = new byte[Arquivo.getBlockSize() * 70 + 7];
+        for (int i = 0; i < dados.length; i++) {
+            dados[i] = (byte) (i * 31);
+        }
+        fs.write("/arquivo", ROOT_USER, false, dados);
+        fs.cp("/arquivo", "/copia", ROOT_USER, false);
+
+        byte[] buffer = new byte[dados.length];
+        fs.read("/copia", ROOT_USER, buffer);
+        assertArrayEquals(dados, buffer);
+    }
+
+    @Test
+    public void testReadPosicionalEmPartes() throws Exception {
+        fileSystem.touch("/arquivo", ROOT_USER);
+        byte[] dados = new byte[Arquivo.getBlockSize() * 3 + 123];
+        for (int i = 0; i < dados.length; i++) {
+            dados[i] = (byte) (i % 251);
+        }
+        fileSystem.write("/arquivo", ROOT_USER, false, dados);
+
+        byte[] lido = new byte[dados.length];
+        byte[] pagina = new byte[1000];
+        long offset = 0;
+        int n;
+        while ((n = fileSystem.read("/arquivo", ROOT_USER, offset, pagina, 0, pagina.length)) > 0) {
+            System.arraycopy(pagina, 0, lido, (int) offset, n);
+            offset += n;
+        }
+        assertEquals(dados.length, offset);
+        assertArrayEquals(dados, lido);
+    }
+
+    @Test
+    public void testReadPosicionalNoMeioDoBuffer() throws Exception {
+        fileSystem.touch("/arquivo", ROOT_USER);
+        fileSystem.write("/arquivo", ROOT_USER, false, "0123456789".getBytes());
+
+        byte[] buffer = new byte[6];
+        assertEquals(4, fileSystem.read("/arquivo", ROOT_USER, 6, buffer, 2, 4));
+        assertArrayEquals(new byte[] { 0, 0, '6', '7', '8', '9' }, buffer);
+        assertEquals(0, fileSystem.read("/arquivo", ROOT_USER, 10, buffer, 0, 6));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testReadPosicionalForaDoBuffer() throws Exception {
+        fileSystem.touch("/arquivo", ROOT_USER);
+        fileSystem.read("/arquivo", ROOT_USER, 0, new byte[4], 2, 4);
+    }
+
+    @Test
+    public void testWritePosicionalAlteraSomenteOTrecho() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.touch("/arquivo", ROOT_USER);
+        byte[] dados = new byte[Arquivo.getBlockSize() * 4];
+        Arrays.fill(dados, (byte) 'a');
+        fs.write("/arquivo", ROOT_USER, false, dados);
+        int blocosAntes = fs.getDispositivo().getBlocosEmUso();
+
+        long offset = Arquivo.getBlockSize() * 2L - 5;
+        fs.write("/arquivo", ROOT_USER, offset, "0123456789".getBytes());
+
+        assertEquals(blocosAntes, fs.getDispositivo().getBlocosEmUso());
+        byte[] buffer = new byte[dados.length];
+        assertEquals(dados.length, fs.read("/arquivo", ROOT_USER, 0, buffer, 0, buffer.length));
+        System.arraycopy("0123456789".getBytes(), 0, dados, (int) offset, 10);
+        assertArrayEquals(dados, buffer);
+    }
+
+    @Test
+    public void testWritePosicionalAlemDoFinalCriaBuraco() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.touch("/esparso", ROOT_USER);
+        fs.write("/esparso", ROOT_USER, false, "abc".getBytes());
+
+        long offset = Arquivo.getBlockSize() * 10L + 1;
+        fs.write("/esparso", ROOT_USER, offset, "xyz".getBytes());
+
+        assertEquals(2, fs.getDispositivo().getBlocosEmUso());
+        byte[] buffer = new byte[(int) offset + 3];
+        assertEquals(buffer.length, fs.read("/esparso", ROOT_USER, 0, buffer, 0, buffer.length));
+        byte[] esperado = new byte[buffer.length];
+        System.arraycopy("abc".getBytes(), 0, esperado, 0, 3);
+        System.arraycopy("xyz".getBytes(), 0, esperado, (int) offset, 3);
+        assertArrayEquals(esperado, buffer);
+
+        fs.write("/esparso", ROOT_USER, true, "!".getBytes());
+        assertEquals(1, fs.read("/esparso", ROOT_USER, offset + 3, buffer, 0, 10));
+        assertEquals('!', buffer[0]);
+    }
+
+    @Test
+    public void testWritePosicionalEmPosicoesDistantes() throws Exception {
+        Path arquivoSnapshot = pastaTemporaria.getRoot().toPath().resolve("distante.snapshot");
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        fs.touch("/distante", ROOT_USER);
+
+        // Buracos não ocupam memória: um byte a 1 TiB e outro no último
+        // byte possível ocupam dois blocos e nada mais.
+        long teraByte = 1L << 40;
+        fs.write("/distante", ROOT_USER, teraByte, new byte[] { 1 });
+        fs.write("/distante", ROOT_USER, Arquivo.TAMANHO_MAXIMO - 1, new byte[] { 2 });
+        assertEquals(Arquivo.TAMANHO_MAXIMO, fs.tamanho("/distante", ROOT_USER));
+        assertEquals(2, fs.getDispositivo().getBlocosEmUso());
+        byte[] buffer = new byte[3];
+        assertEquals(3, fs.read("/distante", ROOT_USER, teraByte - 1, buffer, 0, 3));
+        assertArrayEquals(new byte[] { 0, 1, 0 }, buffer);
+        assertEquals(1, fs.read("/distante", ROOT_USER, Arquivo.TAMANHO_MAXIMO - 1, buffer, 0, 3));
+        assertEquals(2, buffer[0]);
+        assertEquals(0, fs.read("/distante", ROOT_USER, Long.MAX_VALUE - 1, buffer, 0, 3));
+
+        // Além do último índice de bloco, a escrita é recusada sem alterar
+        // nada, inclusive quando posição + tamanho transbordaria.
+        for (long offset : new long[] { Arquivo.TAMANHO_MAXIMO, Arquivo.TAMANHO_MAXIMO - 1, Long.MAX_VALUE - 1 }) {
+            try {
+                fs.write("/distante", ROOT_USER, offset, new byte[2]);
+                fail("Deveria lançar IllegalArgumentException em " + offset);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        try {
+            fs.writev("/distante", ROOT_USER, Arquivo.TAMANHO_MAXIMO, ByteBuffer.allocate(1));
+            fail("Deveria lançar IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            fs.write("/distante", ROOT_USER, true, new byte[1]);
+            fail("Deveria lançar IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(Arquivo.TAMANHO_MAXIMO, fs.tamanho("/distante", ROOT_USER));
+
+        // Cópia e snapshot também guardam só os blocos existentes.
+        fs.cp("/distante", "/copia", ROOT_USER, false);
+        fs.write("/copia", ROOT_USER, teraByte, new byte[] { 3 });
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+        fs.gravarSnapshot(arquivoSnapshot).get();
+        FileSystemImpl restaurado = FileSystemImpl.restaurarSnapshot(arquivoSnapshot);
+        assertEquals(3, restaurado.getDispositivo().getBlocosEmUso());
+        assertEquals(1, restaurado.read("/distante", ROOT_USER, teraByte, buffer, 0, 1));
+        assertEquals(1, buffer[0]);
+        assertEquals(1, restaurado.read("/copia", ROOT_USER, teraByte, buffer, 0, 1));
+        assertEquals(3, buffer[0]);
+        assertEquals(1, restaurado.read("/copia", ROOT_USER, Arquivo.TAMANHO_MAXIMO - 1, buffer, 0, 1));
+        assertEquals(2, buffer[0]);
+
+        // Truncar solta os blocos além do novo final; o último continua em
+        // uso pela cópia.
+        fs.truncar("/distante", ROOT_USER, teraByte + 1);
+        assertEquals(3, fs.getDispositivo().getBlocosEmUso());
+        fs.truncar("/distante", ROOT_USER, teraByte);
+        assertEquals(2, fs.getDispositivo().getBlocosEmUso());
+        fs.rm("/copia", ROOT_USER, false);
+        assertEquals(0, fs.getDispositivo().getBlocosEmUso());
+    }
+
+    @Test(expected = PermissaoException.class)
+    public void testWritePosicionalSemPermissao() throws Exception {
+        fileSystem.touch("/restrito", ROOT_USER);
+        fileSystem.chmod("/restrito", ROOT_USER, TEST_USER, "r--");
+        fileSystem.write("/restrito", TEST_USER, 0L, "x".getBytes());
+    }
+
+    @Test(expected = PermissaoException.class)
+    public void testMvParaDentroDeSiMesmo() throws Exception {
+        fileSystem.mkdir("/a", ROOT_USER);
+        fileSystem.mkdir("/a/b", ROOT_USER);
+        fileSystem.mv("/a", "/a/b/a", ROOT_USER);
+    }
+
+    @Test(timeout = 30000)
+    public void testOperacoesConcorrentesEmSubarvores() throws Exception {
+        int threads = 8;
+        int rodadas = 200;
+        for (int t = 0; t < threads; t++) {
+            fileSystem.mkdir("/t" + t, ROOT_USER);
+        }
+        fileSystem.mkdir("/x", ROOT_USER);
+        fileSystem.mkdir("/y", ROOT_USER);
+        fileSystem.mkdir("/x/movido", ROOT_USER);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            List<Future<?>> tarefas = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String dir = "/t" + t;
+                tarefas.add(executor.submit((Callable<Void>) () -> {
+                    byte[] buffer = new byte[16];
+                    for (int i = 0; i < rodadas; i++) {
+                        String arquivo = dir + "/f" + i;
+                        fileSystem.touch(arquivo, ROOT_USER);
+                        fileSystem.write(arquivo, ROOT_USER, false, ("dado" + i).getBytes());
+                        fileSystem.read(arquivo, ROOT_USER, buffer);
+                        assertEquals("dado" + i, new String(buffer).trim());
+                        if (i % 2 == 0) {
+                            fileSystem.rm(arquivo, ROOT_USER, false);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            // Move um diretório de um lado para o outro enquanto as outras
+            // threads trabalham.
+            tarefas.add(executor.submit((Callable<Void>) () -> {
+                for (int i = 0; i < rodadas; i++) {
+                    fileSystem.mv("/x/movido", "/y/movido", ROOT_USER);
+                    fileSystem.mv("/y/movido", "/x/movido", ROOT_USER);
+                }
+                return null;
+            }));
+            for (Future<?> tarefa : tarefas) {
+                tarefa.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        byte[] buffer = new byte[16];
+        for (int t = 0; t < threads; t++) {
+            fileSystem.read("/t" + t + "/f1", ROOT_USER, buffer);
+            assertEquals("dado1", new String(buffer).trim());
+        }
+        fileSystem.ls("/x/movido", ROOT_USER, false);
+        assertEquals(threads * rodadas / 2, fs.getDispositivo().getBlocosEmUso());
+    }
+
+    @Test(timeout = 30000)
+    public void testLeituraSemTravaVeConteudoConsistente() throws Exception {
+        int tamanho = Arquivo.getBlockSize() * 3;
+        byte[] as = new byte[tamanho];
+        byte[] bs = new byte[tamanho];
+        Arrays.fill(as, (byte) 'a');
+        Arrays.fill(bs, (byte) 'b');
+        fileSystem.mkdir("/dados", ROOT_USER);
+        fileSystem.touch("/dados/arquivo", ROOT_USER);
+        fileSystem.write("/dados/arquivo", ROOT_USER, false, as);
+
+        int leitores = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(leitores + 1);
+        try {
+            List<Future<?>> tarefas = new ArrayList<>();
+            tarefas.add(executor.submit((Callable<Void>) () -> {
+                for (int i = 0; i < 2000; i++) {
+                    fileSystem.write("/dados/arquivo", ROOT_USER, false, i % 2 == 0 ? bs : as);
+                    fileSystem.mkdir("/dados/d" + i, ROOT_USER);
+                }
+                return null;
+            }));
+            for (int t = 0; t < leitores; t++) {
+                tarefas.add(executor.submit((Callable<Void>) () -> {
+                    byte[] buffer = new byte[tamanho];
+                    for (int i = 0; i < 2000; i++) {
+                        assertEquals(tamanho, fileSystem.read("/dados/arquivo", ROOT_USER, 0, buffer, 0, tamanho));
+                        for (byte b : buffer) {
+                            assertEquals(buffer[0], b);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> tarefa : tarefas) {
+                tarefa.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testAppendsConcorrentesNoMesmoDiretorio() throws Exception {
+        int threads = 8;
+        int registros = 300;
+        int tamanhoRegistro = 100;
+        fileSystem.mkdir("/logs", ROOT_USER);
+        fileSystem.touch("/logs/comum", ROOT_USER);
+        for (int t = 0; t < threads; t++) {
+            fileSystem.touch("/logs/t" + t, ROOT_USER);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tarefas = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String proprio = "/logs/t" + t;
+                byte[] registro = new byte[tamanhoRegistro];
+                Arrays.fill(registro, (byte) ('a' + t));
+                tarefas.add(executor.submit((Callable<Void>) () -> {
+                    for (int i = 0; i < registros; i++) {
+                        fileSystem.write("/logs/comum", ROOT_USER, true, registro);
+                        fileSystem.write(proprio, ROOT_USER, true, registro);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> tarefa : tarefas) {
+                tarefa.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Nenhum append se perdeu nem se misturou com outro.
+        int total = threads * registros * tamanhoRegistro;
+        byte[] buffer = new byte[total];
+        assertEquals(total, fileSystem.read("/logs/comum", ROOT_USER, 0, buffer, 0, total));
+        int[] porThread = new int[threads];
+        for (int inicio = 0; inicio < total; inicio += tamanhoRegistro) {
+            for (int i = inicio; i < inicio + tamanhoRegistro; i++) {
+                assertEquals(buffer[inicio], buffer[i]);
+            }
+            porThread[buffer[inicio] - 'a']++;
+        }
+        for (int t = 0; t < threads; t++) {
+            assertEquals(registros, porThread[t]);
+            assertEquals(registros * tamanhoRegistro,
+                    fileSystem.read("/logs/t" + t, ROOT_USER, 0, buffer, 0, total));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testMvCruzadoNaoCriaCiclo() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            FileSystemImpl fs = new FileSystemImpl();
+            fs.mkdir("/a", ROOT_USER);
+            fs.mkdir("/b", ROOT_USER);
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<Boolean> aParaB = executor.submit(() -> moverIgnorandoFalha(fs, "/a", "/b/a"));
+                Future<Boolean> bParaA = executor.submit(() -> moverIgnorandoFalha(fs, "/b", "/a/b"));
+                assertTrue(aParaB.get() ^ bParaA.get());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static boolean moverIgnorandoFalha(IFileSystem fs, String origem, String destino) {
+        try {
+            fs.mv(origem, destino, ROOT_USER);
+            return true;
+        } catch (CaminhoNaoEncontradoException | PermissaoException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testJournalReconstroiArvore() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        FileSystemImpl original = new FileSystemImpl();
+        original.ativarJournal(arquivoJournal, 5);
+        original.addUser(TEST_USER);
+        original.mkdir("/a", ROOT_USER);
+        original.chmod("/a", ROOT_USER, TEST_USER, "rwx");
+        original.mkdir("/a/b", TEST_USER);
+        original.touch("/a/b/f", TEST_USER);
+        original.write("/a/b/f", TEST_USER, false, "conteudo".getBytes());
+        original.write("/a/b/f", TEST_USER, 3, "TEU".getBytes());
+        original.cp("/a", "/c", ROOT_USER, true);
+        original.write("/a/b/f", TEST_USER, true, "!".getBytes());
+        original.mv("/c/b/f", "/c/g", ROOT_USER);
+        original.touch("/a/temp", ROOT_USER);
+        original.rm("/a/temp", ROOT_USER, false);
+        assertTrue(original.getJournal().getRegistros() >= 12);
+        original.fecharJournal();
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            byte[] buffer = new byte[9];
+            reconstruido.read("/a/b/f", TEST_USER, buffer);
+            assertEquals("conTEUdo!", new String(buffer));
+
+            buffer = new byte[8];
+            reconstruido.read("/c/g", ROOT_USER, buffer);
+            assertEquals("conTEUdo", new String(buffer));
+
+            reconstruido.touch("/a/novo", TEST_USER);
+            try {
+                reconstruido.read("/a/temp", ROOT_USER, new byte[1]);
+                fail("Deveria lançar CaminhoNaoEncontradoException");
+            } catch (CaminhoNaoEncontradoException e) {
+            }
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testJournalDescartaRegistroIncompleto() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        FileSystemImpl original = new FileSystemImpl();
+        original.ativarJournal(arquivoJournal, 5);
+        original.mkdir("/dir", ROOT_USER);
+        original.fecharJournal();
+        long tamanhoValido = Files.size(arquivoJournal);
+
+        // Simula uma queda no meio da gravação do próximo registro.
+        Files.write(arquivoJournal, new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        assertEquals(tamanhoValido, Files.size(arquivoJournal));
+        reconstruido.touch("/dir/f", ROOT_USER);
+        reconstruido.fecharJournal();
+
+        FileSystemImpl terceiro = new FileSystemImpl();
+        terceiro.ativarJournal(arquivoJournal, 5);
+        try {
+            terceiro.read("/dir/f", ROOT_USER, new byte[0]);
+        } finally {
+            terceiro.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testJournalGravaDadosGrandesEmOrdem() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        FileSystemImpl original = new FileSystemImpl();
+        // Intervalo longo o bastante para os registros pequenos ainda estarem
+        // na fila quando os grandes são gravados direto.
+        original.ativarJournal(arquivoJournal, 200);
+        original.touch("/f", ROOT_USER);
+        byte[] grande = new byte[Journal.TAMANHO_MAXIMO_COPIADO * 3 + 5];
+        for (int i = 0; i < grande.length; i++) {
+            grande[i] = (byte) i;
+        }
+        ByteBuffer direto = ByteBuffer.allocateDirect(Journal.TAMANHO_MAXIMO_COPIADO + 1);
+        while (direto.hasRemaining()) {
+            direto.put((byte) 7);
+        }
+        direto.flip();
+
+        original.escrever("/f", ROOT_USER, 0, true, "a".getBytes(), 0, 1);
+        original.escrever("/f", ROOT_USER, 0, true, grande, 0, grande.length);
+        // O journal já gravou os bytes; o chamador pode reutilizar o array.
+        Arrays.fill(grande, (byte) 0);
+        original.escrever("/f", ROOT_USER, 0, true, "b".getBytes(), 0, 1);
+        original.writev("/f", ROOT_USER, true, direto);
+        byte[] esperado = new byte[(int) original.tamanho("/f", ROOT_USER)];
+        original.read("/f", ROOT_USER, esperado);
+        original.fecharJournal();
+
+        try {
+            Journal.verificarTamanho(Integer.MAX_VALUE, ROOT_USER, "/f");
+            fail("Deveria lançar IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            byte[] lido = new byte[esperado.length];
+            reconstruido.read("/f", ROOT_USER, lido);
+            assertArrayEquals(esperado, lido);
+            assertEquals('a', lido[0]);
+            assertEquals(2, lido[3]);
+            assertEquals('b', lido[grande.length + 1]);
+            assertEquals(7, lido[lido.length - 1]);
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testJournalAgrupaFsyncs() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.ativarJournal(pastaTemporaria.getRoot().toPath().resolve("fs.journal"), 20);
+        int threads = 8;
+        int operacoesPorThread = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> resultados = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String dir = "/d" + t;
+                resultados.add(executor.submit(() -> {
+                    fs.mkdir(dir, ROOT_USER);
+                    for (int i = 1; i < operacoesPorThread; i++) {
+                        fs.touch(dir + "/f" + i, ROOT_USER);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> resultado : resultados) {
+                resultado.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Journal journal = fs.getJournal();
+        assertEquals(threads * operacoesPorThread, journal.getRegistros());
+        assertTrue(journal.getSincronizacoes() < journal.getRegistros());
+        fs.fecharJournal();
+    }
+
+    @Test
+    public void testJournalReproduzWriteConcorrenteComMv() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        FileSystemImpl original = new FileSystemImpl();
+        original.ativarJournal(arquivoJournal, 1);
+        original.mkdir("/a", ROOT_USER);
+        original.touch("/a/f", ROOT_USER);
+        int movimentos = 500;
+        List<String> criados;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AtomicBoolean movendo = new AtomicBoolean(true);
+            Future<List<String>> escritas = executor.submit(() -> {
+                List<String> tocados = new ArrayList<>();
+                for (int i = 0; movendo.get(); i++) {
+                    try {
+                        original.write("/a/f", ROOT_USER, true, new byte[] { (byte) i });
+                    } catch (CaminhoNaoEncontradoException e) {
+                        // /a estava em /b
+                    }
+                    try {
+                        original.touch("/a/t" + i, ROOT_USER);
+                        tocados.add("/a/t" + i);
+                    } catch (PermissaoException e) {
+                        // /a estava em /b
+                    }
+                }
+                return tocados;
+            });
+            Future<Void> mvs = executor.submit(() -> {
+                try {
+                    for (int i = 0; i < movimentos; i++) {
+                        original.mv("/a", "/b", ROOT_USER);
+                        original.mv("/b", "/a", ROOT_USER);
+                    }
+                } finally {
+                    movendo.set(false);
+                }
+                return null;
+            });
+            mvs.get();
+            criados = escritas.get();
+        } finally {
+            executor.shutdown();
+        }
+        byte[] esperado = new byte[(int) original.tamanho("/a/f", ROOT_USER)];
+        original.read("/a/f", ROOT_USER, esperado);
+        assertTrue(esperado.length > 0);
+        original.fecharJournal();
+
+        // Cada write e touch foi registrado antes ou depois de um mv inteiro,
+        // então a reprodução encontra /a onde ele estava em cada um.
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            byte[] conteudo = new byte[esperado.length];
+            assertEquals(esperado.length, reconstruido.tamanho("/a/f", ROOT_USER));
+            reconstruido.read("/a/f", ROOT_USER, conteudo);
+            assertArrayEquals(esperado, conteudo);
+            for (String criado : criados) {
+                assertEquals(0, reconstruido.tamanho(criado, ROOT_USER));
+            }
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testMvECpDeArquivoConcorrentesComJournal() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        FileSystemImpl original = new FileSystemImpl();
+        original.ativarJournal(arquivoJournal, 1);
+        original.mkdir("/x", ROOT_USER);
+        original.mkdir("/x/y", ROOT_USER);
+        original.mkdir("/z", ROOT_USER);
+        original.touch("/x/f", ROOT_USER);
+        original.touch("/x/y/g", ROOT_USER);
+        original.touch("/z/h", ROOT_USER);
+        int repeticoes = 200;
+        List<String> copias = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Os dois primeiros travam os mesmos pais em ordens opostas de
+            // chamada; mv e cp de arquivo não pegam o lado de escrita da
+            // estrutura, então só a ordem de cima para baixo evita o ciclo.
+            List<Callable<Void>> tarefas = new ArrayList<>();
+            tarefas.add(() -> {
+                for (int i = 0; i < repeticoes; i++) {
+                    original.mv("/x/f", "/x/y/f", ROOT_USER);
+                    original.mv("/x/y/f", "/x/f", ROOT_USER);
+                }
+                return null;
+            });
+            tarefas.add(() -> {
+                for (int i = 0; i < repeticoes; i++) {
+                    original.mv("/x/y/g", "/x/g", ROOT_USER);
+                    original.mv("/x/g", "/x/y/g", ROOT_USER);
+                }
+                return null;
+            });
+            tarefas.add(() -> {
+                for (int i = 0; i < repeticoes; i++) {
+                    original.write("/z/h", ROOT_USER, true, new byte[] { (byte) i });
+                    original.mv("/z/h", "/x/h", ROOT_USER);
+                    original.mv("/x/h", "/z/h", ROOT_USER);
+                }
+                return null;
+            });
+            tarefas.add(() -> {
+                for (int i = 0; i < repeticoes; i++) {
+                    try {
+                        original.cp("/z/h", "/x/y/c" + i, ROOT_USER, false);
+                        synchronized (copias) {
+                            copias.add("/x/y/c" + i);
+                        }
+                    } catch (CaminhoNaoEncontradoException e) {
+                        // /z/h estava em /x
+                    }
+                }
+                return null;
+            });
+            for (Future<Void> resultado : executor.invokeAll(tarefas)) {
+                resultado.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertFalse(copias.isEmpty());
+        List<String> verificados = new ArrayList<>(copias);
+        verificados.addAll(Arrays.asList("/x/f", "/x/y/g", "/z/h"));
+        Map<String, byte[]> esperados = new HashMap<>();
+        for (String caminho : verificados) {
+            byte[] conteudo = new byte[(int) original.tamanho(caminho, ROOT_USER)];
+            original.read(caminho, ROOT_USER, conteudo);
+            esperados.put(caminho, conteudo);
+        }
+        original.fecharJournal();
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            for (String caminho : verificados) {
+                byte[] esperado = esperados.get(caminho);
+                byte[] conteudo = new byte[esperado.length];
+                assertEquals(caminho, esperado.length, reconstruido.tamanho(caminho, ROOT_USER));
+                reconstruido.read(caminho, ROOT_USER, conteudo);
+                assertArrayEquals(caminho, esperado, conteudo);
+            }
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testSnapshotDeArvoreProfunda() throws Exception {
+        Path arquivoSnapshot = pastaTemporaria.getRoot().toPath().resolve("fs.snapshot");
+        FileSystemImpl original = (FileSystemImpl) fileSystem;
+        int profundidade = 3_000;
+        StringBuilder caminho = new StringBuilder();
+        for (int i = 0; i < profundidade; i++) {
+            caminho.append("/d");
+            original.mkdir(caminho.toString(), ROOT_USER);
+        }
+        String folha = caminho + "/f";
+        original.touch(folha, ROOT_USER);
+        original.write(folha, ROOT_USER, false, "fundo".getBytes());
+
+        // Pilha pequena: uma captura ou restauração recursiva estouraria.
+        FileSystemImpl[] restaurado = new FileSystemImpl[1];
+        Throwable[] erro = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                original.gravarSnapshot(arquivoSnapshot).get();
+                restaurado[0] = FileSystemImpl.restaurarSnapshot(arquivoSnapshot);
+            } catch (Throwable e) {
+                erro[0] = e;
+            }
+        }, "snapshot-profundo", 128 * 1024);
+        thread.start();
+        thread.join();
+        if (erro[0] != null) {
+            throw new AssertionError(erro[0]);
+        }
+
+        byte[] lido = new byte[5];
+        restaurado[0].read(folha, ROOT_USER, lido);
+        assertEquals("fundo", new String(lido));
+    }
+
+    @Test
+    public void testSnapshotRestauraArvoreEConteudo() throws Exception {
+        Path arquivoSnapshot = pastaTemporaria.getRoot().toPath().resolve("fs.snapshot");
+        FileSystemImpl original = (FileSystemImpl) fileSystem;
+        original.mkdir("/docs", ROOT_USER);
+        original.chmod("/docs", ROOT_USER, TEST_USER, "rw-");
+        original.touch("/docs/grande", TEST_USER);
+        byte[] conteudo = new byte[3 * Arquivo.BLOCK_SIZE + 10];
+        for (int i = 0; i < conteudo.length; i++) {
+            conteudo[i] = (byte) (i * 7);
+        }
+        original.write("/docs/grande", TEST_USER, false, conteudo);
+        original.cp("/docs/grande", "/docs/copia", ROOT_USER, false);
+        original.touch("/esparso", ROOT_USER);
+        original.write("/esparso", ROOT_USER, 2L * Arquivo.BLOCK_SIZE, "fim".getBytes());
+
+        original.gravarSnapshot(arquivoSnapshot).get();
+
+        // Alterações depois da captura não entram no snapshot.
+        original.write("/docs/grande", TEST_USER, 0, "XYZ".getBytes());
+        original.rm("/esparso", ROOT_USER, false);
+
+        FileSystemImpl restaurado = FileSystemImpl.restaurarSnapshot(arquivoSnapshot);
+        byte[] lido = new byte[conteudo.length];
+        restaurado.read("/docs/grande", TEST_USER, lido);
+        assertArrayEquals(conteudo, lido);
+        restaurado.read("/docs/copia", ROOT_USER, lido);
+        assertArrayEquals(conteudo, lido);
+
+        byte[] esparso = new byte[2 * Arquivo.BLOCK_SIZE + 3];
+        restaurado.read("/esparso", ROOT_USER, esparso);
+        assertEquals(0, esparso[0]);
+        assertEquals("fim", new String(esparso, 2 * Arquivo.BLOCK_SIZE, 3));
+
+        // Quatro blocos compartilhados pelas cópias e um do arquivo esparso.
+        assertEquals(5, restaurado.getDispositivo().getBlocosEmUso());
+        restaurado.write("/docs/copia", ROOT_USER, 0, "abc".getBytes());
+        restaurado.read("/docs/grande", TEST_USER, lido);
+        assertArrayEquals(conteudo, lido);
+
+        restaurado.touch("/docs/novo", TEST_USER);
+        restaurado.write("/docs/novo", TEST_USER, false, "novo".getBytes());
+        byte[] novo = new byte[4];
+        restaurado.read("/docs/novo", TEST_USER, novo);
+        assertEquals("novo", new String(novo));
+    }
+
+    @Test
+    public void testSnapshotComJournalReproduzSoOQueVeioDepois() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("fs.journal");
+        Path arquivoSnapshot = pastaTemporaria.getRoot().toPath().resolve("fs.snapshot");
+        FileSystemImpl original = new FileSystemImpl();
+        original.ativarJournal(arquivoJournal, 5);
+        original.addUser(TEST_USER);
+        original.mkdir("/logs", ROOT_USER);
+        original.touch("/logs/app", ROOT_USER);
+        original.write("/logs/app", ROOT_USER, true, "antes ".getBytes());
+        original.gravarSnapshot(arquivoSnapshot).get();
+        original.write("/logs/app", ROOT_USER, true, "depois".getBytes());
+        original.fecharJournal();
+
+        FileSystemImpl restaurado = FileSystemImpl.restaurarSnapshot(arquivoSnapshot);
+        restaurado.ativarJournal(arquivoJournal, 5);
+        try {
+            byte[] buffer = new byte[12];
+            restaurado.read("/logs/app", ROOT_USER, buffer);
+            assertEquals("antes depois", new String(buffer));
+            try {
+                restaurado.addUser(TEST_USER);
+                fail("Usuário deveria ter sido restaurado");
+            } catch (UnsupportedOperationException e) {
+            }
+        } finally {
+            restaurado.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testSnapshotCorrompidoELancaIOException() throws Exception {
+        Path arquivoSnapshot = pastaTemporaria.getRoot().toPath().resolve("fs.snapshot");
+        fileSystem.mkdir("/dir", ROOT_USER);
+        ((FileSystemImpl) fileSystem).gravarSnapshot(arquivoSnapshot).get();
+
+        byte[] bytes = Files.readAllBytes(arquivoSnapshot);
+        bytes[bytes.length - 2] ^= 0x55;
+        Files.write(arquivoSnapshot, bytes);
+
+        try {
+            FileSystemImpl.restaurarSnapshot(arquivoSnapshot);
+            fail("Deveria lançar IOException");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testArmazenamentoEmImagemMapeada() throws Exception {
+        Path arquivoImagem = pastaTemporaria.getRoot().toPath().resolve("fs.img");
+        try (ArmazenamentoImagem imagem = ArmazenamentoImagem.criar(arquivoImagem, 1000)) {
+            assertEquals(1024, imagem.getCapacidade());
+            FileSystemImpl fs = new FileSystemImpl(imagem);
+            fs.touch("/dados", ROOT_USER);
+            byte[] conteudo = new byte[5 * Arquivo.BLOCK_SIZE];
+            for (int i = 0; i < conteudo.length; i++) {
+                conteudo[i] = (byte) (i ^ (i >>> 12));
+            }
+            fs.write("/dados", ROOT_USER, false, conteudo);
+
+            byte[] lido = new byte[conteudo.length];
+            fs.read("/dados", ROOT_USER, lido);
+            assertArrayEquals(conteudo, lido);
+            assertEquals(5, fs.getDispositivo().getBlocosEmUso());
+
+            fs.rm("/dados", ROOT_USER, false);
+            assertEquals(0, fs.getDispositivo().getBlocosEmUso());
+        }
+        // Só os blocos de dados, sem metadados.
+        assertEquals(1024 * (long) Arquivo.BLOCK_SIZE, Files.size(arquivoImagem));
+    }
+
+    @Test
+    public void testImagemSemEspaco() throws Exception {
+        Path arquivoImagem = pastaTemporaria.getRoot().toPath().resolve("fs.img");
+        try (ArmazenamentoImagem imagem = ArmazenamentoImagem.criar(arquivoImagem, 256)) {
+            FileSystemImpl fs = new FileSystemImpl(imagem);
+            DispositivoBlocos dispositivo = fs.getDispositivo();
+            fs.touch("/grande", ROOT_USER);
+            byte[] antes = new byte[250 * Arquivo.BLOCK_SIZE];
+            Arrays.fill(antes, (byte) 1);
+            fs.write("/grande", ROOT_USER, false, antes);
+
+            // Dois blocos existentes e oito novos, com seis livres: nada muda.
+            try {
+                fs.write("/grande", ROOT_USER, 248L * Arquivo.BLOCK_SIZE, new byte[10 * Arquivo.BLOCK_SIZE]);
+                fail("Deveria lançar EspacoInsuficienteException");
+            } catch (EspacoInsuficienteException e) {
+            }
+            ByteBuffer direto = ByteBuffer.allocateDirect(7 * Arquivo.BLOCK_SIZE);
+            try {
+                fs.writev("/grande", ROOT_USER, true, direto);
+                fail("Deveria lançar EspacoInsuficienteException");
+            } catch (EspacoInsuficienteException e) {
+            }
+            assertEquals(0, direto.position());
+            assertEquals(antes.length, fs.tamanho("/grande", ROOT_USER));
+            assertEquals(250, dispositivo.getBlocosEmUso());
+            byte[] lido = new byte[antes.length];
+            fs.read("/grande", ROOT_USER, lido);
+            assertArrayEquals(antes, lido);
+
+            // Sem anexar, os blocos do conteúdo anterior contam como livres.
+            byte[] cheio = new byte[256 * Arquivo.BLOCK_SIZE];
+            Arrays.fill(cheio, (byte) 2);
+            fs.write("/grande", ROOT_USER, false, cheio);
+            assertEquals(256, dispositivo.getBlocosEmUso());
+            try {
+                fs.write("/grande", ROOT_USER, true, new byte[1]);
+                fail("Deveria lançar EspacoInsuficienteException");
+            } catch (EspacoInsuficienteException e) {
+            }
+            try (SeekableByteChannel canal = fs.openChannel("/grande", ROOT_USER, true)) {
+                canal.position(cheio.length);
+                canal.write(ByteBuffer.wrap(new byte[1]));
+                fail("Deveria lançar IOException");
+            } catch (IOException e) {
+            }
+            assertEquals(cheio.length, fs.tamanho("/grande", ROOT_USER));
+
+            fs.truncar("/grande", ROOT_USER, 100L * Arquivo.BLOCK_SIZE);
+            fs.write("/grande", ROOT_USER, true, new byte[1]);
+            assertEquals(101, dispositivo.getBlocosEmUso());
+        }
+    }
+
+    @Test
+    public void testTabelaInodesReaproveitaInodesLiberados() throws Exception {
+        FileSystemImpl fs = (FileSystemImpl) fileSystem;
+        TabelaInodes inodes = fs.getInodes();
+        int inicial = inodes.getInodesEmUso();
+
+        fs.mkdir("/a", ROOT_USER);
+        fs.mkdir("/b", ROOT_USER);
+        for (int i = 0; i < 10; i++) {
+            fs.touch("/a/arquivo" + i, ROOT_USER);
+            fs.touch("/b/arquivo" + i, ROOT_USER);
+        }
+        assertEquals(inicial + 22, inodes.getInodesEmUso());
+        // Os nomes repetidos nos dois diretórios são guardados uma vez só.
+        assertTrue(inodes.getNomesDistintos() <= 13);
+
+        fs.rm("/a", ROOT_USER, true);
+        fs.cp("/b/arquivo0", "/b/copia", ROOT_USER, false);
+        assertEquals(inicial + 12, inodes.getInodesEmUso());
+    }
+
+    @Test
+    public void testMetadataEhVisaoDoInode() {
+        TabelaInodes tabela = new TabelaInodes();
+        Arquivo arquivo = new Arquivo(tabela, "arquivo", ROOT_USER, new DispositivoBlocos());
+        arquivo.write("12345".getBytes(), false);
+
+        Metadata metadata = arquivo.getMetadata();
+        assertEquals("arquivo", metadata.getName());
+        assertEquals(ROOT_USER, metadata.getOwner());
+        assertEquals(5, metadata.getSize());
+        assertEquals("rwx", metadata.getPermissions().get(ROOT_USER));
+        assertNull(metadata.getPermissions().get(TEST_USER));
+
+        metadata.getPermissions().put(TEST_USER, "x-r");
+        assertEquals("rx", arquivo.getMetadata().getPermissions().get(TEST_USER));
+        assertEquals(2, arquivo.getMetadata().getPermissions().size());
+
+        arquivo.write("6".getBytes(), true);
+        assertEquals(6, metadata.getSize());
+        metadata.setName("renomeado");
+        assertEquals("renomeado", arquivo.getMetadata().getName());
+
+        metadata.getPermissions().remove(TEST_USER);
+        assertNull(arquivo.getMetadata().getPermissions().get(TEST_USER));
+        assertEquals(1, tabela.getInodesEmUso());
+    }
+
+    @Test
+    public void testPermissoesPorIdEBits() throws Exception {
+        TabelaInodes tabela = new TabelaInodes();
+        int uidDono = tabela.idUsuario(ROOT_USER);
+        int uidOutro = tabela.idUsuario(TEST_USER);
+        int inode = tabela.alocar("arquivo", ROOT_USER);
+
+        assertEquals(TabelaInodes.TODAS, tabela.getEntrada(inode, uidDono));
+        assertEquals(TabelaInodes.SEM_ENTRADA, tabela.getEntrada(inode, uidOutro));
+
+        tabela.setPermissoes(inode, uidOutro, TabelaInodes.bits("r-x"));
+        assertEquals(TabelaInodes.LEITURA | TabelaInodes.EXECUCAO, tabela.getEntrada(inode, uidOutro));
+        tabela.setPermissoes(inode, uidOutro, TabelaInodes.bits("---"));
+        assertEquals(0, tabela.getEntrada(inode, uidOutro));
+
+        // Pelo sistema de arquivos: chmod "---" tira a permissão dada antes.
+        fileSystem.touch("/arquivo", ROOT_USER);
+        fileSystem.chmod("/arquivo", ROOT_USER, TEST_USER, "r--");
+        fileSystem.read("/arquivo", TEST_USER, new byte[1]);
+        fileSystem.chmod("/arquivo", ROOT_USER, TEST_USER, "---");
+        try {
+            fileSystem.read("/arquivo", TEST_USER, new byte[1]);
+            fail("Leitura deveria ser negada");
+        } catch (PermissaoException e) {
+            // esperado
+        }
+    }
+
+    @Test
+    public void testCarregarUsuariosDoArquivo() throws Exception {
+        Path arquivo = pastaTemporaria.newFile("users").toPath();
+        Files.write(arquivo, ("root /** rwx\n"
+                + "maria /** rw-\n"
+                + "\n"
+                + "maria /docs r--\n"
+                + "carla /** r--\n").getBytes());
+
+        FileSystemImpl fs = new FileSystemImpl();
+        assertEquals(2, fs.carregarUsuarios(arquivo));
+
+        RegistroUsuarios usuarios = fs.getUsuarios();
+        assertEquals(3, usuarios.getQuantidade());
+        Usuario maria = usuarios.buscar("maria");
+        assertSame(maria, usuarios.buscar("maria"));
+        assertEquals(fs.getInodes().buscarUsuario("maria"), maria.getUid());
+        assertNull(usuarios.buscar("joao"));
+
+        Files.write(arquivo, "joao /**\n".getBytes());
+        try {
+            fs.carregarUsuarios(arquivo);
+            fail("Deveria lançar IOException");
+        } catch (IOException e) {
+            // esperado
+        }
+    }
+
+    @Test
+    public void testRegrasDoArquivoDeUsuariosSaoHerdadas() throws Exception {
+        Path arquivo = pastaTemporaria.newFile("users").toPath();
+        Files.write(arquivo, ("maria /** rw-\n"
+                + "carla /** r--\n"
+                + "joao /docs/** rw-\n"
+                + "joao /docs/privado r--\n"
+                + "tiago /docs/* r--\n").getBytes());
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.carregarUsuarios(arquivo);
+
+        fs.mkdir("/docs", "maria");
+        fs.mkdir("/docs/privado", "maria");
+        fs.touch("/docs/a", "maria");
+        fs.touch("/docs/privado/x", "maria");
+        assertPermissaoNegada(() -> fs.touch("/b", "carla"));
+        fs.read("/docs/a", "carla", new byte[1]);
+
+        // A regra mais profunda vence: /docs/privado é só leitura para joao,
+        // mas o que está dentro dele volta a herdar /docs/**.
+        fs.touch("/docs/b", "joao");
+        assertPermissaoNegada(() -> fs.mkdir("/outro", "joao"));
+        assertPermissaoNegada(() -> fs.touch("/docs/privado/y", "joao"));
+        fs.write("/docs/privado/x", "joao", false, "1".getBytes());
+
+        // "*" vale para os filhos, não para o próprio diretório.
+        fs.read("/docs/a", "tiago", new byte[1]);
+        assertPermissaoNegada(() -> fs.ls("/docs", "tiago", false));
+
+        // Uma entrada na ACL do nó vence a regra herdada.
+        fs.chmod("/docs/a", "maria", "carla", "---");
+        assertPermissaoNegada(() -> fs.read("/docs/a", "carla", new byte[1]));
+
+        Path snapshot = pastaTemporaria.getRoot().toPath().resolve("snapshot");
+        fs.gravarSnapshot(snapshot).get();
+        FileSystemImpl restaurado = FileSystemImpl.restaurarSnapshot(snapshot);
+        restaurado.touch("/docs/c", "joao");
+        assertPermissaoNegada(() -> restaurado.touch("/docs/privado/y", "joao"));
+    }
+
+    @Test
+    public void testCachePermissoesInvalidadoPorMvENovasRegras() throws Exception {
+        Path arquivo = pastaTemporaria.newFile("users").toPath();
+        Files.write(arquivo, ("maria /** rw-\n"
+                + "joao /docs/** r--\n").getBytes());
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.carregarUsuarios(arquivo);
+        fs.mkdir("/docs", "maria");
+        fs.mkdir("/docs/sub", "maria");
+        fs.mkdir("/outro", "maria");
+        fs.touch("/docs/a", "maria");
+        fs.touch("/docs/b", "maria");
+        fs.touch("/docs/sub/c", "maria");
+
+        CachePermissoes cache = fs.getCachePermissoes();
+        fs.read("/docs/a", "joao", new byte[1]);
+        fs.read("/docs/b", "joao", new byte[1]);
+        fs.read("/docs/sub/c", "joao", new byte[1]);
+        long acertos = cache.getAcertos();
+        for (int i = 0; i < 10; i++) {
+            fs.read("/docs/a", "joao", new byte[1]);
+        }
+        assertTrue(cache.getAcertos() >= acertos + 10);
+
+        // Mover um arquivo só invalida o que foi movido: /docs/b e
+        // /docs/sub/c continuam no cache.
+        fs.mv("/docs/a", "/outro/a", "maria");
+        assertPermissaoNegada(() -> fs.read("/outro/a", "joao", new byte[1]));
+        long falhas = cache.getFalhas();
+        fs.read("/docs/b", "joao", new byte[1]);
+        fs.read("/docs/sub/c", "joao", new byte[1]);
+        assertEquals(falhas, cache.getFalhas());
+
+        // Mover um diretório invalida o que está dentro dele.
+        fs.mv("/docs/sub", "/outro/sub", "maria");
+        assertPermissaoNegada(() -> fs.read("/outro/sub/c", "joao", new byte[1]));
+        fs.mv("/outro/sub", "/docs/sub", "maria");
+        fs.read("/docs/sub/c", "joao", new byte[1]);
+
+        Files.write(arquivo, "joao /outro/* r--\n".getBytes());
+        fs.carregarUsuarios(arquivo);
+        fs.read("/outro/a", "joao", new byte[1]);
+
+        // chmod grava na ACL, que é consultada antes do cache.
+        fs.chmod("/outro/a", "maria", "joao", "---");
+        assertPermissaoNegada(() -> fs.read("/outro/a", "joao", new byte[1]));
+    }
+
+    @Test
+    public void testProxyGravaTraceReproduzivel() throws Exception {
+        FileSystem fs = new FileSystem();
+        Path arquivo = pastaTemporaria.newFile("trace").toPath();
+        Gravador gravador = new Gravador(arquivo);
+        try {
+            fs.setObservador(gravador);
+            fs.mkdir("/dir", ROOT_USER);
+            fs.touch("/dir/a", ROOT_USER);
+            fs.write("/dir/a", ROOT_USER, false, new byte[100]);
+            fs.write("/dir/a", ROOT_USER, 200L, new byte[10]);
+            fs.read("/dir/a", ROOT_USER, 0, new byte[64], 0, 50);
+            try {
+                fs.rm("/nao/existe", ROOT_USER, false);
+                fail("Deveria lançar CaminhoNaoEncontradoException");
+            } catch (CaminhoNaoEncontradoException e) {
+            }
+            fs.setObservador(null);
+            fs.touch("/dir/b", ROOT_USER);
+        } finally {
+            gravador.close();
+        }
+        assertEquals(6, gravador.getGravadas());
+        assertEquals(0, gravador.getDescartadas());
+        gravador.chamadaConcluida(new Chamada(Chamada.Tipo.LS, ROOT_USER, "/", null, null, false, 0, 0, 0, 0, true));
+        assertEquals(1, gravador.getDescartadas());
+
+        List<Chamada> lidas = Trace.ler(arquivo);
+        assertEquals(6, lidas.size());
+        assertTrue(lidas.get(0).getInicioNanos() >= 0);
+        Chamada escrita = lidas.get(3);
+        assertEquals(Chamada.Tipo.WRITE_POSICIONAL, escrita.getTipo());
+        assertEquals(200L, escrita.getOffset());
+        assertEquals(10, escrita.getTamanho());
+        assertEquals(50, lidas.get(4).getTamanho());
+        assertFalse(lidas.get(5).isSucesso());
+
+        FileSystemImpl alvo = new FileSystemImpl();
+        Relatorio relatorio = new Reprodutor(alvo, 1, 0).reproduzir(lidas);
+        assertEquals(6, relatorio.getChamadas());
+        assertEquals(1, relatorio.getFalhas());
+        assertEquals(1, relatorio.getFalhas(Chamada.Tipo.RM));
+        assertEquals(210, alvo.read("/dir/a", ROOT_USER, 0, new byte[300], 0, 300));
+    }
+
+    @Test
+    public void testTraceEscapaCampos() throws Exception {
+        List<Chamada> chamadas = new ArrayList<>();
+        chamadas.add(new Chamada(Chamada.Tipo.MV, "-", "/a\tb", "/c\td", null, false, 0, 0, 5, 1, true));
+        chamadas.add(new Chamada(Chamada.Tipo.TOUCH, ROOT_USER, "/com\ttab", null, null, false, 0, 0, 7, 1, true));
+        chamadas.add(new Chamada(Chamada.Tipo.TOUCH, ROOT_USER, "/linha\nnova\r", null, null, false, 0, 0, 9, 1,
+                false));
+        chamadas.add(new Chamada(Chamada.Tipo.CHMOD, ROOT_USER, "/", "\\-", "", false, 0, 0, 11, 1, true));
+        Path arquivo = pastaTemporaria.newFile("escapado").toPath();
+        Trace.gravar(arquivo, chamadas);
+
+        List<Chamada> lidas = Trace.ler(arquivo);
+        assertEquals(chamadas.size(), lidas.size());
+        for (int i = 0; i < lidas.size(); i++) {
+            Chamada lida = lidas.get(i);
+            assertEquals(chamadas.get(i).getUsuario(), lida.getUsuario());
+            assertEquals(chamadas.get(i).getCaminho(), lida.getCaminho());
+            assertEquals(chamadas.get(i).getArgumento(), lida.getArgumento());
+            assertEquals(chamadas.get(i).getPermissao(), lida.getPermissao());
+            assertEquals(chamadas.get(i).getInicioNanos() - 5, lida.getInicioNanos());
+        }
+    }
+
+    @Test
+    public void testGeradorCargaSintetico() throws Exception {
+        GeradorCarga gerador = new GeradorCarga(42)
+                .forma(GeradorCarga.Forma.BALANCEADA, 3, 2)
+                .arquivos(50)
+                .operacoes(2000)
+                .fracaoLeitura(0.8)
+                .tamanhos(8192, 1024);
+        List<Chamada> preparacao = gerador.gerarPreparacao();
+        List<Chamada> operacoes = gerador.gerarOperacoes();
+        // raiz, 3 + 9 diretórios, touch e write de cada arquivo
+        assertEquals(1 + 12 + 2 * 50, preparacao.size());
+        assertEquals(operacoes.toString(), gerador.gerarOperacoes().toString());
+
+        int leituras = 0;
+        Map<String, Integer> acessos = new HashMap<>();
+        for (Chamada chamada : operacoes) {
+            if (chamada.getTipo() == Chamada.Tipo.READ_POSICIONAL) {
+                leituras++;
+            }
+            assertTrue(chamada.getOffset() % 1024 == 0 && chamada.getOffset() < 8192);
+            acessos.merge(chamada.getCaminho(), 1, Integer::sum);
+        }
+        assertTrue(leituras > 1500 && leituras < 1700);
+        // Com Zipf perto de 1, o arquivo mais popular recebe bem mais que a
+        // média de 40 acessos.
+        assertTrue(Collections.max(acessos.values()) > 200);
+
+        FileSystemImpl alvo = new FileSystemImpl();
+        assertEquals(0, new Reprodutor(alvo, 1, 0).reproduzir(preparacao).getFalhas());
+        Relatorio relatorio = new Reprodutor(alvo, 4, 0).reproduzir(operacoes);
+        assertEquals(2000, relatorio.getChamadas());
+        assertEquals(0, relatorio.getFalhas());
+        Histograma latencias = relatorio.getLatencias(Chamada.Tipo.READ_POSICIONAL);
+        assertEquals(leituras, latencias.getContagem());
+        assertTrue(latencias.getPercentil(50) <= latencias.getPercentil(99));
+        assertTrue(latencias.getPercentil(99) <= latencias.getPercentil(99.9));
+        assertTrue(latencias.getPercentil(99.9) <= latencias.getMaximo());
+        assertTrue(relatorio.getVazao() > 0);
+    }
+
+    @Test
+    public void testHistogramaPercentis() {
+        Histograma histograma = new Histograma();
+        for (long v = 1; v <= 100_000; v++) {
+            histograma.registrar(v);
+        }
+        // Erro relativo de no máximo 1/32.
+        assertEquals(50_000, histograma.getPercentil(50), 50_000 / 32.0);
+        assertEquals(99_000, histograma.getPercentil(99), 99_000 / 32.0);
+        assertEquals(99_900, histograma.getPercentil(99.9), 99_900 / 32.0);
+        assertEquals(100_000, histograma.getPercentil(100));
+        assertEquals(1, histograma.getPercentil(0));
+
+        Histograma juntos = new Histograma();
+        juntos.registrar(1_000_000);
+        juntos.juntar(histograma);
+        assertEquals(100_001, juntos.getContagem());
+        assertEquals(1_000_000, juntos.getMaximo());
+    }
+
+    @Test
+    public void testMetricasDoProxy() throws Exception {
+        Path usuarios = pastaTemporaria.newFile("users").toPath();
+        Files.write(usuarios, "maria /** r--\n".getBytes());
+        FileSystem fs = new FileSystem(usuarios);
+        fs.touch("/antes", ROOT_USER);
+        MetricasFileSystem metricas = fs.ativarMetricas();
+        assertSame(metricas, fs.ativarMetricas());
+
+        fs.touch("/a", ROOT_USER);
+        fs.write("/a", ROOT_USER, false, new byte[100]);
+        fs.write("/a", ROOT_USER, 100L, new byte[28]);
+        assertEquals(128, fs.read("/a", "maria", 0, new byte[200], 0, 200));
+        // Conta os 128 bytes do arquivo, e não o tamanho do buffer.
+        fs.read("/a", "maria", new byte[500]);
+        assertPermissaoNegada(() -> fs.write("/a", "maria", false, new byte[10]));
+        try {
+            fs.read("/nao/existe", ROOT_USER, new byte[10]);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+
+        MetricasFileSystem.Retrato retrato = metricas.getRetrato();
+        assertEquals(1, retrato.getChamadas(Chamada.Tipo.TOUCH));
+        assertEquals(2, retrato.getChamadas(Chamada.Tipo.WRITE));
+        assertEquals(1, retrato.getFalhas(Chamada.Tipo.WRITE));
+        assertEquals(1, retrato.getFalhas(Chamada.Tipo.READ));
+        assertEquals(128, retrato.getBytesEscritos());
+        assertEquals(256, retrato.getBytesLidos());
+        assertEquals(Long.valueOf(1), retrato.getExcecoes().get("PermissaoException"));
+        assertEquals(Long.valueOf(1), retrato.getExcecoes().get("CaminhoNaoEncontradoException"));
+        Histograma latencias = retrato.getLatencias(Chamada.Tipo.READ_POSICIONAL);
+        assertEquals(1, latencias.getContagem());
+        assertTrue(latencias.getPercentil(99.9) <= latencias.getMaximo());
+        assertEquals(7, metricas.getChamadas());
+
+        MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+        metricas.registrarJmx("teste-metricas");
+        try {
+            ObjectName total = new ObjectName("filesys:type=FileSystem,name=\"teste-metricas\"");
+            ObjectName escrita = new ObjectName("filesys:type=FileSystem,name=\"teste-metricas\",operacao=WRITE");
+            assertEquals(128L, servidor.getAttribute(total, "BytesEscritos"));
+            assertEquals(2L, servidor.getAttribute(total, "Falhas"));
+            assertEquals(2L, servidor.getAttribute(escrita, "Chamadas"));
+            assertEquals(1L, servidor.getAttribute(escrita, "Falhas"));
+            assertTrue((Long) servidor.getAttribute(escrita, "LatenciaP99") > 0);
+        } finally {
+            metricas.cancelarRegistroJmx();
+        }
+        assertTrue(servidor.queryNames(new ObjectName("filesys:name=\"teste-metricas\",*"), null).isEmpty());
+    }
+
+    @Test
+    public void testStreamsCopiamArquivoEmTrechos() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.touch("/grande", ROOT_USER);
+        byte[] esperado = new byte[3 * 1024 * 1024 + 123];
+        for (int i = 0; i < esperado.length; i++) {
+            esperado[i] = (byte) (i * 31 + i / 4096);
+        }
+        try (OutputStream saida = fs.openOutputStream("/grande", ROOT_USER, false)) {
+            int escritos = 0;
+            int passo = 1;
+            while (escritos < esperado.length) {
+                int tamanho = Math.min(passo, esperado.length - escritos);
+                if (tamanho == 1) {
+                    saida.write(esperado[escritos]);
+                } else {
+                    saida.write(esperado, escritos, tamanho);
+                }
+                escritos += tamanho;
+                passo = passo * 7 % 100_003 + 1;
+            }
+        }
+
+        ByteArrayOutputStream lido = new ByteArrayOutputStream();
+        try (InputStream entrada = fs.openInputStream("/grande", ROOT_USER)) {
+            assertEquals(esperado[0], (byte) entrada.read());
+            lido.write(esperado[0]);
+            entrada.transferTo(lido);
+            assertEquals(-1, entrada.read());
+        }
+        assertArrayEquals(esperado, lido.toByteArray());
+
+        try (OutputStream saida = fs.openOutputStream("/grande", ROOT_USER, true)) {
+            saida.write("fim".getBytes());
+        }
+        byte[] final3 = new byte[3];
+        assertEquals(3, fs.read("/grande", ROOT_USER, esperado.length, final3, 0, 3));
+        assertEquals("fim", new String(final3));
+
+        // Sem anexar, o arquivo é esvaziado ao abrir.
+        try (OutputStream saida = fs.openOutputStream("/grande", ROOT_USER, false)) {
+            saida.write("novo".getBytes());
+        }
+        try (InputStream entrada = fs.openInputStream("/grande", ROOT_USER)) {
+            assertEquals("novo", new String(entrada.readAllBytes()));
+        }
+
+        try {
+            fs.openInputStream("/nao/existe", ROOT_USER);
+            fail("Deveria lançar CaminhoNaoEncontradoException");
+        } catch (CaminhoNaoEncontradoException e) {
+        }
+        fs.addUser(TEST_USER);
+        assertPermissaoNegada(() -> fs.openOutputStream("/grande", TEST_USER, true));
+    }
+
+    @Test
+    public void testStreamEsperaJournalSoAoFechar() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("stream.journal");
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.ativarJournal(arquivoJournal, 50);
+        fs.touch("/f", ROOT_USER);
+        Journal journal = fs.getJournal();
+
+        // Cada trecho do stream é um registro, mas só o close espera o
+        // fsync: bem menos sincronizações que registros.
+        byte[] trecho = new byte[3 * Arquivo.BLOCK_SIZE + 7];
+        int trechos = 200;
+        try (OutputStream saida = fs.openOutputStream("/f", ROOT_USER, false)) {
+            for (int i = 0; i < trechos; i++) {
+                Arrays.fill(trecho, (byte) i);
+                saida.write(trecho);
+            }
+        }
+        long registros = journal.getRegistros();
+        assertTrue(registros >= (long) trechos * trecho.length / (16 * Arquivo.BLOCK_SIZE));
+        assertTrue(journal.getSincronizacoes() < registros / 4);
+
+        // force() deixa as escritas do canal no disco antes de fechar.
+        CanalArquivo canal = fs.openChannel("/f", ROOT_USER, true);
+        canal.position(canal.size());
+        canal.write(ByteBuffer.wrap("fim".getBytes()));
+        canal.force();
+        long tamanho = canal.size();
+        FileSystemImpl copia = new FileSystemImpl();
+        Files.copy(arquivoJournal, pastaTemporaria.getRoot().toPath().resolve("copia.journal"));
+        copia.ativarJournal(pastaTemporaria.getRoot().toPath().resolve("copia.journal"), 50);
+        try {
+            byte[] fim = new byte[3];
+            assertEquals(3, copia.read("/f", ROOT_USER, tamanho - 3, fim, 0, 3));
+            assertArrayEquals("fim".getBytes(), fim);
+        } finally {
+            copia.fecharJournal();
+        }
+        canal.close();
+        fs.fecharJournal();
+    }
+
+    @Test
+    public void testCanalPosicionavel() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("canal.journal");
+        FileSystemImpl fs = new FileSystemImpl();
+        fs.ativarJournal(arquivoJournal, 5);
+        fs.touch("/f", ROOT_USER);
+        try (SeekableByteChannel canal = fs.openChannel("/f", ROOT_USER, true)) {
+            canal.write(ByteBuffer.wrap("abc".getBytes()));
+            canal.position(10_000);
+            ByteBuffer direto = ByteBuffer.allocateDirect(5000);
+            while (direto.hasRemaining()) {
+                direto.put((byte) 7);
+            }
+            direto.flip();
+            assertEquals(5000, canal.write(direto));
+            assertEquals(15_000, canal.size());
+            assertEquals(15_000, canal.position());
+
+            canal.truncate(10_002);
+            assertEquals(10_002, canal.size());
+            assertEquals(10_002, canal.position());
+            assertEquals(-1, canal.read(ByteBuffer.allocate(10)));
+
+            canal.position(0);
+            ByteBuffer inicio = ByteBuffer.allocateDirect(4);
+            assertEquals(4, canal.read(inicio));
+            assertEquals('c', inicio.get(2));
+            assertEquals(0, inicio.get(3));
+
+            canal.position(Arquivo.TAMANHO_MAXIMO);
+            try {
+                canal.write(ByteBuffer.wrap(new byte[1]));
+                fail("Deveria lançar IOException");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            assertEquals(10_002, canal.size());
+        }
+
+        // O truncate zera o resto do bloco: voltar a aumentar o arquivo não
+        // traz de volta os bytes cortados.
+        fs.write("/f", ROOT_USER, 12_000L, new byte[1]);
+        byte[] meio = new byte[4];
+        fs.read("/f", ROOT_USER, 10_000, meio, 0, 4);
+        assertArrayEquals(new byte[] { 7, 7, 0, 0 }, meio);
+
+        SeekableByteChannel leitura = fs.openChannel("/f", ROOT_USER, false);
+        try {
+            leitura.write(ByteBuffer.allocate(1));
+            fail("Deveria lançar NonWritableChannelException");
+        } catch (NonWritableChannelException e) {
+        }
+        fs.mv("/f", "/g", ROOT_USER);
+        try {
+            leitura.read(ByteBuffer.allocate(1));
+            fail("Deveria lançar NoSuchFileException");
+        } catch (NoSuchFileException e) {
+        }
+        leitura.close();
+        try {
+            leitura.position();
+            fail("Deveria lançar ClosedChannelException");
+        } catch (ClosedChannelException e) {
+        }
+        fs.fecharJournal();
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            byte[] original = new byte[12_001];
+            byte[] copia = new byte[12_001];
+            assertEquals(12_001, fs.read("/g", ROOT_USER, 0, original, 0, original.length));
+            assertEquals(12_001, reconstruido.read("/g", ROOT_USER, 0, copia, 0, copia.length));
+            assertArrayEquals(original, copia);
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testEscritaELeituraVetoriais() throws Exception {
+        Path arquivoJournal = pastaTemporaria.getRoot().toPath().resolve("vetorial.journal");
+        FileSystemImpl fs = new FileSystemImpl(new ArmazenamentoDireto(64));
+        fs.ativarJournal(arquivoJournal, 5);
+        fs.touch("/f", ROOT_USER);
+
+        // Cabeçalho e conteúdo em buffers separados, um deles direto e
+        // cruzando dois limites de bloco.
+        byte[] cabecalho = "cabecalho".getBytes();
+        byte[] conteudo = new byte[2 * Arquivo.BLOCK_SIZE + 100];
+        for (int i = 0; i < conteudo.length; i++) {
+            conteudo[i] = (byte) (i % 251);
+        }
+        ByteBuffer direto = ByteBuffer.allocateDirect(conteudo.length);
+        direto.put(conteudo).flip();
+        ByteBuffer primeiro = ByteBuffer.wrap(cabecalho);
+        assertEquals(cabecalho.length + conteudo.length, fs.writev("/f", ROOT_USER, false, primeiro, direto));
+        assertFalse(primeiro.hasRemaining());
+        assertFalse(direto.hasRemaining());
+
+        byte[] esperado = new byte[cabecalho.length + conteudo.length];
+        System.arraycopy(cabecalho, 0, esperado, 0, cabecalho.length);
+        System.arraycopy(conteudo, 0, esperado, cabecalho.length, conteudo.length);
+        byte[] lido = new byte[esperado.length];
+        assertEquals(esperado.length, fs.read("/f", ROOT_USER, 0, lido, 0, lido.length));
+        assertArrayEquals(esperado, lido);
+
+        // Anexar e escrever além do final, deixando um buraco.
+        fs.writev("/f", ROOT_USER, true, ByteBuffer.wrap("fim".getBytes()));
+        long tamanho = esperado.length + 3;
+        assertEquals(3, fs.writev("/f", ROOT_USER, 5L * Arquivo.BLOCK_SIZE, ByteBuffer.wrap(new byte[] { 1 }),
+                ByteBuffer.allocate(0), ByteBuffer.wrap(new byte[] { 2, 3 })));
+        assertEquals(5L * Arquivo.BLOCK_SIZE + 3, fs.tamanho("/f", ROOT_USER));
+
+        // Leitura espalhada em buffers de tamanhos diferentes, parando no
+        // final do arquivo.
+        ByteBuffer a = ByteBuffer.allocate(5);
+        ByteBuffer b = ByteBuffer.allocateDirect(Arquivo.BLOCK_SIZE);
+        ByteBuffer c = ByteBuffer.allocate(4 * Arquivo.BLOCK_SIZE);
+        assertEquals(5L * Arquivo.BLOCK_SIZE + 3 - 4, fs.readv("/f", ROOT_USER, 4, a, b, c));
+        assertEquals("calho", new String(a.array()));
+        assertEquals(esperado[4 + 5], b.get(0));
+        assertEquals('f', c.get(esperado.length - 4 - 5 - Arquivo.BLOCK_SIZE));
+        assertEquals(0, c.get((int) (tamanho - 4 - 5 - Arquivo.BLOCK_SIZE)));
+        assertEquals(5 * Arquivo.BLOCK_SIZE + 3 - 4 - 5 - Arquivo.BLOCK_SIZE, c.position());
+        assertEquals(3, c.get(c.position() - 1));
+        assertEquals(0, fs.readv("/f", ROOT_USER, 10L * Arquivo.BLOCK_SIZE, ByteBuffer.allocate(1)));
+        try {
+            fs.readv("/f", ROOT_USER, 0, ByteBuffer.allocate(1).asReadOnlyBuffer());
+            fail("Deveria lançar ReadOnlyBufferException");
+        } catch (ReadOnlyBufferException e) {
+        }
+        fs.fecharJournal();
+
+        FileSystemImpl reconstruido = new FileSystemImpl();
+        reconstruido.ativarJournal(arquivoJournal, 5);
+        try {
+            int total = 5 * Arquivo.BLOCK_SIZE + 3;
+            byte[] original = new byte[total];
+            byte[] copia = new byte[total];
+            assertEquals(total, fs.read("/f", ROOT_USER, 0, original, 0, total));
+            assertEquals(total, reconstruido.read("/f", ROOT_USER, 0, copia, 0, total));
+            assertArrayEquals(original, copia);
+        } finally {
+            reconstruido.fecharJournal();
+        }
+    }
+
+    @Test
+    public void testEscritaVetorialDeduplicada() throws Exception {
+        FileSystemImpl fs = new FileSystemImpl(new ArmazenamentoHeap(), true);
+        fs.touch("/f", ROOT_USER);
+        byte[] bloco = new byte[Arquivo.BLOCK_SIZE];
+        Arrays.fill(bloco, (byte) 9);
+
+        // Dois blocos inteiros vindos de buffers com array são deduplicados;
+        // o bloco dividido entre dois buffers é escrito no lugar.
+        fs.writev("/f", ROOT_USER, false, ByteBuffer.wrap(bloco), ByteBuffer.wrap(bloco),
+                ByteBuffer.wrap(bloco, 0, 100), ByteBuffer.wrap(bloco, 100, bloco.length - 100));
+        assertEquals(3L * Arquivo.BLOCK_SIZE, fs.tamanho("/f", ROOT_USER));
+        assertEquals(2, fs.getDispositivo().getBlocosEmUso());
+
+        ByteBuffer destino = ByteBuffer.allocate(3 * Arquivo.BLOCK_SIZE);
+        assertEquals(destino.capacity(), fs.readv("/f", ROOT_USER, 0, destino));
+        for (int i = 0; i < destino.capacity(); i++) {
+            assertEquals(9, destino.get(i));
+        }
+
+        // Sem anexar, o conteúdo é substituído mesmo quando fica menor.
+        assertEquals(100, fs.writev("/f", ROOT_USER, false, ByteBuffer.wrap(bloco, 0, 100)));
+        assertEquals(100, fs.tamanho("/f", ROOT_USER));
+        assertEquals(1, fs.getDispositivo().getBlocosEmUso());
+        assertEquals(0, fs.writev("/f", ROOT_USER, false));
+        assertEquals(0, fs.tamanho("/f", ROOT_USER));
+        assertEquals(0, fs.getDispositivo().getBlocosEmUso());
+    }
+
+    private interface Acao {
+        void executar() throws Exception;
+    }
+
+    private static void assertPermissaoNegada(Acao acao) throws Exception {
+        try {
+            acao.executar();
+            fail("Deveria lançar PermissaoException");
+        } catch (PermissaoException e) {
+            // esperado
+        }
+    }
+
     @Test
     public void testComplexScenario() throws Exception {
         fileSystem.mkdir("/home", ROOT_USER);
@@ -0,0 +1,157 @@
+package filesys;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histograma de valores não negativos (latências em nanossegundos) com erro
+// relativo de no máximo 1/SUB_FAIXAS: valores menores que SUB_FAIXAS têm uma
+// faixa cada; acima disso, cada potência de 2 é dividida em SUB_FAIXAS faixas
+// iguais. São QUANTIDADE_FAIXAS contadores para todo o intervalo de long, sem
+// alocação ao registrar. Pode ser usado por várias threads. Com listras > 1,
+// cada thread incrementa os contadores de uma das listras (pelo id da
+// thread), para que threads registrando ao mesmo tempo não disputem as
+// mesmas linhas de cache; as leituras somam as listras. A contagem e a
+// média saem das faixas, então registrar faz um único incremento atômico e,
+// só quando o valor passa do máximo, a troca do máximo.
+public final class Histograma {
+    private static final int BITS_SUB_FAIXA = 5;
+    private static final int SUB_FAIXAS = 1 << BITS_SUB_FAIXA;
+    private static final int QUANTIDADE_FAIXAS = (Long.SIZE - BITS_SUB_FAIXA) * SUB_FAIXAS;
+
+    private final int mascaraListras;
+    private final AtomicLongArray faixas;
+    private final AtomicLong maximo = new AtomicLong();
+
+    public Histograma() {
+        this(1);
+    }
+
+    /**
+     * @param listras Cópias dos contadores, arredondado para uma potência de
+     *                2; mais listras trocam memória (QUANTIDADE_FAIXAS longs
+     *                cada) por menos disputa entre threads
+     */
+    public Histograma(int listras) {
+        if (listras <= 0) {
+            throw new IllegalArgumentException("Quantidade de listras deve ser positiva");
+        }
+        int potencia = Integer.highestOneBit(listras * 2 - 1);
+        this.mascaraListras = potencia - 1;
+        this.faixas = new AtomicLongArray(potencia * QUANTIDADE_FAIXAS);
+    }
+
+    /**
+     * @param valor Valor a registrar; negativos contam como 0
+     */
+    public void registrar(long valor) {
+        long v = Math.max(valor, 0);
+        int listra = mascaraListras == 0 ? 0 : (int) Thread.currentThread().threadId() & mascaraListras;
+        faixas.getAndIncrement(listra * QUANTIDADE_FAIXAS + faixa(v));
+        if (v > maximo.get()) {
+            maximo.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Soma os valores de outro histograma a este.
+     */
+    public void juntar(Histograma outro) {
+        for (int i = 0; i < QUANTIDADE_FAIXAS; i++) {
+            long n = outro.getFaixa(i);
+            if (n != 0) {
+                faixas.addAndGet(i, n);
+            }
+        }
+        maximo.accumulateAndGet(outro.maximo.get(), Math::max);
+    }
+
+    /**
+     * @param percentil Entre 0 e 100, por exemplo 99.9
+     * @return O maior valor da faixa onde cai o percentil (limitado ao máximo
+     *         registrado), ou 0 se o histograma estiver vazio
+     */
+    public long getPercentil(double percentil) {
+        if (percentil < 0 || percentil > 100) {
+            throw new IllegalArgumentException("Percentil fora de [0, 100]: " + percentil);
+        }
+        long[] contagens = new long[QUANTIDADE_FAIXAS];
+        long total = 0;
+        for (int i = 0; i < QUANTIDADE_FAIXAS; i++) {
+            contagens[i] = getFaixa(i);
+            total += contagens[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long alvo = Math.max(1, (long) Math.ceil(percentil / 100 * total));
+        long acumulado = 0;
+        for (int i = 0; i < QUANTIDADE_FAIXAS; i++) {
+            acumulado += contagens[i];
+            if (acumulado >= alvo) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    public long getContagem() {
+        long total = 0;
+        for (int i = 0; i < QUANTIDADE_FAIXAS; i++) {
+            total += getFaixa(i);
+        }
+        return total;
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /**
+     * @return Média aproximada pelo meio de cada faixa, com o mesmo erro
+     *         relativo das faixas
+     */
+    public double getMedia() {
+        long total = 0;
+        double soma = 0;
+        for (int i = 0; i < QUANTIDADE_FAIXAS; i++) {
+            long n = getFaixa(i);
+            if (n != 0) {
+                total += n;
+                soma += n * ((double) limiteInferior(i) + limiteSuperior(i)) / 2;
+            }
+        }
+        return total == 0 ? 0 : Math.min(soma / total, maximo.get());
+    }
+
+    // Contagem da faixa somada entre as listras.
+    private long getFaixa(int faixa) {
+        long total = 0;
+        for (int i = faixa; i < faixas.length(); i += QUANTIDADE_FAIXAS) {
+            total += faixas.get(i);
+        }
+        return total;
+    }
+
+    private static int faixa(long valor) {
+        if (valor < SUB_FAIXAS) {
+            return (int) valor;
+        }
+        int expoente = Long.SIZE - 1 - Long.numberOfLeadingZeros(valor);
+        int subFaixa = (int) (valor >>> (expoente - BITS_SUB_FAIXA)) & (SUB_FAIXAS - 1);
+        return (expoente - BITS_SUB_FAIXA + 1) * SUB_FAIXAS + subFaixa;
+    }
+
+    private static long limiteInferior(int faixa) {
+        if (faixa < SUB_FAIXAS) {
+            return faixa;
+        }
+        return (long) (SUB_FAIXAS + faixa % SUB_FAIXAS) << (faixa / SUB_FAIXAS - 1);
+    }
+
+    private static long limiteSuperior(int faixa) {
+        if (faixa < SUB_FAIXAS) {
+            return faixa;
+        }
+        return limiteInferior(faixa) + (1L << (faixa / SUB_FAIXAS - 1)) - 1;
+    }
+}
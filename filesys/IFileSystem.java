@@ -29,10 +29,23 @@ public interface IFileSystem {
     // Escrita sequencial.
     void write(String caminho, String usuario, boolean anexar, byte[] buffer) throws CaminhoNaoEncontradoException, PermissaoException;
 
+    // Escreve o buffer no arquivo a partir da posição offset, sobrescrevendo somente o trecho atingido.
+    // Escrever além do final aumenta o arquivo; o intervalo entre o final antigo e offset é lido como zeros.
+    // Alteração: incluída porque o write acima só permite truncar ou anexar, então alterar poucos bytes
+    // no meio de um arquivo grande exigia reescrevê-lo inteiro.
+    void write(String caminho, String usuario, long offset, byte[] buffer) throws CaminhoNaoEncontradoException, PermissaoException;
+
     // Lê dados de um arquivo. Se o arquivo não existir, será lançada uma exceção.
     // Leitura sequencial - todo o conteudo do arquivo sera lido e armazenado no buffer.
     void read(String caminho, String usuario, byte[] buffer) throws CaminhoNaoEncontradoException, PermissaoException;
 
+    // Lê até len bytes do arquivo a partir da posição offset e os copia para buffer[bufOff, bufOff + len).
+    // Retorna a quantidade de bytes lidos, ou 0 se offset estiver no final do arquivo (ou além dele).
+    // Alteração: incluída porque o read acima só consegue devolver os primeiros buffer.length bytes
+    // e descarta o resto. Com a posição explícita o chamador lê arquivos maiores que o buffer em
+    // partes (ver Main.read) e só os bytes pedidos são copiados.
+    int read(String caminho, String usuario, long offset, byte[] buffer, int bufOff, int len) throws CaminhoNaoEncontradoException, PermissaoException;
+
     // Move ou renomeia um arquivo ou diretório. Se o diretório não existir, será lançada uma exceção.
     // Se o diretório já existir, será sobrescrito.
     // mv é naturalmente recursivo.
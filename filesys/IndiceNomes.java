@@ -0,0 +1,235 @@
+package filesys;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Tabela hash de endereçamento aberto (sondagem linear) indexada por nome.
+// As entradas também formam uma lista duplamente encadeada na ordem de inserção,
+// de modo que a listagem é estável mesmo após remoções.
+final class IndiceNomes<V> implements Iterable<V> {
+    private static final int CAPACIDADE_INICIAL = 8;
+
+    private static final class Entrada<V> {
+        private final String nome;
+        private final int hash;
+        private V valor;
+        private Entrada<V> anterior;
+        private Entrada<V> proxima;
+
+        private Entrada(String nome, int hash, V valor) {
+            this.nome = nome;
+            this.hash = hash;
+            this.valor = valor;
+        }
+    }
+
+    private Entrada<V>[] tabela = novaTabela(CAPACIDADE_INICIAL);
+    private Entrada<V> primeira;
+    private Entrada<V> ultima;
+    private int tamanho;
+
+    /**
+     * Busca o valor associado a um nome.
+     *
+     * @param nome Nome procurado
+     * @return O valor associado ou null se não existir
+     */
+    V get(String nome) {
+        return get(nome, 0, nome.length());
+    }
+
+    /**
+     * Busca o valor associado ao trecho texto[inicio, fim) sem criar uma String
+     * intermediária.
+     *
+     * @param texto  Texto que contém o nome
+     * @param inicio Índice inicial (inclusivo)
+     * @param fim    Índice final (exclusivo)
+     * @return O valor associado ou null se não existir
+     */
+    V get(String texto, int inicio, int fim) {
+        Entrada<V>[] t = tabela;
+        int mascara = t.length - 1;
+        int hash = hash(texto, inicio, fim);
+        int tamanhoNome = fim - inicio;
+
+        for (int i = hash & mascara, passos = 0; passos < t.length; i = (i + 1) & mascara, passos++) {
+            Entrada<V> e = t[i];
+            if (e == null) {
+                return null;
+            }
+            if (e.hash == hash && e.nome.length() == tamanhoNome
+                    && e.nome.regionMatches(0, texto, inicio, tamanhoNome)) {
+                return e.valor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associa um valor a um nome. Nomes novos vão para o final da ordem de
+     * listagem; nomes existentes mantêm a posição.
+     *
+     * @param nome  Nome da entrada
+     * @param valor Valor a ser associado
+     * @return O valor anterior ou null se o nome não existia
+     */
+    V put(String nome, V valor) {
+        int hash = hash(nome, 0, nome.length());
+        int i = localizar(nome, hash);
+        if (tabela[i] != null) {
+            V anterior = tabela[i].valor;
+            tabela[i].valor = valor;
+            return anterior;
+        }
+
+        if ((tamanho + 1) * 4 > tabela.length * 3) {
+            redimensionar(tabela.length * 2);
+            i = localizar(nome, hash);
+        }
+
+        Entrada<V> nova = new Entrada<>(nome, hash, valor);
+        nova.anterior = ultima;
+        if (ultima == null) {
+            primeira = nova;
+        } else {
+            ultima.proxima = nova;
+        }
+        ultima = nova;
+        tabela[i] = nova;
+        tamanho++;
+        return null;
+    }
+
+    /**
+     * Remove a entrada de um nome.
+     *
+     * @param nome Nome a ser removido
+     * @return O valor removido ou null se o nome não existia
+     */
+    V remove(String nome) {
+        int i = localizar(nome, hash(nome, 0, nome.length()));
+        Entrada<V> e = tabela[i];
+        if (e == null) {
+            return null;
+        }
+
+        if (e.anterior == null) {
+            primeira = e.proxima;
+        } else {
+            e.anterior.proxima = e.proxima;
+        }
+        if (e.proxima == null) {
+            ultima = e.anterior;
+        } else {
+            e.proxima.anterior = e.anterior;
+        }
+
+        removerPosicao(i);
+        tamanho--;
+        return e.valor;
+    }
+
+    int size() {
+        return tamanho;
+    }
+
+    boolean isEmpty() {
+        return tamanho == 0;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private Entrada<V> atual = primeira;
+
+            @Override
+            public boolean hasNext() {
+                return atual != null;
+            }
+
+            @Override
+            public V next() {
+                if (atual == null) {
+                    throw new NoSuchElementException();
+                }
+                V valor = atual.valor;
+                atual = atual.proxima;
+                return valor;
+            }
+        };
+    }
+
+    /**
+     * Localiza a posição do nome na tabela ou a posição livre onde ele seria
+     * inserido.
+     */
+    private int localizar(String nome, int hash) {
+        int mascara = tabela.length - 1;
+        int i = hash & mascara;
+        while (tabela[i] != null) {
+            Entrada<V> e = tabela[i];
+            if (e.hash == hash && e.nome.equals(nome)) {
+                return i;
+            }
+            i = (i + 1) & mascara;
+        }
+        return i;
+    }
+
+    /**
+     * Esvazia uma posição aplicando o deslocamento reverso da sondagem linear,
+     * o que dispensa marcadores de remoção.
+     */
+    private void removerPosicao(int livre) {
+        int mascara = tabela.length - 1;
+        tabela[livre] = null;
+        int j = livre;
+        while (true) {
+            j = (j + 1) & mascara;
+            Entrada<V> e = tabela[j];
+            if (e == null) {
+                return;
+            }
+            int ideal = e.hash & mascara;
+            boolean podeMover = livre <= j
+                    ? (ideal <= livre || ideal > j)
+                    : (ideal <= livre && ideal > j);
+            if (podeMover) {
+                tabela[livre] = e;
+                tabela[j] = null;
+                livre = j;
+            }
+        }
+    }
+
+    private void redimensionar(int novaCapacidade) {
+        Entrada<V>[] nova = novaTabela(novaCapacidade);
+        int mascara = novaCapacidade - 1;
+        for (Entrada<V> e = primeira; e != null; e = e.proxima) {
+            int i = e.hash & mascara;
+            while (nova[i] != null) {
+                i = (i + 1) & mascara;
+            }
+            nova[i] = e;
+        }
+        tabela = nova;
+    }
+
+    /**
+     * Calcula o mesmo valor de String.hashCode() sobre o trecho, espalhando os
+     * bits altos para reduzir colisões na máscara.
+     */
+    private static int hash(String texto, int inicio, int fim) {
+        int h = 0;
+        for (int i = inicio; i < fim; i++) {
+            h = 31 * h + texto.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entrada<V>[] novaTabela(int capacidade) {
+        return (Entrada<V>[]) new Entrada<?>[capacidade];
+    }
+}
@@ -0,0 +1,548 @@
+package filesys;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Journal de operações: arquivo binário só de acréscimo com um registro por
+// operação que alterou o sistema de arquivos, gravado sob as mesmas travas
+// que aplicaram a alteração. Cada registro é [tamanho][crc32][conteúdo], e o conteúdo é
+// [operação][flag][número][quantidade de textos][textos][dados].
+// Cada registro é montado e tem o CRC calculado fora do monitor do journal,
+// que só o põe na fila; uma thread grava a fila e faz o fsync a cada
+// intervalo (group commit), e quem precisa de durabilidade espera até o fsync
+// que cobre o seu registro. Dados maiores que TAMANHO_MAXIMO_COPIADO não são
+// copiados: quem registra grava a fila e o registro no canal, em ordem, antes
+// de voltar. Um registro incompleto no final do arquivo (queda no meio da
+// gravação) é descartado ao abrir.
+public final class Journal implements Closeable {
+    private static final int TAMANHO_CABECALHO = 2 * Integer.BYTES;
+    // Operação, flag, número e quantidade de textos.
+    private static final int TAMANHO_CAMPOS = Byte.BYTES * 2 + Long.BYTES + Byte.BYTES;
+    static final int TAMANHO_MAXIMO_COPIADO = 64 * 1024;
+    private static final int TAMANHO_SAIDA = 1024 * 1024;
+    private static final ByteBuffer[] SEM_DADOS = new ByteBuffer[0];
+
+    private final FileChannel canal;
+    private final long intervaloMillis;
+    private final Thread sincronizador;
+    // Só uma thread grava no canal por vez; a fila é trocada sob o monitor do
+    // journal para que registrar nunca espere pelo disco.
+    private final Object gravacao = new Object();
+    // Buffer direto, de tamanho fixo, por onde os registros passam a caminho
+    // do canal; usado só sob gravacao. Sem ele o FileChannel copiaria cada
+    // array para um buffer direto temporário do tamanho do array e o
+    // guardaria na thread.
+    private final ByteBuffer saida = ByteBuffer.allocateDirect(TAMANHO_SAIDA);
+    // Registros ainda não gravados; trocada por uma lista nova a cada
+    // gravação, então nada do que passou fica retido.
+    private List<ByteBuffer> pendentes = new ArrayList<>();
+    private long posicaoRegistrada;
+    private long posicaoDuravel;
+    private long registros;
+    private long sincronizacoes;
+    private boolean fechado;
+    private IOException falha;
+
+    private Journal(FileChannel canal, long fimValido, long intervaloMillis) {
+        this.canal = canal;
+        this.intervaloMillis = intervaloMillis;
+        this.posicaoRegistrada = fimValido;
+        this.posicaoDuravel = fimValido;
+        this.sincronizador = new Thread(this::executarSincronizador, "journal-fsync");
+        this.sincronizador.setDaemon(true);
+        this.sincronizador.start();
+    }
+
+    /**
+     * Abre (ou cria) um journal. Os registros existentes são entregues em ordem
+     * para reproducao antes de o journal aceitar novos registros, e um
+     * registro incompleto no final é descartado.
+     *
+     * @param arquivo         Arquivo do journal
+     * @param intervaloMillis Intervalo entre fsyncs; quanto maior, mais
+     *                        registros cada fsync cobre
+     * @param reproducao      Recebe cada registro existente
+     * @return O journal pronto para registrar
+     * @throws IOException Se o arquivo não puder ser lido ou aberto
+     */
+    public static Journal abrir(Path arquivo, long intervaloMillis, Consumer<Registro> reproducao)
+            throws IOException {
+        return abrir(arquivo, 0, intervaloMillis, reproducao);
+    }
+
+    /**
+     * Abre um journal reproduzindo só os registros a partir de uma posição,
+     * como a gravada num snapshot.
+     *
+     * @param arquivo         Arquivo do journal
+     * @param inicio          Posição do primeiro registro a reproduzir
+     * @param intervaloMillis Intervalo entre fsyncs
+     * @param reproducao      Recebe cada registro a partir de inicio
+     * @return O journal pronto para registrar
+     * @throws IOException Se o arquivo não puder ser lido ou aberto, ou se os
+     *                     registros válidos não chegarem até inicio
+     */
+    public static Journal abrir(Path arquivo, long inicio, long intervaloMillis, Consumer<Registro> reproducao)
+            throws IOException {
+        if (intervaloMillis <= 0) {
+            throw new IllegalArgumentException("Intervalo do journal deve ser positivo: " + intervaloMillis);
+        }
+
+        long fimValido = 0;
+        if (Files.exists(arquivo)) {
+            fimValido = reproduzir(arquivo, inicio, reproducao);
+        }
+        if (fimValido < inicio) {
+            throw new IOException("Journal termina antes da posição " + inicio + ": " + arquivo);
+        }
+
+        FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            canal.truncate(fimValido);
+            canal.position(fimValido);
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+        return new Journal(canal, fimValido, intervaloMillis);
+    }
+
+    /**
+     * Verifica, antes de a operação ser aplicada, se o registro dela cabe no
+     * journal. Conta cada caractere dos textos como 3 bytes, o máximo em
+     * UTF-8, então pode recusar um pouco antes de registrar() recusaria.
+     *
+     * @param dados  Quantidade de bytes da operação
+     * @param textos Argumentos de texto da operação
+     * @throws IllegalArgumentException Se o registro passar do tamanho máximo
+     */
+    static void verificarTamanho(long dados, String... textos) {
+        long tamanho = TAMANHO_CAMPOS + Integer.BYTES + dados;
+        for (String texto : textos) {
+            tamanho += Integer.BYTES + 3L * texto.length();
+        }
+        if (tamanho > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Dados grandes demais para um registro do journal: " + dados);
+        }
+    }
+
+    /**
+     * Acrescenta um registro ao journal.
+     *
+     * @param operacao Operação realizada
+     * @param flag     Argumento booleano da operação (anexar, recursivo)
+     * @param numero   Argumento numérico da operação (posição)
+     * @param dados    Bytes da operação ou null
+     * @param textos   Argumentos de texto, na ordem da operação
+     * @return Posição do journal logo após o registro, para aguardar()
+     * @throws IllegalArgumentException Se o registro passar do tamanho máximo
+     * @throws UncheckedIOException     Se dados grandes forem gravados direto e
+     *                                  a gravação falhar
+     */
+    public long registrar(Operacao operacao, boolean flag, long numero, byte[] dados, String... textos) {
+        return dados == null
+                ? acrescentar(operacao, flag, numero, SEM_DADOS, textos)
+                : registrar(operacao, flag, numero, dados, 0, dados.length, textos);
+    }
+
+    /**
+     * Acrescenta um registro cujos bytes são um trecho de um array, sem
+     * copiá-lo antes.
+     *
+     * @param offset     Posição do trecho em dados
+     * @param quantidade Tamanho do trecho
+     * @see #registrar(Operacao, boolean, long, byte[], String...)
+     */
+    public long registrar(Operacao operacao, boolean flag, long numero, byte[] dados, int offset,
+            int quantidade, String... textos) {
+        return acrescentar(operacao, flag, numero, new ByteBuffer[] { ByteBuffer.wrap(dados, offset, quantidade) },
+                textos);
+    }
+
+    /**
+     * Acrescenta um registro cujos bytes são os restantes de cada buffer, em
+     * sequência, como se fossem um único array. As posições dos buffers não
+     * mudam.
+     *
+     * @param dados Buffers com os bytes da operação, com array ou diretos
+     * @see #registrar(Operacao, boolean, long, byte[], String...)
+     */
+    public long registrarVetorial(Operacao operacao, boolean flag, long numero, ByteBuffer[] dados,
+            String... textos) {
+        ByteBuffer[] trechos = new ByteBuffer[dados.length];
+        for (int i = 0; i < dados.length; i++) {
+            trechos[i] = dados[i].duplicate();
+        }
+        return acrescentar(operacao, flag, numero, trechos, textos);
+    }
+
+    // Monta o registro e calcula o CRC sem o monitor. Com dados pequenos o
+    // registro leva uma cópia deles e só entra na fila; com dados grandes o
+    // registro leva só os campos, e os dados vão do buffer do chamador para o
+    // canal antes de voltar, já que o chamador pode reutilizá-lo em seguida.
+    // As posições de dados avançam.
+    private long acrescentar(Operacao operacao, boolean flag, long numero, ByteBuffer[] dados, String[] textos) {
+        long quantidade = 0;
+        for (ByteBuffer trecho : dados) {
+            quantidade += trecho.remaining();
+        }
+        byte[][] codificados = new byte[textos.length][];
+        long tamanho = TAMANHO_CAMPOS + Integer.BYTES + quantidade;
+        for (int i = 0; i < textos.length; i++) {
+            codificados[i] = textos[i].getBytes(StandardCharsets.UTF_8);
+            tamanho += Integer.BYTES + codificados[i].length;
+        }
+        if (tamanho > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Dados grandes demais para um registro do journal: " + quantidade);
+        }
+
+        boolean direto = quantidade > TAMANHO_MAXIMO_COPIADO;
+        ByteBuffer registro = ByteBuffer.allocate(TAMANHO_CABECALHO + (int) (direto ? tamanho - quantidade : tamanho));
+        registro.position(TAMANHO_CABECALHO);
+        registro.put(operacao.getCodigo());
+        registro.put((byte) (flag ? 1 : 0));
+        registro.putLong(numero);
+        registro.put((byte) textos.length);
+        for (byte[] texto : codificados) {
+            registro.putInt(texto.length);
+            registro.put(texto);
+        }
+        registro.putInt((int) quantidade);
+
+        CRC32 crc = new CRC32();
+        if (direto) {
+            crc.update(registro.array(), TAMANHO_CABECALHO, registro.position() - TAMANHO_CABECALHO);
+            for (ByteBuffer trecho : dados) {
+                crc.update(trecho.duplicate());
+            }
+        } else {
+            for (ByteBuffer trecho : dados) {
+                registro.put(trecho);
+            }
+            crc.update(registro.array(), TAMANHO_CABECALHO, (int) tamanho);
+        }
+        registro.putInt(0, (int) tamanho);
+        registro.putInt(Integer.BYTES, (int) crc.getValue());
+        registro.flip();
+
+        return direto
+                ? gravarDireto(registro, dados, TAMANHO_CABECALHO + tamanho)
+                : enfileirar(registro);
+    }
+
+    private synchronized long enfileirar(ByteBuffer registro) {
+        verificarAberto();
+        pendentes.add(registro);
+        registros++;
+        posicaoRegistrada += registro.remaining();
+        return posicaoRegistrada;
+    }
+
+    // Grava a fila e depois o registro, sem fsync, na posição que o registro
+    // ocupa na ordem do journal.
+    private long gravarDireto(ByteBuffer registro, ByteBuffer[] dados, long tamanho) {
+        synchronized (gravacao) {
+            List<ByteBuffer> lote;
+            long fim;
+            synchronized (this) {
+                verificarAberto();
+                if (falha != null) {
+                    throw new UncheckedIOException("Falha ao gravar o journal", falha);
+                }
+                lote = pendentes;
+                pendentes = new ArrayList<>();
+                registros++;
+                posicaoRegistrada += tamanho;
+                fim = posicaoRegistrada;
+            }
+
+            lote.add(registro);
+            lote.addAll(Arrays.asList(dados));
+            try {
+                gravar(lote);
+            } catch (IOException e) {
+                falhar(e);
+                throw new UncheckedIOException("Falha ao gravar o journal", e);
+            }
+            return fim;
+        }
+    }
+
+    private void verificarAberto() {
+        if (fechado) {
+            throw new IllegalStateException("Journal fechado");
+        }
+    }
+
+    /**
+     * Espera até que um fsync cubra a posição informada.
+     *
+     * @param posicao Valor devolvido por registrar()
+     * @throws UncheckedIOException Se a gravação do journal falhou
+     */
+    public synchronized void aguardar(long posicao) {
+        boolean interrompida = false;
+        while (posicaoDuravel < posicao && falha == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrompida = true;
+            }
+        }
+        if (interrompida) {
+            Thread.currentThread().interrupt();
+        }
+        if (falha != null) {
+            throw new UncheckedIOException("Falha ao gravar o journal", falha);
+        }
+    }
+
+    /**
+     * Grava e faz o fsync de tudo o que foi registrado até agora, sem esperar
+     * o próximo intervalo.
+     *
+     * @throws IOException Se a gravação falhar
+     */
+    public void sincronizar() throws IOException {
+        synchronized (gravacao) {
+            List<ByteBuffer> lote;
+            long fim;
+            synchronized (this) {
+                if (falha != null) {
+                    throw falha;
+                }
+                if (posicaoDuravel == posicaoRegistrada) {
+                    return;
+                }
+                lote = pendentes;
+                pendentes = new ArrayList<>();
+                fim = posicaoRegistrada;
+            }
+
+            try {
+                gravar(lote);
+                canal.force(false);
+            } catch (IOException e) {
+                falhar(e);
+                throw e;
+            }
+
+            synchronized (this) {
+                posicaoDuravel = fim;
+                sincronizacoes++;
+                notifyAll();
+            }
+        }
+    }
+
+    // Grava os trechos em ordem: os com array passam por saida, os diretos
+    // vão ao canal como estão. Chamado sob gravacao.
+    private void gravar(List<ByteBuffer> trechos) throws IOException {
+        for (ByteBuffer trecho : trechos) {
+            if (trecho.isDirect()) {
+                esvaziarSaida();
+                while (trecho.hasRemaining()) {
+                    canal.write(trecho);
+                }
+                continue;
+            }
+            while (trecho.hasRemaining()) {
+                if (!saida.hasRemaining()) {
+                    esvaziarSaida();
+                }
+                int quantidade = Math.min(trecho.remaining(), saida.remaining());
+                saida.put(trecho.slice().limit(quantidade));
+                trecho.position(trecho.position() + quantidade);
+            }
+        }
+        esvaziarSaida();
+    }
+
+    private void esvaziarSaida() throws IOException {
+        saida.flip();
+        while (saida.hasRemaining()) {
+            canal.write(saida);
+        }
+        saida.clear();
+    }
+
+    private synchronized void falhar(IOException e) {
+        falha = e;
+        notifyAll();
+    }
+
+    /**
+     * Grava o que falta, encerra a thread de sincronização e fecha o arquivo.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (fechado) {
+                return;
+            }
+            fechado = true;
+            notifyAll();
+        }
+        try {
+            sincronizador.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sincronizar();
+        } finally {
+            canal.close();
+        }
+    }
+
+    public synchronized long getRegistros() {
+        return registros;
+    }
+
+    /**
+     * @return Quantidade de fsyncs feitos; com group commit, normalmente bem
+     *         menor que getRegistros()
+     */
+    public synchronized long getSincronizacoes() {
+        return sincronizacoes;
+    }
+
+    public synchronized long getTamanho() {
+        return posicaoRegistrada;
+    }
+
+    private void executarSincronizador() {
+        while (true) {
+            synchronized (this) {
+                if (fechado) {
+                    return;
+                }
+                try {
+                    wait(intervaloMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (fechado) {
+                    return;
+                }
+            }
+            try {
+                sincronizar();
+            } catch (IOException e) {
+                // Guardada em falha e relatada a quem aguarda.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lê os registros válidos de um journal, entregando os que começam a
+     * partir de inicio.
+     *
+     * @return Posição do fim do último registro válido
+     * @throws IOException Se inicio cair no meio de um registro
+     */
+    private static long reproduzir(Path arquivo, long inicio, Consumer<Registro> reproducao) throws IOException {
+        long fimValido = 0;
+        try (InputStream entrada = Files.newInputStream(arquivo);
+                DataInputStream dados = new DataInputStream(new BufferedInputStream(entrada))) {
+            long restante = Files.size(arquivo);
+            while (restante >= TAMANHO_CABECALHO) {
+                int tamanho = dados.readInt();
+                int crcEsperado = dados.readInt();
+                if (tamanho < 0 || tamanho > restante - TAMANHO_CABECALHO) {
+                    break;
+                }
+                byte[] conteudo = new byte[tamanho];
+                dados.readFully(conteudo);
+                CRC32 crc = new CRC32();
+                crc.update(conteudo, 0, tamanho);
+                if ((int) crc.getValue() != crcEsperado) {
+                    break;
+                }
+                long fimRegistro = fimValido + TAMANHO_CABECALHO + tamanho;
+                if (fimValido >= inicio) {
+                    reproducao.accept(Registro.decodificar(conteudo));
+                } else if (fimRegistro > inicio) {
+                    throw new IOException("Posição " + inicio + " não é início de registro: " + arquivo);
+                }
+                restante -= TAMANHO_CABECALHO + tamanho;
+                fimValido = fimRegistro;
+            }
+        } catch (EOFException e) {
+            // Registro incompleto no final: descartado.
+        }
+        return fimValido;
+    }
+
+    // Um registro lido do journal.
+    public static final class Registro {
+        private final Operacao operacao;
+        private final boolean flag;
+        private final long numero;
+        private final String[] textos;
+        private final byte[] dados;
+
+        private Registro(Operacao operacao, boolean flag, long numero, String[] textos, byte[] dados) {
+            this.operacao = operacao;
+            this.flag = flag;
+            this.numero = numero;
+            this.textos = textos;
+            this.dados = dados;
+        }
+
+        private static Registro decodificar(byte[] conteudo) {
+            ByteBuffer entrada = ByteBuffer.wrap(conteudo);
+            Operacao operacao = Operacao.deCodigo(entrada.get());
+            boolean flag = entrada.get() != 0;
+            long numero = entrada.getLong();
+            String[] textos = new String[entrada.get()];
+            for (int i = 0; i < textos.length; i++) {
+                textos[i] = new String(lerBytes(entrada), StandardCharsets.UTF_8);
+            }
+            return new Registro(operacao, flag, numero, textos, lerBytes(entrada));
+        }
+
+        private static byte[] lerBytes(ByteBuffer entrada) {
+            byte[] bytes = new byte[entrada.getInt()];
+            entrada.get(bytes);
+            return bytes;
+        }
+
+        public Operacao getOperacao() {
+            return operacao;
+        }
+
+        public boolean getFlag() {
+            return flag;
+        }
+
+        public long getNumero() {
+            return numero;
+        }
+
+        public String getTexto(int indice) {
+            return textos[indice];
+        }
+
+        public byte[] getDados() {
+            return dados;
+        }
+    }
+}
@@ -1,64 +1,143 @@
 package filesys;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
+// Metadados de um nó: uma visão sobre a sua entrada na TabelaInodes. Guarda só
+// a tabela e o número do inode, então é criada a cada getMetadata().
 public class Metadata {
-    private String name;
-    private String owner;
-    private int size;
-    private Map<String, String> permissions = new HashMap<>();
-    
-    public Metadata(String name, String owner, int size) {
-        this.name = name;
-        this.owner = owner;
-        this.size = size;
-        permissions.put(owner, "rwx");
-    }
-    public Metadata(String name, String owner, int size, Map<String, String> permissions) {
-        this.name = name;
-        this.owner = owner;
-        this.size = size;
-        this.permissions.putAll(permissions);
-        this.permissions.put(owner, "rwx");
+    private final TabelaInodes tabela;
+    private final int inode;
+
+    Metadata(TabelaInodes tabela, int inode) {
+        this.tabela = tabela;
+        this.inode = inode;
+    }
+
+    public Metadata(String name, String owner, long size) {
+        this(name, owner);
+        setSize(size);
+    }
+
+    public Metadata(String name, String owner, long size, Map<String, String> permissions) {
+        this(name, owner, size);
+        getPermissions().putAll(permissions);
+        getPermissions().put(owner, "rwx");
     }
 
     public Metadata(String name, String owner) {
-        this.name = name;
-        this.owner = owner;
-        this.size = 0;
-        permissions.put(owner, "rwx");
+        this(TabelaInodes.paraUmNo(), name, owner);
+    }
+
+    private Metadata(TabelaInodes tabela, String name, String owner) {
+        this(tabela, tabela.alocar(name, owner));
     }
 
     public String getName() {
-        return name;
+        return tabela.getNome(inode);
     }
 
     public void setName(String name) {
-        this.name = name;
+        tabela.setNome(inode, name);
     }
 
     public String getOwner() {
-        return owner;
+        return tabela.getDono(inode);
     }
 
     public void setOwner(String owner) {
-        this.owner = owner;
+        tabela.setDono(inode, owner);
     }
 
-    public int getSize() {
-        return size;
+    public long getSize() {
+        return tabela.getTamanho(inode);
     }
 
-    public void setSize(int size) {
-        this.size = size;
+    public void setSize(long size) {
+        tabela.setTamanho(inode, size);
     }
 
+    /**
+     * @return Visão das permissões (usuário -> "rwx"); alterações são gravadas
+     *         na ACL do inode
+     */
     public Map<String, String> getPermissions() {
-        return permissions;
+        return new Permissoes();
     }
 
     public void setPermissions(Map<String, String> permissions) {
-        this.permissions = permissions;
+        int[] entradas = new int[permissions.size()];
+        int i = 0;
+        for (Map.Entry<String, String> permissao : permissions.entrySet()) {
+            entradas[i++] = TabelaInodes.entrada(tabela.idUsuario(permissao.getKey()),
+                    TabelaInodes.bits(permissao.getValue()));
+        }
+        tabela.setAcl(inode, entradas);
+    }
+
+    TabelaInodes getTabela() {
+        return tabela;
+    }
+
+    int getInode() {
+        return inode;
+    }
+
+    // Map sobre a ACL do inode; a iteração percorre uma cópia.
+    private final class Permissoes extends AbstractMap<String, String> {
+        @Override
+        public String get(Object usuario) {
+            if (!(usuario instanceof String)) {
+                return null;
+            }
+            int uid = tabela.buscarUsuario((String) usuario);
+            if (uid < 0) {
+                return null;
+            }
+            for (int entrada : tabela.getAcl(inode)) {
+                if (entrada >>> 3 == uid) {
+                    return TabelaInodes.texto(entrada & TabelaInodes.TODAS);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object usuario) {
+            return get(usuario) != null;
+        }
+
+        @Override
+        public String put(String usuario, String permissao) {
+            String anterior = get(usuario);
+            tabela.setPermissoes(inode, tabela.idUsuario(usuario), TabelaInodes.bits(permissao));
+            return anterior;
+        }
+
+        @Override
+        public String remove(Object usuario) {
+            String anterior = get(usuario);
+            if (anterior != null) {
+                tabela.setPermissoes(inode, tabela.buscarUsuario((String) usuario), -1);
+            }
+            return anterior;
+        }
+
+        @Override
+        public void clear() {
+            tabela.setAcl(inode, new int[0]);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            Map<String, String> copia = new LinkedHashMap<>();
+            for (int entrada : tabela.getAcl(inode)) {
+                copia.put(tabela.nomeUsuario(entrada >>> 3), TabelaInodes.texto(entrada & TabelaInodes.TODAS));
+            }
+            return Collections.unmodifiableSet(copia.entrySet());
+        }
     }
 }
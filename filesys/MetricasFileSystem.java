@@ -0,0 +1,247 @@
+package filesys;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Métricas das chamadas feitas através de um FileSystem (ver
+// FileSystem.ativarMetricas): por tipo de operação, um histograma de latência
+// e as falhas; no total, bytes lidos e escritos e exceções por classe.
+// Registrar uma chamada não aloca nem trava: um incremento no histograma
+// listrado da operação e somas em LongAdders, que também são listrados. Só a
+// primeira exceção de cada classe cria o seu contador.
+// getRetrato() copia tudo para consulta no processo; registrarJmx() publica
+// as mesmas informações como MXBeans, uma para o total e uma por operação,
+// calculadas a cada leitura.
+public final class MetricasFileSystem implements MetricasFileSystemMXBean {
+    private static final Chamada.Tipo[] TIPOS = Chamada.Tipo.values();
+    private static final String DOMINIO_JMX = "filesys";
+
+    private final Histograma[] latencias = new Histograma[TIPOS.length];
+    private final LongAdder[] falhas = new LongAdder[TIPOS.length];
+    private final LongAdder bytesLidos = new LongAdder();
+    private final LongAdder bytesEscritos = new LongAdder();
+    private final ConcurrentHashMap<Class<?>, LongAdder> excecoes = new ConcurrentHashMap<>();
+    private final List<ObjectName> nomesJmx = new ArrayList<>();
+
+    MetricasFileSystem() {
+        int listras = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < TIPOS.length; i++) {
+            latencias[i] = new Histograma(listras);
+            falhas[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registra uma chamada concluída.
+     *
+     * @param bytes Bytes lidos ou escritos pela chamada, se teve sucesso
+     * @param falha Exceção lançada pela chamada ou null
+     */
+    void registrar(Chamada.Tipo tipo, long duracaoNanos, long bytes, Throwable falha) {
+        int i = tipo.ordinal();
+        latencias[i].registrar(duracaoNanos);
+        if (falha != null) {
+            falhas[i].increment();
+            excecoes.computeIfAbsent(falha.getClass(), classe -> new LongAdder()).increment();
+        } else if (bytes > 0) {
+            (tipo.isLeitura() ? bytesLidos : bytesEscritos).add(bytes);
+        }
+    }
+
+    /**
+     * @return Cópia das métricas neste momento. Chamadas concluídas durante a
+     *         cópia podem aparecer só em parte dos valores.
+     */
+    public Retrato getRetrato() {
+        return new Retrato(this);
+    }
+
+    @Override
+    public long getChamadas() {
+        long total = 0;
+        for (Histograma latencia : latencias) {
+            total += latencia.getContagem();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFalhas() {
+        long total = 0;
+        for (LongAdder f : falhas) {
+            total += f.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesLidos() {
+        return bytesLidos.sum();
+    }
+
+    @Override
+    public long getBytesEscritos() {
+        return bytesEscritos.sum();
+    }
+
+    /**
+     * @return Quantidade de exceções lançadas por nome simples da classe
+     */
+    @Override
+    public Map<String, Long> getExcecoes() {
+        Map<String, Long> copia = new TreeMap<>();
+        excecoes.forEach((classe, contador) -> copia.merge(classe.getSimpleName(), contador.sum(), Long::sum));
+        return Collections.unmodifiableMap(copia);
+    }
+
+    /**
+     * Publica as métricas no MBeanServer da plataforma como
+     * filesys:type=FileSystem,name=nome e, para cada operação,
+     * filesys:type=FileSystem,name=nome,operacao=TIPO.
+     *
+     * @param nome Nome que distingue este sistema de arquivos no JMX
+     * @throws JMException Se o nome for inválido ou já estiver registrado
+     */
+    public synchronized void registrarJmx(String nome) throws JMException {
+        if (!nomesJmx.isEmpty()) {
+            throw new IllegalStateException("Métricas já registradas no JMX");
+        }
+        MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+        String base = DOMINIO_JMX + ":type=FileSystem,name=" + ObjectName.quote(nome);
+        try {
+            registrar(servidor, this, new ObjectName(base));
+            for (Chamada.Tipo tipo : TIPOS) {
+                registrar(servidor, new MetricasOperacao(tipo), new ObjectName(base + ",operacao=" + tipo));
+            }
+        } catch (JMException e) {
+            cancelarRegistroJmx();
+            throw e;
+        }
+    }
+
+    /**
+     * Remove do MBeanServer as MXBeans publicadas por registrarJmx().
+     */
+    public synchronized void cancelarRegistroJmx() throws JMException {
+        MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName nome : nomesJmx) {
+            if (servidor.isRegistered(nome)) {
+                servidor.unregisterMBean(nome);
+            }
+        }
+        nomesJmx.clear();
+    }
+
+    private void registrar(MBeanServer servidor, Object mbean, ObjectName nome) throws JMException {
+        servidor.registerMBean(mbean, nome);
+        nomesJmx.add(nome);
+    }
+
+    private final class MetricasOperacao implements MetricasOperacaoMXBean {
+        private final Histograma latencia;
+        private final LongAdder falhasOperacao;
+
+        MetricasOperacao(Chamada.Tipo tipo) {
+            this.latencia = latencias[tipo.ordinal()];
+            this.falhasOperacao = falhas[tipo.ordinal()];
+        }
+
+        @Override
+        public long getChamadas() {
+            return latencia.getContagem();
+        }
+
+        @Override
+        public long getFalhas() {
+            return falhasOperacao.sum();
+        }
+
+        @Override
+        public long getLatenciaP50() {
+            return latencia.getPercentil(50);
+        }
+
+        @Override
+        public long getLatenciaP99() {
+            return latencia.getPercentil(99);
+        }
+
+        @Override
+        public long getLatenciaP999() {
+            return latencia.getPercentil(99.9);
+        }
+
+        @Override
+        public long getLatenciaMaxima() {
+            return latencia.getMaximo();
+        }
+
+        @Override
+        public double getLatenciaMedia() {
+            return latencia.getMedia();
+        }
+    }
+
+    // Cópia das métricas num momento.
+    public static final class Retrato {
+        private final Map<Chamada.Tipo, Histograma> latencias = new EnumMap<>(Chamada.Tipo.class);
+        private final Map<Chamada.Tipo, Long> falhas = new EnumMap<>(Chamada.Tipo.class);
+        private final long bytesLidos;
+        private final long bytesEscritos;
+        private final Map<String, Long> excecoes;
+
+        private Retrato(MetricasFileSystem metricas) {
+            for (Chamada.Tipo tipo : TIPOS) {
+                Histograma copia = new Histograma();
+                copia.juntar(metricas.latencias[tipo.ordinal()]);
+                latencias.put(tipo, copia);
+                falhas.put(tipo, metricas.falhas[tipo.ordinal()].sum());
+            }
+            this.bytesLidos = metricas.getBytesLidos();
+            this.bytesEscritos = metricas.getBytesEscritos();
+            this.excecoes = metricas.getExcecoes();
+        }
+
+        /**
+         * @return Latências das chamadas do tipo, em nanossegundos; o
+         *         histograma é uma cópia e pode ser alterado
+         */
+        public Histograma getLatencias(Chamada.Tipo tipo) {
+            return latencias.get(tipo);
+        }
+
+        public long getChamadas(Chamada.Tipo tipo) {
+            return latencias.get(tipo).getContagem();
+        }
+
+        public long getFalhas(Chamada.Tipo tipo) {
+            return falhas.get(tipo);
+        }
+
+        public long getBytesLidos() {
+            return bytesLidos;
+        }
+
+        public long getBytesEscritos() {
+            return bytesEscritos;
+        }
+
+        /**
+         * @return Quantidade de exceções lançadas por nome simples da classe
+         */
+        public Map<String, Long> getExcecoes() {
+            return excecoes;
+        }
+    }
+}
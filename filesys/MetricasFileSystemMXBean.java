@@ -0,0 +1,18 @@
+package filesys;
+
+import java.util.Map;
+
+// Atributos JMX do total das métricas de um FileSystem (ver
+// MetricasFileSystem.registrarJmx).
+public interface MetricasFileSystemMXBean {
+    long getChamadas();
+
+    long getFalhas();
+
+    long getBytesLidos();
+
+    long getBytesEscritos();
+
+    // Quantidade de exceções lançadas por nome simples da classe.
+    Map<String, Long> getExcecoes();
+}
@@ -0,0 +1,19 @@
+package filesys;
+
+// Atributos JMX das métricas de um tipo de operação de um FileSystem (ver
+// MetricasFileSystem.registrarJmx). Latências em nanossegundos.
+public interface MetricasOperacaoMXBean {
+    long getChamadas();
+
+    long getFalhas();
+
+    long getLatenciaP50();
+
+    long getLatenciaP99();
+
+    long getLatenciaP999();
+
+    long getLatenciaMaxima();
+
+    double getLatenciaMedia();
+}
@@ -0,0 +1,6 @@
+package filesys;
+
+// Nó da árvore do sistema de arquivos: um arquivo ou um diretório.
+public interface No {
+    Metadata getMetadata();
+}
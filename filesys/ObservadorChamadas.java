@@ -0,0 +1,9 @@
+package filesys;
+
+// Recebe cada chamada feita através do proxy FileSystem (ver
+// FileSystem.setObservador). É chamado na thread que fez a chamada, depois de
+// ela retornar ou lançar exceção, e portanto por várias threads ao mesmo
+// tempo; deve ser rápido, porque o seu tempo é somado ao da chamada.
+public interface ObservadorChamadas {
+    void chamadaConcluida(Chamada chamada);
+}
@@ -0,0 +1,39 @@
+package filesys;
+
+// Operações que alteram o sistema de arquivos, na forma gravada pelo Journal.
+// O código de cada operação é a sua posição: novas operações só podem ser
+// acrescentadas no final.
+public enum Operacao {
+    MKDIR,
+    TOUCH,
+    WRITE,
+    WRITE_POSICIONAL,
+    RM,
+    MV,
+    CP,
+    CHMOD,
+    ADD_USER,
+    // Regra do arquivo de usuários: [usuario, padrao, permissao].
+    REGRA,
+    // Redução de um arquivo: [usuario, caminho], com o novo tamanho no número.
+    TRUNCATE;
+
+    private static final Operacao[] VALORES = values();
+
+    byte getCodigo() {
+        return (byte) ordinal();
+    }
+
+    /**
+     * @param codigo Código gravado no journal
+     * @return A operação correspondente
+     * @throws IllegalArgumentException Se o código não corresponder a nenhuma
+     *                                  operação
+     */
+    static Operacao deCodigo(byte codigo) {
+        if (codigo < 0 || codigo >= VALORES.length) {
+            throw new IllegalArgumentException("Código de operação inválido: " + codigo);
+        }
+        return VALORES[codigo];
+    }
+}
@@ -0,0 +1,121 @@
+package filesys;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Usuários de um sistema de arquivos, indexados por nome numa tabela hash:
+// buscar é O(1) e devolve sempre o mesmo objeto Usuario. O uid de cada
+// usuário vem da TabelaInodes, de modo que as ACLs usam os mesmos ids.
+// Cadastros passam por FileSystemImpl, que os registra no journal.
+public final class RegistroUsuarios {
+    private final TabelaInodes inodes;
+    private final ConcurrentHashMap<String, Usuario> usuarios = new ConcurrentHashMap<>();
+
+    RegistroUsuarios(TabelaInodes inodes) {
+        this.inodes = inodes;
+    }
+
+    /**
+     * @param nome Nome do usuário
+     * @return O usuário ou null se ele não estiver cadastrado
+     */
+    public Usuario buscar(String nome) {
+        return usuarios.get(nome);
+    }
+
+    /**
+     * Cadastra um usuário, recebendo o seu uid da tabela de inodes.
+     *
+     * @param nome Nome do usuário
+     * @return O novo usuário, ou null se ele já estava cadastrado
+     */
+    Usuario cadastrar(String nome) {
+        Usuario novo = new Usuario(nome, inodes.idUsuario(nome));
+        return usuarios.putIfAbsent(nome, novo) == null ? novo : null;
+    }
+
+    /**
+     * @return Nomes dos usuários cadastrados
+     */
+    public Set<String> getNomes() {
+        return Collections.unmodifiableSet(usuarios.keySet());
+    }
+
+    public int getQuantidade() {
+        return usuarios.size();
+    }
+
+    /**
+     * Lê um arquivo no formato de users/users: uma linha por regra, com nome
+     * do usuário, caminho e permissão separados por espaços (por exemplo,
+     * "maria /** rw-"). Linhas em branco são ignoradas.
+     *
+     * @param arquivo Arquivo de usuários
+     * @return As linhas, na ordem do arquivo
+     * @throws IOException Se o arquivo não puder ser lido ou tiver uma linha
+     *                     fora do formato
+     */
+    public static List<Linha> ler(Path arquivo) throws IOException {
+        List<Linha> linhas = new ArrayList<>();
+        try (BufferedReader leitor = Files.newBufferedReader(arquivo, StandardCharsets.UTF_8)) {
+            String texto;
+            int numero = 0;
+            while ((texto = leitor.readLine()) != null) {
+                numero++;
+                texto = texto.trim();
+                if (texto.isEmpty()) {
+                    continue;
+                }
+                String[] partes = texto.split("\\s+");
+                if (partes.length != 3 || !permissaoValida(partes[2])) {
+                    throw new IOException("Formato ruim no arquivo de usuários. Linha " + numero + ": " + texto);
+                }
+                linhas.add(new Linha(partes[0], partes[1], partes[2]));
+            }
+        }
+        return linhas;
+    }
+
+    private static boolean permissaoValida(String permissao) {
+        for (int i = 0; i < permissao.length(); i++) {
+            char c = permissao.charAt(i);
+            if (c != 'r' && c != 'w' && c != 'x' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Uma linha do arquivo de usuários.
+    public static final class Linha {
+        private final String usuario;
+        private final String caminho;
+        private final String permissao;
+
+        private Linha(String usuario, String caminho, String permissao) {
+            this.usuario = usuario;
+            this.caminho = caminho;
+            this.permissao = permissao;
+        }
+
+        public String getUsuario() {
+            return usuario;
+        }
+
+        public String getCaminho() {
+            return caminho;
+        }
+
+        public String getPermissao() {
+            return permissao;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package filesys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Regras de permissão do arquivo de usuários ("maria /** rw-") compiladas numa
+// trie de segmentos de caminho. Cada nível da trie guarda, em arrays de
+// entradas (uid << 3 | bits) ordenadas por uid como as ACLs da TabelaInodes,
+// as regras ancoradas nele:
+// exatas ("/a/b"): valem só para o próprio caminho;
+// curingas ("/a/*"): valem para os filhos diretos;
+// descendentes ("/a/**"): valem para o caminho e tudo abaixo dele.
+// resolver desce a trie uma vez, junto com os ancestrais do nó, e fica com a
+// regra mais profunda que casa; no mesmo nível, exata vence curinga, que vence
+// descendentes. Nós sem entrada própria na ACL herdam essa regra, então nada é
+// copiado para os nós na criação.
+// Leitores não travam: arrays e filhos são trocados inteiros a cada regra nova.
+final class RegrasPermissao {
+    private static final int SEM_REGRA = -1;
+
+    private final Nivel raiz = new Nivel(null);
+    // Regras na ordem em que foram adicionadas, para o snapshot.
+    private final List<Regra> regras = new ArrayList<>();
+
+    /**
+     * Adiciona uma regra; uma regra anterior do mesmo usuário com o mesmo
+     * padrão é substituída.
+     *
+     * @param usuario   Usuário da regra
+     * @param padrao    Caminho absoluto, opcionalmente terminado em "/*" ou
+     *                  "/**" (ver padraoValido)
+     * @param permissao Texto com r, w, x e -
+     * @throws IllegalArgumentException Se o padrão não for suportado
+     */
+    synchronized void adicionar(Usuario usuario, String padrao, String permissao) {
+        if (!padraoValido(padrao)) {
+            throw new IllegalArgumentException("Padrão de caminho não suportado: " + padrao);
+        }
+        CursorCaminho cursor = new CursorCaminho(padrao, 0, padrao.length());
+        Nivel nivel = raiz;
+        int tipo = Nivel.EXATAS;
+        while (cursor.proximo()) {
+            String segmento = cursor.segmento();
+            if (segmento.equals("**")) {
+                tipo = Nivel.DESCENDENTES;
+            } else if (segmento.equals("*")) {
+                tipo = Nivel.CURINGAS;
+            } else {
+                nivel = nivel.filhoOuNovo(segmento);
+            }
+        }
+        nivel.gravar(tipo, TabelaInodes.entrada(usuario.getUid(), TabelaInodes.bits(permissao)));
+        regras.add(new Regra(usuario.getNome(), padrao, permissao));
+    }
+
+    /**
+     * @param padrao Padrão de caminho
+     * @return Se o padrão é absoluto, sem "." ou "..", e só tem "*" ou "**"
+     *         como último segmento
+     */
+    static boolean padraoValido(String padrao) {
+        if (!padrao.startsWith("/")) {
+            return false;
+        }
+        CursorCaminho cursor = new CursorCaminho(padrao, 0, padrao.length());
+        boolean curinga = false;
+        while (cursor.proximo()) {
+            if (curinga || cursor.ehAtual() || cursor.ehPai()) {
+                return false;
+            }
+            String segmento = cursor.segmento();
+            curinga = segmento.indexOf('*') >= 0;
+            if (curinga && !segmento.equals("*") && !segmento.equals("**")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param uid  Id do usuário
+     * @param dir  Diretório alvo, ou pai do alvo quando nome não for null
+     * @param nome Nome do alvo dentro de dir, ou null se o alvo for dir
+     * @return Bits rwx da regra mais específica para o alvo; 0 se nenhuma casar
+     */
+    int resolver(int uid, Diretorio dir, String nome) {
+        Busca busca = new Busca(uid);
+        descer(busca, dir);
+        if (nome != null) {
+            busca.passo(nome);
+        }
+        return busca.resultado();
+    }
+
+    synchronized List<Regra> getRegras() {
+        return new ArrayList<>(regras);
+    }
+
+    private void descer(Busca busca, Diretorio dir) {
+        Diretorio pai = dir.getPai();
+        if (pai == null) {
+            busca.nivel = raiz;
+            return;
+        }
+        descer(busca, pai);
+        busca.passo(dir.getMetadata().getName());
+    }
+
+    private static int procurar(int[] entradas, int uid) {
+        int posicao = TabelaInodes.procurar(entradas, uid);
+        return posicao >= 0 ? entradas[posicao] & TabelaInodes.TODAS : SEM_REGRA;
+    }
+
+    // Estado de uma descida: o nível da trie que corresponde ao caminho até
+    // aqui (null quando a trie acabou), a regra de descendentes mais profunda
+    // entre os ancestrais e a regra curinga do pai.
+    private static final class Busca {
+        private final int uid;
+        private Nivel nivel;
+        private int herdada = SEM_REGRA;
+        private int curinga = SEM_REGRA;
+
+        private Busca(int uid) {
+            this.uid = uid;
+        }
+
+        private void passo(String nome) {
+            if (nivel == null) {
+                curinga = SEM_REGRA;
+                return;
+            }
+            int descendentes = procurar(nivel.descendentes, uid);
+            if (descendentes != SEM_REGRA) {
+                herdada = descendentes;
+            }
+            curinga = procurar(nivel.curingas, uid);
+            nivel = nivel.filho(nome);
+        }
+
+        private int resultado() {
+            if (nivel != null) {
+                int exata = procurar(nivel.exatas, uid);
+                if (exata != SEM_REGRA) {
+                    return exata;
+                }
+                int descendentes = procurar(nivel.descendentes, uid);
+                if (descendentes != SEM_REGRA) {
+                    return descendentes;
+                }
+            }
+            if (curinga != SEM_REGRA) {
+                return curinga;
+            }
+            return herdada != SEM_REGRA ? herdada : 0;
+        }
+    }
+
+    // Um segmento da trie. Os filhos são poucos e ficam num array percorrido
+    // em ordem.
+    private static final class Nivel {
+        private static final int EXATAS = 0;
+        private static final int CURINGAS = 1;
+        private static final int DESCENDENTES = 2;
+        private static final Nivel[] SEM_FILHOS = new Nivel[0];
+        private static final int[] SEM_ENTRADAS = new int[0];
+
+        private final String nome;
+        private volatile Nivel[] filhos = SEM_FILHOS;
+        private volatile int[] exatas = SEM_ENTRADAS;
+        private volatile int[] curingas = SEM_ENTRADAS;
+        private volatile int[] descendentes = SEM_ENTRADAS;
+
+        private Nivel(String nome) {
+            this.nome = nome;
+        }
+
+        private Nivel filho(String nome) {
+            for (Nivel filho : filhos) {
+                if (filho.nome.equals(nome)) {
+                    return filho;
+                }
+            }
+            return null;
+        }
+
+        private Nivel filhoOuNovo(String nome) {
+            Nivel filho = filho(nome);
+            if (filho == null) {
+                filho = new Nivel(nome);
+                Nivel[] novos = Arrays.copyOf(filhos, filhos.length + 1);
+                novos[filhos.length] = filho;
+                filhos = novos;
+            }
+            return filho;
+        }
+
+        private void gravar(int tipo, int entrada) {
+            int[] atuais = tipo == EXATAS ? exatas : tipo == CURINGAS ? curingas : descendentes;
+            int posicao = TabelaInodes.procurar(atuais, entrada >>> 3);
+            int[] novas;
+            if (posicao >= 0) {
+                novas = atuais.clone();
+                novas[posicao] = entrada;
+            } else {
+                int insercao = -posicao - 1;
+                novas = new int[atuais.length + 1];
+                System.arraycopy(atuais, 0, novas, 0, insercao);
+                novas[insercao] = entrada;
+                System.arraycopy(atuais, insercao, novas, insercao + 1, atuais.length - insercao);
+            }
+            if (tipo == EXATAS) {
+                exatas = novas;
+            } else if (tipo == CURINGAS) {
+                curingas = novas;
+            } else {
+                descendentes = novas;
+            }
+        }
+    }
+
+    // Uma regra como foi adicionada.
+    static final class Regra {
+        private final String usuario;
+        private final String padrao;
+        private final String permissao;
+
+        Regra(String usuario, String padrao, String permissao) {
+            this.usuario = usuario;
+            this.padrao = padrao;
+            this.permissao = permissao;
+        }
+
+        String getUsuario() {
+            return usuario;
+        }
+
+        String getPadrao() {
+            return padrao;
+        }
+
+        String getPermissao() {
+            return permissao;
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package filesys;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Snapshot do sistema de arquivos: a árvore inteira (diretórios, arquivos,
+// metadados e referências a blocos), os usuários e o conteúdo dos blocos num
+// único arquivo binário, junto com a posição do journal que ele já inclui.
+// Formato: [cabeçalho][blocos][árvore]. O cabeçalho ocupa TAMANHO_CABECALHO
+// bytes para que os blocos comecem alinhados à página e possam ser mapeados
+// diretamente. Os blocos são renumerados de forma densa e um bloco
+// compartilhado é gravado uma vez só. A última seção, protegida por CRC32,
+// traz as referências de cada bloco, os usuários, as regras de permissão por
+// caminho e a árvore em pré-ordem, com inteiros de tamanho variável. Um
+// arquivo lista só os blocos que tem, cada um com a distância desde o
+// anterior, para que buracos não ocupem espaço.
+// A captura percorre a árvore congelada copiando só metadados e índices, e
+// retém cada bloco no dispositivo: quem escrever depois recebe uma cópia
+// (ver DispositivoBlocos.paraEscrita) e o conteúdo capturado não muda enquanto
+// é copiado para o arquivo, já sem travas. A codificação da árvore também fica
+// para depois, e a árvore é percorrida sem recursão nos dois sentidos, então a
+// profundidade não é limitada pela pilha.
+// A restauração mapeia os blocos em modo privado: nada é lido antes de ser
+// acessado, e páginas alteradas viram cópias em memória sem alterar o arquivo.
+public final class Snapshot {
+    static final int TAMANHO_CABECALHO = 4096;
+    private static final int MAGICO = 0x46534E50;
+    private static final int VERSAO = 1;
+    private static final int TAMANHO_BLOCO = DispositivoBlocos.TAMANHO_BLOCO;
+    private static final int BLOCOS_POR_LOTE = 256;
+
+    private static final byte FIM = 0;
+    private static final byte DIRETORIO = 1;
+    private static final byte ARQUIVO = 2;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Captura o estado da árvore. Nada pode alterar a árvore durante a
+     * captura, que não faz entrada e saída nem codifica nada: copia os
+     * metadados e as referências a blocos, e retém os blocos.
+     *
+     * @param raiz           Raiz da árvore
+     * @param usuarios       Usuários cadastrados
+     * @param regras         Regras de permissão por caminho
+     * @param dispositivo    Dispositivo dos blocos dos arquivos
+     * @param journal        Journal ativo ou null
+     * @param posicaoJournal Posição do journal que o snapshot inclui
+     * @return A captura, a ser entregue a gravar()
+     */
+    static Captura capturar(Diretorio raiz, Iterable<String> usuarios, List<RegrasPermissao.Regra> regras,
+            DispositivoBlocos dispositivo, Journal journal, long posicaoJournal) {
+        Captura captura = new Captura(dispositivo, journal, posicaoJournal, dispositivo.getBlocosTotais());
+        usuarios.forEach(captura.usuarios::add);
+        captura.regras.addAll(regras);
+
+        // Pré-ordem: cada diretório, seus filhos e um FIM.
+        List<NoCapturado> nos = captura.nos;
+        Deque<Iterator<No>> abertos = new ArrayDeque<>();
+        nos.add(new NoCapturado(DIRETORIO, raiz.getMetadata()));
+        abertos.push(raiz.getFilhos().iterator());
+        while (!abertos.isEmpty()) {
+            Iterator<No> filhos = abertos.peek();
+            if (!filhos.hasNext()) {
+                abertos.pop();
+                nos.add(NoCapturado.FIM_DIRETORIO);
+                continue;
+            }
+            No filho = filhos.next();
+            if (filho instanceof Diretorio) {
+                nos.add(new NoCapturado(DIRETORIO, filho.getMetadata()));
+                abertos.push(((Diretorio) filho).getFilhos().iterator());
+            } else {
+                nos.add(capturarArquivo(captura, (Arquivo) filho));
+            }
+        }
+        return captura;
+    }
+
+    /**
+     * Grava uma captura num arquivo, substituindo-o só depois que tudo estiver
+     * no disco. Se houver journal, espera também que ele esteja no disco até a
+     * posição incluída no snapshot. Libera os blocos retidos pela captura,
+     * mesmo em caso de erro.
+     *
+     * @param captura Captura obtida com capturar()
+     * @param arquivo Arquivo do snapshot
+     * @throws IOException Se a gravação falhar
+     */
+    static void gravar(Captura captura, Path arquivo) throws IOException {
+        Path temporario = arquivo.resolveSibling(arquivo.getFileName() + ".tmp");
+        try {
+            Saida arvore = codificar(captura);
+            try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                gravarBlocos(captura, canal);
+                Saida referencias = new Saida();
+                referencias.inteiro(captura.quantidadeBlocos);
+                for (int i = 0; i < captura.quantidadeBlocos; i++) {
+                    referencias.inteiro(captura.referencias[i]);
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(referencias.bytes, 0, referencias.tamanho);
+                crc.update(arvore.bytes, 0, arvore.tamanho);
+                long inicioArvore = TAMANHO_CABECALHO + (long) captura.quantidadeBlocos * TAMANHO_BLOCO;
+                escreverTudo(canal, ByteBuffer.wrap(referencias.bytes, 0, referencias.tamanho), inicioArvore);
+                escreverTudo(canal, ByteBuffer.wrap(arvore.bytes, 0, arvore.tamanho),
+                        inicioArvore + referencias.tamanho);
+
+                ByteBuffer cabecalho = ByteBuffer.allocate(TAMANHO_CABECALHO);
+                cabecalho.putInt(MAGICO)
+                        .putInt(VERSAO)
+                        .putLong(captura.posicaoJournal)
+                        .putInt(captura.quantidadeBlocos)
+                        .putInt(referencias.tamanho + arvore.tamanho)
+                        .putInt((int) crc.getValue())
+                        .put((byte) (captura.dispositivo.isDeduplicacao() ? 1 : 0));
+                cabecalho.clear();
+                escreverTudo(canal, cabecalho, 0);
+                canal.force(true);
+            }
+            if (captura.journal != null) {
+                captura.journal.aguardar(captura.posicaoJournal);
+            }
+            Files.move(temporario, arquivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            captura.liberar();
+            Files.deleteIfExists(temporario);
+        }
+    }
+
+    /**
+     * Restaura um snapshot. Os blocos ficam mapeados do arquivo e só são lidos
+     * quando acessados; a árvore é lida por inteiro.
+     *
+     * @param arquivo Arquivo do snapshot
+     * @param inodes  Tabela que recebe os metadados dos nós restaurados
+     * @return O conteúdo restaurado
+     * @throws IOException Se o arquivo não for um snapshot válido ou não puder
+     *                     ser lido
+     */
+    static Restaurado restaurar(Path arquivo, TabelaInodes inodes) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer cabecalho = ByteBuffer.allocate(TAMANHO_CABECALHO);
+            lerTudo(canal, cabecalho, 0);
+            cabecalho.flip();
+            if (cabecalho.getInt() != MAGICO) {
+                throw new IOException("Arquivo não é um snapshot: " + arquivo);
+            }
+            int versao = cabecalho.getInt();
+            if (versao != VERSAO) {
+                throw new IOException("Versão de snapshot não suportada: " + versao);
+            }
+            long posicaoJournal = cabecalho.getLong();
+            int quantidadeBlocos = cabecalho.getInt();
+            int tamanhoArvore = cabecalho.getInt();
+            int crcEsperado = cabecalho.getInt();
+            boolean deduplicacao = cabecalho.get() != 0;
+
+            long inicioArvore = TAMANHO_CABECALHO + (long) quantidadeBlocos * TAMANHO_BLOCO;
+            if (quantidadeBlocos < 0 || tamanhoArvore < 0 || canal.size() < inicioArvore + tamanhoArvore) {
+                throw new IOException("Snapshot incompleto: " + arquivo);
+            }
+            MappedByteBuffer arvore = canal.map(FileChannel.MapMode.READ_ONLY, inicioArvore, tamanhoArvore);
+            CRC32 crc = new CRC32();
+            crc.update(arvore.duplicate());
+            if ((int) crc.getValue() != crcEsperado) {
+                throw new IOException("Snapshot corrompido: " + arquivo);
+            }
+
+            Entrada entrada = new Entrada(arvore);
+            int quantidadeReferencias = entrada.inteiro();
+            if (quantidadeReferencias != quantidadeBlocos) {
+                throw new IOException("Snapshot corrompido: " + arquivo);
+            }
+            int[] referencias = new int[quantidadeBlocos];
+            for (int i = 0; i < quantidadeBlocos; i++) {
+                referencias[i] = entrada.inteiro();
+            }
+            ArmazenamentoDireto armazenamento = new ArmazenamentoDireto(ArmazenamentoDireto.BLOCOS_POR_FATIA_PADRAO,
+                    mapearBlocos(canal, quantidadeBlocos, ArmazenamentoDireto.BLOCOS_POR_FATIA_PADRAO));
+            DispositivoBlocos dispositivo = new DispositivoBlocos(armazenamento, referencias, deduplicacao);
+
+            List<String> usuarios = new ArrayList<>();
+            for (int i = entrada.inteiro(); i > 0; i--) {
+                usuarios.add(entrada.texto());
+            }
+            List<RegrasPermissao.Regra> regras = new ArrayList<>();
+            for (int i = entrada.inteiro(); i > 0; i--) {
+                regras.add(new RegrasPermissao.Regra(entrada.texto(), entrada.texto(), entrada.texto()));
+            }
+            if (entrada.tipo() != DIRETORIO) {
+                throw new IOException("Snapshot corrompido: " + arquivo);
+            }
+            Diretorio raiz = restaurarArvore(entrada, inodes, dispositivo, quantidadeBlocos);
+            return new Restaurado(raiz, usuarios, regras, dispositivo, posicaoJournal);
+        } catch (RuntimeException e) {
+            // Conteúdo inconsistente apesar do CRC (versão ou gravação com erro).
+            throw new IOException("Snapshot corrompido: " + arquivo, e);
+        }
+    }
+
+    // Só os índices: os blocos não são lidos durante a captura.
+    private static NoCapturado capturarArquivo(Captura captura, Arquivo arquivo) {
+        NoCapturado no = new NoCapturado(ARQUIVO, arquivo.getMetadata());
+        no.tamanho = arquivo.getMetadata().getSize();
+        TabelaBlocos blocos = arquivo.getBlocos();
+        int[] pares = new int[blocos.getQuantidade() * 2];
+        int[] usados = { 0 };
+        blocos.paraCada((indice, bloco) -> {
+            pares[usados[0]++] = indice;
+            pares[usados[0]++] = captura.renumerar(bloco.getIndice());
+        });
+        no.blocos = pares;
+        return no;
+    }
+
+    // Codifica a captura, já sem travas.
+    private static Saida codificar(Captura captura) {
+        Saida arvore = new Saida();
+        arvore.inteiro(captura.usuarios.size());
+        for (String usuario : captura.usuarios) {
+            arvore.texto(usuario);
+        }
+        arvore.inteiro(captura.regras.size());
+        for (RegrasPermissao.Regra regra : captura.regras) {
+            arvore.texto(regra.getUsuario());
+            arvore.texto(regra.getPadrao());
+            arvore.texto(regra.getPermissao());
+        }
+        for (NoCapturado no : captura.nos) {
+            arvore.tipo(no.tipo);
+            if (no.tipo == FIM) {
+                continue;
+            }
+            arvore.texto(no.nome);
+            arvore.texto(no.dono);
+            arvore.inteiro(no.permissoes.length / 2);
+            for (String texto : no.permissoes) {
+                arvore.texto(texto);
+            }
+            if (no.tipo == ARQUIVO) {
+                arvore.longo(no.tamanho);
+                arvore.inteiro(no.blocos.length / 2);
+                int anterior = -1;
+                for (int i = 0; i < no.blocos.length; i += 2) {
+                    arvore.inteiro(no.blocos[i] - anterior - 1);
+                    arvore.inteiro(no.blocos[i + 1]);
+                    anterior = no.blocos[i];
+                }
+            }
+        }
+        return arvore;
+    }
+
+    // A raiz já teve o tipo lido; cada diretório aberto fica na pilha até o
+    // seu FIM.
+    private static Diretorio restaurarArvore(Entrada entrada, TabelaInodes inodes, DispositivoBlocos dispositivo,
+            int quantidadeBlocos) throws IOException {
+        Diretorio raiz = restaurarDiretorio(entrada, inodes);
+        Deque<Diretorio> abertos = new ArrayDeque<>();
+        abertos.push(raiz);
+        while (!abertos.isEmpty()) {
+            byte tipo = entrada.tipo();
+            if (tipo == FIM) {
+                abertos.pop();
+            } else if (tipo == DIRETORIO) {
+                Diretorio dir = restaurarDiretorio(entrada, inodes);
+                abertos.peek().addSubDiretorio(dir);
+                abertos.push(dir);
+            } else if (tipo == ARQUIVO) {
+                abertos.peek().addFile(restaurarArquivo(entrada, inodes, dispositivo, quantidadeBlocos));
+            } else {
+                throw new IOException("Tipo de nó inválido no snapshot: " + tipo);
+            }
+        }
+        return raiz;
+    }
+
+    private static Diretorio restaurarDiretorio(Entrada entrada, TabelaInodes inodes) {
+        String nome = entrada.texto();
+        String dono = entrada.texto();
+        Diretorio dir = new Diretorio(inodes, dono, nome);
+        restaurarPermissoes(entrada, inodes, dir.getMetadata().getInode());
+        return dir;
+    }
+
+    // Cada bloco vem com a distância desde o índice do anterior.
+    private static Arquivo restaurarArquivo(Entrada entrada, TabelaInodes inodes, DispositivoBlocos dispositivo,
+            int quantidadeBlocos) throws IOException {
+        String nome = entrada.texto();
+        String dono = entrada.texto();
+        Arquivo arquivo = new Arquivo(inodes, nome, dono, dispositivo);
+        restaurarPermissoes(entrada, inodes, arquivo.getMetadata().getInode());
+        long tamanho = entrada.longo();
+        int quantidade = entrada.inteiro();
+        TabelaBlocos blocos = new TabelaBlocos();
+        long indice = -1;
+        for (int i = quantidade; i > 0; i--) {
+            indice += entrada.inteiro() + 1L;
+            int bloco = entrada.inteiro();
+            if (bloco < 0 || bloco >= quantidadeBlocos || indice > Integer.MAX_VALUE) {
+                throw new IOException("Bloco inválido no snapshot: " + bloco);
+            }
+            blocos.set((int) indice, new Bloco(bloco));
+        }
+        arquivo.restaurar(blocos, tamanho);
+        return arquivo;
+    }
+
+    private static void restaurarPermissoes(Entrada entrada, TabelaInodes inodes, int inode) {
+        int[] acl = new int[entrada.inteiro()];
+        for (int i = 0; i < acl.length; i++) {
+            int uid = inodes.idUsuario(entrada.texto());
+            acl[i] = TabelaInodes.entrada(uid, TabelaInodes.bits(entrada.texto()));
+        }
+        // Só o dono com rwx é o estado inicial do inode, que não ocupa um array.
+        if (acl.length != 1 || acl[0] != TabelaInodes.entrada(inodes.getIdDono(inode), TabelaInodes.TODAS)) {
+            inodes.setAcl(inode, acl);
+        }
+    }
+
+    private static void gravarBlocos(Captura captura, FileChannel canal) throws IOException {
+        byte[] lote = new byte[BLOCOS_POR_LOTE * TAMANHO_BLOCO];
+        long posicao = TAMANHO_CABECALHO;
+        for (int inicio = 0; inicio < captura.quantidadeBlocos; inicio += BLOCOS_POR_LOTE) {
+            int quantidade = Math.min(BLOCOS_POR_LOTE, captura.quantidadeBlocos - inicio);
+            for (int i = 0; i < quantidade; i++) {
+                captura.dispositivo.ler(captura.blocos[inicio + i], 0, lote, i * TAMANHO_BLOCO, TAMANHO_BLOCO);
+            }
+            escreverTudo(canal, ByteBuffer.wrap(lote, 0, quantidade * TAMANHO_BLOCO), posicao);
+            posicao += (long) quantidade * TAMANHO_BLOCO;
+        }
+    }
+
+    /**
+     * Mapeia os blocos em fatias de blocosPorFatia blocos. Só fatias inteiras
+     * são mapeadas; os blocos restantes são lidos para uma fatia direta, já que
+     * o mapeamento não pode passar do fim dos blocos. A última fatia tem a
+     * capacidade inteira, e não só a dos blocos restantes: o armazenamento
+     * encontra um bloco pela divisão do índice por blocosPorFatia, e os
+     * próximos blocos que o dispositivo restaurado alocar caem nessa mesma
+     * fatia. Aumentá-la depois exigiria copiá-la enquanto outras threads
+     * escrevem nos seus blocos.
+     */
+    private static ByteBuffer[] mapearBlocos(FileChannel canal, int quantidadeBlocos, int blocosPorFatia)
+            throws IOException {
+        int inteiras = quantidadeBlocos / blocosPorFatia;
+        int restantes = quantidadeBlocos % blocosPorFatia;
+        long bytesPorFatia = (long) blocosPorFatia * TAMANHO_BLOCO;
+        ByteBuffer[] fatias = new ByteBuffer[inteiras + (restantes > 0 ? 1 : 0)];
+        for (int i = 0; i < inteiras; i++) {
+            fatias[i] = canal.map(FileChannel.MapMode.PRIVATE, TAMANHO_CABECALHO + i * bytesPorFatia, bytesPorFatia);
+        }
+        if (restantes > 0) {
+            ByteBuffer ultima = ByteBuffer.allocateDirect((int) bytesPorFatia);
+            ultima.limit(restantes * TAMANHO_BLOCO);
+            lerTudo(canal, ultima, TAMANHO_CABECALHO + inteiras * bytesPorFatia);
+            ultima.clear();
+            fatias[inteiras] = ultima;
+        }
+        return fatias;
+    }
+
+    private static void escreverTudo(FileChannel canal, ByteBuffer origem, long posicao) throws IOException {
+        while (origem.hasRemaining()) {
+            posicao += canal.write(origem, posicao);
+        }
+    }
+
+    private static void lerTudo(FileChannel canal, ByteBuffer destino, long posicao) throws IOException {
+        while (destino.hasRemaining()) {
+            int lidos = canal.read(destino, posicao);
+            if (lidos < 0) {
+                throw new EOFException("Snapshot incompleto");
+            }
+            posicao += lidos;
+        }
+    }
+
+    // Estado capturado, ainda não gravado. Mantém uma referência a cada bloco
+    // capturado até ser liberado.
+    static final class Captura {
+        private final DispositivoBlocos dispositivo;
+        private final Journal journal;
+        private final long posicaoJournal;
+        private final List<String> usuarios = new ArrayList<>();
+        private final List<RegrasPermissao.Regra> regras = new ArrayList<>();
+        private final List<NoCapturado> nos = new ArrayList<>();
+        // Índice no dispositivo -> índice no snapshot + 1 (0: ainda não visto).
+        private final int[] renumeracao;
+        private int[] blocos = new int[64];
+        private int[] referencias = new int[64];
+        private int quantidadeBlocos;
+        private boolean liberada;
+
+        private Captura(DispositivoBlocos dispositivo, Journal journal, long posicaoJournal, int totalBlocos) {
+            this.dispositivo = dispositivo;
+            this.journal = journal;
+            this.posicaoJournal = posicaoJournal;
+            this.renumeracao = new int[totalBlocos];
+        }
+
+        private int renumerar(int indice) {
+            int novo = renumeracao[indice] - 1;
+            if (novo < 0) {
+                dispositivo.reter(indice);
+                novo = quantidadeBlocos++;
+                if (novo == blocos.length) {
+                    blocos = Arrays.copyOf(blocos, novo * 2);
+                    referencias = Arrays.copyOf(referencias, novo * 2);
+                }
+                blocos[novo] = indice;
+                renumeracao[indice] = novo + 1;
+            }
+            referencias[novo]++;
+            return novo;
+        }
+
+        private void liberar() {
+            if (liberada) {
+                return;
+            }
+            liberada = true;
+            for (int i = 0; i < quantidadeBlocos; i++) {
+                dispositivo.liberar(blocos[i]);
+            }
+        }
+
+        long getPosicaoJournal() {
+            return posicaoJournal;
+        }
+    }
+
+    // Um nó copiado pela captura, ou o FIM de um diretório.
+    private static final class NoCapturado {
+        private static final NoCapturado FIM_DIRETORIO = new NoCapturado();
+
+        private final byte tipo;
+        private final String nome;
+        private final String dono;
+        // Usuário e permissão, alternados.
+        private final String[] permissoes;
+        private long tamanho;
+        // Índice no arquivo e bloco no snapshot, alternados.
+        private int[] blocos;
+
+        private NoCapturado() {
+            this.tipo = FIM;
+            this.nome = null;
+            this.dono = null;
+            this.permissoes = null;
+        }
+
+        private NoCapturado(byte tipo, Metadata metadata) {
+            this.tipo = tipo;
+            this.nome = metadata.getName();
+            this.dono = metadata.getOwner();
+            // Cópia: o mapa é concorrente e o tamanho tem de bater com as entradas.
+            List<Map.Entry<String, String>> entradas = new ArrayList<>(metadata.getPermissions().entrySet());
+            this.permissoes = new String[entradas.size() * 2];
+            for (int i = 0; i < entradas.size(); i++) {
+                permissoes[2 * i] = entradas.get(i).getKey();
+                permissoes[2 * i + 1] = entradas.get(i).getValue();
+            }
+        }
+    }
+
+    // Resultado de restaurar().
+    static final class Restaurado {
+        private final Diretorio raiz;
+        private final List<String> usuarios;
+        private final List<RegrasPermissao.Regra> regras;
+        private final DispositivoBlocos dispositivo;
+        private final long posicaoJournal;
+
+        private Restaurado(Diretorio raiz, List<String> usuarios, List<RegrasPermissao.Regra> regras,
+                DispositivoBlocos dispositivo, long posicaoJournal) {
+            this.raiz = raiz;
+            this.usuarios = usuarios;
+            this.regras = regras;
+            this.dispositivo = dispositivo;
+            this.posicaoJournal = posicaoJournal;
+        }
+
+        Diretorio getRaiz() {
+            return raiz;
+        }
+
+        List<String> getUsuarios() {
+            return usuarios;
+        }
+
+        List<RegrasPermissao.Regra> getRegras() {
+            return regras;
+        }
+
+        DispositivoBlocos getDispositivo() {
+            return dispositivo;
+        }
+
+        long getPosicaoJournal() {
+            return posicaoJournal;
+        }
+    }
+
+    // Buffer crescente com inteiros de tamanho variável (7 bits por byte).
+    private static final class Saida {
+        private byte[] bytes = new byte[4096];
+        private int tamanho;
+
+        private void tipo(byte tipo) {
+            garantir(1);
+            bytes[tamanho++] = tipo;
+        }
+
+        private void inteiro(int valor) {
+            longo(valor & 0xFFFFFFFFL);
+        }
+
+        private void longo(long valor) {
+            garantir(10);
+            while ((valor & ~0x7FL) != 0) {
+                bytes[tamanho++] = (byte) ((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            bytes[tamanho++] = (byte) valor;
+        }
+
+        private void texto(String texto) {
+            byte[] utf8 = texto.getBytes(StandardCharsets.UTF_8);
+            inteiro(utf8.length);
+            garantir(utf8.length);
+            System.arraycopy(utf8, 0, bytes, tamanho, utf8.length);
+            tamanho += utf8.length;
+        }
+
+        private void garantir(int quantidade) {
+            if (tamanho + quantidade > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, tamanho + quantidade));
+            }
+        }
+    }
+
+    // Leitura do formato de Saida sobre a árvore mapeada.
+    private static final class Entrada {
+        private final ByteBuffer buffer;
+        private byte[] textoTemporario = new byte[256];
+
+        private Entrada(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private byte tipo() {
+            return buffer.get();
+        }
+
+        private int inteiro() {
+            long valor = longo();
+            if (valor > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Inteiro fora do intervalo: " + valor);
+            }
+            return (int) valor;
+        }
+
+        private long longo() {
+            long valor = 0;
+            for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+                byte b = buffer.get();
+                valor |= (long) (b & 0x7F) << deslocamento;
+                if (b >= 0) {
+                    return valor;
+                }
+            }
+            throw new IllegalStateException("Inteiro de tamanho variável inválido");
+        }
+
+        private String texto() {
+            int tamanho = inteiro();
+            if (tamanho > textoTemporario.length) {
+                textoTemporario = new byte[Math.max(tamanho, textoTemporario.length * 2)];
+            }
+            buffer.get(textoTemporario, 0, tamanho);
+            return new String(textoTemporario, 0, tamanho, StandardCharsets.UTF_8);
+        }
+    }
+}
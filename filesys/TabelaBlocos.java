@@ -0,0 +1,157 @@
+package filesys;
+
+import java.util.Arrays;
+
+// Blocos de um Arquivo por índice (posição do arquivo / BLOCK_SIZE), com
+// buracos. Os índices são agrupados em páginas de TAMANHO_PAGINA: só existem as
+// páginas que têm algum bloco, guardadas em ordem de número, então a memória
+// acompanha a quantidade de blocos e não a posição do último (escrever um byte
+// a 1 TiB cria uma página, e não 2^28 buracos). O array de uma página cresce
+// até TAMANHO_PAGINA conforme os índices usados, para que arquivos pequenos
+// ocupem pouco. Num arquivo sem buracos entre as páginas, a página n está na
+// posição n e é encontrada sem busca.
+// Não é segura para várias threads: Arquivo a protege com a sua trava.
+final class TabelaBlocos {
+    static final int BITS_PAGINA = 10;
+    static final int TAMANHO_PAGINA = 1 << BITS_PAGINA;
+    private static final int MASCARA_PAGINA = TAMANHO_PAGINA - 1;
+    private static final int[] SEM_NUMEROS = new int[0];
+    private static final Bloco[][] SEM_PAGINAS = new Bloco[0][];
+
+    // numeros[i] é o número da página paginas[i], em ordem crescente.
+    private int[] numeros = SEM_NUMEROS;
+    private Bloco[][] paginas = SEM_PAGINAS;
+    private int quantidadePaginas;
+    private int quantidadeBlocos;
+
+    // Recebe os blocos em ordem de índice (ver paraCada).
+    interface Visitante {
+        void visitar(int indice, Bloco bloco);
+    }
+
+    /**
+     * @return O bloco do índice, ou null se for um buraco
+     */
+    Bloco get(int indice) {
+        int posicao = posicaoPagina(indice >>> BITS_PAGINA);
+        if (posicao < 0) {
+            return null;
+        }
+        Bloco[] pagina = paginas[posicao];
+        int i = indice & MASCARA_PAGINA;
+        return i < pagina.length ? pagina[i] : null;
+    }
+
+    /**
+     * @param bloco Bloco do índice, ou null para deixar um buraco
+     */
+    void set(int indice, Bloco bloco) {
+        int numero = indice >>> BITS_PAGINA;
+        int i = indice & MASCARA_PAGINA;
+        int posicao = posicaoPagina(numero);
+        if (posicao < 0) {
+            if (bloco == null) {
+                return;
+            }
+            posicao = inserirPagina(-posicao - 1, numero);
+        }
+        Bloco[] pagina = paginas[posicao];
+        if (i >= pagina.length) {
+            if (bloco == null) {
+                return;
+            }
+            pagina = Arrays.copyOf(pagina, Math.min(TAMANHO_PAGINA, Math.max(i + 1, pagina.length * 2)));
+            paginas[posicao] = pagina;
+        }
+        if (pagina[i] == null) {
+            quantidadeBlocos += bloco == null ? 0 : 1;
+        } else if (bloco == null) {
+            quantidadeBlocos--;
+        }
+        pagina[i] = bloco;
+    }
+
+    /**
+     * @return Quantidade de blocos, sem contar buracos
+     */
+    int getQuantidade() {
+        return quantidadeBlocos;
+    }
+
+    /**
+     * Chama o visitante para cada bloco, em ordem de índice, pulando buracos.
+     */
+    void paraCada(Visitante visitante) {
+        for (int p = 0; p < quantidadePaginas; p++) {
+            Bloco[] pagina = paginas[p];
+            int base = numeros[p] << BITS_PAGINA;
+            for (int i = 0; i < pagina.length; i++) {
+                if (pagina[i] != null) {
+                    visitante.visitar(base + i, pagina[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retira os blocos de índice maior ou igual a inicio, passando cada um ao
+     * visitante antes.
+     */
+    void cortar(int inicio, Visitante retirados) {
+        int primeira = posicaoPagina(inicio >>> BITS_PAGINA);
+        if (primeira < 0) {
+            primeira = -primeira - 1;
+        } else if ((inicio & MASCARA_PAGINA) != 0) {
+            // A página do início continua, só sem o fim.
+            Bloco[] pagina = paginas[primeira];
+            int base = numeros[primeira] << BITS_PAGINA;
+            for (int i = inicio & MASCARA_PAGINA; i < pagina.length; i++) {
+                if (pagina[i] != null) {
+                    retirados.visitar(base + i, pagina[i]);
+                    pagina[i] = null;
+                    quantidadeBlocos--;
+                }
+            }
+            primeira++;
+        }
+        for (int p = primeira; p < quantidadePaginas; p++) {
+            Bloco[] pagina = paginas[p];
+            int base = numeros[p] << BITS_PAGINA;
+            for (int i = 0; i < pagina.length; i++) {
+                if (pagina[i] != null) {
+                    retirados.visitar(base + i, pagina[i]);
+                    quantidadeBlocos--;
+                }
+            }
+            paginas[p] = null;
+        }
+        quantidadePaginas = primeira;
+        if (quantidadePaginas == 0) {
+            numeros = SEM_NUMEROS;
+            paginas = SEM_PAGINAS;
+        }
+    }
+
+    // Posição da página em paginas, ou (-(ponto de inserção) - 1) se ela não
+    // existe, como Arrays.binarySearch.
+    private int posicaoPagina(int numero) {
+        if (numero < quantidadePaginas && numeros[numero] == numero) {
+            return numero;
+        }
+        return Arrays.binarySearch(numeros, 0, quantidadePaginas, numero);
+    }
+
+    private int inserirPagina(int posicao, int numero) {
+        if (quantidadePaginas == numeros.length) {
+            int capacidade = Math.max(4, quantidadePaginas * 2);
+            numeros = Arrays.copyOf(numeros, capacidade);
+            paginas = Arrays.copyOf(paginas, capacidade);
+        }
+        System.arraycopy(numeros, posicao, numeros, posicao + 1, quantidadePaginas - posicao);
+        System.arraycopy(paginas, posicao, paginas, posicao + 1, quantidadePaginas - posicao);
+        numeros[posicao] = numero;
+        paginas[posicao] = new Bloco[1];
+        quantidadePaginas++;
+        return posicao;
+    }
+}
@@ -0,0 +1,364 @@
+package filesys;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// Tabela de inodes: os metadados de todos os nós de um sistema de arquivos em
+// colunas de tipos primitivos (struct-of-arrays) indexadas pelo número do
+// inode: id do nome, id do dono, tamanho e ACL. Nomes e usuários são internados
+// em TabelaNomes. Diretorio, Arquivo e Metadata guardam só o número do inode.
+// As colunas ficam em páginas de tamanho fixo (2^BITS_PAGINA entradas, ou uma
+// só nas tabelas de um nó, ver paraUmNo) que nunca mudam de lugar: ao crescer
+// só o array de páginas é copiado, então quem lê sem trava sempre enxerga os
+// valores atuais. Números de inodes liberados são
+// reaproveitados; quem lê metadados de um nó sem trava deve validar, junto com
+// a leitura, que o nó ainda está na árvore.
+public final class TabelaInodes {
+    private static final int BITS_PAGINA = 12;
+    private static final VarHandle ACLS = MethodHandles.arrayElementVarHandle(int[][].class);
+
+    // Bits de permissão numa entrada de ACL.
+    static final int LEITURA = 4;
+    static final int ESCRITA = 2;
+    static final int EXECUCAO = 1;
+    static final int TODAS = LEITURA | ESCRITA | EXECUCAO;
+    static final int SEM_ENTRADA = -1;
+
+    private final int bitsPagina;
+    private final int mascaraPagina;
+    private final TabelaNomes nomes;
+    private final TabelaNomes usuarios;
+    private volatile Pagina[] paginas = new Pagina[0];
+    private int[] livres;
+    private int quantidadeLivres;
+    private int proximo;
+    private int emUso;
+
+    // Uma página de cada coluna. acls[i] guarda entradas (uid << 3 | bits rwx)
+    // ordenadas por uid, trocadas inteiras a cada alteração; null significa só
+    // o dono, com rwx, que é o caso comum e não ocupa um array.
+    private static final class Pagina {
+        private final int[] nomes;
+        private final int[] donos;
+        private final long[] tamanhos;
+        private final int[][] acls;
+
+        Pagina(int tamanho) {
+            nomes = new int[tamanho];
+            donos = new int[tamanho];
+            tamanhos = new long[tamanho];
+            acls = new int[tamanho][];
+        }
+    }
+
+    public TabelaInodes() {
+        this(BITS_PAGINA, 64);
+    }
+
+    private TabelaInodes(int bitsPagina, int capacidadeNomes) {
+        this.bitsPagina = bitsPagina;
+        this.mascaraPagina = (1 << bitsPagina) - 1;
+        this.nomes = new TabelaNomes(capacidadeNomes);
+        this.usuarios = new TabelaNomes(capacidadeNomes);
+        this.livres = new int[Math.min(64, 1 << bitsPagina)];
+    }
+
+    /**
+     * Tabela própria de um nó criado sem um FileSystemImpl (construtores
+     * antigos de Diretorio, Arquivo e Metadata): páginas de uma entrada, para
+     * ocupar pouco, e coletada junto com o nó, sem precisar liberar o inode.
+     */
+    static TabelaInodes paraUmNo() {
+        return new TabelaInodes(0, 2);
+    }
+
+    /**
+     * Reserva um inode com tamanho 0 e somente o dono com permissão rwx.
+     *
+     * @param nome Nome do nó
+     * @param dono Dono do nó
+     * @return Número do inode
+     */
+    public int alocar(String nome, String dono) {
+        int idNome = nomes.id(nome);
+        int idDono = usuarios.id(dono);
+        synchronized (this) {
+            int inode;
+            if (quantidadeLivres > 0) {
+                inode = livres[--quantidadeLivres];
+            } else {
+                inode = proximo++;
+                if ((inode >>> bitsPagina) == paginas.length) {
+                    Pagina[] novas = Arrays.copyOf(paginas, paginas.length + 1);
+                    novas[paginas.length] = new Pagina(1 << bitsPagina);
+                    paginas = novas;
+                }
+            }
+            Pagina pagina = paginas[inode >>> bitsPagina];
+            int i = inode & mascaraPagina;
+            pagina.nomes[i] = idNome;
+            pagina.donos[i] = idDono;
+            pagina.tamanhos[i] = 0;
+            ACLS.setRelease(pagina.acls, i, null);
+            emUso++;
+            return inode;
+        }
+    }
+
+    /**
+     * Devolve um inode para ser reaproveitado.
+     *
+     * @param inode Número do inode
+     */
+    public synchronized void liberar(int inode) {
+        ACLS.setRelease(pagina(inode).acls, inode & mascaraPagina, null);
+        if (quantidadeLivres == livres.length) {
+            livres = Arrays.copyOf(livres, livres.length * 2);
+        }
+        livres[quantidadeLivres++] = inode;
+        emUso--;
+    }
+
+    public String getNome(int inode) {
+        return nomes.texto(pagina(inode).nomes[inode & mascaraPagina]);
+    }
+
+    public void setNome(int inode, String nome) {
+        pagina(inode).nomes[inode & mascaraPagina] = nomes.id(nome);
+    }
+
+    public String getDono(int inode) {
+        return usuarios.texto(getIdDono(inode));
+    }
+
+    int getIdDono(int inode) {
+        return pagina(inode).donos[inode & mascaraPagina];
+    }
+
+    /**
+     * Troca o dono. As permissões gravadas não mudam: se o antigo dono só
+     * tinha a permissão implícita, ela passa a ser uma entrada explícita.
+     */
+    public void setDono(int inode, String dono) {
+        Pagina pagina = pagina(inode);
+        int i = inode & mascaraPagina;
+        if (getAcl(pagina, i) == null) {
+            ACLS.setRelease(pagina.acls, i, new int[] { entrada(pagina.donos[i], TODAS) });
+        }
+        pagina.donos[i] = usuarios.id(dono);
+    }
+
+    public long getTamanho(int inode) {
+        return pagina(inode).tamanhos[inode & mascaraPagina];
+    }
+
+    public void setTamanho(int inode, long tamanho) {
+        pagina(inode).tamanhos[inode & mascaraPagina] = tamanho;
+    }
+
+    /**
+     * @param inode Número do inode
+     * @param uid   Id do usuário (ver idUsuario)
+     * @return Bits rwx gravados para o usuário; 0 se não houver entrada
+     */
+    int getPermissoes(int inode, int uid) {
+        Pagina pagina = pagina(inode);
+        int i = inode & mascaraPagina;
+        int[] acl = getAcl(pagina, i);
+        if (acl == null) {
+            return uid == pagina.donos[i] ? TODAS : 0;
+        }
+        int posicao = procurar(acl, uid);
+        return posicao >= 0 ? acl[posicao] & TODAS : 0;
+    }
+
+    /**
+     * Consulta a entrada de um usuário sem alocar nada: o dono pode tudo e os
+     * demais são procurados na ACL por busca binária.
+     *
+     * @param inode Número do inode
+     * @param uid   Id do usuário
+     * @return Bits rwx do usuário, ou SEM_ENTRADA se ele não for o dono nem
+     *         estiver na ACL
+     */
+    int getEntrada(int inode, int uid) {
+        Pagina pagina = pagina(inode);
+        int i = inode & mascaraPagina;
+        if (pagina.donos[i] == uid) {
+            return TODAS;
+        }
+        int[] acl = getAcl(pagina, i);
+        if (acl == null) {
+            return SEM_ENTRADA;
+        }
+        int posicao = procurar(acl, uid);
+        return posicao >= 0 ? acl[posicao] & TODAS : SEM_ENTRADA;
+    }
+
+    /**
+     * Grava (ou, com bits negativos, remove) a entrada de um usuário na ACL.
+     * Alterações da ACL de um nó devem ser feitas com a trava que protege os
+     * seus metadados.
+     *
+     * @param inode Número do inode
+     * @param uid   Id do usuário
+     * @param bits  Bits rwx, ou -1 para remover a entrada
+     */
+    void setPermissoes(int inode, int uid, int bits) {
+        Pagina pagina = pagina(inode);
+        int i = inode & mascaraPagina;
+        int[] atual = getAcl(pagina, i);
+        if (atual == null) {
+            atual = new int[] { entrada(pagina.donos[i], TODAS) };
+        }
+        int posicao = procurar(atual, uid);
+        int[] nova;
+        if (posicao >= 0) {
+            if (bits < 0) {
+                nova = new int[atual.length - 1];
+                System.arraycopy(atual, 0, nova, 0, posicao);
+                System.arraycopy(atual, posicao + 1, nova, posicao, atual.length - posicao - 1);
+            } else {
+                nova = atual.clone();
+                nova[posicao] = entrada(uid, bits);
+            }
+        } else {
+            if (bits < 0) {
+                return;
+            }
+            int insercao = -posicao - 1;
+            nova = new int[atual.length + 1];
+            System.arraycopy(atual, 0, nova, 0, insercao);
+            nova[insercao] = entrada(uid, bits);
+            System.arraycopy(atual, insercao, nova, insercao + 1, atual.length - insercao);
+        }
+        ACLS.setRelease(pagina.acls, i, nova);
+    }
+
+    /**
+     * @return Cópia das entradas (uid << 3 | bits) da ACL, ordenadas por uid
+     */
+    int[] getAcl(int inode) {
+        Pagina pagina = pagina(inode);
+        int i = inode & mascaraPagina;
+        int[] acl = getAcl(pagina, i);
+        return acl == null ? new int[] { entrada(pagina.donos[i], TODAS) } : acl.clone();
+    }
+
+    /**
+     * Substitui a ACL inteira.
+     *
+     * @param entradas Entradas (uid << 3 | bits), em qualquer ordem e sem uids
+     *                 repetidos
+     */
+    void setAcl(int inode, int[] entradas) {
+        int[] ordenadas = entradas.clone();
+        Arrays.sort(ordenadas);
+        ACLS.setRelease(pagina(inode).acls, inode & mascaraPagina, ordenadas);
+    }
+
+    /**
+     * @param usuario Nome do usuário
+     * @return Id denso do usuário, criado se ainda não existir
+     */
+    int idUsuario(String usuario) {
+        return usuarios.id(usuario);
+    }
+
+    /**
+     * @return Id do usuário ou -1 se ele nunca apareceu na tabela
+     */
+    int buscarUsuario(String usuario) {
+        return usuarios.buscar(usuario);
+    }
+
+    String nomeUsuario(int uid) {
+        return usuarios.texto(uid);
+    }
+
+    public synchronized int getInodesEmUso() {
+        return emUso;
+    }
+
+    /**
+     * @return Quantidade de nomes distintos guardados
+     */
+    public int getNomesDistintos() {
+        return nomes.getQuantidade();
+    }
+
+    static int entrada(int uid, int bits) {
+        return uid << 3 | bits;
+    }
+
+    /**
+     * @param permissao Texto com r, w, x e -
+     * @return Bits correspondentes
+     */
+    static int bits(String permissao) {
+        int bits = 0;
+        for (int i = 0; i < permissao.length(); i++) {
+            switch (permissao.charAt(i)) {
+                case 'r':
+                    bits |= LEITURA;
+                    break;
+                case 'w':
+                    bits |= ESCRITA;
+                    break;
+                case 'x':
+                    bits |= EXECUCAO;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return Texto das permissões na ordem rwx, sem traços
+     */
+    static String texto(int bits) {
+        StringBuilder texto = new StringBuilder(3);
+        if ((bits & LEITURA) != 0) {
+            texto.append('r');
+        }
+        if ((bits & ESCRITA) != 0) {
+            texto.append('w');
+        }
+        if ((bits & EXECUCAO) != 0) {
+            texto.append('x');
+        }
+        return texto.toString();
+    }
+
+    private Pagina pagina(int inode) {
+        return paginas[inode >>> bitsPagina];
+    }
+
+    private static int[] getAcl(Pagina pagina, int i) {
+        return (int[]) ACLS.getAcquire(pagina.acls, i);
+    }
+
+    /**
+     * @param acl Entradas (uid << 3 | bits) ordenadas por uid
+     * @return Posição da entrada do uid, ou -(ponto de inserção + 1)
+     */
+    static int procurar(int[] acl, int uid) {
+        int baixo = 0;
+        int alto = acl.length - 1;
+        while (baixo <= alto) {
+            int meio = (baixo + alto) >>> 1;
+            int uidMeio = acl[meio] >>> 3;
+            if (uidMeio < uid) {
+                baixo = meio + 1;
+            } else if (uidMeio > uid) {
+                alto = meio - 1;
+            } else {
+                return meio;
+            }
+        }
+        return -(baixo + 1);
+    }
+}
@@ -0,0 +1,59 @@
+package filesys;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Internação de textos (nomes de nós, nomes de usuários): cada texto distinto
+// recebe um id denso e é guardado uma única vez, e a TabelaInodes guarda só o
+// id. Ids nunca são reaproveitados.
+final class TabelaNomes {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // Substituído por uma cópia maior ao crescer; posições já preenchidas não
+    // mudam.
+    private volatile String[] textos;
+    private int quantidade;
+
+    TabelaNomes(int capacidade) {
+        textos = new String[capacidade];
+    }
+
+    /**
+     * @param texto Texto a internar
+     * @return O id do texto, criado se ainda não existir
+     */
+    int id(String texto) {
+        Integer id = ids.get(texto);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(texto);
+            if (id != null) {
+                return id;
+            }
+            if (quantidade == textos.length) {
+                textos = Arrays.copyOf(textos, quantidade * 2);
+            }
+            textos[quantidade] = texto;
+            ids.put(texto, quantidade);
+            return quantidade++;
+        }
+    }
+
+    /**
+     * @param texto Texto procurado
+     * @return O id do texto ou -1 se ele nunca foi internado
+     */
+    int buscar(String texto) {
+        Integer id = ids.get(texto);
+        return id == null ? -1 : id;
+    }
+
+    String texto(int id) {
+        return textos[id];
+    }
+
+    synchronized int getQuantidade() {
+        return quantidade;
+    }
+}
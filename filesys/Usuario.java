@@ -0,0 +1,27 @@
+package filesys;
+
+// Usuário cadastrado num sistema de arquivos. Há um único objeto por nome em
+// cada RegistroUsuarios, então pode ser comparado por identidade. uid é o id
+// denso do usuário na TabelaInodes, o mesmo usado nas ACLs dos inodes.
+public final class Usuario {
+    private final String nome;
+    private final int uid;
+
+    Usuario(String nome, int uid) {
+        this.nome = nome;
+        this.uid = uid;
+    }
+
+    public String getNome() {
+        return nome;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    @Override
+    public String toString() {
+        return nome;
+    }
+}